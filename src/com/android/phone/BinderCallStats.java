@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.IBinder;
+import android.os.SystemProperties;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.telephony.ITelephony;
+
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counts the binder calls to {@link PhoneInterfaceManager} and how long they take, per method and
+ * per calling UID, including the time spent waiting for the main thread.
+ *
+ * <p>Recording is off by default; while it is off a call costs one volatile read. It is turned on
+ * at boot with the {@link #PROPERTY_ENABLED} system property, or at runtime with {@code adb shell
+ * cmd phone binder-stats enable}, see {@link BinderCallStatsShellCommand}. All counters are
+ * atomics, so calls on different binder threads never wait for each other. At most {@link
+ * #MAX_UIDS} UIDs are tracked separately, calls from any further UID are counted together.
+ */
+class BinderCallStats {
+
+    private static final String TRANSACTION_PREFIX = "TRANSACTION_";
+
+    private static final String PROPERTY_ENABLED = "persist.radio.binder_call_stats";
+
+    // Binder transaction codes are allocated from FIRST_CALL_TRANSACTION in order.
+    private static final int MAX_METHODS = 512;
+
+    @VisibleForTesting
+    static final int MAX_UIDS = 256;
+    /** Key of the calls from UIDs beyond {@link #MAX_UIDS}. */
+    @VisibleForTesting
+    static final int OTHER_UIDS = -1;
+
+    private static BinderCallStats sInstance;
+
+    private volatile boolean mEnabled;
+
+    private final AtomicReferenceArray<CallStats> mMethodStats =
+            new AtomicReferenceArray<>(MAX_METHODS);
+    private final ConcurrentHashMap<Integer, CallStats> mUidStats = new ConcurrentHashMap<>();
+
+    /** Main thread wait of the call in progress on each binder thread, in microseconds. */
+    private final ThreadLocal<long[]> mMainThreadWaitMicros = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private SparseArray<String> mMethodNames;
+
+    /**
+     * A histogram of durations in microseconds, with a bucket per power of two.
+     */
+    @VisibleForTesting
+    static final class LatencyHistogram {
+        private static final int BUCKETS = 32;
+
+        // Bucket i counts durations in [2^(i - 1), 2^i).
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+
+        void add(long micros) {
+            int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+            mBuckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given percentile, or 0 if empty.
+         */
+        long getPercentile(int percentile) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += mBuckets.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (total * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+    }
+
+    /** Statistics of the calls of one method or of one UID. */
+    @VisibleForTesting
+    static final class CallStats {
+        final AtomicLong mCount = new AtomicLong();
+        final AtomicLong mTotalMicros = new AtomicLong();
+        final AtomicLong mMainThreadWaitMicros = new AtomicLong();
+        final LatencyHistogram mLatency = new LatencyHistogram();
+
+        void add(long micros, long mainThreadWaitMicros) {
+            mCount.incrementAndGet();
+            mTotalMicros.addAndGet(micros);
+            mLatency.add(micros);
+            if (mainThreadWaitMicros > 0) {
+                mMainThreadWaitMicros.addAndGet(mainThreadWaitMicros);
+            }
+        }
+
+        void dump(PrintWriter pw, String name) {
+            long count = mCount.get();
+            pw.println("    " + name + ": count=" + count
+                    + " avgUs=" + (count == 0 ? 0 : mTotalMicros.get() / count)
+                    + " p50Us<=" + mLatency.getPercentile(50)
+                    + " p99Us<=" + mLatency.getPercentile(99)
+                    + " mainThreadWaitUs=" + mMainThreadWaitMicros.get());
+        }
+    }
+
+    static synchronized BinderCallStats getInstance() {
+        if (sInstance == null) {
+            sInstance = new BinderCallStats(SystemProperties.getBoolean(PROPERTY_ENABLED, false));
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    BinderCallStats(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    void reset() {
+        for (int i = 0; i < MAX_METHODS; i++) {
+            mMethodStats.set(i, null);
+        }
+        mUidStats.clear();
+    }
+
+    /**
+     * Marks the start of a call on the current thread.
+     *
+     * @return the token to pass to {@link #onCallEnded}
+     */
+    long onCallStarted() {
+        mMainThreadWaitMicros.get()[0] = 0;
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds time the current call spent waiting for the main thread.
+     */
+    void addMainThreadWait(long micros) {
+        if (mEnabled) {
+            mMainThreadWaitMicros.get()[0] += micros;
+        }
+    }
+
+    void onCallEnded(int code, int uid, long token) {
+        long micros = (System.nanoTime() - token) / 1000;
+        long waitMicros = mMainThreadWaitMicros.get()[0];
+        int method = code - IBinder.FIRST_CALL_TRANSACTION;
+        if (method >= 0 && method < MAX_METHODS) {
+            getOrCreate(method).add(micros, waitMicros);
+        }
+        CallStats uidStats = mUidStats.get(uid);
+        if (uidStats == null) {
+            if (mUidStats.size() >= MAX_UIDS) {
+                uid = OTHER_UIDS;
+            }
+            CallStats newStats = new CallStats();
+            uidStats = mUidStats.putIfAbsent(uid, newStats);
+            if (uidStats == null) {
+                uidStats = newStats;
+            }
+        }
+        uidStats.add(micros, waitMicros);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("BinderCallStats: enabled=" + mEnabled);
+        pw.println("  By method:");
+        SparseArray<String> names = getMethodNames();
+        List<Map.Entry<String, CallStats>> methods = new ArrayList<>();
+        for (int i = 0; i < MAX_METHODS; i++) {
+            CallStats stats = mMethodStats.get(i);
+            if (stats != null) {
+                String name = names.get(i + IBinder.FIRST_CALL_TRANSACTION);
+                methods.add(new AbstractMap.SimpleEntry<>(
+                        name != null ? name : "#" + i, stats));
+            }
+        }
+        dumpSorted(pw, methods);
+        pw.println("  By UID:");
+        List<Map.Entry<String, CallStats>> uids = new ArrayList<>();
+        for (Map.Entry<Integer, CallStats> entry : mUidStats.entrySet()) {
+            int uid = entry.getKey();
+            uids.add(new AbstractMap.SimpleEntry<>(
+                    uid == OTHER_UIDS ? "other" : Integer.toString(uid), entry.getValue()));
+        }
+        dumpSorted(pw, uids);
+    }
+
+    private static void dumpSorted(PrintWriter pw, List<Map.Entry<String, CallStats>> entries) {
+        Collections.sort(entries, new Comparator<Map.Entry<String, CallStats>>() {
+            @Override
+            public int compare(Map.Entry<String, CallStats> a, Map.Entry<String, CallStats> b) {
+                return Long.compare(b.getValue().mCount.get(), a.getValue().mCount.get());
+            }
+        });
+        for (Map.Entry<String, CallStats> entry : entries) {
+            entry.getValue().dump(pw, entry.getKey());
+        }
+    }
+
+    private CallStats getOrCreate(int method) {
+        CallStats stats = mMethodStats.get(method);
+        if (stats == null) {
+            mMethodStats.compareAndSet(method, null, new CallStats());
+            stats = mMethodStats.get(method);
+        }
+        return stats;
+    }
+
+    @VisibleForTesting
+    CallStats getMethodStats(int code) {
+        return mMethodStats.get(code - IBinder.FIRST_CALL_TRANSACTION);
+    }
+
+    @VisibleForTesting
+    CallStats getUidStats(int uid) {
+        return mUidStats.get(uid);
+    }
+
+    /**
+     * Maps transaction codes to method names with the constants of the generated stub. Only
+     * done when dumping.
+     */
+    private synchronized SparseArray<String> getMethodNames() {
+        if (mMethodNames == null) {
+            mMethodNames = new SparseArray<>();
+            for (Field field : ITelephony.Stub.class.getDeclaredFields()) {
+                String name = field.getName();
+                if (name.startsWith(TRANSACTION_PREFIX) && field.getType() == int.class
+                        && Modifier.isStatic(field.getModifiers())) {
+                    try {
+                        field.setAccessible(true);
+                        mMethodNames.put(field.getInt(null),
+                                name.substring(TRANSACTION_PREFIX.length()));
+                    } catch (IllegalAccessException e) {
+                        // Leave the method unnamed.
+                    }
+                }
+            }
+        }
+        return mMethodNames;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.ShellCommand;
+
+import java.io.PrintWriter;
+
+/**
+ * Handles "adb shell cmd phone binder-stats enable|disable|reset", which controls the recording
+ * of {@link BinderCallStats} at runtime. The statistics themselves are printed by dumpsys.
+ */
+class BinderCallStatsShellCommand extends ShellCommand {
+
+    static final String COMMAND = "binder-stats";
+
+    private final BinderCallStats mStats;
+
+    BinderCallStatsShellCommand(BinderCallStats stats) {
+        mStats = stats;
+    }
+
+    @Override
+    public int onCommand(String cmd) {
+        if (!COMMAND.equals(cmd)) {
+            return handleDefaultCommands(cmd);
+        }
+        PrintWriter pw = getOutPrintWriter();
+        String action = getNextArg();
+        if ("enable".equals(action)) {
+            mStats.setEnabled(true);
+        } else if ("disable".equals(action)) {
+            mStats.setEnabled(false);
+        } else if ("reset".equals(action)) {
+            mStats.reset();
+        } else {
+            getErrPrintWriter().println("Unknown action: " + action);
+            return -1;
+        }
+        pw.println("BinderCallStats: enabled=" + mStats.isEnabled());
+        return 0;
+    }
+
+    @Override
+    public void onHelp() {
+        PrintWriter pw = getOutPrintWriter();
+        pw.println("Phone commands:");
+        pw.println("  " + COMMAND + " enable|disable|reset");
+        pw.println("    Turns the recording of binder call statistics on or off, or clears them.");
+        pw.println("    The statistics are printed by \"dumpsys phone\".");
+    }
+}
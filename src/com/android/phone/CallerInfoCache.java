@@ -20,27 +20,47 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.os.SystemProperties;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Callable;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.DeletedContacts;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Holds "custom ringtone" and "send to voicemail" information for each contact as a fallback of
- * contacts database. The cached information is refreshed periodically and used when database
- * lookup (via ContentResolver) takes longer time than expected.
+ * contacts database. The cached information is refreshed whenever the contacts change and used
+ * when database lookup (via ContentResolver) takes longer time than expected.
  *
  * The data inside this class shouldn't be treated as "primary"; they may not reflect the
  * latest information stored in the original database.
+ *
+ * PSTN numbers are looked up in a {@link NumberTable} by a primitive key packed from their last 7
+ * digits, so {@link #getCacheEntry(String)} neither locks nor allocates on the incoming call path.
+ * After the first full load, only the contacts changed since the previous refresh are queried
+ * again.
  */
 public class CallerInfoCache {
     private static final String LOG_TAG = CallerInfoCache.class.getSimpleName();
@@ -52,6 +72,17 @@ public class CallerInfoCache {
 
     public static final int MESSAGE_UPDATE_CACHE = 0;
 
+    /** How long to wait for more contact changes before refreshing. */
+    private static final long REFRESH_DELAY_MILLIS = 1000;
+
+    /** Above this many changed contacts, a full refresh is cheaper than an incremental one. */
+    private static final int MAX_INCREMENTAL_CONTACTS = 500;
+
+    /** How many trailing digits of a PSTN number are used as the key. */
+    private static final int KEY_DIGITS = 7;
+
+    private static final int KEY_PLUS = 10;
+
     // Assuming DATA.DATA1 corresponds to Phone.NUMBER and SipAddress.ADDRESS, we just use
     // Data columns as much as we can. One exception: because normalized numbers won't be used in
     // SIP cases, Phone.NORMALIZED_NUMBER is used as is instead of using Data.
@@ -59,18 +90,23 @@ public class CallerInfoCache {
         Data.DATA1,                  // 0
         Phone.NORMALIZED_NUMBER,     // 1
         Data.CUSTOM_RINGTONE,        // 2
-        Data.SEND_TO_VOICEMAIL       // 3
+        Data.SEND_TO_VOICEMAIL,      // 3
+        Data.CONTACT_ID              // 4
     };
 
     private static final int INDEX_NUMBER            = 0;
     private static final int INDEX_NORMALIZED_NUMBER = 1;
     private static final int INDEX_CUSTOM_RINGTONE   = 2;
     private static final int INDEX_SEND_TO_VOICEMAIL = 3;
+    private static final int INDEX_CONTACT_ID        = 4;
 
     private static final String SELECTION = "("
             + "(" + Data.CUSTOM_RINGTONE + " IS NOT NULL OR " + Data.SEND_TO_VOICEMAIL + "=1)"
             + " AND " + Data.DATA1 + " IS NOT NULL)";
 
+    private static final String CHANGED_SELECTION = SELECTION + " AND "
+            + Data.CONTACT_LAST_UPDATED_TIMESTAMP + ">=?";
+
     public static class CacheEntry {
         public final String customRingtone;
         public final boolean sendToVoicemail;
@@ -85,10 +121,165 @@ public class CallerInfoCache {
         }
     }
 
+    /**
+     * A map from packed number keys to {@link CacheEntry}, split in stripes of open addressing
+     * tables with linear probing. Lookups read the current table of a stripe without locking.
+     * Updates copy only the stripes they change and publish the copies, so a lookup always sees
+     * a complete table. There must be only one writer at a time.
+     */
+    @VisibleForTesting
+    static final class NumberTable {
+        private static final int STRIPE_BITS = 5;
+        private static final int STRIPE_COUNT = 1 << STRIPE_BITS;
+
+        /** Never produced by {@link #numberKey(String)}. */
+        private static final long EMPTY = -1;
+
+        private static final class Stripe {
+            final long[] keys;
+            final CacheEntry[] entries;
+            final int size;
+
+            Stripe(Map<Long, CacheEntry> contents) {
+                // Keep the load factor at or below 1/2 so probe sequences stay short.
+                int capacity = Integer.highestOneBit(Math.max(1, contents.size()) * 4 - 1);
+                keys = new long[capacity];
+                Arrays.fill(keys, EMPTY);
+                entries = new CacheEntry[capacity];
+                size = contents.size();
+                int mask = capacity - 1;
+                for (Entry<Long, CacheEntry> entry : contents.entrySet()) {
+                    long key = entry.getKey();
+                    int i = hash(key) & mask;
+                    while (keys[i] != EMPTY) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = key;
+                    entries[i] = entry.getValue();
+                }
+            }
+
+            void copyTo(Map<Long, CacheEntry> contents) {
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] != EMPTY) {
+                        contents.put(keys[i], entries[i]);
+                    }
+                }
+            }
+        }
+
+        private final AtomicReferenceArray<Stripe> mStripes =
+                new AtomicReferenceArray<Stripe>(STRIPE_COUNT);
+
+        NumberTable() {
+            Stripe empty = new Stripe(new HashMap<Long, CacheEntry>());
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                mStripes.set(i, empty);
+            }
+        }
+
+        CacheEntry get(long key) {
+            int hash = hash(key);
+            Stripe stripe = mStripes.get(hash >>> (32 - STRIPE_BITS));
+            long[] keys = stripe.keys;
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while (true) {
+                long k = keys[i];
+                if (k == key) {
+                    return stripe.entries[i];
+                }
+                if (k == EMPTY) {
+                    return null;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        /**
+         * Replaces the whole content of the table.
+         */
+        void replaceAll(Map<Long, CacheEntry> contents) {
+            List<Map<Long, CacheEntry>> stripes = split(contents);
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                mStripes.set(i, new Stripe(stripes.get(i)));
+            }
+        }
+
+        /**
+         * Applies {@code changes} to the table. A {@code null} entry removes the key.
+         */
+        void update(Map<Long, CacheEntry> changes) {
+            List<Map<Long, CacheEntry>> stripes = split(changes);
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                Map<Long, CacheEntry> stripeChanges = stripes.get(i);
+                if (stripeChanges.isEmpty()) {
+                    continue;
+                }
+                Map<Long, CacheEntry> contents = new HashMap<Long, CacheEntry>();
+                mStripes.get(i).copyTo(contents);
+                for (Entry<Long, CacheEntry> change : stripeChanges.entrySet()) {
+                    if (change.getValue() == null) {
+                        contents.remove(change.getKey());
+                    } else {
+                        contents.put(change.getKey(), change.getValue());
+                    }
+                }
+                mStripes.set(i, new Stripe(contents));
+            }
+        }
+
+        int size() {
+            int size = 0;
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                size += mStripes.get(i).size;
+            }
+            return size;
+        }
+
+        private static List<Map<Long, CacheEntry>> split(Map<Long, CacheEntry> contents) {
+            List<Map<Long, CacheEntry>> stripes =
+                    new ArrayList<Map<Long, CacheEntry>>(STRIPE_COUNT);
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                stripes.add(new HashMap<Long, CacheEntry>());
+            }
+            for (Entry<Long, CacheEntry> entry : contents.entrySet()) {
+                stripes.get(hash(entry.getKey()) >>> (32 - STRIPE_BITS))
+                        .put(entry.getKey(), entry.getValue());
+            }
+            return stripes;
+        }
+
+        private static int hash(long key) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+        }
+    }
+
+    /**
+     * A cached data row of a contact. Either {@link #sipAddress} is set, or {@link #key} is the
+     * key of the PSTN number.
+     */
+    private static final class Row {
+        final long key;
+        final String sipAddress;
+        final CacheEntry entry;
+
+        Row(long key, String sipAddress, CacheEntry entry) {
+            this.key = key;
+            this.sipAddress = sipAddress;
+            this.entry = entry;
+        }
+    }
+
     private class CacheAsyncTask extends AsyncTask<Void, Void, Void> {
 
+        private final boolean mIncremental;
         private PowerManager.WakeLock mWakeLock;
 
+        CacheAsyncTask(boolean incremental) {
+            mIncremental = incremental;
+        }
+
         /**
          * Call {@link PowerManager.WakeLock#acquire} and call {@link AsyncTask#execute(Object...)},
          * guaranteeing the lock is held during the asynchronous task.
@@ -104,8 +295,8 @@ public class CallerInfoCache {
 
         @Override
         protected Void doInBackground(Void... params) {
-            if (DBG) log("Start refreshing cache.");
-            refreshCacheEntry();
+            if (DBG) log("Start refreshing cache. incremental: " + mIncremental);
+            refreshCacheEntry(mIncremental);
             return null;
         }
 
@@ -114,6 +305,7 @@ public class CallerInfoCache {
             if (VDBG) log("CacheAsyncTask#onPostExecute()");
             super.onPostExecute(result);
             releaseWakeLock();
+            onCacheTaskDone(this);
         }
 
         @Override
@@ -121,6 +313,7 @@ public class CallerInfoCache {
             if (VDBG) log("CacheAsyncTask#onCanceled()");
             super.onCancelled(result);
             releaseWakeLock();
+            onCacheTaskDone(this);
         }
 
         private void releaseWakeLock() {
@@ -131,39 +324,81 @@ public class CallerInfoCache {
     }
 
     private final Context mContext;
+    private final Handler mHandler = new Handler();
 
     /**
-     * The mapping from number to CacheEntry.
-     *
-     * The number will be:
-     * - last 7 digits of each "normalized phone number when it is for PSTN phone call, or
-     * - a full SIP address for SIP call
-     *
-     * When cache is being refreshed, this whole object will be replaced with a newer object,
-     * instead of updating elements inside the object.  "volatile" is used to make
-     * {@link #getCacheEntry(String)} access to the newer one every time when the object is
-     * being replaced.
+     * The mapping from the last 7 digits of each normalized phone number, packed by {@link
+     * #numberKey(String)}, to CacheEntry. Used for PSTN calls.
      */
-    private volatile HashMap<String, CacheEntry> mNumberToEntry;
+    private final NumberTable mNumberTable = new NumberTable();
+
+    /**
+     * The mapping from full SIP addresses to CacheEntry. SIP addresses are rare, so this whole
+     * object is replaced on every change, instead of updating elements inside the object.
+     * "volatile" is used to make {@link #getCacheEntry(String)} access to the newer one every
+     * time when the object is being replaced.
+     */
+    private volatile HashMap<String, CacheEntry> mSipAddressToEntry =
+            new HashMap<String, CacheEntry>();
+
+    /**
+     * The rows behind the tables, only used by the refresh. Guarded by {@link #mRefreshLock}.
+     */
+    private final Object mRefreshLock = new Object();
+    private final Map<Long, List<Row>> mRowsByContact = new HashMap<Long, List<Row>>();
+    private final Map<Long, List<Row>> mRowsByKey = new HashMap<Long, List<Row>>();
+    private final Map<String, List<Row>> mRowsBySipAddress = new HashMap<String, List<Row>>();
+    /**
+     * When the previous refresh started, in {@link System#currentTimeMillis()} like the contacts
+     * timestamps. 0 until the first full refresh is done.
+     */
+    private long mLastRefreshTimestamp;
 
     /**
      * Used to remember if the previous task is finished or not. Should be set to null when done.
      */
     private CacheAsyncTask mCacheAsyncTask;
+    /** Whether contacts changed while {@link #mCacheAsyncTask} was running. */
+    private boolean mRefreshPending;
+
+    private final Runnable mIncrementalRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (mCacheAsyncTask != null) {
+                mRefreshPending = true;
+                return;
+            }
+            mCacheAsyncTask = new CacheAsyncTask(true);
+            mCacheAsyncTask.acquireWakeLockAndExecute();
+        }
+    };
+
+    private final ContentObserver mContactsObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (VDBG) log("Contacts changed");
+            mHandler.removeCallbacks(mIncrementalRefresh);
+            mHandler.postDelayed(mIncrementalRefresh, REFRESH_DELAY_MILLIS);
+        }
+    };
 
     public static CallerInfoCache init(Context context) {
         if (DBG) log("init()");
         CallerInfoCache cache = new CallerInfoCache(context);
         // The first cache should be available ASAP.
         cache.startAsyncCache();
+        context.getContentResolver().registerContentObserver(
+                ContactsContract.AUTHORITY_URI, true, cache.mContactsObserver);
         return cache;
     }
 
     private CallerInfoCache(Context context) {
         mContext = context;
-        mNumberToEntry = new HashMap<String, CacheEntry>();
     }
 
+    /**
+     * Starts a full refresh of the cache.
+     */
     /* package */ void startAsyncCache() {
         if (DBG) log("startAsyncCache");
 
@@ -171,105 +406,334 @@ public class CallerInfoCache {
             Log.w(LOG_TAG, "Previous cache task is remaining.");
             mCacheAsyncTask.cancel(true);
         }
-        mCacheAsyncTask = new CacheAsyncTask();
+        mRefreshPending = false;
+        mCacheAsyncTask = new CacheAsyncTask(false);
         mCacheAsyncTask.acquireWakeLockAndExecute();
     }
 
-    private void refreshCacheEntry() {
+    private void onCacheTaskDone(CacheAsyncTask task) {
+        if (mCacheAsyncTask != task) {
+            return;
+        }
+        mCacheAsyncTask = null;
+        if (mRefreshPending) {
+            mRefreshPending = false;
+            mIncrementalRefresh.run();
+        }
+    }
+
+    private void refreshCacheEntry(boolean incremental) {
         if (VDBG) log("refreshCacheEntry() started");
 
-        // There's no way to know which part of the database was updated. Also we don't want
-        // to block incoming calls asking for the cache. So this method just does full query
-        // and replaces the older cache with newer one. To refrain from blocking incoming calls,
-        // it keeps older one as much as it can, and replaces it with newer one inside a very small
-        // synchronized block.
+        // To refrain from blocking incoming calls, the tables are never locked; changed parts
+        // are prepared on the side and published at once.
+        synchronized (mRefreshLock) {
+            if (!incremental || mLastRefreshTimestamp == 0 || !refreshChangedContacts()) {
+                refreshAllContacts();
+            }
+        }
+
+        if (VDBG) log("refreshCacheEntry() ended");
+    }
 
+    /**
+     * Queries all the contacts and replaces the cache.
+     */
+    private void refreshAllContacts() {
+        final long timestamp = System.currentTimeMillis();
         Cursor cursor = null;
         try {
             cursor = mContext.getContentResolver().query(Callable.CONTENT_URI,
                     PROJECTION, SELECTION, null, null);
-            if (cursor != null) {
-                // We don't want to block real in-coming call, so prepare a completely fresh
-                // cache here again, and replace it with older one.
-                final HashMap<String, CacheEntry> newNumberToEntry =
-                        new HashMap<String, CacheEntry>(cursor.getCount());
-
-                while (cursor.moveToNext()) {
-                    final String number = cursor.getString(INDEX_NUMBER);
-                    String normalizedNumber = cursor.getString(INDEX_NORMALIZED_NUMBER);
-                    if (normalizedNumber == null) {
-                        // There's no guarantee normalized numbers are available every time and
-                        // it may become null sometimes. Try formatting the original number.
-                        normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
-                    }
-                    final String customRingtone = cursor.getString(INDEX_CUSTOM_RINGTONE);
-                    final boolean sendToVoicemail = cursor.getInt(INDEX_SEND_TO_VOICEMAIL) == 1;
-
-                    if (PhoneNumberUtils.isUriNumber(number)) {
-                        // SIP address case
-                        putNewEntryWhenAppropriate(
-                                newNumberToEntry, number, customRingtone, sendToVoicemail);
-                    } else {
-                        // PSTN number case
-                        // Each normalized number may or may not have full content of the number.
-                        // Contacts database may contain +15001234567 while a dialed number may be
-                        // just 5001234567. Also we may have inappropriate country
-                        // code in some cases (e.g. when the location of the device is inconsistent
-                        // with the device's place). So to avoid confusion we just rely on the last
-                        // 7 digits here. It may cause some kind of wrong behavior, which is
-                        // unavoidable anyway in very rare cases..
-                        final int length = normalizedNumber.length();
-                        final String key = length > 7
-                                ? normalizedNumber.substring(length - 7, length)
-                                        : normalizedNumber;
-                        putNewEntryWhenAppropriate(
-                                newNumberToEntry, key, customRingtone, sendToVoicemail);
-                    }
-                }
-
-                if (VDBG) {
-                    Log.d(LOG_TAG, "New cache size: " + newNumberToEntry.size());
-                    for (Entry<String, CacheEntry> entry : newNumberToEntry.entrySet()) {
-                        Log.d(LOG_TAG, "Number: " + entry.getKey() + " -> " + entry.getValue());
-                    }
-                }
-
-                mNumberToEntry = newNumberToEntry;
-
-                if (DBG) {
-                    log("Caching entries are done. Total: " + newNumberToEntry.size());
-                }
-            } else {
+            if (cursor == null) {
                 // Let's just wait for the next refresh..
                 //
                 // If the cursor became null at that exact moment, probably we don't want to
                 // drop old cache. Also the case is fairly rare in usual cases unless acore being
                 // killed, so we don't take care much of this case.
                 Log.w(LOG_TAG, "cursor is null");
+                return;
+            }
+
+            mRowsByContact.clear();
+            mRowsByKey.clear();
+            mRowsBySipAddress.clear();
+            while (cursor.moveToNext()) {
+                addRow(cursor);
+            }
+
+            final HashMap<Long, CacheEntry> numberEntries =
+                    new HashMap<Long, CacheEntry>(mRowsByKey.size() * 2);
+            for (Entry<Long, List<Row>> rows : mRowsByKey.entrySet()) {
+                numberEntries.put(rows.getKey(), selectEntry(rows.getValue()));
+            }
+            final HashMap<String, CacheEntry> sipEntries = new HashMap<String, CacheEntry>();
+            for (Entry<String, List<Row>> rows : mRowsBySipAddress.entrySet()) {
+                sipEntries.put(rows.getKey(), selectEntry(rows.getValue()));
+            }
+
+            if (VDBG) {
+                Log.d(LOG_TAG, "New cache size: " + (numberEntries.size() + sipEntries.size()));
+                for (Entry<Long, CacheEntry> entry : numberEntries.entrySet()) {
+                    Log.d(LOG_TAG, "Number: " + Long.toHexString(entry.getKey()) + " -> "
+                            + entry.getValue());
+                }
+            }
+
+            mNumberTable.replaceAll(numberEntries);
+            mSipAddressToEntry = sipEntries;
+            mLastRefreshTimestamp = timestamp;
+
+            if (DBG) {
+                log("Caching entries are done. Total: "
+                        + (numberEntries.size() + sipEntries.size()));
             }
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
         }
+    }
 
-        if (VDBG) log("refreshCacheEntry() ended");
+    /**
+     * Queries the contacts changed or deleted since the previous refresh, and updates only their
+     * entries.
+     *
+     * @return false if a full refresh is needed instead
+     */
+    private boolean refreshChangedContacts() {
+        final long timestamp = System.currentTimeMillis();
+        final String[] selectionArgs = new String[] {Long.toString(mLastRefreshTimestamp)};
+
+        final Set<Long> changedContacts = new HashSet<Long>();
+        if (!queryContactIds(Contacts.CONTENT_URI, Contacts._ID,
+                Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">=?", selectionArgs, changedContacts)
+                || !queryContactIds(DeletedContacts.CONTENT_URI, DeletedContacts.CONTACT_ID,
+                DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">=?", selectionArgs,
+                changedContacts)) {
+            return false;
+        }
+        if (changedContacts.size() > MAX_INCREMENTAL_CONTACTS) {
+            if (DBG) log(changedContacts.size() + " contacts changed, refreshing all");
+            return false;
+        }
+
+        final Set<Long> changedKeys = new HashSet<Long>();
+        final Set<String> changedSipAddresses = new HashSet<String>();
+        if (!changedContacts.isEmpty()) {
+            Cursor cursor = mContext.getContentResolver().query(Callable.CONTENT_URI,
+                    PROJECTION, CHANGED_SELECTION, selectionArgs, null);
+            if (cursor == null) {
+                Log.w(LOG_TAG, "cursor is null");
+                return false;
+            }
+            try {
+                for (long contactId : changedContacts) {
+                    removeRows(contactId, changedKeys, changedSipAddresses);
+                }
+                while (cursor.moveToNext()) {
+                    // Contacts changed after the first query are picked up by the next refresh.
+                    if (changedContacts.contains(cursor.getLong(INDEX_CONTACT_ID))) {
+                        Row row = addRow(cursor);
+                        if (row.sipAddress != null) {
+                            changedSipAddresses.add(row.sipAddress);
+                        } else {
+                            changedKeys.add(row.key);
+                        }
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        if (!changedKeys.isEmpty()) {
+            final HashMap<Long, CacheEntry> changes = new HashMap<Long, CacheEntry>();
+            for (long key : changedKeys) {
+                changes.put(key, selectEntry(mRowsByKey.get(key)));
+            }
+            mNumberTable.update(changes);
+        }
+        if (!changedSipAddresses.isEmpty()) {
+            final HashMap<String, CacheEntry> sipEntries =
+                    new HashMap<String, CacheEntry>(mSipAddressToEntry);
+            for (String sipAddress : changedSipAddresses) {
+                CacheEntry entry = selectEntry(mRowsBySipAddress.get(sipAddress));
+                if (entry != null) {
+                    sipEntries.put(sipAddress, entry);
+                } else {
+                    sipEntries.remove(sipAddress);
+                }
+            }
+            mSipAddressToEntry = sipEntries;
+        }
+        mLastRefreshTimestamp = timestamp;
+
+        if (DBG) {
+            log("Refreshed " + changedContacts.size() + " contacts, " + changedKeys.size()
+                    + " numbers and " + changedSipAddresses.size() + " SIP addresses changed");
+        }
+        return true;
     }
 
-    private void putNewEntryWhenAppropriate(HashMap<String, CacheEntry> newNumberToEntry,
-            String numberOrSipAddress, String customRingtone, boolean sendToVoicemail) {
-        if (newNumberToEntry.containsKey(numberOrSipAddress)) {
-            // There may be duplicate entries here and we should prioritize
-            // "send-to-voicemail" flag in any case.
-            final CacheEntry entry = newNumberToEntry.get(numberOrSipAddress);
-            if (!entry.sendToVoicemail && sendToVoicemail) {
-                newNumberToEntry.put(numberOrSipAddress,
-                        new CacheEntry(customRingtone, sendToVoicemail));
+    private boolean queryContactIds(Uri uri, String column, String selection,
+            String[] selectionArgs, Set<Long> contactIds) {
+        Cursor cursor = mContext.getContentResolver().query(uri, new String[] {column},
+                selection, selectionArgs, null);
+        if (cursor == null) {
+            Log.w(LOG_TAG, "cursor is null");
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                contactIds.add(cursor.getLong(0));
             }
+        } finally {
+            cursor.close();
+        }
+        return true;
+    }
+
+    private Row addRow(Cursor cursor) {
+        final String number = cursor.getString(INDEX_NUMBER);
+        final String customRingtone = cursor.getString(INDEX_CUSTOM_RINGTONE);
+        final boolean sendToVoicemail = cursor.getInt(INDEX_SEND_TO_VOICEMAIL) == 1;
+        final CacheEntry entry = new CacheEntry(customRingtone, sendToVoicemail);
+
+        final Row row;
+        if (PhoneNumberUtils.isUriNumber(number)) {
+            // SIP address case
+            row = new Row(NumberTable.EMPTY, number, entry);
+            addToList(mRowsBySipAddress, number, row);
         } else {
-            newNumberToEntry.put(numberOrSipAddress,
-                    new CacheEntry(customRingtone, sendToVoicemail));
+            // PSTN number case
+            // Each normalized number may or may not have full content of the number.
+            // Contacts database may contain +15001234567 while a dialed number may be
+            // just 5001234567. Also we may have inappropriate country
+            // code in some cases (e.g. when the location of the device is inconsistent
+            // with the device's place). So to avoid confusion we just rely on the last
+            // 7 digits here. It may cause some kind of wrong behavior, which is
+            // unavoidable anyway in very rare cases..
+            String normalizedNumber = cursor.getString(INDEX_NORMALIZED_NUMBER);
+            if (normalizedNumber == null) {
+                // There's no guarantee normalized numbers are available every time and
+                // it may become null sometimes. Try formatting the original number.
+                normalizedNumber = number;
+            }
+            row = new Row(numberKey(normalizedNumber), null, entry);
+            addToList(mRowsByKey, row.key, row);
+        }
+        addToList(mRowsByContact, cursor.getLong(INDEX_CONTACT_ID), row);
+        return row;
+    }
+
+    private void removeRows(long contactId, Set<Long> changedKeys,
+            Set<String> changedSipAddresses) {
+        final List<Row> rows = mRowsByContact.remove(contactId);
+        if (rows == null) {
+            return;
+        }
+        for (Row row : rows) {
+            if (row.sipAddress != null) {
+                removeFromList(mRowsBySipAddress, row.sipAddress, row);
+                changedSipAddresses.add(row.sipAddress);
+            } else {
+                removeFromList(mRowsByKey, row.key, row);
+                changedKeys.add(row.key);
+            }
+        }
+    }
+
+    private static <K> void addToList(Map<K, List<Row>> map, K key, Row row) {
+        List<Row> rows = map.get(key);
+        if (rows == null) {
+            rows = new ArrayList<Row>(1);
+            map.put(key, rows);
+        }
+        rows.add(row);
+    }
+
+    private static <K> void removeFromList(Map<K, List<Row>> map, K key, Row row) {
+        List<Row> rows = map.get(key);
+        if (rows != null) {
+            rows.remove(row);
+            if (rows.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return the entry of several rows with the same number, or null if there are none.
+     */
+    private static CacheEntry selectEntry(List<Row> rows) {
+        if (rows == null || rows.isEmpty()) {
+            return null;
+        }
+        // There may be duplicate entries here and we should prioritize
+        // "send-to-voicemail" flag in any case.
+        for (Row row : rows) {
+            if (row.entry.sendToVoicemail) {
+                return row.entry;
+            }
         }
+        return rows.get(0).entry;
+    }
+
+    /**
+     * Packs the last 7 digits of the normalized form of {@code number}, as {@link
+     * PhoneNumberUtils#normalizeNumber(String)} would return it, into a key. The number is read
+     * backwards without normalizing it first, so nothing is allocated.
+     *
+     * <p>Each character takes 4 bits (0-9 for digits, 10 for a leading '+'), and the count of
+     * characters is stored above them, so "0123" and "123" have different keys.
+     */
+    @VisibleForTesting
+    static long numberKey(String number) {
+        long key = 0;
+        int count = 0;
+        for (int i = number.length() - 1; i >= 0 && count < KEY_DIGITS; i--) {
+            final char c = number.charAt(i);
+            int value = Character.digit(c, 10);
+            if (value == -1) {
+                if (isLetter(c)) {
+                    value = keypadDigit(c);
+                } else if (c == '+' && isLeadingPlus(number, i)) {
+                    value = KEY_PLUS;
+                } else {
+                    continue;
+                }
+            }
+            key |= (long) value << (4 * count);
+            count++;
+        }
+        return key | ((long) count << (4 * KEY_DIGITS));
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /**
+     * Same mapping as {@link PhoneNumberUtils#convertKeypadLettersToDigits(String)}.
+     */
+    private static int keypadDigit(char c) {
+        final int index = Character.toUpperCase(c) - 'A';
+        return "22233344455566677778889999".charAt(index) - '0';
+    }
+
+    /**
+     * @return whether the '+' at {@code index} is kept by normalization, which only keeps it
+     * before any other digit.
+     */
+    private static boolean isLeadingPlus(String number, int index) {
+        for (int i = 0; i < index; i++) {
+            final char c = number.charAt(i);
+            if (c == '+' || Character.digit(c, 10) != -1 || isLetter(c)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -281,27 +745,16 @@ public class CallerInfoCache {
      * an exception)
      */
     public CacheEntry getCacheEntry(String number) {
-        if (mNumberToEntry == null) {
-            // Very unusual state. This implies the cache isn't ready during the request, while
-            // it should be prepared on the boot time (i.e. a way before even the first request).
-            Log.w(LOG_TAG, "Fallback cache isn't ready.");
-            return null;
-        }
-
         CacheEntry entry;
         if (PhoneNumberUtils.isUriNumber(number)) {
             if (VDBG) log("Trying to lookup " + number);
 
-            entry = mNumberToEntry.get(number);
+            entry = mSipAddressToEntry.get(number);
         } else {
-            final String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
-            final int length = normalizedNumber.length();
-            final String key =
-                    (length > 7 ? normalizedNumber.substring(length - 7, length)
-                            : normalizedNumber);
-            if (VDBG) log("Trying to lookup " + key);
-
-            entry = mNumberToEntry.get(key);
+            final long key = numberKey(number);
+            if (VDBG) log("Trying to lookup " + Long.toHexString(key));
+
+            entry = mNumberTable.get(key);
         }
         if (VDBG) log("Obtained " + entry);
         return entry;
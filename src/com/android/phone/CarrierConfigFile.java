@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.Nullable;
+import android.os.PersistableBundle;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Binary format of the carrier config files saved by {@link CarrierConfigLoader}.
+ *
+ * <p>A file starts with a header holding a magic number, the format version, the version of the
+ * package the config was fetched from, and the length and CRC32 of the payload. The payload is the
+ * number of entries followed by the entries, each made of a length-prefixed UTF-8 key, a type byte
+ * and the value. Nested bundles are written the same way.
+ *
+ * <p>The header is checked before the payload is touched, so a config saved by another version of
+ * the package, which is the common case after an update, is rejected without being decoded.
+ */
+final class CarrierConfigFile {
+
+    @VisibleForTesting
+    static final int MAGIC = 0x43434647; // "CCFG"
+    @VisibleForTesting
+    static final int FORMAT_VERSION = 1;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_BOOLEAN_ARRAY = 6;
+    private static final byte TYPE_INT_ARRAY = 7;
+    private static final byte TYPE_LONG_ARRAY = 8;
+    private static final byte TYPE_DOUBLE_ARRAY = 9;
+    private static final byte TYPE_STRING_ARRAY = 10;
+    private static final byte TYPE_BUNDLE = 11;
+
+    private CarrierConfigFile() {}
+
+    /**
+     * Encodes a config fetched from a package.
+     *
+     * @throws IllegalArgumentException if the bundle holds a value of a type a
+     * {@link PersistableBundle} cannot hold.
+     */
+    static byte[] encode(String packageVersion, PersistableBundle config) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        writeBundle(payload, config);
+        payload.flush();
+        byte[] body = payloadBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        ByteArrayOutputStream fileBytes = new ByteArrayOutputStream(body.length + 64);
+        DataOutputStream out = new DataOutputStream(fileBytes);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        writeString(out, packageVersion);
+        out.writeInt(body.length);
+        out.writeInt((int) crc.getValue());
+        out.write(body);
+        out.flush();
+        return fileBytes.toByteArray();
+    }
+
+    /**
+     * Decodes a config written by {@link #encode}.
+     *
+     * @return the config, or null if it was saved by another format or package version.
+     * @throws IOException if the file is truncated or corrupt.
+     */
+    @Nullable
+    static PersistableBundle decode(byte[] data, String packageVersion) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a carrier config file");
+            }
+            if (in.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            if (!packageVersion.equals(readString(in))) {
+                return null;
+            }
+            int length = in.getInt();
+            int checksum = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                throw new IOException("Truncated carrier config file");
+            }
+            // The payload is checked and decoded in place.
+            int offset = in.position();
+            CRC32 crc = new CRC32();
+            crc.update(data, offset, length);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Carrier config checksum mismatch");
+            }
+            return readBundle(ByteBuffer.wrap(data, offset, length));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated carrier config file");
+        }
+    }
+
+    private static void writeBundle(DataOutputStream out, PersistableBundle bundle)
+            throws IOException {
+        out.writeInt(bundle.size());
+        for (String key : bundle.keySet()) {
+            writeString(out, key);
+            writeValue(out, bundle.get(key));
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if (value instanceof boolean[]) {
+            boolean[] array = (boolean[]) value;
+            out.writeByte(TYPE_BOOLEAN_ARRAY);
+            out.writeInt(array.length);
+            for (boolean element : array) {
+                out.writeBoolean(element);
+            }
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            out.writeByte(TYPE_INT_ARRAY);
+            out.writeInt(array.length);
+            for (int element : array) {
+                out.writeInt(element);
+            }
+        } else if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            out.writeByte(TYPE_LONG_ARRAY);
+            out.writeInt(array.length);
+            for (long element : array) {
+                out.writeLong(element);
+            }
+        } else if (value instanceof double[]) {
+            double[] array = (double[]) value;
+            out.writeByte(TYPE_DOUBLE_ARRAY);
+            out.writeInt(array.length);
+            for (double element : array) {
+                out.writeDouble(element);
+            }
+        } else if (value instanceof String[]) {
+            String[] array = (String[]) value;
+            out.writeByte(TYPE_STRING_ARRAY);
+            out.writeInt(array.length);
+            for (String element : array) {
+                writeString(out, element);
+            }
+        } else if (value instanceof PersistableBundle) {
+            out.writeByte(TYPE_BUNDLE);
+            writeBundle(out, (PersistableBundle) value);
+        } else {
+            throw new IllegalArgumentException("Unsupported type " + value.getClass());
+        }
+    }
+
+    private static PersistableBundle readBundle(ByteBuffer in) throws IOException {
+        int count = readLength(in);
+        PersistableBundle bundle = new PersistableBundle(count);
+        for (int i = 0; i < count; i++) {
+            String key = readString(in);
+            byte type = in.get();
+            switch (type) {
+                case TYPE_NULL:
+                    bundle.putString(key, null);
+                    break;
+                case TYPE_BOOLEAN:
+                    bundle.putBoolean(key, in.get() != 0);
+                    break;
+                case TYPE_INT:
+                    bundle.putInt(key, in.getInt());
+                    break;
+                case TYPE_LONG:
+                    bundle.putLong(key, in.getLong());
+                    break;
+                case TYPE_DOUBLE:
+                    bundle.putDouble(key, in.getDouble());
+                    break;
+                case TYPE_STRING:
+                    bundle.putString(key, readString(in));
+                    break;
+                case TYPE_BOOLEAN_ARRAY: {
+                    boolean[] array = new boolean[readLength(in)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = in.get() != 0;
+                    }
+                    bundle.putBooleanArray(key, array);
+                    break;
+                }
+                case TYPE_INT_ARRAY: {
+                    int[] array = new int[readLength(in)];
+                    in.asIntBuffer().get(array);
+                    in.position(in.position() + array.length * 4);
+                    bundle.putIntArray(key, array);
+                    break;
+                }
+                case TYPE_LONG_ARRAY: {
+                    long[] array = new long[readLength(in)];
+                    in.asLongBuffer().get(array);
+                    in.position(in.position() + array.length * 8);
+                    bundle.putLongArray(key, array);
+                    break;
+                }
+                case TYPE_DOUBLE_ARRAY: {
+                    double[] array = new double[readLength(in)];
+                    in.asDoubleBuffer().get(array);
+                    in.position(in.position() + array.length * 8);
+                    bundle.putDoubleArray(key, array);
+                    break;
+                }
+                case TYPE_STRING_ARRAY: {
+                    String[] array = new String[readLength(in)];
+                    for (int j = 0; j < array.length; j++) {
+                        array[j] = readString(in);
+                    }
+                    bundle.putStringArray(key, array);
+                    break;
+                }
+                case TYPE_BUNDLE:
+                    bundle.putPersistableBundle(key, readBundle(in));
+                    break;
+                default:
+                    throw new IOException("Unknown type " + type + " for " + key);
+            }
+        }
+        return bundle;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length,
+                StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    /** Reads a count of elements, each of which takes at least one byte. */
+    private static int readLength(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Invalid length " + length);
+        }
+        return length;
+    }
+}
@@ -49,6 +49,7 @@ import android.service.carrier.ICarrierService;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
+import android.util.AtomicFile;
 import android.util.Log;
 
 import com.android.internal.telephony.ICarrierConfigLoader;
@@ -57,7 +58,6 @@ import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.TelephonyIntents;
-import com.android.internal.util.FastXmlSerializer;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -72,6 +72,7 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * CarrierConfigLoader binds to privileged carrier apps to fetch carrier config overlays.
@@ -92,6 +93,14 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private PersistableBundle[] mConfigFromCarrierApp;
     // Service connection for binding to config app.
     private CarrierServiceConnection[] mServiceConnection;
+    // Merged configs returned to callers, indexed by phoneID. Rebuilt whenever a
+    // per-phone config is loaded, cleared or dropped, read from any thread.
+    private AtomicReferenceArray<CarrierConfigSnapshot> mSnapshots;
+    // Merged config for invalid phone IDs, which only contains the defaults.
+    private final CarrierConfigSnapshot mDefaultSnapshot =
+            new CarrierConfigSnapshot(CarrierConfigManager.getDefaultConfig(), 0);
+    // Version of the latest snapshot, guarded by the lock of updateSnapshot().
+    private long mSnapshotVersion;
 
     // Broadcast receiver for Boot intents, register intent filter in construtor.
     private final BroadcastReceiver mBootReceiver = new ConfigLoaderBroadcastReceiver();
@@ -126,7 +135,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
     private static final int BIND_TIMEOUT_MILLIS = 30000;
 
-    // Tags used for saving and restoring XML documents.
+    // Tags used for restoring XML documents saved by older versions.
     private static final String TAG_DOCUMENT = "carrier_config";
     private static final String TAG_VERSION = "package_version";
     private static final String TAG_BUNDLE = "bundle_data";
@@ -169,6 +178,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     mConfigFromDefaultApp[phoneId] = null;
                     mConfigFromCarrierApp[phoneId] = null;
                     mServiceConnection[phoneId] = null;
+                    updateSnapshot(phoneId);
                     broadcastConfigChangedIntent(phoneId);
                     break;
 
@@ -192,9 +202,9 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
                 case EVENT_FETCH_DEFAULT:
                     iccid = getIccIdForPhoneId(phoneId);
-                    config = restoreConfigFromXml(DEFAULT_CARRIER_CONFIG_PACKAGE, iccid);
+                    config = restoreConfig(DEFAULT_CARRIER_CONFIG_PACKAGE, iccid);
                     if (config != null) {
-                        log("Loaded config from XML. package=" + DEFAULT_CARRIER_CONFIG_PACKAGE
+                        log("Loaded config from file. package=" + DEFAULT_CARRIER_CONFIG_PACKAGE
                                 + " phoneId=" + phoneId);
                         mConfigFromDefaultApp[phoneId] = config;
                         Message newMsg = obtainMessage(EVENT_LOADED_FROM_DEFAULT, phoneId, -1);
@@ -226,7 +236,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                 .asInterface(conn.service);
                         config = carrierService.getCarrierConfig(carrierId);
                         iccid = getIccIdForPhoneId(phoneId);
-                        saveConfigToXml(DEFAULT_CARRIER_CONFIG_PACKAGE, iccid, config);
+                        saveConfig(DEFAULT_CARRIER_CONFIG_PACKAGE, iccid, config);
                         mConfigFromDefaultApp[phoneId] = config;
                         sendMessage(obtainMessage(EVENT_LOADED_FROM_DEFAULT, phoneId, -1));
                     } catch (Exception ex) {
@@ -239,10 +249,12 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
                 case EVENT_BIND_DEFAULT_TIMEOUT:
                     mContext.unbindService(mServiceConnection[phoneId]);
+                    updateSnapshot(phoneId);
                     broadcastConfigChangedIntent(phoneId);
                     break;
 
                 case EVENT_LOADED_FROM_DEFAULT:
+                    updateSnapshot(phoneId);
                     // If we attempted to bind to the app, but the service connection is null, then
                     // config was cleared while we were waiting and we should not continue.
                     if (!msg.getData().getBoolean("loaded_from_xml", false)
@@ -261,9 +273,9 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                 case EVENT_FETCH_CARRIER:
                     carrierPackageName = getCarrierPackageForPhoneId(phoneId);
                     iccid = getIccIdForPhoneId(phoneId);
-                    config = restoreConfigFromXml(carrierPackageName, iccid);
+                    config = restoreConfig(carrierPackageName, iccid);
                     if (config != null) {
-                        log("Loaded config from XML. package=" + carrierPackageName + " phoneId="
+                        log("Loaded config from file. package=" + carrierPackageName + " phoneId="
                                 + phoneId);
                         mConfigFromCarrierApp[phoneId] = config;
                         Message newMsg = obtainMessage(EVENT_LOADED_FROM_CARRIER, phoneId, -1);
@@ -298,7 +310,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                         config = carrierService.getCarrierConfig(carrierId);
                         carrierPackageName = getCarrierPackageForPhoneId(phoneId);
                         iccid = getIccIdForPhoneId(phoneId);
-                        saveConfigToXml(carrierPackageName, iccid, config);
+                        saveConfig(carrierPackageName, iccid, config);
                         mConfigFromCarrierApp[phoneId] = config;
                         sendMessage(obtainMessage(EVENT_LOADED_FROM_CARRIER, phoneId, -1));
                     } catch (Exception ex) {
@@ -311,10 +323,12 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
                 case EVENT_BIND_CARRIER_TIMEOUT:
                     mContext.unbindService(mServiceConnection[phoneId]);
+                    updateSnapshot(phoneId);
                     broadcastConfigChangedIntent(phoneId);
                     break;
 
                 case EVENT_LOADED_FROM_CARRIER:
+                    updateSnapshot(phoneId);
                     // If we attempted to bind to the app, but the service connection is null, then
                     // config was cleared while we were waiting and we should not continue.
                     if (!msg.getData().getBoolean("loaded_from_xml", false)
@@ -363,6 +377,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mConfigFromDefaultApp = new PersistableBundle[numPhones];
         mConfigFromCarrierApp = new PersistableBundle[numPhones];
         mServiceConnection = new CarrierServiceConnection[numPhones];
+        mSnapshots = new AtomicReferenceArray<CarrierConfigSnapshot>(numPhones);
+        for (int i = 0; i < numPhones; i++) {
+            mSnapshots.set(i, mDefaultSnapshot);
+        }
         // Make this service available through ServiceManager.
         ServiceManager.addService(Context.CARRIER_CONFIG_SERVICE, this);
         log("CarrierConfigLoader has started");
@@ -455,11 +473,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     }
 
     /**
-     * Writes a bundle to an XML file.
+     * Writes a bundle to a file.
      *
      * The bundle will be written to a file named after the package name and ICCID, so that it can
-     * be restored later with {@link @restoreConfigFromXml}. The XML output will include the bundle
-     * and the current version of the specified package.
+     * be restored later with {@link #restoreConfig}. The file will include the bundle and the
+     * current version of the specified package, in the format of {@link CarrierConfigFile}.
      *
      * In case of errors or invalid input, no file will be written.
      *
@@ -467,7 +485,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
      * @param iccid the ICCID of the subscription for which this bundle was fetched.
      * @param config the bundle to be written. Null will be treated as an empty bundle.
      */
-    private void saveConfigToXml(String packageName, String iccid, PersistableBundle config) {
+    private void saveConfig(String packageName, String iccid, PersistableBundle config) {
         if (packageName == null || iccid == null) {
             loge("Cannot save config with null packageName or iccid.");
             return;
@@ -487,48 +505,42 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             return;
         }
 
+        AtomicFile file = new AtomicFile(
+                new File(mContext.getFilesDir(), getFilenameForConfig(packageName, iccid)));
         FileOutputStream outFile = null;
         try {
-            outFile = new FileOutputStream(
-                    new File(mContext.getFilesDir(), getFilenameForConfig(packageName, iccid)));
-            FastXmlSerializer out = new FastXmlSerializer();
-            out.setOutput(outFile, "utf-8");
-            out.startDocument("utf-8", true);
-            out.startTag(null, TAG_DOCUMENT);
-            out.startTag(null, TAG_VERSION);
-            out.text(version);
-            out.endTag(null, TAG_VERSION);
-            out.startTag(null, TAG_BUNDLE);
-            config.saveToXml(out);
-            out.endTag(null, TAG_BUNDLE);
-            out.endTag(null, TAG_DOCUMENT);
-            out.endDocument();
-            out.flush();
-            outFile.close();
+            byte[] data = CarrierConfigFile.encode(version, config);
+            outFile = file.startWrite();
+            outFile.write(data);
+            file.finishWrite(outFile);
         }
-        catch (IOException e) {
-            loge(e.toString());
-        }
-        catch (XmlPullParserException e) {
+        catch (IOException | IllegalArgumentException e) {
             loge(e.toString());
+            if (outFile != null) {
+                file.failWrite(outFile);
+            }
         }
     }
 
     /**
-     * Reads a bundle from an XML file.
+     * Reads a bundle from a file.
+     *
+     * This restores a bundle that was written with {@link #saveConfig}. This returns the saved
+     * config bundle for the given package and ICCID. The file is read through {@link AtomicFile}, and
+     * the bundle is only decoded if the saved package version matches.
      *
-     * This restores a bundle that was written with {@link #saveConfigToXml}. This returns the saved
-     * config bundle for the given package and ICCID.
+     * If there is no such file but an XML file written by an older version of this class, the XML
+     * file is read instead, rewritten in the current format and deleted.
      *
      * In case of errors, or if the saved config is from a different package version than the
      * current version, then null will be returned.
      *
      * @param packageName the name of the package from which we fetched this bundle.
      * @param iccid the ICCID of the subscription for which this bundle was fetched.
-     * @return the bundle from the XML file. Returns null if there is no saved config, the saved
+     * @return the bundle from the file. Returns null if there is no saved config, the saved
      *         version does not match, or reading config fails.
      */
-    private PersistableBundle restoreConfigFromXml(String packageName, String iccid) {
+    private PersistableBundle restoreConfig(String packageName, String iccid) {
         final String version = getPackageVersion(packageName);
         if (version == null) {
             loge("Failed to get package version for: " + packageName);
@@ -539,11 +551,66 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             return null;
         }
 
+        AtomicFile file = new AtomicFile(
+                new File(mContext.getFilesDir(), getFilenameForConfig(packageName, iccid)));
+        PersistableBundle restoredBundle = null;
+        try {
+            // Restores the backup first if saveConfig() was interrupted.
+            byte[] data = file.readFully();
+            restoredBundle = CarrierConfigFile.decode(data, version);
+            if (restoredBundle == null) {
+                log("Saved version mismatch: " + version + " for "
+                        + file.getBaseFile().getName());
+            }
+        }
+        catch (FileNotFoundException e) {
+            return migrateConfigFromXml(packageName, iccid, version);
+        }
+        catch (IOException e) {
+            loge(e.toString());
+            file.delete();
+        }
+
+        return restoredBundle;
+    }
+
+    /**
+     * Moves a config saved as XML by an older version of this class to the current format.
+     *
+     * @return the config, or null if there is no XML file or it cannot be used.
+     */
+    private PersistableBundle migrateConfigFromXml(String packageName, String iccid,
+            String version) {
+        File xmlFile =
+                new File(mContext.getFilesDir(), getXmlFilenameForConfig(packageName, iccid));
+        if (!xmlFile.exists()) {
+            return null;
+        }
+        PersistableBundle config = restoreConfigFromXml(xmlFile, version);
+        if (config != null) {
+            log("Migrating " + xmlFile.getName());
+            saveConfig(packageName, iccid, config);
+        }
+        xmlFile.delete();
+        return config;
+    }
+
+    /**
+     * Reads a bundle from an XML file written by an older version of this class.
+     *
+     * In case of errors, or if the saved config is from a different package version than the
+     * current version, then null will be returned.
+     *
+     * @param xmlFile the file holding the saved config.
+     * @param version the current version of the package from which the bundle was fetched.
+     * @return the bundle from the XML file. Returns null if the saved version does not match, or
+     *         reading config fails.
+     */
+    private PersistableBundle restoreConfigFromXml(File xmlFile, String version) {
         PersistableBundle restoredBundle = null;
         FileInputStream inFile = null;
         try {
-            inFile = new FileInputStream(
-                    new File(mContext.getFilesDir(), getFilenameForConfig(packageName, iccid)));
+            inFile = new FileInputStream(xmlFile);
             XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
             parser.setInput(inFile, "utf-8");
 
@@ -579,8 +646,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
     /**
      * Clears cached carrier config.
-     * This deletes all saved XML files associated with the given package name. If packageName is
-     * null, then it deletes all saved XML files.
+     * This deletes all saved files associated with the given package name. If packageName is
+     * null, then it deletes all saved files.
      *
      * @param packageName the name of a carrier package, or null if all cached config should be
      *                    cleared.
@@ -607,6 +674,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
     /** Builds a canonical file name for a config file. */
     private String getFilenameForConfig(@NonNull String packageName, @NonNull String iccid) {
+        return "carrierconfig-" + packageName + "-" + iccid + ".bin";
+    }
+
+    /** Builds the file name used for a config file saved as XML by older versions. */
+    private String getXmlFilenameForConfig(@NonNull String packageName, @NonNull String iccid) {
         return "carrierconfig-" + packageName + "-" + iccid + ".xml";
     }
 
@@ -632,6 +704,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         if (mConfigFromCarrierApp[phoneId] != null &&
                 getCarrierPackageForPhoneId(phoneId) == null) {
             mConfigFromCarrierApp[phoneId] = null;
+            updateSnapshot(phoneId);
         }
         mHandler.sendMessage(mHandler.obtainMessage(EVENT_FETCH_DEFAULT, phoneId, -1));
     }
@@ -645,17 +718,39 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         } catch (SecurityException e) {
             mContext.enforceCallingOrSelfPermission(READ_PHONE_STATE, null);
         }
+        return getConfigSnapshotForSubId(subId).copyBundle();
+    }
+
+    /**
+     * Returns the merged config of a subscription for callers in the phone process. Unlike
+     * {@link #getConfigForSubId(int)}, no permission is checked and no bundle is copied.
+     */
+    @NonNull
+    CarrierConfigSnapshot getConfigSnapshotForSubId(int subId) {
         int phoneId = SubscriptionManager.getPhoneId(subId);
-        PersistableBundle retConfig = CarrierConfigManager.getDefaultConfig();
-        if (SubscriptionManager.isValidPhoneId(phoneId)) {
-            PersistableBundle config = mConfigFromDefaultApp[phoneId];
-            if (config != null)
-                retConfig.putAll(config);
-            config = mConfigFromCarrierApp[phoneId];
-            if (config != null)
-                retConfig.putAll(config);
-        }
-        return retConfig;
+        if (phoneId >= 0 && phoneId < mSnapshots.length()) {
+            return mSnapshots.get(phoneId);
+        }
+        return mDefaultSnapshot;
+    }
+
+    /**
+     * Merges the defaults, the default app config and the carrier app config of a phone into a
+     * new snapshot. Called whenever either per-phone bundle changes, including from binder
+     * threads through {@link #updateConfigForPhoneId(int)}.
+     */
+    private synchronized void updateSnapshot(int phoneId) {
+        if (phoneId < 0 || phoneId >= mSnapshots.length()) {
+            return;
+        }
+        PersistableBundle config = CarrierConfigManager.getDefaultConfig();
+        if (mConfigFromDefaultApp[phoneId] != null) {
+            config.putAll(mConfigFromDefaultApp[phoneId]);
+        }
+        if (mConfigFromCarrierApp[phoneId] != null) {
+            config.putAll(mConfigFromCarrierApp[phoneId]);
+        }
+        mSnapshots.set(phoneId, new CarrierConfigSnapshot(config, ++mSnapshotVersion));
     }
 
     @Override
@@ -720,6 +815,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             pw.println("  Phone Id=" + i);
             pw.println("  mConfigFromDefaultApp=" + mConfigFromDefaultApp[i]);
             pw.println("  mConfigFromCarrierApp=" + mConfigFromCarrierApp[i]);
+            pw.println("  snapshot version=" + mSnapshots.get(i).getVersion());
         }
     }
 
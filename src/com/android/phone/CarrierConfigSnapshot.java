@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.os.PersistableBundle;
+
+/**
+ * The carrier config of one phone, with the defaults, the default config app and the carrier
+ * config app already merged. Snapshots are built by {@link CarrierConfigLoader} whenever the
+ * config of a phone is loaded or cleared, and never change afterwards, so in-process callers can
+ * read them without copying a bundle per query.
+ *
+ * <p>Arrays returned by the accessors are shared by all callers and must not be modified.
+ */
+public final class CarrierConfigSnapshot {
+
+    private final PersistableBundle mConfig;
+    private final long mVersion;
+
+    /* package */ CarrierConfigSnapshot(@NonNull PersistableBundle config, long version) {
+        mConfig = config;
+        mVersion = version;
+    }
+
+    /**
+     * @return a number which increases every time the config of the phone is rebuilt, so callers
+     * can tell whether derived values need to be recomputed.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public boolean containsKey(String key) {
+        return mConfig.containsKey(key);
+    }
+
+    public boolean getBoolean(String key) {
+        return mConfig.getBoolean(key);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        return mConfig.getBoolean(key, defaultValue);
+    }
+
+    public int getInt(String key) {
+        return mConfig.getInt(key);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        return mConfig.getInt(key, defaultValue);
+    }
+
+    public long getLong(String key) {
+        return mConfig.getLong(key);
+    }
+
+    public String getString(String key) {
+        return mConfig.getString(key);
+    }
+
+    public String[] getStringArray(String key) {
+        return mConfig.getStringArray(key);
+    }
+
+    public int[] getIntArray(String key) {
+        return mConfig.getIntArray(key);
+    }
+
+    /**
+     * @return a copy of the config that the caller may modify.
+     */
+    public PersistableBundle copyBundle() {
+        return new PersistableBundle(mConfig);
+    }
+
+    @Override
+    public String toString() {
+        return "CarrierConfigSnapshot{version=" + mVersion + " " + mConfig + "}";
+    }
+}
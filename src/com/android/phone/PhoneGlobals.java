@@ -57,6 +57,7 @@ import com.android.internal.telephony.TelephonyCapabilities;
 import com.android.internal.telephony.TelephonyIntents;
 import com.android.phone.common.CallLogAsync;
 import com.android.phone.settings.SettingsConstants;
+import com.android.phone.vvm.omtp.TelephonyVvmConfigManager;
 import com.android.services.telephony.activation.SimActivationManager;
 import com.android.services.telephony.sip.SipUtil;
 
@@ -333,6 +334,9 @@ public class PhoneGlobals extends ContextWrapper {
 
             configLoader = CarrierConfigLoader.init(this);
 
+            // Parse the VVM carrier configs ahead of the first SIM change or VVM SMS.
+            TelephonyVvmConfigManager.preload(getResources());
+
             // Create the CallNotifer singleton, which handles
             // asynchronous events from the telephony layer (like
             // launching the incoming-call UI when an incoming call comes
@@ -437,6 +441,14 @@ public class PhoneGlobals extends ContextWrapper {
         return configLoader.getConfigForSubId(subId);
     }
 
+    /**
+     * Returns the carrier config of a subscription without copying it. Prefer this over
+     * {@link #getCarrierConfigForSubId(int)} on paths that only read a few values.
+     */
+    public CarrierConfigSnapshot getCarrierConfigSnapshotForSubId(int subId) {
+        return configLoader.getConfigSnapshotForSubId(subId);
+    }
+
     /**
      * Handles OTASP-related events from the telephony layer.
      *
@@ -33,7 +33,9 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Parcel;
 import android.os.Process;
+import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
 import android.os.UserHandle;
@@ -91,6 +93,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Implementation of the ITelephony interface.
@@ -147,6 +150,22 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final int EVENT_SET_ALLOWED_CARRIERS_DONE = 44;
     private static final int CMD_GET_ALLOWED_CARRIERS = 45;
     private static final int EVENT_GET_ALLOWED_CARRIERS_DONE = 46;
+    private static final int EVENT_CLOSE_TIMED_OUT_CHANNEL_DONE = 47;
+
+    // Limits of the lanes of mRequestPipeline. Requests of a lane beyond its limit wait for an
+    // earlier request of the same lane to complete, instead of queueing up on the main thread.
+    private static final int SIM_MAX_IN_FLIGHT = 2;
+    private static final int NV_MAX_IN_FLIGHT = 2;
+    // Scans take minutes and are not run concurrently by the modem.
+    private static final int NETWORK_SCAN_MAX_IN_FLIGHT = 1;
+    private static final int NETWORK_MAX_IN_FLIGHT = 2;
+    // Call control runs on the main thread without waiting for the modem.
+    private static final int CALL_MAX_IN_FLIGHT = 4;
+    private static final int OTHER_MAX_IN_FLIGHT = 4;
+
+    // How long a binder thread waits for a request before returning a failure.
+    private static final long REQUEST_TIMEOUT_MILLIS = 60 * 1000;
+    private static final long NETWORK_SCAN_TIMEOUT_MILLIS = 5 * 60 * 1000;
 
     /** The singleton instance. */
     private static PhoneInterfaceManager sInstance;
@@ -157,6 +176,14 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private UserManager mUserManager;
     private AppOpsManager mAppOps;
     private MainThreadHandler mMainThreadHandler;
+    private RequestPipeline mRequestPipeline;
+    private final BinderCallStats mCallStats = BinderCallStats.getInstance();
+    private int mSimLane;
+    private int mNvLane;
+    private int mNetworkScanLane;
+    private int mNetworkLane;
+    private int mCallLane;
+    private int mOtherLane;
     private SubscriptionController mSubscriptionController;
     private SharedPreferences mTelephonySharedPreferences;
 
@@ -197,14 +224,13 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     }
 
     /**
-     * A request object for use with {@link MainThreadHandler}. Requesters should wait() on the
-     * request after sending. The main thread will notify the request when it is complete.
+     * A request object for use with {@link MainThreadHandler}. Requesters wait for the request
+     * after sending it through {@link #mRequestPipeline}. The main thread sets the result of the
+     * request and completes it with {@link #notifyRequester}.
      */
-    private static final class MainThreadRequest {
+    private static final class MainThreadRequest extends RequestPipeline.Request {
         /** The argument to use for the request */
         public Object argument;
-        /** The result of the request that is run on the main thread */
-        public Object result;
         // The subscriber id that this request applies to. Defaults to
         // SubscriptionManager.INVALID_SUBSCRIPTION_ID
         public Integer subId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
@@ -243,8 +269,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
      * request.
      *
      * <p>If a MainThreadRequest object is provided in the msg.obj field,
-     * note that request.result must be set to something non-null for the calling thread to
-     * unblock.
+     * note that {@link #notifyRequester} must be called for the calling thread to unblock.
      */
     private final class MainThreadHandler extends Handler {
         @Override
@@ -263,9 +288,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             getPhoneFromRequest(request).handlePinMmi((String) request.argument)
                             : false;
                     // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
                 }
 
@@ -286,15 +309,15 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                         request.result = new ArrayList<NeighboringCellInfo>(0);
                     }
                     // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_ANSWER_RINGING_CALL:
                     request = (MainThreadRequest) msg.obj;
                     int answer_subId = request.subId;
                     answerRingingCallInternal(answer_subId);
+                    request.result = true;
+                    notifyRequester(request);
                     break;
 
                 case CMD_END_CALL:
@@ -304,6 +327,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     Phone phone = getPhone(end_subId);
                     if (phone == null) {
                         if (DBG) log("CMD_END_CALL: no phone for id: " + end_subId);
+                        request.result = false;
+                        notifyRequester(request);
                         break;
                     }
                     int phoneType = phone.getPhoneType();
@@ -320,9 +345,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (DBG) log("CMD_END_CALL: " + (hungUp ? "hung up!" : "no call to hang up"));
                     request.result = hungUp;
                     // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_TRANSMIT_APDU_LOGICAL_CHANNEL:
@@ -332,9 +355,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("iccTransmitApduLogicalChannel: No UICC");
                         request.result = new IccIoResult(0x6F, 0, (byte[])null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_TRANSMIT_APDU_LOGICAL_CHANNEL_DONE,
                             request);
@@ -361,9 +382,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("iccTransmitApduLogicalChannel: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_TRANSMIT_APDU_BASIC_CHANNEL:
@@ -373,9 +392,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("iccTransmitApduBasicChannel: No UICC");
                         request.result = new IccIoResult(0x6F, 0, (byte[])null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_TRANSMIT_APDU_BASIC_CHANNEL_DONE,
                             request);
@@ -401,9 +418,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("iccTransmitApduBasicChannel: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_EXCHANGE_SIM_IO:
@@ -413,9 +428,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("iccExchangeSimIO: No UICC");
                         request.result = new IccIoResult(0x6F, 0, (byte[])null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_EXCHANGE_SIM_IO_DONE,
                                 request);
@@ -433,9 +446,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     } else {
                         request.result = new IccIoResult(0x6f, 0, (byte[])null);
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SEND_ENVELOPE:
@@ -444,9 +455,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("sendEnvelopeWithStatus: No UICC");
                         request.result = new IccIoResult(0x6F, 0, (byte[])null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_SEND_ENVELOPE_DONE, request);
                         uiccCard.sendEnvelopeWithStatus((String)request.argument, onCompleted);
@@ -469,9 +478,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("sendEnvelopeWithStatus: exception:" + ar.exception);
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_OPEN_CHANNEL:
@@ -481,9 +488,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                         loge("iccOpenLogicalChannel: No UICC");
                         request.result = new IccOpenLogicalChannelResponse(-1,
                             IccOpenLogicalChannelResponse.STATUS_MISSING_RESOURCE, null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_OPEN_CHANNEL_DONE, request);
                         uiccCard.iccOpenLogicalChannel((String)request.argument, onCompleted);
@@ -528,8 +533,16 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             IccOpenLogicalChannelResponse.INVALID_CHANNEL, errorCode, null);
                     }
                     request.result = openChannelResp;
-                    synchronized (request) {
-                        request.notifyAll();
+                    if (!notifyRequester(request) && openChannelResp.getChannel()
+                            != IccOpenLogicalChannelResponse.INVALID_CHANNEL) {
+                        // The caller gave up and will never close the channel.
+                        loge("iccOpenLogicalChannel: timed out, closing channel "
+                                + openChannelResp.getChannel());
+                        uiccCard = getUiccCardFromRequest(request);
+                        if (uiccCard != null) {
+                            uiccCard.iccCloseLogicalChannel(openChannelResp.getChannel(),
+                                    obtainMessage(EVENT_CLOSE_TIMED_OUT_CHANNEL_DONE));
+                        }
                     }
                     break;
 
@@ -539,9 +552,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("iccCloseLogicalChannel: No UICC");
                         request.result = new IccIoResult(0x6F, 0, (byte[])null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_CLOSE_CHANNEL_DONE, request);
                         uiccCard.iccCloseLogicalChannel((Integer) request.argument, onCompleted);
@@ -552,6 +563,13 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     handleNullReturnEvent(msg, "iccCloseLogicalChannel");
                     break;
 
+                case EVENT_CLOSE_TIMED_OUT_CHANNEL_DONE:
+                    ar = (AsyncResult) msg.obj;
+                    if (ar.exception != null) {
+                        loge("iccCloseLogicalChannel: timed out channel: " + ar.exception);
+                    }
+                    break;
+
                 case CMD_NV_READ_ITEM:
                     request = (MainThreadRequest) msg.obj;
                     onCompleted = obtainMessage(EVENT_NV_READ_ITEM_DONE, request);
@@ -574,9 +592,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("nvReadItem: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_NV_WRITE_ITEM:
@@ -632,9 +648,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("getPreferredNetworkType: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SET_PREFERRED_NETWORK_TYPE:
@@ -658,9 +672,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     ar = (AsyncResult)msg.obj;
                     request = (MainThreadRequest)ar.userObj;
                     request.result = ar;
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SET_VOICEMAIL_NUMBER:
@@ -720,9 +732,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                         cellScanResult = new CellNetworkScanResult(errorCode, null);
                     }
                     request.result = cellScanResult;
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SET_NETWORK_SELECTION_MODE_MANUAL:
@@ -764,9 +774,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (request.result == null) {
                         request.result = new ModemActivityInfo(0, 0, 0, null, 0, 0);
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SET_ALLOWED_CARRIERS:
@@ -796,9 +804,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (request.result == null) {
                         request.result = new int[]{-1};
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_GET_ALLOWED_CARRIERS:
@@ -826,9 +832,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (request.result == null) {
                         request.result = new ArrayList<CarrierIdentifier>(0);
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 default:
@@ -850,9 +854,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     loge(command + ": Unknown exception");
                 }
             }
-            synchronized (request) {
-                request.notifyAll();
-            }
+            notifyRequester(request);
         }
     }
 
@@ -876,20 +878,97 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
 
         MainThreadRequest request = new MainThreadRequest(argument, subId);
-        Message msg = mMainThreadHandler.obtainMessage(command, request);
-        msg.sendToTarget();
-
-        // Wait for the request to complete
-        synchronized (request) {
-            while (request.result == null) {
-                try {
-                    request.wait();
-                } catch (InterruptedException e) {
-                    // Do nothing, go back and wait until the request is complete
-                }
+        boolean recording = mCallStats.isEnabled();
+        long start = recording ? System.nanoTime() : 0;
+        try {
+            return mRequestPipeline.sendRequest(command, getLaneForCommand(command), request);
+        } catch (TimeoutException e) {
+            loge("sendRequest: command " + command + " timed out");
+            return getTimeoutResult(command);
+        } finally {
+            if (recording) {
+                mCallStats.addMainThreadWait((System.nanoTime() - start) / 1000);
             }
         }
-        return request.result;
+    }
+
+    /**
+     * Wakes up the thread waiting for a request in {@link #sendRequest}.
+     *
+     * @return false if the requester has already given up on the request
+     */
+    private static boolean notifyRequester(MainThreadRequest request) {
+        return request.complete();
+    }
+
+    /** Returns the lane of {@link #mRequestPipeline} which runs a command. */
+    private int getLaneForCommand(int command) {
+        switch (command) {
+            case CMD_TRANSMIT_APDU_LOGICAL_CHANNEL:
+            case CMD_TRANSMIT_APDU_BASIC_CHANNEL:
+            case CMD_EXCHANGE_SIM_IO:
+            case CMD_SEND_ENVELOPE:
+            case CMD_OPEN_CHANNEL:
+            case CMD_CLOSE_CHANNEL:
+                return mSimLane;
+            case CMD_NV_READ_ITEM:
+            case CMD_NV_WRITE_ITEM:
+            case CMD_NV_WRITE_CDMA_PRL:
+            case CMD_NV_RESET_CONFIG:
+            case CMD_INVOKE_OEM_RIL_REQUEST_RAW:
+                return mNvLane;
+            case CMD_PERFORM_NETWORK_SCAN:
+                return mNetworkScanLane;
+            case CMD_GET_PREFERRED_NETWORK_TYPE:
+            case CMD_SET_PREFERRED_NETWORK_TYPE:
+            case CMD_SET_NETWORK_SELECTION_MODE_AUTOMATIC:
+            case CMD_SET_NETWORK_SELECTION_MODE_MANUAL:
+            case CMD_HANDLE_NEIGHBORING_CELL:
+                return mNetworkLane;
+            case CMD_END_CALL:
+            case CMD_ANSWER_RINGING_CALL:
+            case CMD_HANDLE_PIN_MMI:
+                return mCallLane;
+            default:
+                return mOtherLane;
+        }
+    }
+
+    /**
+     * Returns what a command returns when it fails, for requests which time out. These are the
+     * results the main thread reports for errors.
+     */
+    private static Object getTimeoutResult(int command) {
+        switch (command) {
+            case CMD_TRANSMIT_APDU_LOGICAL_CHANNEL:
+            case CMD_TRANSMIT_APDU_BASIC_CHANNEL:
+            case CMD_EXCHANGE_SIM_IO:
+            case CMD_SEND_ENVELOPE:
+                return new IccIoResult(0x6F, 0, (byte[]) null);
+            case CMD_OPEN_CHANNEL:
+                return new IccOpenLogicalChannelResponse(
+                        IccOpenLogicalChannelResponse.INVALID_CHANNEL,
+                        IccOpenLogicalChannelResponse.STATUS_UNKNOWN_ERROR, null);
+            case CMD_NV_READ_ITEM:
+                return "";
+            case CMD_GET_PREFERRED_NETWORK_TYPE:
+                return null;
+            case CMD_INVOKE_OEM_RIL_REQUEST_RAW:
+                return new AsyncResult(null, null,
+                        new CommandException(CommandException.Error.GENERIC_FAILURE));
+            case CMD_PERFORM_NETWORK_SCAN:
+                return new CellNetworkScanResult(CellNetworkScanResult.STATUS_UNKNOWN_ERROR, null);
+            case CMD_HANDLE_NEIGHBORING_CELL:
+                return new ArrayList<NeighboringCellInfo>(0);
+            case CMD_GET_MODEM_ACTIVITY_INFO:
+                return new ModemActivityInfo(0, 0, 0, null, 0, 0);
+            case CMD_SET_ALLOWED_CARRIERS:
+                return new int[]{-1};
+            case CMD_GET_ALLOWED_CARRIERS:
+                return new ArrayList<CarrierIdentifier>(0);
+            default:
+                return false;
+        }
     }
 
     /**
@@ -935,6 +1014,16 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         mUserManager = (UserManager) app.getSystemService(Context.USER_SERVICE);
         mAppOps = (AppOpsManager)app.getSystemService(Context.APP_OPS_SERVICE);
         mMainThreadHandler = new MainThreadHandler();
+        mRequestPipeline = new RequestPipeline(mMainThreadHandler);
+        mSimLane = mRequestPipeline.addLane("sim", SIM_MAX_IN_FLIGHT, REQUEST_TIMEOUT_MILLIS);
+        mNvLane = mRequestPipeline.addLane("nv", NV_MAX_IN_FLIGHT, REQUEST_TIMEOUT_MILLIS);
+        mNetworkScanLane = mRequestPipeline.addLane("network_scan", NETWORK_SCAN_MAX_IN_FLIGHT,
+                NETWORK_SCAN_TIMEOUT_MILLIS);
+        mNetworkLane = mRequestPipeline.addLane("network", NETWORK_MAX_IN_FLIGHT,
+                REQUEST_TIMEOUT_MILLIS);
+        mCallLane = mRequestPipeline.addLane("call", CALL_MAX_IN_FLIGHT, REQUEST_TIMEOUT_MILLIS);
+        mOtherLane = mRequestPipeline.addLane("other", OTHER_MAX_IN_FLIGHT,
+                REQUEST_TIMEOUT_MILLIS);
         mTelephonySharedPreferences =
                 PreferenceManager.getDefaultSharedPreferences(mPhone.getContext());
         mSubscriptionController = SubscriptionController.getInstance();
@@ -942,6 +1031,21 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         publish();
     }
 
+    @Override
+    public boolean onTransact(int code, Parcel data, Parcel reply, int flags)
+            throws RemoteException {
+        if (!mCallStats.isEnabled()) {
+            return super.onTransact(code, data, reply, flags);
+        }
+        int uid = Binder.getCallingUid();
+        long token = mCallStats.onCallStarted();
+        try {
+            return super.onTransact(code, data, reply, flags);
+        } finally {
+            mCallStats.onCallEnded(code, uid, token);
+        }
+    }
+
     private void publish() {
         if (DBG) log("publish: " + this);
 
@@ -2869,12 +2973,16 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     @Override
     public boolean canChangeDtmfToneLength() {
-        return mApp.getCarrierConfig().getBoolean(CarrierConfigManager.KEY_DTMF_TYPE_ENABLED_BOOL);
+        return mApp.getCarrierConfigSnapshotForSubId(
+                SubscriptionManager.getDefaultSubscriptionId()).getBoolean(
+                        CarrierConfigManager.KEY_DTMF_TYPE_ENABLED_BOOL);
     }
 
     @Override
     public boolean isWorldPhone() {
-        return mApp.getCarrierConfig().getBoolean(CarrierConfigManager.KEY_WORLD_PHONE_BOOL);
+        return mApp.getCarrierConfigSnapshotForSubId(
+                SubscriptionManager.getDefaultSubscriptionId()).getBoolean(
+                        CarrierConfigManager.KEY_WORLD_PHONE_BOOL);
     }
 
     @Override
@@ -3349,6 +3457,19 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             return;
         }
         DumpsysHandler.dump(mPhone.getContext(), fd, writer, args);
+        mRequestPipeline.dump(writer);
+        mCallStats.dump(writer);
+    }
+
+    /**
+     * Called when "adb shell cmd phone" is invoked.
+     */
+    @Override
+    public void onShellCommand(FileDescriptor in, FileDescriptor out, FileDescriptor err,
+            String[] args, ResultReceiver resultReceiver) throws RemoteException {
+        mApp.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, null);
+        new BinderCallStatsShellCommand(mCallStats).exec(this, in, out, err, args,
+                resultReceiver);
     }
 
     /**
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Hands requests from binder threads to a {@link Handler} and waits for their results.
+ *
+ * <p>Requests are grouped in lanes, one per class of commands. Each lane only lets a few of its
+ * requests into the handler queue at a time and keeps the others in its own FIFO, so a burst of
+ * one class, such as SIM APDUs, cannot delay the requests of another class behind it. Every lane
+ * also has a deadline after which the requester gives up and the request stops counting against
+ * the lane.
+ *
+ * <p>The handler completes a request with {@link Request#complete()}, which may happen on any
+ * thread and at any time; a result that arrives after the deadline is dropped.
+ */
+class RequestPipeline {
+
+    /**
+     * A request, completed by the handler once {@link #result} is set.
+     */
+    static class Request {
+        /** The result of the request, set by the handler before {@link #complete()}. */
+        public Object result;
+
+        private final CompletableFuture<Object> mFuture = new CompletableFuture<>();
+        private Lane mLane;
+        private int mWhat;
+        private long mSubmitTimeMillis;
+        // Guarded by mLane.
+        private boolean mDispatched;
+
+        /**
+         * Wakes up the requester with {@link #result}. Completing a request which has timed out
+         * or is already complete does nothing.
+         *
+         * @return whether the request was still pending, false if the requester has timed out
+         * and {@link #result} is dropped
+         */
+        public boolean complete() {
+            if (!mFuture.complete(result)) {
+                return false;
+            }
+            if (mLane != null) {
+                mLane.onFinished(this, false /* timedOut */);
+            }
+            return true;
+        }
+    }
+
+    private final Handler mHandler;
+    private final List<Lane> mLanes = new ArrayList<>();
+
+    private final class Lane {
+        private final String mName;
+        private final int mMaxInFlight;
+        private final long mTimeoutMillis;
+
+        private final ArrayDeque<Request> mWaiting = new ArrayDeque<>();
+        private int mInFlight;
+
+        private long mCompleted;
+        private long mTimedOut;
+        private int mMaxDepth;
+        private long mTotalLatencyMillis;
+        private long mMaxLatencyMillis;
+
+        Lane(String name, int maxInFlight, long timeoutMillis) {
+            mName = name;
+            mMaxInFlight = maxInFlight;
+            mTimeoutMillis = timeoutMillis;
+        }
+
+        synchronized void submit(Request request) {
+            if (mInFlight < mMaxInFlight) {
+                dispatch(request);
+            } else {
+                mWaiting.add(request);
+            }
+            mMaxDepth = Math.max(mMaxDepth, getDepth());
+        }
+
+        synchronized void onFinished(Request request, boolean timedOut) {
+            if (request.mDispatched) {
+                mInFlight--;
+            } else {
+                // Timed out before it reached the handler.
+                mWaiting.remove(request);
+            }
+            long latency = SystemClock.elapsedRealtime() - request.mSubmitTimeMillis;
+            if (timedOut) {
+                mTimedOut++;
+            } else {
+                mCompleted++;
+                mTotalLatencyMillis += latency;
+                mMaxLatencyMillis = Math.max(mMaxLatencyMillis, latency);
+            }
+            while (mInFlight < mMaxInFlight && !mWaiting.isEmpty()) {
+                dispatch(mWaiting.poll());
+            }
+        }
+
+        synchronized int getDepth() {
+            return mInFlight + mWaiting.size();
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.println("  " + mName + ": depth=" + getDepth() + " maxDepth=" + mMaxDepth
+                    + " completed=" + mCompleted + " timedOut=" + mTimedOut
+                    + " avgLatencyMs=" + (mCompleted == 0 ? 0 : mTotalLatencyMillis / mCompleted)
+                    + " maxLatencyMs=" + mMaxLatencyMillis);
+        }
+
+        private void dispatch(Request request) {
+            request.mDispatched = true;
+            mInFlight++;
+            mHandler.obtainMessage(request.mWhat, request).sendToTarget();
+        }
+    }
+
+    RequestPipeline(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Adds a lane.
+     *
+     * @param name the name of the lane in dumps
+     * @param maxInFlight how many requests of the lane may be in the handler at a time
+     * @param timeoutMillis how long a requester waits, including the time spent in the lane
+     * @return the index of the lane, to pass to {@link #sendRequest}
+     */
+    int addLane(String name, int maxInFlight, long timeoutMillis) {
+        mLanes.add(new Lane(name, maxInFlight, timeoutMillis));
+        return mLanes.size() - 1;
+    }
+
+    /**
+     * Sends {@code request} to the handler as message {@code what} once {@code lane} has room for
+     * it, and waits for the result. Interrupts do not end the wait early.
+     *
+     * @throws TimeoutException if the request is not complete before the deadline of the lane
+     */
+    Object sendRequest(int what, int lane, Request request) throws TimeoutException {
+        Lane l = mLanes.get(lane);
+        request.mLane = l;
+        request.mWhat = what;
+        request.mSubmitTimeMillis = SystemClock.elapsedRealtime();
+        long deadline = request.mSubmitTimeMillis + l.mTimeoutMillis;
+        l.submit(request);
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                try {
+                    if (remaining <= 0) {
+                        throw new TimeoutException();
+                    }
+                    return request.mFuture.get(remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (TimeoutException e) {
+                    // Whoever completes the future first owns the request.
+                    if (request.mFuture.completeExceptionally(e)) {
+                        l.onFinished(request, true /* timedOut */);
+                        throw e;
+                    }
+                    return request.mFuture.getNow(null);
+                } catch (ExecutionException e) {
+                    // Only a timeout completes the future exceptionally.
+                    throw new IllegalStateException(e);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    int getDepth(int lane) {
+        return mLanes.get(lane).getDepth();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("RequestPipeline:");
+        for (Lane lane : mLanes) {
+            lane.dump(pw);
+        }
+    }
+}
@@ -50,5 +50,7 @@ public class TelephonyDebugService extends Service {
     @Override
     protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         mDebugService.dump(fd, pw, args);
+        pw.println();
+        BinderCallStats.getInstance().dump(pw);
     }
 }
@@ -20,9 +20,14 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 import android.telephony.VisualVoicemailSmsFilterSettings;
+import android.util.ArrayMap;
 import android.util.ArraySet;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -30,6 +35,11 @@ import java.util.Set;
  * Stores the config values needed for visual voicemail sms filtering. The values from
  * OmtpVvmCarrierConfigHelper are stored here during activation instead. These values are read and
  * written through TelephonyManager.
+ *
+ * <p>The settings are looked up for every incoming SMS, so they are also kept in memory by package
+ * and subId. The in-memory copy is filled from the preferences on first use and written through on
+ * every change; a lookup after that does not touch the preferences or allocate. As the cached
+ * settings are shared between callers, their originating numbers are unmodifiable.
  */
 public class VisualVoicemailSmsFilterConfig {
 
@@ -40,31 +50,84 @@ public class VisualVoicemailSmsFilterConfig {
     private static final String ORIGINATING_NUMBERS_KEY = "_originating_numbers";
     private static final String DESTINATION_PORT_KEY = "_destination_port";
 
+    /**
+     * Marks a filter which is disabled in {@link #sSettings}.
+     */
+    private static final VisualVoicemailSmsFilterSettings DISABLED =
+            new VisualVoicemailSmsFilterSettings.Builder().build();
+
+    private static final Object sLock = new Object();
+
+    /**
+     * Settings by package name and subId, or {@link #DISABLED}. Guarded by {@link #sLock}.
+     */
+    private static final ArrayMap<String, SparseArray<VisualVoicemailSmsFilterSettings>>
+            sSettings = new ArrayMap<>();
+
     public static void enableVisualVoicemailSmsFilter(Context context, String callingPackage,
             int subId,
             VisualVoicemailSmsFilterSettings settings) {
-        new Editor(context, callingPackage, subId)
-                .setBoolean(ENABLED_KEY, true)
-                .setString(PREFIX_KEY, settings.clientPrefix)
-                .setStringList(ORIGINATING_NUMBERS_KEY, settings.originatingNumbers)
-                .setInt(DESTINATION_PORT_KEY, settings.destinationPort)
-                .apply();
+        synchronized (sLock) {
+            new Editor(context, callingPackage, subId)
+                    .setBoolean(ENABLED_KEY, true)
+                    .setString(PREFIX_KEY, settings.clientPrefix)
+                    .setStringList(ORIGINATING_NUMBERS_KEY, settings.originatingNumbers)
+                    .setInt(DESTINATION_PORT_KEY, settings.destinationPort)
+                    .apply();
+            // Stored the way it would be read back, as the originating numbers are saved as a set.
+            putSettings(callingPackage, subId, new VisualVoicemailSmsFilterSettings.Builder()
+                    .setClientPrefix(settings.clientPrefix)
+                    .setOriginatingNumbers(Collections.unmodifiableList(
+                            new ArrayList<>(new ArraySet<>(settings.originatingNumbers))))
+                    .setDestinationPort(settings.destinationPort)
+                    .build());
+        }
     }
 
     public static void disableVisualVoicemailSmsFilter(Context context, String callingPackage,
             int subId) {
-        new Editor(context, callingPackage, subId)
-                .setBoolean(ENABLED_KEY, false)
-                .apply();
+        synchronized (sLock) {
+            new Editor(context, callingPackage, subId)
+                    .setBoolean(ENABLED_KEY, false)
+                    .apply();
+            putSettings(callingPackage, subId, DISABLED);
+        }
     }
 
     @Nullable
     public static VisualVoicemailSmsFilterSettings getVisualVoicemailSmsFilterSettings(
             Context context,
             String packageName, int subId) {
+        synchronized (sLock) {
+            VisualVoicemailSmsFilterSettings settings = null;
+            SparseArray<VisualVoicemailSmsFilterSettings> packageSettings =
+                    sSettings.get(packageName);
+            if (packageSettings != null) {
+                settings = packageSettings.get(subId);
+            }
+            if (settings == null) {
+                settings = readSettings(context, packageName, subId);
+                putSettings(packageName, subId, settings);
+            }
+            return settings == DISABLED ? null : settings;
+        }
+    }
+
+    /**
+     * Drops the in-memory settings so the next lookup reads them from the preferences again.
+     */
+    @VisibleForTesting
+    static void clearCache() {
+        synchronized (sLock) {
+            sSettings.clear();
+        }
+    }
+
+    private static VisualVoicemailSmsFilterSettings readSettings(Context context,
+            String packageName, int subId) {
         Reader reader = new Reader(context, packageName, subId);
         if (!reader.getBoolean(ENABLED_KEY, false)) {
-            return null;
+            return DISABLED;
         }
         return new VisualVoicemailSmsFilterSettings.Builder()
                 .setClientPrefix(reader.getString(PREFIX_KEY,
@@ -75,6 +138,18 @@ public class VisualVoicemailSmsFilterConfig {
                         VisualVoicemailSmsFilterSettings.DEFAULT_DESTINATION_PORT))
                 .build();
     }
+
+    private static void putSettings(String packageName, int subId,
+            VisualVoicemailSmsFilterSettings settings) {
+        SparseArray<VisualVoicemailSmsFilterSettings> packageSettings =
+                sSettings.get(packageName);
+        if (packageSettings == null) {
+            packageSettings = new SparseArray<>();
+            sSettings.put(packageName, packageSettings);
+        }
+        packageSettings.put(subId, settings);
+    }
+
     private static SharedPreferences getSharedPreferences(Context context) {
         return PreferenceManager
                 .getDefaultSharedPreferences(context.createDeviceProtectedStorageContext());
@@ -155,7 +230,7 @@ public class VisualVoicemailSmsFilterConfig {
             if (result == null) {
                 return defaultValue;
             }
-            return new ArrayList<>(result);
+            return Collections.unmodifiableList(new ArrayList<>(result));
         }
 
         private String makeKey(String key) {
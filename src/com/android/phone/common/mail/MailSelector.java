@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.common.mail;
+
+import android.os.SystemClock;
+
+import com.android.phone.common.mail.utils.LogUtils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single thread doing the network I/O of all {@link NioMailTransport}s with a {@link Selector}.
+ *
+ * <p>Each {@link Connection} has an inbound and an outbound direct buffer. The selector thread
+ * fills the inbound buffer whenever the socket is readable and drains the outbound buffer whenever
+ * it is writable; the transports only copy from and to these buffers. A transport waiting for the
+ * server therefore does not hold a socket read, and reading stops while the inbound buffer is full
+ * until the transport catches up.
+ */
+class MailSelector {
+
+    private static final String TAG = "MailSelector";
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private static MailSelector sInstance;
+
+    private final Selector mSelector;
+    /** Work to do on the selector thread, such as registering a channel. */
+    private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * A non-blocking channel served by the selector thread. All methods except the callbacks from
+     * the selector thread may block the caller, up to the given timeout.
+     */
+    class Connection {
+
+        private final SocketChannel mChannel;
+        private SelectionKey mKey;
+
+        /** Bytes received and not read yet, in write mode. */
+        private final ByteBuffer mIn = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        /** Bytes written and not sent yet, in write mode. */
+        private final ByteBuffer mOut = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private boolean mConnected;
+        private boolean mEndOfStream;
+        private boolean mClosed;
+        private IOException mError;
+
+        private Connection(SocketChannel channel) {
+            mChannel = channel;
+        }
+
+        /**
+         * Waits until the channel is connected.
+         *
+         * @throws SocketTimeoutException if it is not connected within {@code timeoutMillis}
+         */
+        void awaitConnected(int timeoutMillis) throws IOException {
+            synchronized (this) {
+                long deadline = getDeadline(timeoutMillis);
+                while (!mConnected) {
+                    checkUsable();
+                    await(deadline, "Connect timed out");
+                }
+            }
+        }
+
+        /**
+         * Moves received bytes to {@code dst}, waiting for at least one if there are none yet.
+         *
+         * @return the number of bytes moved, or -1 at the end of the stream
+         * @throws SocketTimeoutException if nothing is received within {@code timeoutMillis}. The
+         * connection stays usable.
+         */
+        int read(ByteBuffer dst, int timeoutMillis) throws IOException {
+            synchronized (this) {
+                long deadline = getDeadline(timeoutMillis);
+                while (mIn.position() == 0) {
+                    if (mEndOfStream) {
+                        return -1;
+                    }
+                    checkUsable();
+                    await(deadline, "Read timed out");
+                }
+                boolean wasFull = !mIn.hasRemaining();
+                mIn.flip();
+                int count = Math.min(mIn.remaining(), dst.remaining());
+                int limit = mIn.limit();
+                mIn.limit(mIn.position() + count);
+                dst.put(mIn);
+                mIn.limit(limit);
+                mIn.compact();
+                if (wasFull) {
+                    updateInterestOps();
+                }
+                return count;
+            }
+        }
+
+        /**
+         * Queues all of {@code src} to be sent, waiting while the outbound buffer is full.
+         */
+        void write(ByteBuffer src, int timeoutMillis) throws IOException {
+            synchronized (this) {
+                long deadline = getDeadline(timeoutMillis);
+                while (src.hasRemaining()) {
+                    checkUsable();
+                    if (!mOut.hasRemaining()) {
+                        await(deadline, "Write timed out");
+                        continue;
+                    }
+                    boolean wasEmpty = mOut.position() == 0;
+                    int count = Math.min(mOut.remaining(), src.remaining());
+                    int limit = src.limit();
+                    src.limit(src.position() + count);
+                    mOut.put(src);
+                    src.limit(limit);
+                    if (wasEmpty) {
+                        updateInterestOps();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Waits until all queued bytes are sent.
+         */
+        void flush(int timeoutMillis) throws IOException {
+            synchronized (this) {
+                long deadline = getDeadline(timeoutMillis);
+                while (mOut.position() > 0) {
+                    checkUsable();
+                    await(deadline, "Write timed out");
+                }
+            }
+        }
+
+        synchronized boolean isOpen() {
+            return mConnected && !mClosed && mError == null && mChannel.isOpen();
+        }
+
+        /**
+         * Closes the channel. Bytes not sent yet are dropped.
+         */
+        void close() {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                notifyAll();
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mKey != null) {
+                        mKey.cancel();
+                    }
+                    try {
+                        mChannel.close();
+                    } catch (IOException e) {
+                        // Ignore.
+                    }
+                }
+            });
+        }
+
+        private void checkUsable() throws IOException {
+            if (mClosed) {
+                throw new ClosedChannelException();
+            }
+            if (mError != null) {
+                throw mError;
+            }
+        }
+
+        /**
+         * @param timeoutMillis the timeout, 0 for none like {@link java.net.Socket#setSoTimeout}
+         */
+        private long getDeadline(int timeoutMillis) {
+            return timeoutMillis == 0 ? Long.MAX_VALUE
+                    : SystemClock.elapsedRealtime() + timeoutMillis;
+        }
+
+        private void await(long deadline, String timeoutMessage) throws IOException {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException(timeoutMessage);
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        private void updateInterestOps() {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Connection.this) {
+                        setInterestOps();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Must be called on the selector thread with the lock held.
+         */
+        private void setInterestOps() {
+            if (mKey == null || !mKey.isValid()) {
+                return;
+            }
+            if (!mConnected) {
+                mKey.interestOps(SelectionKey.OP_CONNECT);
+                return;
+            }
+            int ops = 0;
+            if (mIn.hasRemaining() && !mEndOfStream) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (mOut.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            mKey.interestOps(ops);
+        }
+
+        private void onRegistered(SelectionKey key) {
+            synchronized (this) {
+                mKey = key;
+                setInterestOps();
+            }
+        }
+
+        private void onReady() {
+            synchronized (this) {
+                try {
+                    if (mKey.isConnectable() && mChannel.finishConnect()) {
+                        mConnected = true;
+                    }
+                    if (mKey.isValid() && mKey.isReadable()) {
+                        if (mChannel.read(mIn) < 0) {
+                            mEndOfStream = true;
+                        }
+                    }
+                    if (mKey.isValid() && mKey.isWritable()) {
+                        mOut.flip();
+                        mChannel.write(mOut);
+                        mOut.compact();
+                    }
+                    setInterestOps();
+                } catch (IOException e) {
+                    LogUtils.d(TAG, e.toString());
+                    mError = e;
+                    mKey.cancel();
+                }
+                notifyAll();
+            }
+        }
+
+        private void onError(IOException e) {
+            synchronized (this) {
+                mError = e;
+                notifyAll();
+            }
+        }
+    }
+
+    static synchronized MailSelector getInstance() throws IOException {
+        if (sInstance == null) {
+            sInstance = new MailSelector();
+        }
+        return sInstance;
+    }
+
+    private MailSelector() throws IOException {
+        mSelector = Selector.open();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts connecting {@code channel} to {@code address} and serves it from now on. The channel
+     * is made non-blocking.
+     */
+    Connection connect(SocketChannel channel, InetSocketAddress address) throws IOException {
+        channel.configureBlocking(false);
+        final Connection connection = new Connection(channel);
+        if (channel.connect(address)) {
+            connection.mConnected = true;
+        }
+        register(connection);
+        return connection;
+    }
+
+    private void register(final Connection connection) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connection.onRegistered(
+                            connection.mChannel.register(mSelector, 0, connection));
+                } catch (ClosedChannelException e) {
+                    connection.onError(new EOFException("Channel closed before registration"));
+                }
+            }
+        });
+    }
+
+    private void post(Runnable task) {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    private void loop() {
+        while (true) {
+            try {
+                mSelector.select();
+            } catch (IOException e) {
+                LogUtils.w(TAG, "select failed", e);
+                continue;
+            }
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                task.run();
+            }
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid()) {
+                    ((Connection) key.attachment()).onReady();
+                }
+            }
+        }
+    }
+}
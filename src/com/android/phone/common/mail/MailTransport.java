@@ -55,15 +55,15 @@ public class MailTransport {
     private static final HostnameVerifier HOSTNAME_VERIFIER =
             HttpsURLConnection.getDefaultHostnameVerifier();
 
-    private final Context mContext;
-    private final ImapHelper mImapHelper;
-    private final Network mNetwork;
-    private final String mHost;
-    private final int mPort;
+    protected final Context mContext;
+    protected ImapHelper mImapHelper;
+    protected final Network mNetwork;
+    protected final String mHost;
+    protected final int mPort;
     private Socket mSocket;
     private BufferedInputStream mIn;
     private BufferedOutputStream mOut;
-    private final int mFlags;
+    protected final int mFlags;
     private SocketCreator mSocketCreator;
     private InetSocketAddress mAddress;
 
@@ -86,6 +86,14 @@ public class MailTransport {
         return new MailTransport(mContext, mImapHelper, mNetwork, mHost, mPort, mFlags);
     }
 
+    /**
+     * Sets the helper events are reported to, when an open transport is handed over to another
+     * {@link ImapHelper}.
+     */
+    public void setImapHelper(ImapHelper imapHelper) {
+        mImapHelper = imapHelper;
+    }
+
     public boolean canTrySslSecurity() {
         return (mFlags & ImapStore.FLAG_SSL) != 0;
     }
@@ -101,26 +109,7 @@ public class MailTransport {
     public void open() throws MessagingException {
         LogUtils.d(TAG, "*** IMAP open " + mHost + ":" + String.valueOf(mPort));
 
-        List<InetSocketAddress> socketAddresses = new ArrayList<InetSocketAddress>();
-
-        if (mNetwork == null) {
-            socketAddresses.add(new InetSocketAddress(mHost, mPort));
-        } else {
-            try {
-                InetAddress[] inetAddresses = mNetwork.getAllByName(mHost);
-                if (inetAddresses.length == 0) {
-                    throw new MessagingException(MessagingException.IOERROR,
-                            "Host name " + mHost + "cannot be resolved on designated network");
-                }
-                for (int i = 0; i < inetAddresses.length; i++) {
-                    socketAddresses.add(new InetSocketAddress(inetAddresses[i], mPort));
-                }
-            } catch (IOException ioe) {
-                LogUtils.d(TAG, ioe.toString());
-                mImapHelper.handleEvent(OmtpEvents.DATA_CANNOT_RESOLVE_HOST_ON_NETWORK);
-                throw new MessagingException(MessagingException.IOERROR, ioe.toString());
-            }
-        }
+        List<InetSocketAddress> socketAddresses = resolveAddresses();
 
         boolean success = false;
         while (socketAddresses.size() > 0) {
@@ -164,6 +153,33 @@ public class MailTransport {
         }
     }
 
+    /**
+     * Resolves the host, on the designated network if there is one.
+     */
+    protected List<InetSocketAddress> resolveAddresses() throws MessagingException {
+        List<InetSocketAddress> socketAddresses = new ArrayList<InetSocketAddress>();
+
+        if (mNetwork == null) {
+            socketAddresses.add(new InetSocketAddress(mHost, mPort));
+        } else {
+            try {
+                InetAddress[] inetAddresses = mNetwork.getAllByName(mHost);
+                if (inetAddresses.length == 0) {
+                    throw new MessagingException(MessagingException.IOERROR,
+                            "Host name " + mHost + "cannot be resolved on designated network");
+                }
+                for (int i = 0; i < inetAddresses.length; i++) {
+                    socketAddresses.add(new InetSocketAddress(inetAddresses[i], mPort));
+                }
+            } catch (IOException ioe) {
+                LogUtils.d(TAG, ioe.toString());
+                mImapHelper.handleEvent(OmtpEvents.DATA_CANNOT_RESOLVE_HOST_ON_NETWORK);
+                throw new MessagingException(MessagingException.IOERROR, ioe.toString());
+            }
+        }
+        return socketAddresses;
+    }
+
     // For testing. We need something that can replace the behavior of "new Socket()"
     @VisibleForTesting
     interface SocketCreator {
@@ -244,7 +260,15 @@ public class MailTransport {
         SSLSocket ssl = (SSLSocket) socket;
         ssl.startHandshake();
 
-        SSLSession session = ssl.getSession();
+        verifySession(ssl.getSession(), hostname);
+    }
+
+    /**
+     * Verifies that the certificate of an established SSL session is valid for {@code hostname}.
+     *
+     * @throws SSLPeerUnverifiedException if the server cannot prove its identity
+     */
+    protected void verifySession(SSLSession session, String hostname) throws IOException {
         if (session == null) {
             mImapHelper.handleEvent(OmtpEvents.DATA_CANNOT_ESTABLISH_SSL_SESSION);
             throw new SSLException("Cannot verify SSL socket without session");
@@ -293,6 +317,17 @@ public class MailTransport {
         return mHost;
     }
 
+    /**
+     * Changes the read timeout of the open socket. Reads that time out throw a {@link
+     * java.net.SocketTimeoutException} but leave the connection usable.
+     */
+    public void setSoTimeout(int timeoutMillis) throws IOException {
+        if (mSocket == null) {
+            throw new IOException("Transport is not open");
+        }
+        mSocket.setSoTimeout(timeoutMillis);
+    }
+
     public InputStream getInputStream() {
         return mIn;
     }
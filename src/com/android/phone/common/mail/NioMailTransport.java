@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.common.mail;
+
+import android.content.Context;
+import android.net.Network;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.phone.common.mail.utils.LogUtils;
+import com.android.phone.vvm.omtp.OmtpEvents;
+import com.android.phone.vvm.omtp.imap.ImapHelper;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * A {@link MailTransport} on a non-blocking {@link SocketChannel}, with TLS done by an {@link
+ * SSLEngine}. The socket I/O of all such transports is done by the single {@link MailSelector}
+ * thread; callers only wait for the selector to have data for them, and decrypt it themselves.
+ *
+ * <p>The streams returned by {@link #getInputStream()} and {@link #getOutputStream()} stay the
+ * same when the connection is upgraded by {@link #reopenTls()}.
+ */
+public class NioMailTransport extends MailTransport {
+    private static final String TAG = "NioMailTransport";
+
+    private static final int APP_BUFFER_SIZE = 16 * 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private SocketChannel mChannel;
+    private MailSelector.Connection mConnection;
+    private int mSoTimeout = SOCKET_READ_TIMEOUT;
+    private SSLContext mSslContext;
+
+    /** Not null once the connection is upgraded to TLS. */
+    private SSLEngine mEngine;
+    /** Received TLS records not decrypted yet, in write mode. */
+    private ByteBuffer mNetIn;
+    /** Encrypted TLS records to send. */
+    private ByteBuffer mNetOut;
+
+    /** Received data not read yet, in read mode. */
+    private ByteBuffer mAppIn = ByteBuffer.allocate(APP_BUFFER_SIZE);
+
+    private final InputStream mIn = new ChannelInputStream();
+    private OutputStream mOut;
+
+    public NioMailTransport(Context context, ImapHelper imapHelper, Network network,
+            String address, int port, int flags) {
+        super(context, imapHelper, network, address, port, flags);
+    }
+
+    @Override
+    public NioMailTransport clone() {
+        return new NioMailTransport(mContext, mImapHelper, mNetwork, mHost, mPort, mFlags);
+    }
+
+    @Override
+    public void open() throws MessagingException {
+        LogUtils.d(TAG, "*** IMAP open " + mHost + ":" + String.valueOf(mPort));
+
+        List<InetSocketAddress> socketAddresses = resolveAddresses();
+
+        while (socketAddresses.size() > 0) {
+            InetSocketAddress address = socketAddresses.remove(0);
+            try {
+                connect(address);
+                if (canTrySslSecurity()) {
+                    reopenTls();
+                }
+                return;
+            } catch (IOException ioe) {
+                LogUtils.d(TAG, ioe.toString());
+                close();
+                if (socketAddresses.size() == 0) {
+                    // Only throw an error when there are no more sockets to try.
+                    mImapHelper.handleEvent(OmtpEvents.DATA_ALL_SOCKET_CONNECTION_FAILED);
+                    throw new MessagingException(MessagingException.IOERROR, ioe.toString());
+                }
+            } catch (MessagingException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    // For testing. Replaces the default context, e.g. to trust a test certificate.
+    @VisibleForTesting
+    void setSslContext(SSLContext sslContext) {
+        mSslContext = sslContext;
+    }
+
+    private void connect(InetSocketAddress address) throws IOException {
+        mChannel = SocketChannel.open();
+        if (mNetwork != null) {
+            mNetwork.bindSocket(mChannel.socket());
+        }
+        mEngine = null;
+        mAppIn.clear().flip();
+        mOut = new BufferedOutputStream(new ChannelOutputStream(), 512);
+        mConnection = MailSelector.getInstance().connect(mChannel, address);
+        mConnection.awaitConnected(SOCKET_CONNECT_TIMEOUT);
+        mSoTimeout = SOCKET_READ_TIMEOUT;
+    }
+
+    /**
+     * Upgrades the connection to TLS. Data already received in plain text is dropped.
+     */
+    @Override
+    public void reopenTls() throws MessagingException {
+        try {
+            LogUtils.d(TAG, "open: converting to TLS");
+            if (mConnection == null) {
+                throw new IOException("Transport is not open");
+            }
+            SSLContext sslContext = mSslContext != null ? mSslContext : SSLContext.getDefault();
+            SSLEngine engine = sslContext.createSSLEngine(mHost, mPort);
+            engine.setUseClientMode(true);
+            mNetIn = ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize());
+            mNetOut = ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize());
+            mAppIn = ByteBuffer.allocate(Math.max(APP_BUFFER_SIZE,
+                    engine.getSession().getApplicationBufferSize()));
+            mAppIn.flip();
+            mEngine = engine;
+            engine.beginHandshake();
+            handshake();
+            // After the handshake, confirm that the hostname is as expected
+            if (!canTrustAllCertificates()) {
+                verifySession(engine.getSession(), mHost);
+            }
+        } catch (SSLException e) {
+            LogUtils.d(TAG, e.toString());
+            throw new CertificateValidationException(e.getMessage(), e);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            LogUtils.d(TAG, e.toString());
+            throw new MessagingException(MessagingException.IOERROR, e.toString());
+        }
+    }
+
+    /**
+     * Runs the handshake until the engine has nothing more to send or receive.
+     */
+    private void handshake() throws IOException {
+        while (true) {
+            switch (mEngine.getHandshakeStatus()) {
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    mConnection.flush(mSoTimeout);
+                    break;
+                case NEED_UNWRAP:
+                    // Application data arriving with the last handshake records is kept.
+                    mAppIn.compact();
+                    try {
+                        if (unwrapOnce() < 0) {
+                            throw new EOFException("Connection closed during handshake");
+                        }
+                    } finally {
+                        mAppIn.flip();
+                    }
+                    break;
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = mEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Decrypts received records into {@link #mAppIn}, which is in write mode, until either some
+     * data or a complete handshake record was decrypted.
+     *
+     * @return the number of bytes decrypted, or -1 at the end of the stream
+     */
+    private int unwrapOnce() throws IOException {
+        while (true) {
+            mNetIn.flip();
+            SSLEngineResult result;
+            try {
+                result = mEngine.unwrap(mNetIn, mAppIn);
+            } finally {
+                mNetIn.compact();
+            }
+            switch (result.getStatus()) {
+                case OK:
+                    if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks();
+                    }
+                    return result.bytesProduced();
+                case BUFFER_UNDERFLOW:
+                    int packetSize = mEngine.getSession().getPacketBufferSize();
+                    if (mNetIn.capacity() < packetSize) {
+                        mNetIn.flip();
+                        mNetIn = ByteBuffer.allocateDirect(packetSize).put(mNetIn);
+                    }
+                    if (mConnection.read(mNetIn, mSoTimeout) < 0) {
+                        return -1;
+                    }
+                    break;
+                case BUFFER_OVERFLOW:
+                    ByteBuffer appIn = ByteBuffer.allocate(
+                            mAppIn.capacity() + mEngine.getSession().getApplicationBufferSize());
+                    mAppIn.flip();
+                    mAppIn = appIn.put(mAppIn);
+                    break;
+                case CLOSED:
+                    return -1;
+            }
+        }
+    }
+
+    /**
+     * Encrypts all of {@code src} and queues the records to be sent.
+     */
+    private void wrap(ByteBuffer src) throws IOException {
+        do {
+            mNetOut.clear();
+            SSLEngineResult result = mEngine.wrap(src, mNetOut);
+            switch (result.getStatus()) {
+                case OK:
+                    mNetOut.flip();
+                    mConnection.write(mNetOut, mSoTimeout);
+                    if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks();
+                    }
+                    break;
+                case BUFFER_OVERFLOW:
+                    mNetOut = ByteBuffer.allocateDirect(
+                            mEngine.getSession().getPacketBufferSize());
+                    break;
+                default:
+                    throw new SSLException("Unexpected wrap status " + result.getStatus());
+            }
+        } while (src.hasRemaining());
+    }
+
+    /**
+     * Refills {@link #mAppIn} once it is fully read.
+     *
+     * @return the number of bytes available, or -1 at the end of the stream
+     */
+    private int fill() throws IOException {
+        if (mConnection == null) {
+            throw new IOException("Transport is not open");
+        }
+        mAppIn.clear();
+        try {
+            if (mEngine == null) {
+                return mConnection.read(mAppIn, mSoTimeout);
+            }
+            int count;
+            do {
+                count = unwrapOnce();
+                // A renegotiation or a post handshake message may need an answer.
+                if (mEngine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                    wrap(EMPTY);
+                    mConnection.flush(mSoTimeout);
+                }
+            } while (count == 0);
+            return count;
+        } finally {
+            mAppIn.flip();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mConnection != null && mConnection.isOpen();
+    }
+
+    /**
+     * Close the connection.  MUST NOT return any exceptions - must be "best effort" and safe.
+     */
+    @Override
+    public void close() {
+        if (mEngine != null && mConnection != null && mConnection.isOpen()) {
+            try {
+                mEngine.closeOutbound();
+                wrap(EMPTY);
+            } catch (Exception e) {
+                // May fail if the connection is already closed.
+            }
+        }
+        if (mConnection != null) {
+            mConnection.close();
+        } else if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+        mConnection = null;
+        mChannel = null;
+        mEngine = null;
+    }
+
+    @Override
+    public void setSoTimeout(int timeoutMillis) throws IOException {
+        if (mConnection == null) {
+            throw new IOException("Transport is not open");
+        }
+        mSoTimeout = timeoutMillis;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return mIn;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return mOut;
+    }
+
+    /**
+     * Reads a single line from the server, using either \r\n or \n as the delimiter.  The
+     * delimiter char(s) are not included in the result. The line is scanned directly in the
+     * receive buffer instead of byte by byte through the stream.
+     */
+    @Override
+    public String readLine(boolean loggable) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        boolean endOfLine = false;
+        while (!endOfLine) {
+            if (!mAppIn.hasRemaining() && fill() < 0) {
+                LogUtils.d(TAG, "End of stream reached while trying to read line.");
+                break;
+            }
+            byte[] array = mAppIn.array();
+            int start = mAppIn.arrayOffset() + mAppIn.position();
+            int end = mAppIn.arrayOffset() + mAppIn.limit();
+            int i = start;
+            for (; i < end; i++) {
+                byte b = array[i];
+                if (b == '\n') {
+                    endOfLine = true;
+                    i++;
+                    break;
+                } else if (b != '\r') {
+                    sb.append((char) (b & 0xff));
+                }
+            }
+            mAppIn.position(i - mAppIn.arrayOffset());
+        }
+        String ret = sb.toString();
+        if (loggable) {
+            LogUtils.d(TAG, "<<< " + ret);
+        }
+        return ret;
+    }
+
+    private class ChannelInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            if (!mAppIn.hasRemaining() && fill() < 0) {
+                return -1;
+            }
+            return mAppIn.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!mAppIn.hasRemaining() && fill() < 0) {
+                return -1;
+            }
+            int count = Math.min(length, mAppIn.remaining());
+            mAppIn.get(b, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mAppIn.remaining();
+        }
+
+        @Override
+        public void close() {
+            NioMailTransport.this.close();
+        }
+    }
+
+    private class ChannelOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int offset, int length) throws IOException {
+            if (mConnection == null) {
+                throw new IOException("Transport is not open");
+            }
+            ByteBuffer src = ByteBuffer.wrap(b, offset, length);
+            if (mEngine != null) {
+                wrap(src);
+            } else {
+                mConnection.write(src, mSoTimeout);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mConnection == null) {
+                throw new IOException("Transport is not open");
+            }
+            mConnection.flush(mSoTimeout);
+        }
+
+        @Override
+        public void close() {
+            NioMailTransport.this.close();
+        }
+    }
+}
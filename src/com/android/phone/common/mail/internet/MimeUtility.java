@@ -16,9 +16,7 @@
 package com.android.phone.common.mail.internet;
 
 import android.text.TextUtils;
-import android.util.Base64;
 import android.util.Base64DataException;
-import android.util.Base64InputStream;
 
 import com.android.phone.common.mail.Body;
 import com.android.phone.common.mail.BodyPart;
@@ -30,6 +28,7 @@ import com.android.phone.vvm.omtp.VvmLog;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.james.mime4j.codec.EncoderUtil;
+import org.apache.james.mime4j.decoder.Base64InputStream;
 import org.apache.james.mime4j.decoder.DecoderUtil;
 import org.apache.james.mime4j.decoder.QuotedPrintableInputStream;
 import org.apache.james.mime4j.util.CharsetUtil;
@@ -327,7 +326,7 @@ public class MimeUtility {
                 in = new QuotedPrintableInputStream(in);
             }
             else if ("base64".equalsIgnoreCase(contentTransferEncoding)) {
-                in = new Base64InputStream(in, Base64.DEFAULT);
+                in = new Base64InputStream(in);
             }
         }
         return in;
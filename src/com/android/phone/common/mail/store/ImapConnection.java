@@ -15,6 +15,7 @@
  */
 package com.android.phone.common.mail.store;
 
+import android.annotation.Nullable;
 import android.util.ArraySet;
 import android.util.Base64;
 import com.android.phone.common.mail.AuthenticationFailedException;
@@ -31,9 +32,11 @@ import com.android.phone.common.mail.utils.LogUtils;
 import com.android.phone.vvm.omtp.OmtpEvents;
 import com.android.phone.vvm.omtp.VvmLog;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.SSLException;
@@ -49,6 +52,7 @@ public class ImapConnection {
     private MailTransport mTransport;
     private ImapResponseParser mParser;
     private Set<String> mCapabilities = new ArraySet<>();
+    private ImapResponseParser.LiteralSink mLiteralSink;
 
     static final String IMAP_REDACTED_LOG = "[IMAP command redacted]";
 
@@ -70,6 +74,44 @@ public class ImapConnection {
         // changed, the connection will not be reestablished.
         mImapStore = store;
         mLoginPhrase = null;
+        if (mTransport != null) {
+            mTransport.setImapHelper(store.getImapHelper());
+        }
+    }
+
+    /**
+     * @return whether the underlying transport is still open, i.e. the connection is logged in.
+     */
+    boolean isTransportOpen() {
+        return mTransport != null && mTransport.isOpen();
+    }
+
+    /**
+     * @return whether the connection belongs to a store with {@code password}, i.e. it has been
+     * logged in with it.
+     */
+    boolean hasPassword(String password) {
+        return mImapStore != null && Objects.equals(mImapStore.getPassword(), password);
+    }
+
+    /**
+     * Checks an idle connection with NOOP before reusing it.
+     *
+     * @return whether the connection is open and the server still responds.
+     */
+    boolean isAlive() {
+        if (!isTransportOpen()) {
+            return false;
+        }
+        try {
+            executeSimpleCommand(ImapConstants.NOOP);
+            return true;
+        } catch (IOException | MessagingException e) {
+            VvmLog.w(TAG, "Idle connection is not alive: " + e);
+            return false;
+        } finally {
+            destroyResponses();
+        }
     }
 
     /**
@@ -313,7 +355,7 @@ public class ImapConnection {
         LogUtils.d(TAG, "Capabilities: " + mCapabilities.toString());
     }
 
-    private boolean hasCapability(String capability) {
+    public boolean hasCapability(String capability) {
         return mCapabilities.contains(capability);
     }
     /**
@@ -326,6 +368,18 @@ public class ImapConnection {
     private void createParser() {
         destroyResponses();
         mParser = new ImapResponseParser(mTransport.getInputStream());
+        mParser.setLiteralSink(mLiteralSink);
+    }
+
+    /**
+     * Streams literals of subsequent responses to {@code sink}, or stores them in the responses
+     * again if {@code null}. See {@link ImapResponseParser#setLiteralSink}.
+     */
+    public void setLiteralSink(ImapResponseParser.LiteralSink sink) {
+        mLiteralSink = sink;
+        if (mParser != null) {
+            mParser.setLiteralSink(sink);
+        }
     }
 
 
@@ -339,6 +393,60 @@ public class ImapConnection {
         return mParser.readResponse(false);
     }
 
+    /**
+     * Sends IDLE (RFC 2177) and waits for the server to accept it. Until {@link #stopIdle()} is
+     * called the server will push untagged responses, which should be read with {@link
+     * #readIdleResponse(int)}, and no other command can be sent. A mailbox must be selected.
+     */
+    public void startIdle() throws IOException, MessagingException {
+        sendCommand(ImapConstants.IDLE, false);
+        getCommandResponses();
+    }
+
+    /**
+     * Reads the next response pushed by the server while idling.
+     *
+     * @param timeoutMillis how long to wait for the server
+     * @return the response, or {@code null} if nothing was received within {@code timeoutMillis}.
+     * The connection is still idling in that case.
+     * @throws IOException if the response stops arriving half way. The transport is closed then,
+     * since the parser can't resume in the middle of a response, and the connection has to be
+     * opened again.
+     */
+    @Nullable
+    public ImapResponse readIdleResponse(int timeoutMillis)
+            throws IOException, MessagingException {
+        mTransport.setSoTimeout(timeoutMillis);
+        try {
+            mParser.waitForResponse();
+        } catch (SocketTimeoutException e) {
+            // Nothing of the next response has been read, still idling.
+            return null;
+        } finally {
+            mTransport.setSoTimeout(MailTransport.SOCKET_READ_TIMEOUT);
+        }
+        try {
+            return mParser.readResponse(false);
+        } catch (SocketTimeoutException e) {
+            VvmLog.w(TAG, "Idle response timed out half way, closing transport");
+            // Skip LOGOUT in close(), the server would read it in the middle of IDLE.
+            mTransport.close();
+            mTransport = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Ends IDLE, so commands can be sent again.
+     *
+     * @return the responses received until the server acknowledged DONE, which can contain
+     * untagged responses pushed after the last {@link #readIdleResponse(int)}.
+     */
+    public List<ImapResponse> stopIdle() throws IOException, MessagingException {
+        mTransport.writeLine(ImapConstants.DONE, null);
+        return getCommandResponses();
+    }
+
     public List<ImapResponse> executeSimpleCommand(String command)
             throws IOException, MessagingException{
         return executeSimpleCommand(command, false);
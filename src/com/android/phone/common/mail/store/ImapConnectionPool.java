@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.phone.common.mail.store;
+
+import android.annotation.Nullable;
+import android.net.Network;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import com.android.phone.vvm.omtp.VvmLog;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Keeps authenticated {@link ImapConnection}s open for a short while after they are released, so
+ * IMAP operations running back to back can reuse them instead of doing the TCP, TLS, CAPABILITY
+ * and LOGIN handshake again. An account keeps up to as many idle connections as it uses
+ * concurrently, e.g. for parallel payload prefetch, and a connection is never shared: it is removed
+ * from the pool while in use.
+ *
+ * <p>A connection is only reused on the same {@link Network} it was opened on, and only by a store
+ * with the password it was logged in with. Accounts are keyed without the password; idle
+ * connections logged in with an old password are closed when the account acquires one. Idle
+ * connections are also closed once their idle timeout expires, or when their network is lost.
+ */
+class ImapConnectionPool {
+
+    private static final String TAG = "ImapConnectionPool";
+
+    private static ImapConnectionPool sInstance;
+
+    /** Idle connections of each account, the most recently released last. */
+    private final Map<String, List<PooledConnection>> mIdleConnections = new ArrayMap<>();
+
+    private Handler mHandler;
+
+    private static class PooledConnection {
+
+        final ImapConnection connection;
+        final Network network;
+        final long releasedTimeMillis;
+        final long idleTimeoutMillis;
+
+        PooledConnection(ImapConnection connection, Network network, long idleTimeoutMillis) {
+            this.connection = connection;
+            this.network = network;
+            this.releasedTimeMillis = SystemClock.elapsedRealtime();
+            this.idleTimeoutMillis = idleTimeoutMillis;
+        }
+
+        boolean isExpired() {
+            return SystemClock.elapsedRealtime() - releasedTimeMillis >= idleTimeoutMillis;
+        }
+    }
+
+    static synchronized ImapConnectionPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new ImapConnectionPool();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Takes the most recently released idle connection of the account out of the pool.
+     *
+     * @return the connection, or {@code null} if there is none usable on {@code network} with
+     * {@code password}. The caller should check the connection is still alive before using it.
+     */
+    @Nullable
+    ImapConnection acquire(String accountKey, Network network, String password) {
+        List<ImapConnection> discarded = new ArrayList<>();
+        PooledConnection usable = null;
+        synchronized (this) {
+            List<PooledConnection> idle = mIdleConnections.get(accountKey);
+            while (idle != null && !idle.isEmpty() && usable == null) {
+                PooledConnection pooled = idle.remove(idle.size() - 1);
+                if (!Objects.equals(pooled.network, network)) {
+                    VvmLog.i(TAG, "Network changed, discarding idle connection");
+                    discarded.add(pooled.connection);
+                } else if (!pooled.connection.hasPassword(password)) {
+                    VvmLog.i(TAG, "Credentials changed, discarding idle connection");
+                    discarded.add(pooled.connection);
+                } else if (pooled.isExpired()) {
+                    discarded.add(pooled.connection);
+                } else {
+                    usable = pooled;
+                }
+            }
+            if (idle != null && idle.isEmpty()) {
+                mIdleConnections.remove(accountKey);
+            }
+        }
+        for (ImapConnection connection : discarded) {
+            closeInBackground(connection);
+        }
+        if (usable == null) {
+            return null;
+        }
+        VvmLog.v(TAG, "Reusing idle connection");
+        return usable.connection;
+    }
+
+    /**
+     * Returns a connection to the pool. If the account already has {@code maxIdleConnections}
+     * idle connections, the oldest one is closed. The connection will be closed if it is not
+     * acquired again within {@code idleTimeoutMillis}.
+     */
+    void release(String accountKey, Network network, final ImapConnection connection,
+            long idleTimeoutMillis, int maxIdleConnections) {
+        if (idleTimeoutMillis <= 0 || !connection.isTransportOpen()) {
+            connection.close();
+            return;
+        }
+        final PooledConnection pooled =
+                new PooledConnection(connection, network, idleTimeoutMillis);
+        PooledConnection evicted = null;
+        synchronized (this) {
+            List<PooledConnection> idle = mIdleConnections.get(accountKey);
+            if (idle == null) {
+                idle = new ArrayList<>(1);
+                mIdleConnections.put(accountKey, idle);
+            }
+            idle.add(pooled);
+            if (idle.size() > Math.max(1, maxIdleConnections)) {
+                evicted = idle.remove(0);
+            }
+        }
+        if (evicted != null && evicted.connection != connection) {
+            closeInBackground(evicted.connection);
+        }
+        final String key = accountKey;
+        getHandler().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ImapConnectionPool.this) {
+                    List<PooledConnection> idle = mIdleConnections.get(key);
+                    if (idle == null || !idle.remove(pooled)) {
+                        // Already acquired or evicted.
+                        return;
+                    }
+                    if (idle.isEmpty()) {
+                        mIdleConnections.remove(key);
+                    }
+                }
+                VvmLog.v(TAG, "Closing idle connection");
+                pooled.connection.close();
+            }
+        }, idleTimeoutMillis);
+    }
+
+    /**
+     * Closes all idle connections opened on {@code network}.
+     */
+    void invalidate(Network network) {
+        List<ImapConnection> invalidated = new ArrayList<>();
+        synchronized (this) {
+            Iterator<List<PooledConnection>> accounts = mIdleConnections.values().iterator();
+            while (accounts.hasNext()) {
+                List<PooledConnection> idle = accounts.next();
+                Iterator<PooledConnection> iterator = idle.iterator();
+                while (iterator.hasNext()) {
+                    PooledConnection pooled = iterator.next();
+                    if (Objects.equals(pooled.network, network)) {
+                        invalidated.add(pooled.connection);
+                        iterator.remove();
+                    }
+                }
+                if (idle.isEmpty()) {
+                    accounts.remove();
+                }
+            }
+        }
+        for (ImapConnection connection : invalidated) {
+            closeInBackground(connection);
+        }
+    }
+
+    /**
+     * Closing sends LOGOUT, which should not block the caller.
+     */
+    private void closeInBackground(final ImapConnection connection) {
+        getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                connection.close();
+            }
+        });
+    }
+
+    private synchronized Handler getHandler() {
+        if (mHandler == null) {
+            HandlerThread thread = new HandlerThread("ImapConnectionPool");
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        }
+        return mHandler;
+    }
+}
@@ -17,6 +17,7 @@ package com.android.phone.common.mail.store;
 
 import android.annotation.Nullable;
 import android.content.Context;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Base64DataException;
 
@@ -40,6 +41,7 @@ import com.android.phone.common.mail.store.imap.ImapConstants;
 import com.android.phone.common.mail.store.imap.ImapElement;
 import com.android.phone.common.mail.store.imap.ImapList;
 import com.android.phone.common.mail.store.imap.ImapResponse;
+import com.android.phone.common.mail.store.imap.ImapResponseParser;
 import com.android.phone.common.mail.store.imap.ImapString;
 import com.android.phone.common.mail.utils.LogUtils;
 import com.android.phone.common.mail.utils.Utility;
@@ -67,6 +69,9 @@ public class ImapFolder {
     private ImapConnection mConnection;
     private String mMode;
     private boolean mExists;
+    private long mUidValidity = -1;
+    private long mUidNext = -1;
+    private long mHighestModSeq = -1;
     /** A set of hashes that can be used to track dirtiness */
     Object mHash[];
 
@@ -85,6 +90,28 @@ public class ImapFolder {
         public void messageRetrieved(Message message);
     }
 
+    /**
+     * Callback for responses pushed by the server during {@link #idle(long, IdleListener)}.
+     */
+    public interface IdleListener {
+        /**
+         * @return {@code true} to keep idling, {@code false} to end IDLE.
+         */
+        public boolean onUntaggedResponse(ImapResponse response);
+
+        /**
+         * Polled periodically while no response is received.
+         *
+         * @return {@code true} if IDLE should be ended.
+         */
+        public boolean isCancelled();
+    }
+
+    /**
+     * How often {@link IdleListener#isCancelled()} is polled while idling.
+     */
+    private static final int IDLE_POLL_INTERVAL_MILLIS = 60 * 1000;
+
     private void destroyResponses() {
         if (mConnection != null) {
             mConnection.destroyResponses();
@@ -153,6 +180,28 @@ public class ImapFolder {
         return mMessageCount;
     }
 
+    /**
+     * @return the UIDVALIDITY of the selected mailbox, or -1 if the server did not report it.
+     */
+    public long getUidValidity() {
+        return mUidValidity;
+    }
+
+    /**
+     * @return the UIDNEXT of the selected mailbox, or -1 if the server did not report it.
+     */
+    public long getUidNext() {
+        return mUidNext;
+    }
+
+    /**
+     * @return the HIGHESTMODSEQ (RFC 7162) of the selected mailbox, or -1 if the server does not
+     * support CONDSTORE or does not track modification sequences for this mailbox.
+     */
+    public long getHighestModSeq() {
+        return mHighestModSeq;
+    }
+
     String[] getSearchUids(List<ImapResponse> responses) {
         // S: * SEARCH 2 3 6
         final ArrayList<String> uids = new ArrayList<String>();
@@ -225,6 +274,25 @@ public class ImapFolder {
         return getMessagesInternal(uids);
     }
 
+    /**
+     * @return the messages with a UID of at least {@code uid}, i.e. the messages added since the
+     * server reported a UIDNEXT of {@code uid}.
+     */
+    public Message[] getMessagesFromUid(long uid) throws MessagingException {
+        final ArrayList<String> uids = new ArrayList<String>();
+        for (String result : searchForUids(ImapConstants.UID + " " + uid + ":*")) {
+            // "UID n:*" always matches the last message, even if its UID is below n.
+            try {
+                if (Long.parseLong(result) >= uid) {
+                    uids.add(result);
+                }
+            } catch (NumberFormatException e) {
+                LogUtils.w(TAG, "Invalid UID %s", result);
+            }
+        }
+        return getMessagesInternal(uids.toArray(Utility.EMPTY_STRINGS));
+    }
+
     public Message[] getMessagesInternal(String[] uids) {
         final ArrayList<Message> messages = new ArrayList<Message>(uids.length);
         for (int i = 0; i < uids.length; i++) {
@@ -237,8 +305,19 @@ public class ImapFolder {
 
     public void fetch(Message[] messages, FetchProfile fp,
             MessageRetrievalListener listener) throws MessagingException {
+        fetch(messages, fp, -1, listener);
+    }
+
+    /**
+     * Same as {@link #fetch(Message[], FetchProfile, MessageRetrievalListener)}, but only returns
+     * the messages whose mod-sequence is greater than {@code changedSince} (RFC 7162 CHANGEDSINCE
+     * modifier). Ignored if {@code changedSince} is negative or the server does not support
+     * CONDSTORE.
+     */
+    public void fetch(Message[] messages, FetchProfile fp, long changedSince,
+            MessageRetrievalListener listener) throws MessagingException {
         try {
-            fetchInternal(messages, fp, listener);
+            fetchInternal(messages, fp, changedSince, listener);
         } catch (RuntimeException e) { // Probably a parser error.
             LogUtils.w(TAG, "Exception detected: " + e.getMessage());
             throw e;
@@ -247,6 +326,11 @@ public class ImapFolder {
 
     public void fetchInternal(Message[] messages, FetchProfile fp,
             MessageRetrievalListener listener) throws MessagingException {
+        fetchInternal(messages, fp, -1, listener);
+    }
+
+    private void fetchInternal(Message[] messages, FetchProfile fp, long changedSince,
+            MessageRetrievalListener listener) throws MessagingException {
         if (messages.length == 0) {
             return;
         }
@@ -302,10 +386,17 @@ public class ImapFolder {
             }
         }
 
+        String modifiers = "";
+        if (changedSince >= 0 && mHighestModSeq >= 0) {
+            modifiers = String.format(Locale.US, " (" + ImapConstants.CHANGEDSINCE + " %d)",
+                    changedSince);
+        }
+
         try {
             mConnection.sendCommand(String.format(Locale.US,
-                    ImapConstants.UID_FETCH + " %s (%s)", ImapStore.joinMessageUids(messages),
-                    Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
+                    ImapConstants.UID_FETCH + " %s (%s)%s", ImapStore.joinMessageUids(messages),
+                    Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' '),
+                    modifiers
             ), false);
             ImapResponse response;
             do {
@@ -371,22 +462,17 @@ public class ImapFolder {
                         // TODO Should we accept "RFC822" as well??
                         ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
                         InputStream bodyStream = body.getAsStream();
-                        message.parse(bodyStream);
+                        try {
+                            message.parse(bodyStream);
+                        } finally {
+                            bodyStream.close();
+                        }
                     }
                     if (fetchPart != null) {
                         InputStream bodyStream =
                                 fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-                        String encodings[] = fetchPart.getHeader(
-                                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
-
-                        String contentTransferEncoding = null;
-                        if (encodings != null && encodings.length > 0) {
-                            contentTransferEncoding = encodings[0];
-                        } else {
-                            // According to http://tools.ietf.org/html/rfc2045#section-6.1
-                            // "7bit" is the default.
-                            contentTransferEncoding = "7bit";
-                        }
+                        String contentTransferEncoding =
+                                getContentTransferEncoding(fetchPart);
 
                         try {
                             // TODO Don't create 2 temp files.
@@ -401,6 +487,8 @@ public class ImapFolder {
                             // do if we don't have a contentTransferEncoding, and we don't have
                             // time to figure out what exceptions might be thrown.
                             LogUtils.e(TAG, "Error fetching body %s", e);
+                        } finally {
+                            bodyStream.close();
                         }
                     }
 
@@ -417,6 +505,85 @@ public class ImapFolder {
         }
     }
 
+    /**
+     * Fetches the content of {@code part} of {@code message} and writes it into {@code out}, with
+     * the content transfer encoding removed. Unlike {@link #fetch}, the content is decoded while it
+     * is read from the connection and is never fully held in memory or in a temp file.
+     *
+     * @param part a part of {@code message} previously retrieved with
+     * {@link FetchProfile.Item#STRUCTURE}.
+     */
+    public void fetchPart(Message message, Part part, final OutputStream out)
+            throws MessagingException {
+        checkOpen();
+        final String[] partIds = part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+        if (partIds == null) {
+            throw new MessagingException("Part " + part + " has not been fetched from the server");
+        }
+        final String contentTransferEncoding = getContentTransferEncoding(part);
+        final boolean[] streamed = new boolean[1];
+        mConnection.setLiteralSink(new ImapResponseParser.LiteralSink() {
+            @Override
+            public void onLiteral(InputStream in) throws IOException {
+                // Only the requested part is sent as a literal.
+                streamed[0] = true;
+                copyDecoded(in, contentTransferEncoding, out);
+            }
+        });
+        try {
+            final List<ImapResponse> responses = mConnection.executeSimpleCommand(
+                    String.format(Locale.US, ImapConstants.UID_FETCH + " %s (%s %s[%s])",
+                            message.getUid(), ImapConstants.UID,
+                            ImapConstants.FETCH_FIELD_BODY_PEEK_BARE, partIds[0]));
+            if (streamed[0]) {
+                return;
+            }
+            // The server is allowed to send a small part as a quoted string instead.
+            for (ImapResponse response : responses) {
+                if (response.isDataResponse(1, ImapConstants.FETCH)) {
+                    InputStream in = response.getListOrEmpty(2)
+                            .getKeyedStringOrEmpty("BODY[", true).getAsStream();
+                    try {
+                        copyDecoded(in, contentTransferEncoding, out);
+                    } finally {
+                        in.close();
+                    }
+                    return;
+                }
+            }
+            throw new MessagingException("Part " + partIds[0] + " of " + message.getUid()
+                    + " not returned by server");
+        } catch (IOException ioe) {
+            mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            if (mConnection != null) {
+                mConnection.setLiteralSink(null);
+            }
+            destroyResponses();
+        }
+    }
+
+    private static String getContentTransferEncoding(Part part) throws MessagingException {
+        String encodings[] = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+        if (encodings != null && encodings.length > 0) {
+            return encodings[0];
+        }
+        // According to http://tools.ietf.org/html/rfc2045#section-6.1
+        // "7bit" is the default.
+        return "7bit";
+    }
+
+    private static void copyDecoded(InputStream in, String contentTransferEncoding,
+            OutputStream out) throws IOException {
+        in = MimeUtility.getInputStreamForContentTransferEncoding(in, contentTransferEncoding);
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int n;
+        while (-1 != (n = in.read(buffer))) {
+            out.write(buffer, 0, n);
+        }
+    }
+
     /**
      * Removes any content transfer encoding from the stream and returns a Body.
      * This code is taken/condensed from MimeUtility.decodeBody
@@ -465,10 +632,13 @@ public class ImapFolder {
     private void handleUntaggedResponse(ImapResponse response) {
         if (response.isDataResponse(1, ImapConstants.EXISTS)) {
             mMessageCount = response.getStringOrEmpty(0).getNumberOrZero();
+        } else if (response.isDataResponse(1, ImapConstants.EXPUNGE) && mMessageCount > 0) {
+            mMessageCount--;
         }
     }
 
-    private static void parseBodyStructure(ImapList bs, Part part, String id)
+    @VisibleForTesting
+    static void parseBodyStructure(ImapList bs, Part part, String id)
             throws MessagingException {
         if (bs.getElementOrNone(0).isList()) {
             /*
@@ -697,11 +867,20 @@ public class ImapFolder {
      * must be selected.
      */
     private void doSelect() throws IOException, MessagingException {
-        final List<ImapResponse> responses = mConnection.executeSimpleCommand(
-                String.format(Locale.US, ImapConstants.SELECT + " \"%s\"", mName));
+        // Capabilities are only known once the connection is open.
+        mConnection.open();
+        String command = String.format(Locale.US, ImapConstants.SELECT + " \"%s\"", mName);
+        if (mConnection.hasCapability(ImapConstants.CAPABILITY_CONDSTORE)) {
+            // Enable CONDSTORE so the server reports HIGHESTMODSEQ (RFC 7162 3.1.8)
+            command += " (" + ImapConstants.CAPABILITY_CONDSTORE + ")";
+        }
+        final List<ImapResponse> responses = mConnection.executeSimpleCommand(command);
 
         // Assume the folder is opened read-write; unless we are notified otherwise
         mMode = MODE_READ_WRITE;
+        mUidValidity = -1;
+        mUidNext = -1;
+        mHighestModSeq = -1;
         int messageCount = -1;
         for (ImapResponse response : responses) {
             if (response.isDataResponse(1, ImapConstants.EXISTS)) {
@@ -712,6 +891,14 @@ public class ImapFolder {
                     mMode = MODE_READ_ONLY;
                 } else if (responseCode.is(ImapConstants.READ_WRITE)) {
                     mMode = MODE_READ_WRITE;
+                } else if (responseCode.is(ImapConstants.UIDVALIDITY)) {
+                    mUidValidity = response.getListOrEmpty(1).getStringOrEmpty(1).getLong(-1);
+                } else if (responseCode.is(ImapConstants.UIDNEXT)) {
+                    mUidNext = response.getListOrEmpty(1).getStringOrEmpty(1).getLong(-1);
+                } else if (responseCode.is(ImapConstants.HIGHESTMODSEQ)) {
+                    mHighestModSeq = response.getListOrEmpty(1).getStringOrEmpty(1).getLong(-1);
+                } else if (responseCode.is(ImapConstants.NOMODSEQ)) {
+                    mHighestModSeq = -1;
                 }
             } else if (response.isTagged()) { // Not OK
                 mStore.getImapHelper().handleEvent(OmtpEvents.DATA_MAILBOX_OPEN_FAILED);
@@ -765,6 +952,58 @@ public class ImapFolder {
         return null;
     }
 
+    /**
+     * @return whether the server supports IDLE (RFC 2177). The folder must be open.
+     */
+    public boolean supportsIdle() {
+        return mConnection != null && mConnection.hasCapability(ImapConstants.CAPABILITY_IDLE);
+    }
+
+    /**
+     * Waits in IDLE (RFC 2177) for the server to push changes of this folder. Returns when {@code
+     * listener} ends it, it is cancelled, or {@code durationMillis} has passed. The server may drop
+     * an idling client after 30 minutes of inactivity, so this should be called again with a
+     * shorter duration to keep listening.
+     */
+    public void idle(long durationMillis, IdleListener listener) throws MessagingException {
+        checkOpen();
+        try {
+            mConnection.startIdle();
+            final long deadline = SystemClock.elapsedRealtime() + durationMillis;
+            boolean idling = true;
+            while (idling && !listener.isCancelled()) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    break;
+                }
+                ImapResponse response = mConnection.readIdleResponse(
+                        (int) Math.min(remaining, IDLE_POLL_INTERVAL_MILLIS));
+                if (response == null) {
+                    continue;
+                }
+                if (response.isTagged()) {
+                    // The server ended IDLE by itself, DONE should not be sent.
+                    LogUtils.w(TAG, "IDLE terminated by server: %s", response);
+                    return;
+                }
+                handleUntaggedResponse(response);
+                idling = listener.onUntaggedResponse(response);
+                destroyResponses();
+            }
+            for (ImapResponse response : mConnection.stopIdle()) {
+                if (!response.isTagged()) {
+                    handleUntaggedResponse(response);
+                    listener.onUntaggedResponse(response);
+                }
+            }
+        } catch (IOException ioe) {
+            mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
     private void checkOpen() throws MessagingException {
         if (!isOpen()) {
             throw new MessagingException("Folder " + mName + " is not open.");
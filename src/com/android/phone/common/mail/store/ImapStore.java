@@ -22,7 +22,9 @@ import android.net.Network;
 import com.android.phone.common.mail.MailTransport;
 import com.android.phone.common.mail.Message;
 import com.android.phone.common.mail.MessagingException;
+import com.android.phone.common.mail.NioMailTransport;
 import com.android.phone.common.mail.internet.MimeMessage;
+import com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper;
 import com.android.phone.vvm.omtp.imap.ImapHelper;
 
 import java.io.IOException;
@@ -39,6 +41,12 @@ public class ImapStore {
     private final String mUsername;
     private final String mPassword;
     private final MailTransport mTransport;
+    private final Network mNetwork;
+    /**
+     * Identifies the account in {@link ImapConnectionPool}. The password is checked separately
+     * when a pooled connection is acquired, so it is kept out of the key.
+     */
+    private final String mPoolKey;
     private ImapConnection mConnection;
 
     public static final int FLAG_NONE         = 0x00;    // No flags
@@ -57,8 +65,15 @@ public class ImapStore {
         mHelper = helper;
         mUsername = username;
         mPassword = password;
-        mTransport = new MailTransport(context, this.getImapHelper(),
-                network, serverName, port, flags);
+        if (helper.getConfig().isNioTransportEnabled()) {
+            mTransport = new NioMailTransport(context, this.getImapHelper(),
+                    network, serverName, port, flags);
+        } else {
+            mTransport = new MailTransport(context, this.getImapHelper(),
+                    network, serverName, port, flags);
+        }
+        mNetwork = network;
+        mPoolKey = username + "@" + serverName + ":" + port + "/" + flags;
     }
 
     public Context getContext() {
@@ -160,17 +175,41 @@ public class ImapStore {
         }
     }
 
+    /**
+     * Releases the connection. It is kept open in the {@link ImapConnectionPool} for the idle
+     * timeout of the carrier, so the next operation on the same account and network can reuse it.
+     * The account keeps one idle connection per prefetch thread.
+     */
     public void closeConnection() {
         if (mConnection != null) {
-            mConnection.close();
+            OmtpVvmCarrierConfigHelper config = mHelper.getConfig();
+            ImapConnectionPool.getInstance().release(mPoolKey, mNetwork, mConnection,
+                    config.getImapConnectionIdleTimeoutMillis(), config.getPrefetchThreads());
             mConnection = null;
         }
     }
 
     public ImapConnection getConnection() {
         if (mConnection == null) {
+            ImapConnection connection =
+                    ImapConnectionPool.getInstance().acquire(mPoolKey, mNetwork, mPassword);
+            if (connection != null) {
+                connection.setStore(this);
+                if (connection.isAlive()) {
+                    mConnection = connection;
+                    return mConnection;
+                }
+                connection.close();
+            }
             mConnection = new ImapConnection(this);
         }
         return mConnection;
     }
+
+    /**
+     * Closes all idle connections opened on {@code network}, which has been lost.
+     */
+    public static void invalidateConnections(Network network) {
+        ImapConnectionPool.getInstance().invalidate(network);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.common.mail.store;
+
+import android.annotation.Nullable;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.phone.common.mail.Body;
+import com.android.phone.common.mail.Message;
+import com.android.phone.common.mail.MessagingException;
+import com.android.phone.common.mail.Part;
+import com.android.phone.common.mail.internet.MimeBodyPart;
+import com.android.phone.common.mail.internet.MimeHeader;
+import com.android.phone.common.mail.internet.MimeMultipart;
+import com.android.phone.common.mail.internet.MimeUtility;
+import com.android.phone.common.mail.store.ImapStore.ImapMessage;
+import com.android.phone.vvm.omtp.VvmLog;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent cache of the envelope and BODYSTRUCTURE of messages, keyed by (UIDVALIDITY, UID).
+ * A message with a given UID never changes while the UIDVALIDITY of the mailbox stays the same,
+ * so its structure only needs to be fetched and parsed once. Flags are mutable and are not
+ * cached.
+ *
+ * <p>Each message is kept in memory and on disk in a compact binary form, which is decoded into a
+ * new {@link Message} by {@link #get(long, String, ImapFolder)}. Everything is dropped when the
+ * UIDVALIDITY changes, and {@link #retainAll(long, Collection)} drops messages which are no longer
+ * on the server.
+ */
+public class ImapStructureCache {
+
+    private static final String TAG = "ImapStructureCache";
+
+    private static final int VERSION = 1;
+
+    private static final byte KIND_LEAF = 0;
+    private static final byte KIND_MULTIPART = 1;
+
+    /**
+     * The headers set by {@link ImapFolder#fetch} for the envelope and structure.
+     */
+    private static final String[] HEADER_NAMES = {
+            "Date", "Subject", "From", "To", "Cc", "Message-ID",
+            MimeHeader.HEADER_CONTENT_TYPE,
+            MimeHeader.HEADER_CONTENT_DISPOSITION,
+            MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING,
+            MimeHeader.HEADER_CONTENT_ID,
+            MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA
+    };
+
+    private static final Map<String, ImapStructureCache> sInstances = new ArrayMap<>();
+
+    private final AtomicFile mFile;
+    /** Identifies the mailbox, so a file of another mailbox is never used. */
+    private final String mMailboxKey;
+
+    private boolean mLoaded;
+    private boolean mDirty;
+    private long mUidValidity = -1;
+    /** The encoded messages, keyed by UID. */
+    private final Map<String, byte[]> mEntries = new HashMap<>();
+
+    /**
+     * @return the cache stored in {@code file}, shared by all users of the file.
+     */
+    public static synchronized ImapStructureCache get(File file, String mailboxKey) {
+        String path = file.getAbsolutePath();
+        ImapStructureCache cache = sInstances.get(path);
+        if (cache == null || !cache.mMailboxKey.equals(mailboxKey)) {
+            cache = new ImapStructureCache(file, mailboxKey);
+            sInstances.put(path, cache);
+        }
+        return cache;
+    }
+
+    @VisibleForTesting
+    ImapStructureCache(File file, String mailboxKey) {
+        mFile = new AtomicFile(file);
+        mMailboxKey = mailboxKey;
+    }
+
+    /**
+     * @return the message with {@code uid} with its envelope and structure, or {@code null} if it
+     * is not cached. Flags are not set.
+     */
+    @Nullable
+    public synchronized Message get(long uidValidity, String uid, ImapFolder folder) {
+        if (uidValidity == -1) {
+            return null;
+        }
+        load();
+        if (uidValidity != mUidValidity) {
+            return null;
+        }
+        byte[] entry = mEntries.get(uid);
+        if (entry == null) {
+            return null;
+        }
+        ImapMessage message = new ImapMessage(uid, folder);
+        try {
+            decodeMessage(entry, message);
+            return message;
+        } catch (IOException | MessagingException e) {
+            VvmLog.w(TAG, "Discarding unreadable entry", e);
+            mEntries.remove(uid);
+            mDirty = true;
+            return null;
+        }
+    }
+
+    /**
+     * Stores the envelope and structure of {@code message}, fetched with UIDVALIDITY {@code
+     * uidValidity}.
+     */
+    public synchronized void put(long uidValidity, Message message) {
+        if (uidValidity == -1) {
+            return;
+        }
+        load();
+        if (uidValidity != mUidValidity) {
+            mEntries.clear();
+            mUidValidity = uidValidity;
+        }
+        try {
+            mEntries.put(message.getUid(), encodeMessage(message));
+            mDirty = true;
+        } catch (IOException | MessagingException e) {
+            VvmLog.w(TAG, "Unable to cache message", e);
+        }
+    }
+
+    /**
+     * Drops the messages which are not in {@code uids}, the UIDs of all the messages currently on
+     * the server.
+     */
+    public synchronized void retainAll(long uidValidity, Collection<String> uids) {
+        if (uidValidity == -1) {
+            return;
+        }
+        load();
+        if (uidValidity != mUidValidity) {
+            if (!mEntries.isEmpty()) {
+                mEntries.clear();
+                mDirty = true;
+            }
+            return;
+        }
+        Set<String> retained = new HashSet<>(uids);
+        Iterator<String> iterator = mEntries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (!retained.contains(iterator.next())) {
+                iterator.remove();
+                mDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the changes to disk.
+     */
+    public synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        FileOutputStream fileOut = null;
+        try {
+            fileOut = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.writeInt(VERSION);
+            out.writeUTF(mMailboxKey);
+            out.writeLong(mUidValidity);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, byte[]> entry : mEntries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.flush();
+            mFile.finishWrite(fileOut);
+            mDirty = false;
+        } catch (IOException e) {
+            VvmLog.w(TAG, "Unable to save structure cache", e);
+            mFile.failWrite(fileOut);
+        }
+    }
+
+    @VisibleForTesting
+    synchronized int size() {
+        load();
+        return mEntries.size();
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION || !mMailboxKey.equals(in.readUTF())) {
+                return;
+            }
+            long uidValidity = in.readLong();
+            int count = in.readInt();
+            Map<String, byte[]> entries = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String uid = in.readUTF();
+                byte[] entry = new byte[in.readInt()];
+                in.readFully(entry);
+                entries.put(uid, entry);
+            }
+            mUidValidity = uidValidity;
+            mEntries.putAll(entries);
+        } catch (FileNotFoundException e) {
+            // Nothing cached yet.
+        } catch (IOException e) {
+            VvmLog.w(TAG, "Discarding unreadable structure cache", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static byte[] encodeMessage(Message message) throws IOException, MessagingException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Date internalDate = message.getInternalDate();
+        out.writeLong(internalDate != null ? internalDate.getTime() : -1);
+        writePart(out, message);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @VisibleForTesting
+    static void decodeMessage(byte[] entry, ImapMessage message)
+            throws IOException, MessagingException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+        long internalDate = in.readLong();
+        if (internalDate != -1) {
+            message.setInternalDate(new Date(internalDate));
+        }
+        readPart(in, message);
+    }
+
+    private static void writePart(DataOutputStream out, Part part)
+            throws IOException, MessagingException {
+        int count = 0;
+        for (String name : HEADER_NAMES) {
+            String[] values = part.getHeader(name);
+            count += values != null ? values.length : 0;
+        }
+        out.writeShort(count);
+        for (String name : HEADER_NAMES) {
+            String[] values = part.getHeader(name);
+            if (values != null) {
+                for (String value : values) {
+                    out.writeUTF(name);
+                    out.writeUTF(value);
+                }
+            }
+        }
+        out.writeInt(part.getSize());
+
+        Body body = part.getBody();
+        if (body instanceof MimeMultipart) {
+            MimeMultipart multipart = (MimeMultipart) body;
+            out.writeByte(KIND_MULTIPART);
+            String mimeType = MimeUtility.getHeaderParameter(multipart.getContentType(), null);
+            out.writeUTF(mimeType.substring(mimeType.indexOf('/') + 1));
+            out.writeShort(multipart.getCount());
+            for (int i = 0; i < multipart.getCount(); i++) {
+                writePart(out, multipart.getBodyPart(i));
+            }
+        } else {
+            out.writeByte(KIND_LEAF);
+        }
+    }
+
+    private static void readPart(DataInputStream in, Part part)
+            throws IOException, MessagingException {
+        int count = in.readShort();
+        for (int i = 0; i < count; i++) {
+            part.addHeader(in.readUTF(), in.readUTF());
+        }
+        int size = in.readInt();
+        if (part instanceof ImapMessage) {
+            ((ImapMessage) part).setSize(size);
+        } else {
+            ((MimeBodyPart) part).setSize(size);
+        }
+
+        if (in.readByte() == KIND_MULTIPART) {
+            MimeMultipart multipart = new MimeMultipart();
+            multipart.setSubType(in.readUTF());
+            int partCount = in.readShort();
+            for (int i = 0; i < partCount; i++) {
+                MimeBodyPart bodyPart = new MimeBodyPart();
+                readPart(in, bodyPart);
+                multipart.addBodyPart(bodyPart);
+            }
+            part.setBody(multipart);
+        }
+    }
+}
@@ -40,12 +40,14 @@ public final class ImapConstants {
     public static final String BODYSTRUCTURE = "BODYSTRUCTURE";
     public static final String BYE = "BYE";
     public static final String CAPABILITY = "CAPABILITY";
+    public static final String CHANGEDSINCE = "CHANGEDSINCE";
     public static final String CHECK = "CHECK";
     public static final String CLOSE = "CLOSE";
     public static final String COPY = "COPY";
     public static final String COPYUID = "COPYUID";
     public static final String CREATE = "CREATE";
     public static final String DELETE = "DELETE";
+    public static final String DONE = "DONE";
     public static final String EXAMINE = "EXAMINE";
     public static final String EXISTS = "EXISTS";
     public static final String EXPUNGE = "EXPUNGE";
@@ -57,7 +59,9 @@ public final class ImapConstants {
     public static final String FLAG_SEEN = "\\SEEN";
     public static final String FLAGS = "FLAGS";
     public static final String FLAGS_SILENT = "FLAGS.SILENT";
+    public static final String HIGHESTMODSEQ = "HIGHESTMODSEQ";
     public static final String ID = "ID";
+    public static final String IDLE = "IDLE";
     public static final String INBOX = "INBOX";
     public static final String INTERNALDATE = "INTERNALDATE";
     public static final String LIST = "LIST";
@@ -66,6 +70,7 @@ public final class ImapConstants {
     public static final String LSUB = "LSUB";
     public static final String NAMESPACE = "NAMESPACE";
     public static final String NO = "NO";
+    public static final String NOMODSEQ = "NOMODSEQ";
     public static final String NOOP = "NOOP";
     public static final String OK = "OK";
     public static final String PARSE = "PARSE";
@@ -136,6 +141,8 @@ public final class ImapConstants {
      */
     public static final String CAPABILITY_AUTH_DIGEST_MD5 = "AUTH=DIGEST-MD5";
     public static final String CAPABILITY_STARTTLS = "STARTTLS";
+    public static final String CAPABILITY_CONDSTORE = "CONDSTORE";
+    public static final String CAPABILITY_IDLE = "IDLE";
 
     /**
      * authentication
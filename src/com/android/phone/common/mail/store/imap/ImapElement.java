@@ -37,9 +37,7 @@ package com.android.phone.common.mail.store.imap;
  *       |
  *       |-- ImapSimpleString
  *       |
- *       |-- ImapMemoryLiteral
- *       |
- *       --- ImapTempFileLiteral
+ *       --- ImapStoredLiteral
  * </pre>
  */
 public abstract class ImapElement {
@@ -83,7 +81,7 @@ public abstract class ImapElement {
 
     /**
      * Clean up the resources used by the instance.
-     * It's for removing a temp file used by {@link ImapTempFileLiteral}.
+     * It's for releasing the storage used by {@link ImapStoredLiteral}.
      */
     public void destroy() {
         mDestroyed = true;
@@ -0,0 +1,378 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.common.mail.store.imap;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.phone.common.mail.FixedLengthInputStream;
+import com.android.phone.common.mail.TempDirectory;
+import com.android.phone.vvm.omtp.VvmLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Storage of the literals of all IMAP connections.
+ *
+ * <p>Literals are kept in memory as long as they fit in a memory budget shared by all
+ * connections. Larger literals, or literals arriving when the budget is used up, are appended to a
+ * single spill file. Each literal is a ref-counted {@link Region}, freed as soon as the last
+ * reference is released instead of relying on finalizers. The spill file shrinks whenever the
+ * regions at its end are freed, and is emptied once no region is left.
+ */
+public class ImapLiteralStore {
+
+    private static final String TAG = "ImapLiteralStore";
+
+    /**
+     * The memory all in memory literals of all connections may use together.
+     */
+    private static final long MEMORY_BUDGET_BYTES = 4 * 1024 * 1024;
+
+    private static final String SPILL_FILE_NAME = "imap_literals.tmp";
+
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    private static ImapLiteralStore sInstance;
+
+    private final long mMemoryBudget;
+    private final File mDirectory;
+
+    private long mMemoryUsed;
+
+    private FileChannel mSpillChannel;
+    /** Spilled regions which are not freed yet, in file order. */
+    private final ArrayDeque<Region> mSpilledRegions = new ArrayDeque<>();
+    /** End of the last spilled region, where the next one is appended. */
+    private long mSpillEnd;
+
+    /**
+     * A stored literal. It starts with one reference, owned by whoever stored it.
+     */
+    public class Region {
+
+        private int mLength;
+        /** The content of an in memory region, {@code null} if spilled. */
+        private byte[] mData;
+        /** The offset of a spilled region in the spill file. */
+        private final long mOffset;
+        private int mRefCount = 1;
+        private boolean mFreed;
+
+        private Region(byte[] data) {
+            mLength = data.length;
+            mData = data;
+            mOffset = -1;
+        }
+
+        private Region(long offset, int length) {
+            mLength = length;
+            mOffset = offset;
+        }
+
+        public int getLength() {
+            return mLength;
+        }
+
+        public boolean isSpilled() {
+            return mOffset >= 0;
+        }
+
+        /**
+         * Adds a reference, which must be released with {@link #release()}.
+         */
+        public void retain() {
+            synchronized (ImapLiteralStore.this) {
+                if (mFreed) {
+                    throw new IllegalStateException("Region already freed");
+                }
+                mRefCount++;
+            }
+        }
+
+        /**
+         * Releases a reference. The region is freed when the last reference is released.
+         */
+        public void release() {
+            synchronized (ImapLiteralStore.this) {
+                if (mFreed) {
+                    return;
+                }
+                if (--mRefCount == 0) {
+                    free(this);
+                }
+            }
+        }
+
+        /**
+         * @return a stream of the content, which holds a reference to the region until it is
+         * closed or fully read.
+         */
+        public InputStream openStream() {
+            retain();
+            return new RegionInputStream(this);
+        }
+
+        private int read(long position, byte[] buffer, int offset, int length)
+                throws IOException {
+            if (mData != null) {
+                System.arraycopy(mData, (int) position, buffer, offset, length);
+                return length;
+            }
+            return readSpilled(mOffset + position, buffer, offset, length);
+        }
+    }
+
+    private static class RegionInputStream extends InputStream {
+
+        private Region mRegion;
+        private int mPosition;
+
+        RegionInputStream(Region region) {
+            mRegion = region;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (mRegion == null) {
+                return -1;
+            }
+            int count = Math.min(length, mRegion.getLength() - mPosition);
+            if (count <= 0) {
+                if (length > 0) {
+                    close();
+                    return -1;
+                }
+                return 0;
+            }
+            count = mRegion.read(mPosition, b, offset, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            if (mRegion == null || n <= 0) {
+                return 0;
+            }
+            int count = (int) Math.min(n, mRegion.getLength() - mPosition);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mRegion == null ? 0 : mRegion.getLength() - mPosition;
+        }
+
+        @Override
+        public void close() {
+            if (mRegion != null) {
+                mRegion.release();
+                mRegion = null;
+            }
+        }
+    }
+
+    public static synchronized ImapLiteralStore getInstance() {
+        if (sInstance == null) {
+            sInstance = new ImapLiteralStore(null, MEMORY_BUDGET_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param directory where the spill file is created, {@code null} for the {@link
+     * TempDirectory}
+     */
+    @VisibleForTesting
+    ImapLiteralStore(File directory, long memoryBudget) {
+        mDirectory = directory;
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * Reads a literal from {@code in}.
+     *
+     * @param keepInMemoryThreshold literals larger than this are always spilled to disk
+     */
+    public Region store(FixedLengthInputStream in, int keepInMemoryThreshold)
+            throws IOException {
+        int length = in.getLength();
+        if (length <= keepInMemoryThreshold && reserveMemory(length)) {
+            byte[] data = new byte[length];
+            int count;
+            try {
+                count = readFully(in, data, 0, length);
+            } catch (IOException | RuntimeException e) {
+                // e.g. the connection dropped in the middle of the literal.
+                synchronized (this) {
+                    mMemoryUsed -= length;
+                }
+                throw e;
+            }
+            if (count != length) {
+                VvmLog.w(TAG, "length mismatch");
+                synchronized (this) {
+                    mMemoryUsed -= length - count;
+                }
+                byte[] truncated = new byte[count];
+                System.arraycopy(data, 0, truncated, 0, count);
+                data = truncated;
+            }
+            return new Region(data);
+        }
+        return spill(in, length);
+    }
+
+    @VisibleForTesting
+    synchronized long getMemoryUsed() {
+        return mMemoryUsed;
+    }
+
+    @VisibleForTesting
+    synchronized long getSpillFileLength() throws IOException {
+        return mSpillChannel == null ? 0 : mSpillChannel.size();
+    }
+
+    private synchronized boolean reserveMemory(int length) {
+        if (mMemoryUsed + length > mMemoryBudget) {
+            return false;
+        }
+        mMemoryUsed += length;
+        return true;
+    }
+
+    private Region spill(InputStream in, int length) throws IOException {
+        // The space is reserved first so the copy, which reads from the network, does not block
+        // the other connections.
+        Region region;
+        FileChannel channel;
+        synchronized (this) {
+            channel = getSpillChannel();
+            region = new Region(mSpillEnd, length);
+            mSpilledRegions.addLast(region);
+            mSpillEnd += length;
+        }
+        boolean success = false;
+        try {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long position = region.mOffset;
+            int remaining = length;
+            while (remaining > 0) {
+                int count = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                if (count < 0) {
+                    VvmLog.w(TAG, "length mismatch");
+                    break;
+                }
+                ByteBuffer source = ByteBuffer.wrap(buffer, 0, count);
+                while (source.hasRemaining()) {
+                    position += channel.write(source, position);
+                }
+                remaining -= count;
+            }
+            // The reserved space of a short literal is given back with the region.
+            region.mLength = length - remaining;
+            success = true;
+            return region;
+        } finally {
+            if (!success) {
+                region.release();
+            }
+        }
+    }
+
+    private int readSpilled(long position, byte[] buffer, int offset, int length)
+            throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            channel = mSpillChannel;
+        }
+        ByteBuffer destination = ByteBuffer.wrap(buffer, offset, length);
+        while (destination.hasRemaining()) {
+            int count = channel.read(destination, position + destination.position() - offset);
+            if (count < 0) {
+                // Beyond the end of a file truncated by a failed write.
+                while (destination.hasRemaining()) {
+                    destination.put((byte) 0);
+                }
+            }
+        }
+        return length;
+    }
+
+    private void free(Region region) {
+        region.mFreed = true;
+        if (!region.isSpilled()) {
+            mMemoryUsed -= region.mLength;
+            region.mData = null;
+            return;
+        }
+        // Give back the space after the last region still in use.
+        mSpilledRegions.remove(region);
+        long end;
+        if (mSpilledRegions.isEmpty()) {
+            end = 0;
+        } else {
+            Region last = mSpilledRegions.peekLast();
+            end = last.mOffset + last.mLength;
+        }
+        if (end < mSpillEnd) {
+            mSpillEnd = end;
+            try {
+                mSpillChannel.truncate(end);
+            } catch (IOException e) {
+                VvmLog.w(TAG, "Failed to truncate spill file", e);
+            }
+        }
+    }
+
+    private FileChannel getSpillChannel() throws IOException {
+        if (mSpillChannel == null) {
+            File directory = mDirectory != null ? mDirectory : TempDirectory.getTempDirectory();
+            RandomAccessFile file = new RandomAccessFile(new File(directory, SPILL_FILE_NAME),
+                    "rw");
+            mSpillChannel = file.getChannel();
+            // Left over by a previous process.
+            mSpillChannel.truncate(0);
+            mSpillEnd = 0;
+        }
+        return mSpillChannel;
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int offset, int length)
+            throws IOException {
+        int pos = 0;
+        while (pos < length) {
+            int read = in.read(buffer, offset + pos, length - pos);
+            if (read < 0) {
+                break;
+            }
+            pos += read;
+        }
+        return pos;
+    }
+}
@@ -21,34 +21,94 @@ import android.util.Log;
 
 import com.android.phone.common.mail.FixedLengthInputStream;
 import com.android.phone.common.mail.MessagingException;
-import com.android.phone.common.mail.PeekableInputStream;
 import com.android.phone.vvm.omtp.VvmLog;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 /**
  * IMAP response parser.
+ *
+ * <p>The stream is read in bulk into a byte window, which tokens are scanned from directly.
+ * Strings are decoded once from the window, and well-known atoms map to shared constants, so
+ * parsing a response only allocates the response elements themselves.
  */
 public class ImapResponseParser {
     private static final String TAG = "ImapResponseParser";
 
     /**
-     * Literal larger than this will be stored in temp file.
+     * Literal larger than this will be stored in the spill file of the {@link ImapLiteralStore}.
      */
     public static final int LITERAL_KEEP_IN_MEMORY_THRESHOLD = 2 * 1024 * 1024;
 
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+    /**
+     * Atoms and quoted strings that appear in almost every response, indexed by length. A token
+     * matching one of them exactly is returned as the constant instead of a new String.
+     */
+    private static final String[][] INTERNED_STRINGS = buildInternedStrings(
+            ImapConstants.OK, ImapConstants.NO, ImapConstants.BAD, ImapConstants.BYE,
+            ImapConstants.FETCH, ImapConstants.UID, ImapConstants.FLAGS,
+            ImapConstants.BODYSTRUCTURE, ImapConstants.BODY, "ENVELOPE",
+            ImapConstants.INTERNALDATE, ImapConstants.RFC822_SIZE, ImapConstants.EXISTS,
+            ImapConstants.EXPUNGE, ImapConstants.SEARCH, ImapConstants.CAPABILITY,
+            ImapConstants.UIDVALIDITY, ImapConstants.UIDNEXT, ImapConstants.HIGHESTMODSEQ,
+            ImapConstants.PERMANENTFLAGS, ImapConstants.READ_WRITE, ImapConstants.READ_ONLY,
+            ImapConstants.QUOTA, ImapConstants.TEXT, "RECENT", "MODSEQ",
+            "\\Seen", "\\Deleted", "\\Flagged", "\\Answered", "\\Recent", "\\Draft",
+            "AUDIO", "PLAIN", "MIXED", "MULTIPART", "CHARSET", "NAME", "BOUNDARY", "BASE64",
+            "7BIT", "8BIT", "QUOTED-PRINTABLE", "US-ASCII", "UTF-8", "attachment", "inline");
+
     /** Input stream */
-    private final PeekableInputStream mIn;
+    private final InputStream mIn;
 
-    private final int mLiteralKeepInMemoryThreshold;
+    /**
+     * Bytes read from {@link #mIn} but not parsed yet are {@code mBuffer[mPos, mLimit)}.
+     */
+    private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int mPos;
+    private int mLimit;
+
+    /**
+     * Reads the buffered bytes first, then {@link #mIn} directly. Literals are read through it so
+     * large literals don't go through the window.
+     */
+    private final InputStream mLiteralSource = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            if (mPos < mLimit) {
+                return mBuffer[mPos++] & 0xff;
+            }
+            return mIn.read();
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (mPos < mLimit) {
+                int count = Math.min(length, mLimit - mPos);
+                System.arraycopy(mBuffer, mPos, b, offset, count);
+                mPos += count;
+                return count;
+            }
+            return mIn.read(b, offset, length);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (mLimit - mPos) + mIn.available();
+        }
+    };
 
-    /** StringBuilder used by readUntil() */
-    private final StringBuilder mBufferReadUntil = new StringBuilder();
+    private final int mLiteralKeepInMemoryThreshold;
 
-    /** StringBuilder used by parseBareString() */
-    private final StringBuilder mParseBareString = new StringBuilder();
+    private final ImapLiteralStore mLiteralStore;
 
     /**
      * We store all {@link ImapResponse} in it.  {@link #destroyResponses()} must be called from
@@ -56,6 +116,23 @@ public class ImapResponseParser {
      */
     private final ArrayList<ImapResponse> mResponsesToDestroy = new ArrayList<ImapResponse>();
 
+    /**
+     * Set by {@link #setLiteralSink(LiteralSink)} to stream literals instead of storing them.
+     */
+    private LiteralSink mLiteralSink;
+
+    /**
+     * Consumer of literals, used to stream large literals straight from the connection instead of
+     * keeping them in memory or in a temp file.
+     */
+    public interface LiteralSink {
+        /**
+         * Called with the content of a literal as it is being read from the connection. The
+         * stream does not need to be fully consumed, the rest of the literal will be skipped.
+         */
+        void onLiteral(InputStream in) throws IOException;
+    }
+
     /**
      * Exception thrown when we receive BYE.  It derives from IOException, so it'll be treated
      * in the same way EOF does.
@@ -78,8 +155,36 @@ public class ImapResponseParser {
      * Constructor for testing to override the literal size threshold.
      */
     /* package for test */ ImapResponseParser(InputStream in, int literalKeepInMemoryThreshold) {
-        mIn = new PeekableInputStream(in);
+        this(in, literalKeepInMemoryThreshold, ImapLiteralStore.getInstance());
+    }
+
+    /**
+     * Constructor for testing to override the literal size threshold and storage.
+     */
+    /* package for test */ ImapResponseParser(InputStream in, int literalKeepInMemoryThreshold,
+            ImapLiteralStore literalStore) {
+        mIn = in;
         mLiteralKeepInMemoryThreshold = literalKeepInMemoryThreshold;
+        mLiteralStore = literalStore;
+    }
+
+    private static String[][] buildInternedStrings(String... strings) {
+        int maxLength = 0;
+        for (String string : strings) {
+            maxLength = Math.max(maxLength, string.length());
+        }
+        ArrayList<ArrayList<String>> byLength = new ArrayList<ArrayList<String>>();
+        for (int i = 0; i <= maxLength; i++) {
+            byLength.add(new ArrayList<String>());
+        }
+        for (String string : strings) {
+            byLength.get(string.length()).add(string);
+        }
+        String[][] result = new String[maxLength + 1][];
+        for (int i = 0; i <= maxLength; i++) {
+            result[i] = byLength.get(i).toArray(new String[byLength.get(i).size()]);
+        }
+        return result;
     }
 
     private static IOException newEOSException() {
@@ -95,25 +200,107 @@ public class ImapResponseParser {
      * we shouldn't see EOF during parsing.
      */
     private int peek() throws IOException {
-        final int next = mIn.peek();
-        if (next == -1) {
+        if (mPos == mLimit && !fill(1)) {
             throw newEOSException();
         }
-        return next;
+        return mBuffer[mPos] & 0xff;
     }
 
     /**
-     * Read and return one byte from {@link #mIn}, and put it in {@link #mDiscourseLogger}.
+     * Read and return one byte from the window.
      *
      * Throws IOException() if reaches EOF.  As long as logical response lines end with \r\n,
      * we shouldn't see EOF during parsing.
      */
     private int readByte() throws IOException {
-        int next = mIn.read();
-        if (next == -1) {
+        final int next = peek();
+        mPos++;
+        return next;
+    }
+
+    /**
+     * Reads from {@link #mIn} until at least {@code count} bytes are in the window, compacting or
+     * growing it as needed. The window is left untouched if the read throws, e.g. on a socket
+     * timeout.
+     *
+     * @return {@code false} if the end of stream is reached first.
+     */
+    private boolean fill(int count) throws IOException {
+        while (mLimit - mPos < count) {
+            if (mBuffer.length - mPos < count) {
+                if (mBuffer.length < count) {
+                    byte[] buffer = new byte[Math.max(count, mBuffer.length * 2)];
+                    System.arraycopy(mBuffer, mPos, buffer, 0, mLimit - mPos);
+                    mBuffer = buffer;
+                } else {
+                    System.arraycopy(mBuffer, mPos, mBuffer, 0, mLimit - mPos);
+                }
+                mLimit -= mPos;
+                mPos = 0;
+            }
+            final int read = mIn.read(mBuffer, mLimit, mBuffer.length - mLimit);
+            if (read == -1) {
+                return false;
+            }
+            mLimit += read;
+        }
+        return true;
+    }
+
+    /**
+     * @return the byte {@code offset} bytes after the current position, reading more if needed.
+     */
+    private int peekAt(int offset) throws IOException {
+        if (mPos + offset >= mLimit && !fill(offset + 1)) {
             throw newEOSException();
         }
-        return next;
+        return mBuffer[mPos + offset] & 0xff;
+    }
+
+    /**
+     * Consumes {@code length} bytes of the window and returns them as a string. Bytes are mapped
+     * to chars one to one, like ISO-8859-1.
+     */
+    private String takeString(int length) {
+        final String string = decode(mBuffer, mPos, length);
+        mPos += length;
+        return string;
+    }
+
+    private static String decode(byte[] buffer, int offset, int length) {
+        if (length < INTERNED_STRINGS.length) {
+            for (String candidate : INTERNED_STRINGS[length]) {
+                if (regionEquals(buffer, offset, candidate)) {
+                    return candidate;
+                }
+            }
+        }
+        return new String(buffer, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean regionEquals(byte[] buffer, int offset, String string) {
+        for (int i = 0; i < string.length(); i++) {
+            if ((buffer[offset + i] & 0xff) != string.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNil(byte[] buffer, int offset, int length) {
+        return length == 3
+                && (buffer[offset] == 'N' || buffer[offset] == 'n')
+                && (buffer[offset + 1] == 'I' || buffer[offset + 1] == 'i')
+                && (buffer[offset + 2] == 'L' || buffer[offset + 2] == 'l');
+    }
+
+    /**
+     * Sets the {@link LiteralSink} all subsequent literals will be handed to, or {@code null} to
+     * store literals in the response again. A streamed literal is replaced by an empty string in
+     * the parsed response.
+     */
+    public void setLiteralSink(LiteralSink sink) {
+        mLiteralSink = sink;
     }
 
     /**
@@ -128,6 +315,16 @@ public class ImapResponseParser {
         mResponsesToDestroy.clear();
     }
 
+    /**
+     * Blocks until the first byte of the next response is available, without consuming it.
+     *
+     * @throws SocketTimeoutException if nothing is received within the read timeout. Nothing has
+     * been consumed in that case, so reading can be resumed.
+     */
+    public void waitForResponse() throws IOException {
+        peek();
+    }
+
     /**
      * Reads the next response available on the stream and returns an
      * {@link ImapResponse} object that represents it.
@@ -145,6 +342,10 @@ public class ImapResponseParser {
         ImapResponse response = null;
         try {
             response = parseResponse();
+        } catch (SocketTimeoutException e) {
+            // The caller decides whether a timeout is an error. Don't try to read more context,
+            // it would only block for another timeout.
+            throw e;
         } catch (RuntimeException e) {
             // Parser crash -- log network activities.
             onParseError(e);
@@ -201,15 +402,13 @@ public class ImapResponseParser {
      * The {@code end} will be read (rather than peeked) and won't be included in the result.
      */
     /* package for test */ String readUntil(char end) throws IOException {
-        mBufferReadUntil.setLength(0);
-        for (;;) {
-            final int ch = readByte();
-            if (ch != end) {
-                mBufferReadUntil.append((char) ch);
-            } else {
-                return mBufferReadUntil.toString();
-            }
+        int length = 0;
+        while (peekAt(length) != end) {
+            length++;
         }
+        final String string = takeString(length);
+        mPos++; // Skip end
+        return string;
     }
 
     /**
@@ -340,9 +539,9 @@ public class ImapResponseParser {
      * If the value is "NIL", returns an empty string.
      */
     private ImapString parseBareString() throws IOException, MessagingException {
-        mParseBareString.setLength(0);
+        int length = 0;
         for (;;) {
-            final int ch = peek();
+            final int ch = peekAt(length);
 
             // TODO Can we clean this up?  (This condition is from the old parser.)
             if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
@@ -357,23 +556,25 @@ public class ImapResponseParser {
                     // it as a flag instead
                     // ch == '"' || ch == '\' ||
                     ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f) {
-                if (mParseBareString.length() == 0) {
+                if (length == 0) {
                     throw new MessagingException("Expected string, none found.");
                 }
-                String s = mParseBareString.toString();
 
                 // NIL will be always converted into the empty string.
-                if (ImapConstants.NIL.equalsIgnoreCase(s)) {
+                if (isNil(mBuffer, mPos, length)) {
+                    mPos += length;
                     return ImapString.EMPTY;
                 }
-                return new ImapSimpleString(s);
+                return new ImapSimpleString(takeString(length));
             } else if (ch == '[') {
                 // Eat all until next ']'
-                mParseBareString.append((char) readByte());
-                mParseBareString.append(readUntil(']'));
-                mParseBareString.append(']'); // readUntil won't include the end char.
+                length++;
+                while (peekAt(length) != ']') {
+                    length++;
+                }
+                length++; // Include ']'
             } else {
-                mParseBareString.append((char) readByte());
+                length++;
             }
         }
     }
@@ -411,22 +612,33 @@ public class ImapResponseParser {
 
     private ImapString parseLiteral() throws IOException, MessagingException {
         expect('{');
-        final int size;
-        try {
-            size = Integer.parseInt(readUntil('}'));
-        } catch (NumberFormatException nfe) {
-            throw new MessagingException("Invalid length in literal");
-        }
-        if (size < 0) {
+        if (peek() == '-') {
             throw new MessagingException("Invalid negative length in literal");
         }
+        long size = 0;
+        int digits = 0;
+        for (int ch = readByte(); ch != '}'; ch = readByte()) {
+            if (ch < '0' || ch > '9' || ++digits > 10) {
+                throw new MessagingException("Invalid length in literal");
+            }
+            size = size * 10 + (ch - '0');
+        }
+        if (digits == 0 || size > Integer.MAX_VALUE) {
+            throw new MessagingException("Invalid length in literal");
+        }
         expect('\r');
         expect('\n');
-        FixedLengthInputStream in = new FixedLengthInputStream(mIn, size);
-        if (size > mLiteralKeepInMemoryThreshold) {
-            return new ImapTempFileLiteral(in);
-        } else {
-            return new ImapMemoryLiteral(in);
+        FixedLengthInputStream in = new FixedLengthInputStream(mLiteralSource, (int) size);
+        if (mLiteralSink != null) {
+            try {
+                mLiteralSink.onLiteral(in);
+            } finally {
+                // Skip whatever the sink did not consume so the parser stays in sync.
+                while (in.available() > 0 && in.skip(in.available()) > 0) {
+                }
+            }
+            return ImapString.EMPTY;
         }
+        return new ImapStoredLiteral(mLiteralStore.store(in, mLiteralKeepInMemoryThreshold));
     }
 }
\ No newline at end of file
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.common.mail.store.imap;
+
+import com.android.phone.common.mail.utils.LogUtils;
+import com.android.phone.common.mail.utils.Utility;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Subclass of {@link ImapString} used for literals, backed by a {@link ImapLiteralStore.Region}
+ * in memory or in the spill file.
+ *
+ * <p>The region is released by {@link #destroy()}. Streams returned by {@link #getAsStream()}
+ * keep it alive until they are closed or read to the end.
+ */
+public class ImapStoredLiteral extends ImapString {
+    private static final String TAG = "ImapStoredLiteral";
+
+    private final ImapLiteralStore.Region mRegion;
+
+    /* package */ ImapStoredLiteral(ImapLiteralStore.Region region) {
+        mRegion = region;
+    }
+
+    @Override
+    public InputStream getAsStream() {
+        checkNotDestroyed();
+        return mRegion.openStream();
+    }
+
+    @Override
+    public String getString() {
+        checkNotDestroyed();
+        // Prevent crash from OOM; we've seen this, but only rarely and not reproducibly
+        if (mRegion.getLength() > ImapResponseParser.LITERAL_KEEP_IN_MEMORY_THRESHOLD) {
+            LogUtils.w(TAG, "Literal too large for a string");
+            return "";
+        }
+        InputStream in = getAsStream();
+        try {
+            return Utility.fromAscii(IOUtils.toByteArray(in));
+        } catch (IOException e) {
+            LogUtils.w(TAG, "Error while reading literal", e);
+            return "";
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (!isDestroyed()) {
+            mRegion.release();
+        }
+        super.destroy();
+    }
+
+    public boolean isSpilledForTest() {
+        return mRegion.isSpilled();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("{%d byte literal(%s)}", mRegion.getLength(),
+                mRegion.isSpilled() ? "file" : "memory");
+    }
+}
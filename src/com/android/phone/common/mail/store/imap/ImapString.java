@@ -123,6 +123,18 @@ public abstract class ImapString extends ImapElement {
         return mParsedInteger;
     }
 
+    /**
+     * @return value parsed as a long, or {@code defaultValue} if the string is not a number. Used
+     * for values such as UIDVALIDITY or HIGHESTMODSEQ which might not fit in an int.
+     */
+    public final long getLong(long defaultValue) {
+        try {
+            return Long.parseLong(getString());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     /**
      * @return whether it can be parsed as a date using {@link #DATE_TIME_FORMAT}.
      */
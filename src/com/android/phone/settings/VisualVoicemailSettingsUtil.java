@@ -36,7 +36,7 @@ public class VisualVoicemailSettingsUtil {
         new VisualVoicemailPreferences(context, phoneAccount).edit()
                 .putBoolean(IS_ENABLED_KEY, isEnabled)
                 .apply();
-        OmtpVvmCarrierConfigHelper config = new OmtpVvmCarrierConfigHelper(context, phoneAccount);
+        OmtpVvmCarrierConfigHelper config = OmtpVvmCarrierConfigHelper.get(context, phoneAccount);
         if (isEnabled) {
             OmtpVvmSourceManager.getInstance(context).addPhoneStateListener(phoneAccount);
             config.startActivation();
@@ -61,7 +61,7 @@ public class VisualVoicemailSettingsUtil {
             // getBoolean(). The "false" here should never be actually used.
             return prefs.getBoolean(IS_ENABLED_KEY, false);
         }
-        return new OmtpVvmCarrierConfigHelper(context,
+        return OmtpVvmCarrierConfigHelper.get(context,
                 PhoneAccountHandleConverter.toSubId(phoneAccount)).isEnabledByDefault();
     }
 
@@ -36,6 +36,7 @@ import com.android.phone.vvm.omtp.scheduling.BaseTask;
 import com.android.phone.vvm.omtp.scheduling.RetryPolicy;
 import com.android.phone.vvm.omtp.sms.StatusMessage;
 import com.android.phone.vvm.omtp.sms.StatusSmsFetcher;
+import com.android.phone.vvm.omtp.sync.ImapIdleListener;
 import com.android.phone.vvm.omtp.sync.OmtpVvmSourceManager;
 import com.android.phone.vvm.omtp.sync.OmtpVvmSyncService;
 import com.android.phone.vvm.omtp.sync.SyncTask;
@@ -61,6 +62,7 @@ public class ActivationTask extends BaseTask {
 
     private static final int RETRY_TIMES = 4;
     private static final int RETRY_INTERVAL_MILLIS = 5_000;
+    private static final int MAX_RETRY_INTERVAL_MILLIS = 60_000;
 
     private static final String EXTRA_MESSAGE_DATA_BUNDLE = "extra_message_data_bundle";
 
@@ -73,7 +75,8 @@ public class ActivationTask extends BaseTask {
 
     public ActivationTask() {
         super(TASK_ACTIVATION);
-        mRetryPolicy = new RetryPolicy(RETRY_TIMES, RETRY_INTERVAL_MILLIS);
+        mRetryPolicy = new RetryPolicy(RETRY_TIMES, RETRY_INTERVAL_MILLIS,
+                MAX_RETRY_INTERVAL_MILLIS);
         addPolicy(mRetryPolicy);
     }
 
@@ -132,7 +135,7 @@ public class ActivationTask extends BaseTask {
             return;
         }
 
-        OmtpVvmCarrierConfigHelper helper = new OmtpVvmCarrierConfigHelper(getContext(), subId);
+        OmtpVvmCarrierConfigHelper helper = OmtpVvmCarrierConfigHelper.get(getContext(), subId);
         if (!helper.isValid()) {
             VvmLog.i(TAG, "VVM not supported on subId " + subId);
             VoicemailStatus.disable(getContext(), phoneAccountHandle);
@@ -245,7 +248,7 @@ public class ActivationTask extends BaseTask {
                 OmtpVvmSourceManager.getInstance(context);
 
         if (OmtpConstants.SUCCESS.equals(message.getReturnCode())) {
-            OmtpVvmCarrierConfigHelper helper = new OmtpVvmCarrierConfigHelper(context, subId);
+            OmtpVvmCarrierConfigHelper helper = OmtpVvmCarrierConfigHelper.get(context, subId);
             helper.handleEvent(status, OmtpEvents.CONFIG_REQUEST_STATUS_SUCCESS);
 
             // Save the IMAP credentials in preferences so they are persistent and can be retrieved.
@@ -256,6 +259,7 @@ public class ActivationTask extends BaseTask {
             vvmSourceManager.addSource(phone);
 
             SyncTask.start(context, phone, OmtpVvmSyncService.SYNC_FULL_SYNC);
+            ImapIdleListener.start(context, phone);
             // Remove the message waiting indicator, which is a sticky notification for traditional
             // voicemails.
             PhoneGlobals.getInstance()
@@ -28,6 +28,7 @@ import android.telephony.TelephonyManager;
 import android.telephony.VisualVoicemailSmsFilterSettings;
 import android.text.TextUtils;
 import android.util.ArraySet;
+import android.util.SparseArray;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.phone.VoicemailStatus;
 import com.android.phone.vvm.omtp.protocol.VisualVoicemailProtocol;
@@ -47,6 +48,12 @@ import java.util.Set;
  * may clutter CarrierConfigManager too much.
  *
  * The current hidden configs are: {@link #getSslPort()} {@link #getDisabledCapabilities()}
+ * {@link #getImapConnectionIdleTimeoutMillis()} {@link #isImapIdleEnabled()}
+ * {@link #getPrefetchThreads()} {@link #isNioTransportEnabled()}
+ *
+ * Building a helper reads the carrier config and the SIM operator over binder. Use {@link
+ * #get(Context, int)} to share one helper per subscription; {@link SimChangeReceiver} drops the
+ * shared helpers when the carrier config or the SIM changes.
  */
 public class OmtpVvmCarrierConfigHelper {
 
@@ -89,6 +96,41 @@ public class OmtpVvmCarrierConfigHelper {
     static final String KEY_VVM_CLIENT_PREFIX_STRING =
             "vvm_client_prefix_string";
 
+    /**
+     * @see #getImapConnectionIdleTimeoutMillis()
+     */
+    static final String KEY_VVM_IMAP_CONNECTION_IDLE_TIMEOUT_MILLIS_INT =
+            "vvm_imap_connection_idle_timeout_millis_int";
+
+    private static final int DEFAULT_IMAP_CONNECTION_IDLE_TIMEOUT_MILLIS = 30 * 1000;
+
+    /**
+     * @see #isImapIdleEnabled()
+     */
+    static final String KEY_VVM_IMAP_IDLE_ENABLED_BOOL = "vvm_imap_idle_enabled_bool";
+
+    /**
+     * @see #getPrefetchThreads()
+     */
+    static final String KEY_VVM_PREFETCH_THREADS_INT = "vvm_prefetch_threads_int";
+
+    private static final int DEFAULT_PREFETCH_THREADS = 2;
+
+    /**
+     * @see #isNioTransportEnabled()
+     */
+    static final String KEY_VVM_NIO_TRANSPORT_ENABLED_BOOL = "vvm_nio_transport_enabled_bool";
+
+    /**
+     * Shared helpers by subId, guarded by itself.
+     */
+    private static final SparseArray<OmtpVvmCarrierConfigHelper> sHelpers = new SparseArray<>();
+    /**
+     * Incremented on every invalidation, so a helper built from an outdated config is not cached.
+     * Guarded by {@link #sHelpers}.
+     */
+    private static int sGeneration;
+
     private final Context mContext;
     private final int mSubId;
     private final PersistableBundle mCarrierConfig;
@@ -128,6 +170,56 @@ public class OmtpVvmCarrierConfigHelper {
         mProtocol = VisualVoicemailProtocolFactory.create(mContext.getResources(), mVvmType);
     }
 
+    /**
+     * @return the shared helper for {@code subId}, built on first use. The helper holds the
+     * application context.
+     */
+    public static OmtpVvmCarrierConfigHelper get(Context context, int subId) {
+        int generation;
+        synchronized (sHelpers) {
+            OmtpVvmCarrierConfigHelper helper = sHelpers.get(subId);
+            if (helper != null) {
+                return helper;
+            }
+            generation = sGeneration;
+        }
+        // Built outside of the lock as it calls into other processes.
+        OmtpVvmCarrierConfigHelper helper =
+                new OmtpVvmCarrierConfigHelper(context.getApplicationContext(), subId);
+        if (!SubscriptionManager.isValidSubscriptionId(subId)) {
+            return helper;
+        }
+        synchronized (sHelpers) {
+            if (generation != sGeneration) {
+                return helper;
+            }
+            OmtpVvmCarrierConfigHelper existing = sHelpers.get(subId);
+            if (existing != null) {
+                return existing;
+            }
+            sHelpers.put(subId, helper);
+            return helper;
+        }
+    }
+
+    public static OmtpVvmCarrierConfigHelper get(Context context, PhoneAccountHandle handle) {
+        return get(context, PhoneAccountHandleConverter.toSubId(handle));
+    }
+
+    /**
+     * Drops the shared helper of {@code subId}, or of all subscriptions if it is invalid.
+     */
+    public static void invalidate(int subId) {
+        synchronized (sHelpers) {
+            sGeneration++;
+            if (SubscriptionManager.isValidSubscriptionId(subId)) {
+                sHelpers.remove(subId);
+            } else {
+                sHelpers.clear();
+            }
+        }
+    }
+
     public Context getContext() {
         return mContext;
     }
@@ -286,6 +378,51 @@ public class OmtpVvmCarrierConfigHelper {
         return result;
     }
 
+    /**
+     * Hidden config.
+     *
+     * @return How long an IMAP connection is kept open after an operation completes so the next
+     * operation can reuse it. 0 disables connection reuse.
+     */
+    public int getImapConnectionIdleTimeoutMillis() {
+        return (int) getValue(KEY_VVM_IMAP_CONNECTION_IDLE_TIMEOUT_MILLIS_INT,
+                DEFAULT_IMAP_CONNECTION_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Hidden config.
+     *
+     * @return Whether a connection to the IMAP server should be kept open in IDLE so new
+     * voicemails are pushed by the server instead of waiting for a SYNC SMS. Only used if the
+     * server advertises the IDLE capability. This keeps the data connection up, so it is off by
+     * default.
+     */
+    public boolean isImapIdleEnabled() {
+        return (boolean) getValue(KEY_VVM_IMAP_IDLE_ENABLED_BOOL, false);
+    }
+
+    /**
+     * Hidden config.
+     *
+     * @return How many voicemail payloads are prefetched concurrently during a sync, each over its
+     * own IMAP connection. 1 prefetches them one after another. Servers limiting the number of
+     * sessions per mailbox should not set it higher than their limit.
+     */
+    public int getPrefetchThreads() {
+        return Math.max(1, (int) getValue(KEY_VVM_PREFETCH_THREADS_INT, DEFAULT_PREFETCH_THREADS));
+    }
+
+    /**
+     * Hidden config.
+     *
+     * @return Whether IMAP connections should use {@link
+     * com.android.phone.common.mail.NioMailTransport}, which waits for the server on a shared
+     * selector thread instead of in a blocking socket read.
+     */
+    public boolean isNioTransportEnabled() {
+        return (boolean) getValue(KEY_VVM_NIO_TRANSPORT_ENABLED_BOOL, false);
+    }
+
     public String getClientPrefix() {
         String prefix = (String) getValue(KEY_VVM_CLIENT_PREFIX_STRING);
         if (prefix != null) {
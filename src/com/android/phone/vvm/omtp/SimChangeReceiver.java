@@ -56,6 +56,8 @@ public class SimChangeReceiver extends BroadcastReceiver {
 
         switch (action) {
             case TelephonyIntents.ACTION_SIM_STATE_CHANGED:
+                // The SIM operator might have changed.
+                OmtpVvmCarrierConfigHelper.invalidate(SubscriptionManager.INVALID_SUBSCRIPTION_ID);
                 if (IccCardConstants.INTENT_VALUE_ICC_ABSENT.equals(
                         intent.getStringExtra(IccCardConstants.INTENT_KEY_ICC_STATE))) {
                     VvmLog.i(TAG, "Sim removed, removing inactive accounts");
@@ -65,6 +67,7 @@ public class SimChangeReceiver extends BroadcastReceiver {
             case CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED:
                 int subId = intent.getIntExtra(PhoneConstants.SUBSCRIPTION_KEY,
                         SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+                OmtpVvmCarrierConfigHelper.invalidate(subId);
 
                 if (!SubscriptionManager.isValidSubscriptionId(subId)) {
                     VvmLog.i(TAG, "Received SIM change for invalid subscription id.");
@@ -91,7 +94,7 @@ public class SimChangeReceiver extends BroadcastReceiver {
         }
 
         OmtpVvmCarrierConfigHelper carrierConfigHelper =
-                new OmtpVvmCarrierConfigHelper(context, subId);
+                OmtpVvmCarrierConfigHelper.get(context, subId);
         if (carrierConfigHelper.isValid()) {
             if (VisualVoicemailSettingsUtil.isEnabled(context, phoneAccount)) {
                 VvmLog.i(TAG, "Sim state or carrier config changed for " + subId);
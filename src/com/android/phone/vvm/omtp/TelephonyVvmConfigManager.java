@@ -18,6 +18,7 @@ package com.android.phone.vvm.omtp;
 
 import android.annotation.Nullable;
 import android.content.res.Resources;
+import android.os.AsyncTask;
 import android.os.PersistableBundle;
 import android.util.ArrayMap;
 
@@ -34,7 +35,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 /**
- * Load and caches telephony vvm config from res/xml/vvm_config.xml
+ * Load and caches telephony vvm config from res/xml/vvm_config.xml. The file is parsed once per
+ * process, in the background when the process starts, and the result is shared by all instances.
  */
 public class TelephonyVvmConfigManager {
 
@@ -51,10 +53,7 @@ public class TelephonyVvmConfigManager {
     private final Map<String, PersistableBundle> mConfigs;
 
     public TelephonyVvmConfigManager(Resources resources) {
-        if (sCachedConfigs == null) {
-            sCachedConfigs = loadConfigs(resources.getXml(R.xml.vvm_config));
-        }
-        mConfigs = sCachedConfigs;
+        mConfigs = getCachedConfigs(resources);
     }
 
     @VisibleForTesting
@@ -62,6 +61,27 @@ public class TelephonyVvmConfigManager {
         mConfigs = loadConfigs(parser);
     }
 
+    /**
+     * Parses vvm_config.xml on a background thread, so the first caller, typically handling a
+     * SIM change or a VVM SMS, finds it ready.
+     */
+    public static void preload(final Resources resources) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                getCachedConfigs(resources);
+            }
+        });
+    }
+
+    private static synchronized Map<String, PersistableBundle> getCachedConfigs(
+            Resources resources) {
+        if (sCachedConfigs == null) {
+            sCachedConfigs = loadConfigs(resources.getXml(R.xml.vvm_config));
+        }
+        return sCachedConfigs;
+    }
+
     @Nullable
     public PersistableBundle getConfig(String mccMnc) {
         if (USE_DEBUG_CONFIG) {
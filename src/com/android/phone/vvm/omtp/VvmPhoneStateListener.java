@@ -64,7 +64,7 @@ public class VvmPhoneStateListener extends PhoneStateListener {
             return;
         }
 
-        OmtpVvmCarrierConfigHelper helper = new OmtpVvmCarrierConfigHelper(mContext, subId);
+        OmtpVvmCarrierConfigHelper helper = OmtpVvmCarrierConfigHelper.get(mContext, subId);
 
         if (state == ServiceState.STATE_IN_SERVICE) {
             VoicemailStatusQueryHelper voicemailStatusQueryHelper =
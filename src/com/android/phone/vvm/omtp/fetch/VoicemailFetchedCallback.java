@@ -83,9 +83,26 @@ public class VoicemailFetchedCallback {
             IoUtils.closeQuietly(outputStream);
         }
 
+        setVoicemailContentWritten(voicemailPayload.getMimeType());
+    }
+
+    /**
+     * Opens the data file of the voicemail so the payload can be streamed into it. Once the
+     * stream is closed {@link #setVoicemailContentWritten(String)} must be called.
+     */
+    public OutputStream openVoicemailContent() throws IOException {
+        VvmLog.d(TAG, String.format("Writing new voicemail content: %s", mUri));
+        return mContentResolver.openOutputStream(mUri);
+    }
+
+    /**
+     * Sets the mime type and the "has_content" bit of the voicemail to "1" after the content has
+     * been written into the stream returned by {@link #openVoicemailContent()}.
+     */
+    public void setVoicemailContentWritten(String mimeType) {
         // Update mime_type & has_content after we are done with file update.
         ContentValues values = new ContentValues();
-        values.put(Voicemails.MIME_TYPE, voicemailPayload.getMimeType());
+        values.put(Voicemails.MIME_TYPE, mimeType);
         values.put(Voicemails.HAS_CONTENT, true);
         updateVoicemail(values);
     }
@@ -15,10 +15,12 @@
  */
 package com.android.phone.vvm.omtp.imap;
 
+import android.annotation.Nullable;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.Network;
 import android.net.NetworkInfo;
+import android.os.CancellationSignal;
 import android.provider.VoicemailContract;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.Voicemail;
@@ -33,11 +35,14 @@ import com.android.phone.common.mail.Flag;
 import com.android.phone.common.mail.Message;
 import com.android.phone.common.mail.MessagingException;
 import com.android.phone.common.mail.Multipart;
+import com.android.phone.common.mail.Part;
 import com.android.phone.common.mail.TempDirectory;
+import com.android.phone.common.mail.internet.MimeHeader;
 import com.android.phone.common.mail.internet.MimeMessage;
 import com.android.phone.common.mail.store.ImapConnection;
 import com.android.phone.common.mail.store.ImapFolder;
 import com.android.phone.common.mail.store.ImapStore;
+import com.android.phone.common.mail.store.ImapStructureCache;
 import com.android.phone.common.mail.store.imap.ImapConstants;
 import com.android.phone.common.mail.store.imap.ImapResponse;
 import com.android.phone.common.mail.utils.LogUtils;
@@ -52,11 +57,19 @@ import com.android.phone.vvm.omtp.sync.OmtpVvmSyncService.TranscriptionFetchedCa
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import libcore.io.IoUtils;
 
 /**
@@ -78,11 +91,15 @@ public class ImapHelper implements Closeable {
     private static final String PREF_KEY_QUOTA_OCCUPIED = "quota_occupied_";
     private static final String PREF_KEY_QUOTA_TOTAL = "quota_total_";
 
+    private static final String STRUCTURE_CACHE_FILE_PREFIX = "imap_structures_";
+
     private int mQuotaOccupied;
     private int mQuotaTotal;
 
     private final OmtpVvmCarrierConfigHelper mConfig;
 
+    private ImapSyncState mSyncState;
+
     public class InitializingException extends Exception {
 
         public InitializingException(String message) {
@@ -93,7 +110,7 @@ public class ImapHelper implements Closeable {
     public ImapHelper(Context context, PhoneAccountHandle phoneAccount, Network network,
         VoicemailStatus.Editor status)
         throws InitializingException {
-        this(context, new OmtpVvmCarrierConfigHelper(context,
+        this(context, OmtpVvmCarrierConfigHelper.get(context,
             PhoneUtils.getSubIdForPhoneAccountHandle(phoneAccount)), phoneAccount, network, status);
     }
 
@@ -208,6 +225,10 @@ public class ImapHelper implements Closeable {
     /**
      * Fetch a list of voicemails from the server.
      *
+     * <p>The structures of all messages are fetched with a single UID FETCH, and the
+     * transcriptions with one UID FETCH per distinct transcription part, so the number of round
+     * trips does not grow with the size of the mailbox.
+     *
      * @return A list of voicemail objects containing data about voicemails stored on the server.
      */
     public List<Voicemail> fetchAllVoicemails() {
@@ -220,16 +241,104 @@ public class ImapHelper implements Closeable {
                 return null;
             }
 
+            mSyncState = ImapSyncState.fromFolder(mFolder);
+
             // This method retrieves lightweight messages containing only the uid of the message.
             messages = mFolder.getMessages(null);
+            pruneStructureCache(messages);
+
+            result.addAll(fetchNewVoicemails(messages));
+            return result;
+        } catch (MessagingException e) {
+            LogUtils.e(TAG, e, "Messaging Exception");
+            return null;
+        } finally {
+            closeImapFolder();
+        }
+    }
+
+    /**
+     * Fetch a list of voicemails from the server, only downloading the parts that have changed
+     * since the last sync committed with {@link #commitSyncState()}.
+     *
+     * <p>Messages the server reports with a UID below the UIDNEXT of the last sync are matched
+     * against {@code localVoicemails} and only have their flags refreshed, with the CONDSTORE
+     * CHANGEDSINCE modifier if the server supports it. Messages missing from {@code
+     * localVoicemails} have their structure and transcription fetched, including ones below that
+     * UIDNEXT which were lost locally, for example after the provider was cleared. If the server
+     * reports a different UIDVALIDITY, or there
+     * was no prior sync, this falls back to {@link #fetchAllVoicemails()}.
+     *
+     * @param localVoicemails The voicemails currently stored in the local database.
+     * @return A list of voicemail objects containing data about voicemails stored on the server, in
+     * the same form as {@link #fetchAllVoicemails()}. Voicemails already stored locally will have
+     * their ID, source data and read state set. {@code null} if the operation failed.
+     */
+    public List<Voicemail> fetchVoicemailChanges(List<Voicemail> localVoicemails) {
+        try {
+            mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
+            if (mFolder == null) {
+                // This means we were unable to successfully open the folder.
+                return null;
+            }
+            ImapSyncState previousState = ImapSyncState.load(mPrefs);
+            mSyncState = ImapSyncState.fromFolder(mFolder);
+            if (!previousState.canSyncIncrementallyTo(mSyncState)) {
+                VvmLog.i(TAG, "Performing full resync, previous state " + previousState
+                        + ", current state " + mSyncState);
+                Message[] messages = mFolder.getMessages(null);
+                pruneStructureCache(messages);
+                return fetchNewVoicemails(messages);
+            }
+
+            Map<String, Voicemail> localMap = new HashMap<>();
+            for (Voicemail voicemail : localVoicemails) {
+                localMap.put(voicemail.getSourceData(), voicemail);
+            }
+
+            if (previousState.isUnchanged(mSyncState)
+                    && mFolder.getMessageCount() == localVoicemails.size()) {
+                VvmLog.v(TAG, "Mailbox unchanged since last sync");
+                return buildKnownVoicemails(localMap.values(), null);
+            }
 
+            Message[] messages = mFolder.getMessages(null);
+            pruneStructureCache(messages);
+            List<Message> knownMessages = new ArrayList<>();
+            List<Message> newMessages = new ArrayList<>();
+            int restoredMessages = 0;
             for (Message message : messages) {
-                // Get the voicemail details (message structure).
-                MessageStructureWrapper messageStructureWrapper = fetchMessageStructure(message);
-                if (messageStructureWrapper != null) {
-                    result.add(getVoicemailFromMessageStructure(messageStructureWrapper));
+                if (localMap.containsKey(message.getUid())) {
+                    knownMessages.add(message);
+                } else {
+                    if (parseUid(message.getUid()) < previousState.uidNext) {
+                        // Synced before but no longer stored locally, restore it.
+                        restoredMessages++;
+                    }
+                    newMessages.add(message);
                 }
             }
+            VvmLog.v(TAG, "Incremental sync: " + knownMessages.size() + " known messages, "
+                    + newMessages.size() + " new messages, " + restoredMessages
+                    + " of them restored");
+
+            List<Voicemail> result = new ArrayList<>();
+
+            // Known messages are immutable except for their flags.
+            Message[] known = knownMessages.toArray(Message.EMPTY_ARRAY);
+            FlagsFetchedListener flagsListener = new FlagsFetchedListener();
+            FetchProfile flagsProfile = new FetchProfile();
+            flagsProfile.add(FetchProfile.Item.FLAGS);
+            mFolder.fetch(known, flagsProfile,
+                    previousState.hasModSeq(mSyncState) ? previousState.highestModSeq : -1,
+                    flagsListener);
+            List<Voicemail> knownVoicemails = new ArrayList<>();
+            for (Message message : known) {
+                knownVoicemails.add(localMap.get(message.getUid()));
+            }
+            result.addAll(buildKnownVoicemails(knownVoicemails, flagsListener.getReadStates()));
+
+            result.addAll(fetchNewVoicemails(newMessages.toArray(Message.EMPTY_ARRAY)));
             return result;
         } catch (MessagingException e) {
             LogUtils.e(TAG, e, "Messaging Exception");
@@ -240,21 +349,143 @@ public class ImapHelper implements Closeable {
     }
 
     /**
-     * Extract voicemail details from the message structure. Also fetch transcription if a
-     * transcription exists.
+     * Changes of the mailbox pushed by the server, see {@link #waitForChanges}.
      */
-    private Voicemail getVoicemailFromMessageStructure(
-            MessageStructureWrapper messageStructureWrapper) throws MessagingException {
-        Message messageDetails = messageStructureWrapper.messageStructure;
+    public static class MailboxChanges {
 
-        TranscriptionFetchedListener listener = new TranscriptionFetchedListener();
-        if (messageStructureWrapper.transcriptionBodyPart != null) {
-            FetchProfile fetchProfile = new FetchProfile();
-            fetchProfile.add(messageStructureWrapper.transcriptionBodyPart);
+        /**
+         * Returned by {@link #waitForChanges} if the server does not support IDLE.
+         */
+        public static final MailboxChanges IDLE_NOT_SUPPORTED =
+                new MailboxChanges(new ArrayList<Voicemail>(), false);
+
+        /**
+         * Voicemails that arrived on the server, in the same form as {@link
+         * #fetchAllVoicemails()}. They might already be stored locally.
+         */
+        public final List<Voicemail> newVoicemails;
+
+        /**
+         * Whether other messages have been removed or had their flags changed, which requires a
+         * sync to be reflected locally.
+         */
+        public final boolean hasUpdates;
+
+        private MailboxChanges(List<Voicemail> newVoicemails, boolean hasUpdates) {
+            this.newVoicemails = newVoicemails;
+            this.hasUpdates = hasUpdates;
+        }
+    }
+
+    /**
+     * Waits with IMAP IDLE until the server pushes a change of the mailbox, {@code durationMillis}
+     * has passed, or {@code cancellationSignal} is cancelled. New messages are fetched right away
+     * with their structure and transcription, so they can be inserted without a full sync.
+     *
+     * @return the changes, which are empty if nothing happened, {@link
+     * MailboxChanges#IDLE_NOT_SUPPORTED}, or {@code null} if the operation failed.
+     */
+    @Nullable
+    public MailboxChanges waitForChanges(long durationMillis,
+            CancellationSignal cancellationSignal) {
+        try {
+            mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
+            if (mFolder == null) {
+                // This means we were unable to successfully open the folder.
+                return null;
+            }
+            if (!mFolder.supportsIdle()) {
+                return MailboxChanges.IDLE_NOT_SUPPORTED;
+            }
+            long uidNext = mFolder.getUidNext();
+            IdleChangesListener listener = new IdleChangesListener(cancellationSignal);
+            mFolder.idle(durationMillis, listener);
+
+            boolean hasUpdates = listener.hasUpdates();
+            List<Voicemail> newVoicemails = new ArrayList<>();
+            if (listener.hasNewMessages()) {
+                if (uidNext == -1) {
+                    // New messages can't be told apart without UIDNEXT, let a sync find them.
+                    hasUpdates = true;
+                } else {
+                    newVoicemails = fetchNewVoicemails(mFolder.getMessagesFromUid(uidNext));
+                }
+            }
+            return new MailboxChanges(newVoicemails, hasUpdates);
+        } catch (MessagingException e) {
+            LogUtils.e(TAG, e, "Messaging Exception");
+            return null;
+        } finally {
+            closeImapFolder();
+        }
+    }
+
+    /**
+     * Persist the mailbox state observed by the last call to {@link #fetchAllVoicemails()} or
+     * {@link #fetchVoicemailChanges(List)}. This should only be called once the result has been
+     * stored locally, so a failed sync will be retried in full.
+     */
+    public void commitSyncState() {
+        if (mSyncState == null) {
+            return;
+        }
+        VvmLog.v(TAG, "Committing " + mSyncState);
+        mSyncState.save(mPrefs);
+    }
 
-            mFolder.fetch(new Message[]{messageDetails}, fetchProfile, listener);
+    /**
+     * Fetches the structure and transcription of the given messages, which are not yet known
+     * locally.
+     */
+    private List<Voicemail> fetchNewVoicemails(Message[] messages) throws MessagingException {
+        List<Voicemail> result = new ArrayList<>();
+        // Get the voicemail details (message structure).
+        List<MessageStructureWrapper> messageStructureWrappers =
+                fetchMessageStructures(messages, true);
+        Map<String, String> transcriptions = fetchTranscriptions(messageStructureWrappers);
+        for (MessageStructureWrapper messageStructureWrapper : messageStructureWrappers) {
+            Message messageDetails = messageStructureWrapper.messageStructure;
+            result.add(getVoicemailFromMessageStructure(messageDetails,
+                    transcriptions.get(messageDetails.getUid())));
         }
+        return result;
+    }
 
+    /**
+     * Builds the server view of voicemails that are already stored locally.
+     *
+     * @param readStates the read state of voicemails whose flags were fetched, keyed by UID. The
+     * local read state is kept for voicemails not in the map.
+     */
+    private static List<Voicemail> buildKnownVoicemails(Collection<Voicemail> localVoicemails,
+            @Nullable Map<String, Boolean> readStates) {
+        List<Voicemail> result = new ArrayList<>(localVoicemails.size());
+        for (Voicemail localVoicemail : localVoicemails) {
+            boolean isRead = localVoicemail.isRead();
+            if (readStates != null && readStates.containsKey(localVoicemail.getSourceData())) {
+                isRead = readStates.get(localVoicemail.getSourceData());
+            }
+            result.add(Voicemail.createForUpdate(localVoicemail.getId(),
+                    localVoicemail.getSourceData())
+                    .setIsRead(isRead)
+                    .build());
+        }
+        return result;
+    }
+
+    private static long parseUid(String uid) {
+        try {
+            return Long.parseLong(uid);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Extract voicemail details from the message structure.
+     */
+    private Voicemail getVoicemailFromMessageStructure(Message messageDetails,
+            String transcription) throws MessagingException {
         // Found an audio attachment, this is a valid voicemail.
         long time = messageDetails.getSentDate().getTime();
         String number = getNumber(messageDetails.getFrom());
@@ -264,10 +495,61 @@ public class ImapHelper implements Closeable {
                 .setSourcePackage(mContext.getPackageName())
                 .setSourceData(messageDetails.getUid())
                 .setIsRead(isRead)
-                .setTranscription(listener.getVoicemailTranscription())
+                .setTranscription(transcription)
                 .build();
     }
 
+    /**
+     * Fetches the transcriptions of the given messages, keyed by UID. A FETCH command can only
+     * request a single body part, so messages are grouped by transcription part and transfer
+     * encoding. Voicemails from the same server share the same layout, so this is usually a
+     * single command.
+     *
+     * @throws MessagingException if fetching the transcriptions fails
+     */
+    private Map<String, String> fetchTranscriptions(
+            List<MessageStructureWrapper> messageStructureWrappers) throws MessagingException {
+        Map<String, List<MessageStructureWrapper>> groups = new LinkedHashMap<>();
+        for (MessageStructureWrapper messageStructureWrapper : messageStructureWrappers) {
+            BodyPart transcriptionBodyPart = messageStructureWrapper.transcriptionBodyPart;
+            if (transcriptionBodyPart == null) {
+                continue;
+            }
+            String key = getFirstHeader(transcriptionBodyPart,
+                    MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA) + "/"
+                    + getFirstHeader(transcriptionBodyPart,
+                    MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+            List<MessageStructureWrapper> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(messageStructureWrapper);
+        }
+
+        TranscriptionFetchedListener listener = new TranscriptionFetchedListener();
+        for (List<MessageStructureWrapper> group : groups.values()) {
+            Message[] messages = new Message[group.size()];
+            for (int i = 0; i < messages.length; i++) {
+                messages[i] = group.get(i).messageStructure;
+            }
+            FetchProfile fetchProfile = new FetchProfile();
+            fetchProfile.add(group.get(0).transcriptionBodyPart);
+
+            LogUtils.d(TAG, "Fetching transcriptions for " + messages.length + " messages");
+            mFolder.fetch(messages, fetchProfile, listener);
+        }
+        return listener.getVoicemailTranscriptions();
+    }
+
+    private static String getFirstHeader(Part part, String name) throws MessagingException {
+        String[] values = part.getHeader(name);
+        if (values == null || values.length == 0) {
+            return null;
+        }
+        return values[0];
+    }
+
     /**
      * The "from" field of a visual voicemail IMAP message is the number of the caller who left the
      * message. Extract this number from the list of "from" addresses.
@@ -293,26 +575,112 @@ public class ImapHelper implements Closeable {
 
     /**
      * Fetches the structure of the given message and returns a wrapper containing the message
-     * structure and the transcription structure (if applicable).
+     * structure and the transcription structure (if applicable). Flags are not fetched.
      *
      * @throws MessagingException if fetching the structure of the message fails
      */
     private MessageStructureWrapper fetchMessageStructure(Message message)
             throws MessagingException {
-        LogUtils.d(TAG, "Fetching message structure for " + message.getUid());
+        List<MessageStructureWrapper> messageStructureWrappers =
+                fetchMessageStructures(new Message[]{message}, false);
+        return messageStructureWrappers.isEmpty() ? null : messageStructureWrappers.get(0);
+    }
+
+    /**
+     * Fetches the structure of all the given messages with a single command. Structures of
+     * messages seen before are taken from the {@link ImapStructureCache} instead, and only their
+     * flags are fetched, if {@code fetchFlags}. Messages which are not valid voicemails are
+     * omitted from the result.
+     *
+     * @throws MessagingException if fetching the structure of the messages fails
+     */
+    private List<MessageStructureWrapper> fetchMessageStructures(Message[] messages,
+            boolean fetchFlags) throws MessagingException {
+        ImapStructureCache cache = getStructureCache();
+        long uidValidity = mFolder.getUidValidity();
+        Message[] structures = new Message[messages.length];
+        List<Message> cached = new ArrayList<>();
+        List<Message> uncached = new ArrayList<>();
+        for (int i = 0; i < messages.length; i++) {
+            Message message = cache.get(uidValidity, messages[i].getUid(), mFolder);
+            if (message != null) {
+                structures[i] = message;
+                cached.add(message);
+            } else {
+                uncached.add(messages[i]);
+            }
+        }
+        LogUtils.d(TAG, "Fetching message structure for " + uncached.size() + " messages, "
+                + cached.size() + " cached");
+
+        if (fetchFlags && !cached.isEmpty()) {
+            FetchProfile flagsProfile = new FetchProfile();
+            flagsProfile.add(FetchProfile.Item.FLAGS);
+            mFolder.fetch(cached.toArray(Message.EMPTY_ARRAY), flagsProfile, null);
+        }
+
+        if (!uncached.isEmpty()) {
+            FetchProfile fetchProfile = new FetchProfile();
+            fetchProfile.addAll(Arrays.asList(FetchProfile.Item.FLAGS, FetchProfile.Item.ENVELOPE,
+                    FetchProfile.Item.STRUCTURE));
+            final Set<Message> retrieved = new HashSet<>();
+            mFolder.fetch(uncached.toArray(Message.EMPTY_ARRAY), fetchProfile,
+                    new ImapFolder.MessageRetrievalListener() {
+                        @Override
+                        public void messageRetrieved(Message message) {
+                            retrieved.add(message);
+                        }
+                    });
+            for (int i = 0; i < messages.length; i++) {
+                if (structures[i] == null && retrieved.contains(messages[i])) {
+                    structures[i] = messages[i];
+                    if (messages[i].getBody() != null) {
+                        cache.put(uidValidity, messages[i]);
+                    }
+                }
+            }
+            cache.save();
+        }
 
+        // Messages are reported in the order they were requested.
         MessageStructureFetchedListener listener = new MessageStructureFetchedListener();
+        for (Message message : structures) {
+            if (message != null) {
+                listener.messageRetrieved(message);
+            }
+        }
+        return listener.getMessageStructures();
+    }
 
-        FetchProfile fetchProfile = new FetchProfile();
-        fetchProfile.addAll(Arrays.asList(FetchProfile.Item.FLAGS, FetchProfile.Item.ENVELOPE,
-                FetchProfile.Item.STRUCTURE));
+    /**
+     * Drops the cached structures of messages which are no longer on the server.
+     *
+     * @param messages all the messages currently on the server
+     */
+    private void pruneStructureCache(Message[] messages) {
+        List<String> uids = new ArrayList<>(messages.length);
+        for (Message message : messages) {
+            uids.add(message.getUid());
+        }
+        ImapStructureCache cache = getStructureCache();
+        cache.retainAll(mFolder.getUidValidity(), uids);
+        cache.save();
+    }
 
-        // The IMAP folder fetch method will call "messageRetrieved" on the listener when the
-        // message is successfully retrieved.
-        mFolder.fetch(new Message[]{message}, fetchProfile, listener);
-        return listener.getMessageStructure();
+    private ImapStructureCache getStructureCache() {
+        String mailboxKey = mPhoneAccount.getComponentName().flattenToString() + "/"
+                + mPhoneAccount.getId() + "/"
+                + mPrefs.getString(OmtpConstants.IMAP_USER_NAME, null) + "@"
+                + mPrefs.getString(OmtpConstants.SERVER_ADDRESS, null);
+        return ImapStructureCache.get(new File(mContext.getCacheDir(),
+                STRUCTURE_CACHE_FILE_PREFIX + Integer.toHexString(mailboxKey.hashCode())),
+                mailboxKey);
     }
 
+    /**
+     * Fetches the audio attachment of the voicemail and streams it into the voicemail provider
+     * through {@code callback}, decoding it on the fly.
+     */
     public boolean fetchVoicemailPayload(VoicemailFetchedCallback callback, final String uid) {
         try {
             mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
@@ -324,34 +692,32 @@ public class ImapHelper implements Closeable {
             if (message == null) {
                 return false;
             }
-            VoicemailPayload voicemailPayload = fetchVoicemailPayload(message);
-            callback.setVoicemailContent(voicemailPayload);
+            MessageStructureWrapper messageStructureWrapper = fetchMessageStructure(message);
+            if (messageStructureWrapper == null) {
+                LogUtils.e(TAG, "No audio attachment found on this voicemail");
+                callback.setVoicemailContent(null);
+                return true;
+            }
+            BodyPart audioBodyPart = messageStructureWrapper.audioBodyPart;
+            LogUtils.d(TAG, "Fetching message body for " + uid);
+            OutputStream out = callback.openVoicemailContent();
+            try {
+                mFolder.fetchPart(messageStructureWrapper.messageStructure, audioBodyPart, out);
+            } finally {
+                IoUtils.closeQuietly(out);
+            }
+            callback.setVoicemailContentWritten(audioBodyPart.getMimeType().toLowerCase());
             return true;
         } catch (MessagingException e) {
+            LogUtils.e(TAG, e, "Messaging Exception");
+        } catch (IOException e) {
+            LogUtils.e(TAG, e, "IO Exception");
         } finally {
             closeImapFolder();
         }
         return false;
     }
 
-    /**
-     * Fetches the body of the given message and returns the parsed voicemail payload.
-     *
-     * @throws MessagingException if fetching the body of the message fails
-     */
-    private VoicemailPayload fetchVoicemailPayload(Message message)
-            throws MessagingException {
-        LogUtils.d(TAG, "Fetching message body for " + message.getUid());
-
-        MessageBodyFetchedListener listener = new MessageBodyFetchedListener();
-
-        FetchProfile fetchProfile = new FetchProfile();
-        fetchProfile.add(FetchProfile.Item.BODY);
-
-        mFolder.fetch(new Message[]{message}, fetchProfile, listener);
-        return listener.getVoicemailPayload();
-    }
-
     public boolean fetchTranscription(TranscriptionFetchedCallback callback, String uid) {
         try {
             mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
@@ -511,6 +877,7 @@ public class ImapHelper implements Closeable {
     public class MessageStructureWrapper {
 
         public Message messageStructure;
+        public BodyPart audioBodyPart;
         public BodyPart transcriptionBodyPart;
 
         public MessageStructureWrapper() {
@@ -523,13 +890,17 @@ public class ImapHelper implements Closeable {
     private final class MessageStructureFetchedListener
             implements ImapFolder.MessageRetrievalListener {
 
-        private MessageStructureWrapper mMessageStructure;
+        private final List<MessageStructureWrapper> mMessageStructures = new ArrayList<>();
 
         public MessageStructureFetchedListener() {
         }
 
-        public MessageStructureWrapper getMessageStructure() {
-            return mMessageStructure;
+        /**
+         * Returns the structures of the retrieved messages that are valid voicemails, in the
+         * order they were received from the server.
+         */
+        public List<MessageStructureWrapper> getMessageStructures() {
+            return mMessageStructures;
         }
 
         @Override
@@ -537,14 +908,16 @@ public class ImapHelper implements Closeable {
             LogUtils.d(TAG, "Fetched message structure for " + message.getUid());
             LogUtils.d(TAG, "Message retrieved: " + message);
             try {
-                mMessageStructure = getMessageOrNull(message);
-                if (mMessageStructure == null) {
+                MessageStructureWrapper messageStructure = getMessageOrNull(message);
+                if (messageStructure == null) {
                     LogUtils.d(TAG, "This voicemail does not have an attachment...");
                     return;
                 }
+                mMessageStructures.add(messageStructure);
             } catch (MessagingException e) {
+                // Other messages in the same batch are still being read from the connection,
+                // so only skip this one.
                 LogUtils.e(TAG, e, "Messaging Exception");
-                closeImapFolder();
             }
         }
 
@@ -572,6 +945,9 @@ public class ImapHelper implements Closeable {
 
                 if (bodyPartMimeType.startsWith("audio/")) {
                     messageStructureWrapper.messageStructure = message;
+                    if (messageStructureWrapper.audioBodyPart == null) {
+                        messageStructureWrapper.audioBodyPart = bodyPart;
+                    }
                 } else if (bodyPartMimeType.startsWith("text/")) {
                     messageStructureWrapper.transcriptionBodyPart = bodyPart;
                 } else {
@@ -589,48 +965,64 @@ public class ImapHelper implements Closeable {
     }
 
     /**
-     * Listener for the message body being fetched.
+     * Listener for the flags being fetched.
      */
-    private final class MessageBodyFetchedListener implements ImapFolder.MessageRetrievalListener {
+    private static final class FlagsFetchedListener implements
+            ImapFolder.MessageRetrievalListener {
 
-        private VoicemailPayload mVoicemailPayload;
+        private final Map<String, Boolean> mReadStates = new HashMap<>();
 
         /**
-         * Returns the fetch voicemail payload.
+         * Returns whether each retrieved message has been seen, keyed by UID.
          */
-        public VoicemailPayload getVoicemailPayload() {
-            return mVoicemailPayload;
+        public Map<String, Boolean> getReadStates() {
+            return mReadStates;
         }
 
         @Override
         public void messageRetrieved(Message message) {
-            LogUtils.d(TAG, "Fetched message body for " + message.getUid());
-            LogUtils.d(TAG, "Message retrieved: " + message);
-            try {
-                mVoicemailPayload = getVoicemailPayloadFromMessage(message);
-            } catch (MessagingException e) {
-                LogUtils.e(TAG, "Messaging Exception:", e);
-            } catch (IOException e) {
-                LogUtils.e(TAG, "IO Exception:", e);
-            }
+            mReadStates.put(message.getUid(), message.isSet(Flag.SEEN));
         }
+    }
 
-        private VoicemailPayload getVoicemailPayloadFromMessage(Message message)
-                throws MessagingException, IOException {
-            Multipart multipart = (Multipart) message.getBody();
-            List<String> mimeTypes = new ArrayList<>();
-            for (int i = 0; i < multipart.getCount(); ++i) {
-                BodyPart bodyPart = multipart.getBodyPart(i);
-                String bodyPartMimeType = bodyPart.getMimeType().toLowerCase();
-                mimeTypes.add(bodyPartMimeType);
-                if (bodyPartMimeType.startsWith("audio/")) {
-                    byte[] bytes = getDataFromBody(bodyPart.getBody());
-                    LogUtils.d(TAG, String.format("Fetched %s bytes of data", bytes.length));
-                    return new VoicemailPayload(bodyPartMimeType, bytes);
-                }
+    /**
+     * Listener for the changes reported while the folder is idling.
+     */
+    private static final class IdleChangesListener implements ImapFolder.IdleListener {
+
+        private final CancellationSignal mCancellationSignal;
+        private boolean mHasNewMessages;
+        private boolean mHasUpdates;
+
+        public IdleChangesListener(CancellationSignal cancellationSignal) {
+            mCancellationSignal = cancellationSignal;
+        }
+
+        public boolean hasNewMessages() {
+            return mHasNewMessages;
+        }
+
+        public boolean hasUpdates() {
+            return mHasUpdates;
+        }
+
+        @Override
+        public boolean onUntaggedResponse(ImapResponse response) {
+            if (response.isDataResponse(1, ImapConstants.EXISTS)) {
+                mHasNewMessages = true;
+            } else if (response.isDataResponse(1, ImapConstants.EXPUNGE)
+                    || response.isDataResponse(1, ImapConstants.FETCH)) {
+                mHasUpdates = true;
+            } else {
+                // Keep idling through other responses such as RECENT or keep-alive OKs.
+                return true;
             }
-            LogUtils.e(TAG, "No audio attachment found on this voicemail, mimeTypes:" + mimeTypes);
-            return null;
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancellationSignal.isCanceled();
         }
     }
 
@@ -641,19 +1033,28 @@ public class ImapHelper implements Closeable {
             ImapFolder.MessageRetrievalListener {
 
         private String mVoicemailTranscription;
+        private final Map<String, String> mVoicemailTranscriptions = new HashMap<>();
 
         /**
-         * Returns the fetched voicemail transcription.
+         * Returns the last fetched voicemail transcription.
          */
         public String getVoicemailTranscription() {
             return mVoicemailTranscription;
         }
 
+        /**
+         * Returns all fetched voicemail transcriptions, keyed by message UID.
+         */
+        public Map<String, String> getVoicemailTranscriptions() {
+            return mVoicemailTranscriptions;
+        }
+
         @Override
         public void messageRetrieved(Message message) {
             LogUtils.d(TAG, "Fetched transcription for " + message.getUid());
             try {
                 mVoicemailTranscription = new String(getDataFromBody(message.getBody()));
+                mVoicemailTranscriptions.put(message.getUid(), mVoicemailTranscription);
             } catch (MessagingException e) {
                 LogUtils.e(TAG, "Messaging Exception:", e);
             } catch (IOException e) {
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.vvm.omtp.imap;
+
+import com.android.phone.common.mail.store.ImapFolder;
+import com.android.phone.vvm.omtp.VisualVoicemailPreferences;
+
+/**
+ * The state of the voicemail mailbox as of the last successful sync, used to only download what
+ * has changed since then. A value of -1 means the server did not report it.
+ */
+class ImapSyncState {
+
+    private static final String PREF_KEY_UID_VALIDITY = "imap_uid_validity";
+    private static final String PREF_KEY_UID_NEXT = "imap_uid_next";
+    private static final String PREF_KEY_HIGHEST_MOD_SEQ = "imap_highest_mod_seq";
+
+    public final long uidValidity;
+    public final long uidNext;
+    public final long highestModSeq;
+
+    ImapSyncState(long uidValidity, long uidNext, long highestModSeq) {
+        this.uidValidity = uidValidity;
+        this.uidNext = uidNext;
+        this.highestModSeq = highestModSeq;
+    }
+
+    static ImapSyncState fromFolder(ImapFolder folder) {
+        return new ImapSyncState(folder.getUidValidity(), folder.getUidNext(),
+                folder.getHighestModSeq());
+    }
+
+    static ImapSyncState load(VisualVoicemailPreferences prefs) {
+        return new ImapSyncState(
+                prefs.getLong(PREF_KEY_UID_VALIDITY, -1),
+                prefs.getLong(PREF_KEY_UID_NEXT, -1),
+                prefs.getLong(PREF_KEY_HIGHEST_MOD_SEQ, -1));
+    }
+
+    void save(VisualVoicemailPreferences prefs) {
+        prefs.edit()
+                .putLong(PREF_KEY_UID_VALIDITY, uidValidity)
+                .putLong(PREF_KEY_UID_NEXT, uidNext)
+                .putLong(PREF_KEY_HIGHEST_MOD_SEQ, highestModSeq)
+                .apply();
+    }
+
+    /**
+     * @return whether UIDs seen in this state are still valid in {@code current}, so only the
+     * difference has to be downloaded. If the UIDVALIDITY has changed every UID must be
+     * considered new.
+     */
+    boolean canSyncIncrementallyTo(ImapSyncState current) {
+        return uidValidity != -1 && uidNext != -1
+                && uidValidity == current.uidValidity && current.uidNext != -1;
+    }
+
+    /**
+     * @return whether flag changes since this state can be queried with CHANGEDSINCE.
+     */
+    boolean hasModSeq(ImapSyncState current) {
+        return highestModSeq != -1 && current.highestModSeq != -1;
+    }
+
+    /**
+     * @return whether no message has been added, removed or changed between this state and
+     * {@code current}. This can only be known if the server supports CONDSTORE.
+     */
+    boolean isUnchanged(ImapSyncState current) {
+        return canSyncIncrementallyTo(current) && hasModSeq(current)
+                && uidNext == current.uidNext && highestModSeq == current.highestModSeq;
+    }
+
+    @Override
+    public String toString() {
+        return "ImapSyncState(uidValidity=" + uidValidity + ", uidNext=" + uidNext
+                + ", highestModSeq=" + highestModSeq + ")";
+    }
+}
@@ -156,6 +156,20 @@ public abstract class BaseTask implements Task {
         return mExecutionTime - getTimeMillis();
     }
 
+    @Override
+    public int getPriority() {
+        switch (mId) {
+            case TASK_ACTIVATION:
+                return PRIORITY_ACTIVATION;
+            case TASK_SYNC:
+                return PRIORITY_SYNC;
+            case TASK_UPLOAD:
+                return PRIORITY_UPLOAD;
+            default:
+                return PRIORITY_DEFAULT;
+        }
+    }
+
     @Override
     @CallSuper
     public void onBeforeExecute() {
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.vvm.omtp.scheduling;
+
+import android.annotation.MainThread;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.phone.Assert;
+import com.android.phone.vvm.omtp.VvmLog;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks consecutive IMAP server failures of tasks per host. Once a host has failed {@link
+ * #FAILURE_THRESHOLD} times in a row the circuit opens, and {@link RetryPolicy} holds back the
+ * retries of every task talking to that host until {@link #OPEN_DURATION_MILLIS} has passed. The
+ * first retry after that is a probe: a success closes the circuit and a failure opens it again.
+ */
+class ImapCircuitBreaker {
+
+    private static final String TAG = "ImapCircuitBreaker";
+
+    @VisibleForTesting
+    static final int FAILURE_THRESHOLD = 3;
+    @VisibleForTesting
+    static final long OPEN_DURATION_MILLIS = 5 * 60 * 1000;
+
+    private static final ImapCircuitBreaker sInstance = new ImapCircuitBreaker();
+
+    private static class HostState {
+        int failures;
+        long openUntilMillis;
+    }
+
+    /**
+     * Main thread only.
+     */
+    private final Map<String, HostState> mHosts = new HashMap<>();
+
+    static ImapCircuitBreaker getInstance() {
+        return sInstance;
+    }
+
+    @MainThread
+    void onSuccess(String host) {
+        Assert.isMainThread();
+        if (mHosts.remove(host) != null) {
+            VvmLog.d(TAG, "circuit closed for " + host);
+        }
+    }
+
+    @MainThread
+    void onFailure(String host, long timeMillis) {
+        Assert.isMainThread();
+        HostState state = mHosts.get(host);
+        if (state == null) {
+            state = new HostState();
+            mHosts.put(host, state);
+        }
+        state.failures++;
+        if (state.failures >= FAILURE_THRESHOLD) {
+            state.openUntilMillis = timeMillis + OPEN_DURATION_MILLIS;
+            VvmLog.i(TAG, "circuit opened for " + host + " after " + state.failures
+                    + " failures");
+        }
+    }
+
+    /**
+     * @return how long retries for {@code host} should still be held back, or 0 if the circuit is
+     * closed.
+     */
+    @MainThread
+    long getRemainingOpenMillis(String host, long timeMillis) {
+        Assert.isMainThread();
+        HostState state = mHosts.get(host);
+        if (state == null) {
+            return 0;
+        }
+        return Math.max(0, state.openUntilMillis - timeMillis);
+    }
+}
@@ -16,41 +16,89 @@
 
 package com.android.phone.vvm.omtp.scheduling;
 
+import android.content.Context;
 import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.VoicemailContract.Status;
 import android.telecom.PhoneAccountHandle;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.phone.VoicemailStatus;
+import com.android.phone.vvm.omtp.OmtpConstants;
+import com.android.phone.vvm.omtp.VisualVoicemailPreferences;
 import com.android.phone.vvm.omtp.VvmLog;
 import com.android.phone.vvm.omtp.utils.PhoneAccountHandleConverter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 /**
  * A task with this policy will automatically re-queue itself if {@link BaseTask#fail()} has been
  * called during {@link BaseTask#onExecuteInBackgroundThread()}. A task will be retried at most
- * <code>retryLimit</code> times and with a <code>retryDelayMillis</code> interval in between.
+ * <code>retryLimit</code> times.
+ *
+ * <p>With {@link #RetryPolicy(int, int)} the retries are <code>retryDelayMillis</code> apart. With
+ * {@link #RetryPolicy(int, int, int)} each delay is drawn between the base delay and three times
+ * the previous delay, capped at the maximum ("decorrelated jitter"), so clients which failed
+ * together do not retry together. Those policies also report IMAP server failures to the {@link
+ * ImapCircuitBreaker} of the host, and hold back the retry while the host is failing for everyone.
+ *
+ * <p>If there is no network at all the retry is queued once a network is available again.
  */
 public class RetryPolicy implements Policy {
 
     private static final String TAG = "RetryPolicy";
     private static final String EXTRA_RETRY_COUNT = "extra_retry_count";
+    private static final String EXTRA_RETRY_DELAY_MILLIS = "extra_retry_delay_millis";
+
+    /**
+     * How long a retry waits for a network before it is queued with its regular delay anyway.
+     */
+    private static final long NETWORK_WAIT_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private static final Random sRandom = new Random();
+
+    /**
+     * Retries waiting for a network, so they can be dropped when their source is removed.
+     */
+    private static final List<ConnectivityWaiter> sWaiters = new ArrayList<>();
 
     private final int mRetryLimit;
-    private final int mRetryDelayMillis;
+    private final int mBaseDelayMillis;
+    private final int mMaxDelayMillis;
 
     private BaseTask mTask;
+    private PhoneAccountHandle mPhoneAccountHandle;
 
     private int mRetryCount;
+    private long mRetryDelayMillis;
     private boolean mFailed;
 
     private VoicemailStatus.DeferredEditor mVoicemailStatusEditor;
 
     public RetryPolicy(int retryLimit, int retryDelayMillis) {
+        this(retryLimit, retryDelayMillis, retryDelayMillis);
+    }
+
+    public RetryPolicy(int retryLimit, int baseDelayMillis, int maxDelayMillis) {
         mRetryLimit = retryLimit;
-        mRetryDelayMillis = retryDelayMillis;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = Math.max(baseDelayMillis, maxDelayMillis);
     }
 
     private boolean hasMoreRetries() {
         return mRetryCount < mRetryLimit;
     }
 
+    private boolean hasBackoff() {
+        return mMaxDelayMillis > mBaseDelayMillis;
+    }
+
     /**
      * Error status should only be set if retries has exhausted or the task is successful. Status
      * writes to this editor will be deferred until the task has ended, and will only be committed
@@ -64,20 +112,20 @@ public class RetryPolicy implements Policy {
     public void onCreate(BaseTask task, Intent intent, int flags, int startId) {
         mTask = task;
         mRetryCount = intent.getIntExtra(EXTRA_RETRY_COUNT, 0);
+        mRetryDelayMillis = intent.getLongExtra(EXTRA_RETRY_DELAY_MILLIS, mBaseDelayMillis);
         if (mRetryCount > 0) {
             VvmLog.d(TAG, "retry #" + mRetryCount + " for " + mTask + " queued, executing in "
                     + mRetryDelayMillis);
             mTask.setExecutionTime(mTask.getTimeMillis() + mRetryDelayMillis);
         }
-        PhoneAccountHandle phoneAccountHandle = PhoneAccountHandleConverter
-                .fromSubId(task.getSubId());
-        if (phoneAccountHandle == null) {
+        mPhoneAccountHandle = PhoneAccountHandleConverter.fromSubId(task.getSubId());
+        if (mPhoneAccountHandle == null) {
             VvmLog.e(TAG, "null phone account for subId " + task.getSubId());
             // This should never happen, but continue on if it does. The status write will be
             // discarded.
         }
         mVoicemailStatusEditor = VoicemailStatus
-                .deferredEdit(task.getContext(), phoneAccountHandle);
+                .deferredEdit(task.getContext(), mPhoneAccountHandle);
     }
 
     @Override
@@ -87,6 +135,16 @@ public class RetryPolicy implements Policy {
 
     @Override
     public void onCompleted() {
+        String host = hasBackoff() ? getImapHost() : null;
+        if (host != null) {
+            if (mFailed) {
+                if (isImapFailure()) {
+                    ImapCircuitBreaker.getInstance().onFailure(host, mTask.getTimeMillis());
+                }
+            } else {
+                ImapCircuitBreaker.getInstance().onSuccess(host);
+            }
+        }
         if (!mFailed || !hasMoreRetries()) {
             if (!mFailed) {
                 VvmLog.d(TAG, mTask.toString() + " completed successfully");
@@ -99,10 +157,23 @@ public class RetryPolicy implements Policy {
             return;
         }
         VvmLog.i(TAG, "discarding deferred status: " + mVoicemailStatusEditor.getValues());
+        long delayMillis = getNextRetryDelayMillis(mBaseDelayMillis, mMaxDelayMillis,
+                mRetryDelayMillis, sRandom);
+        if (host != null) {
+            delayMillis = Math.max(delayMillis, ImapCircuitBreaker.getInstance()
+                    .getRemainingOpenMillis(host, mTask.getTimeMillis()));
+        }
         Intent intent = mTask.createRestartIntent();
         intent.putExtra(EXTRA_RETRY_COUNT, mRetryCount + 1);
+        intent.putExtra(EXTRA_RETRY_DELAY_MILLIS, delayMillis);
 
-        mTask.getContext().startService(intent);
+        Context context = mTask.getContext();
+        if (hasConnectivity(context)) {
+            TaskSchedulerService.requeueTask(context, intent);
+        } else {
+            VvmLog.i(TAG, "no network, waiting for one to retry " + mTask);
+            new ConnectivityWaiter(context, intent, mPhoneAccountHandle).register();
+        }
     }
 
     @Override
@@ -114,4 +185,150 @@ public class RetryPolicy implements Policy {
     public void onDuplicatedTaskAdded() {
 
     }
+
+    /**
+     * @return a delay between {@code baseDelayMillis} and three times {@code previousDelayMillis},
+     * capped at {@code maxDelayMillis}
+     */
+    @VisibleForTesting
+    static long getNextRetryDelayMillis(long baseDelayMillis, long maxDelayMillis,
+            long previousDelayMillis, Random random) {
+        long upper = Math.max(baseDelayMillis, previousDelayMillis * 3);
+        long delay = baseDelayMillis + (long) (random.nextDouble() * (upper - baseDelayMillis));
+        return Math.min(maxDelayMillis, delay);
+    }
+
+    /**
+     * @return whether the failure came from the IMAP server, as reported through the status.
+     * Failures before the server was reached, e.g. no network or an activation SMS timing out, and
+     * credential errors, which only concern this account, are not held against the host.
+     */
+    private boolean isImapFailure() {
+        Integer state = mVoicemailStatusEditor.getValues().getAsInteger(Status.DATA_CHANNEL_STATE);
+        if (state == null) {
+            return false;
+        }
+        switch (state) {
+            case Status.DATA_CHANNEL_STATE_SERVER_CONNECTION_ERROR:
+            case Status.DATA_CHANNEL_STATE_SERVER_ERROR:
+            case Status.DATA_CHANNEL_STATE_COMMUNICATION_ERROR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private String getImapHost() {
+        if (mPhoneAccountHandle == null) {
+            return null;
+        }
+        return new VisualVoicemailPreferences(mTask.getContext(), mPhoneAccountHandle)
+                .getString(OmtpConstants.SERVER_ADDRESS, null);
+    }
+
+    private static boolean hasConnectivity(Context context) {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            // Nothing to wait on, retry on the timer.
+            return true;
+        }
+        NetworkInfo info = connectivityManager.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    /**
+     * Drops the retries of {@code phoneAccountHandle} that are still waiting for a network, for
+     * example because the source has been removed.
+     */
+    public static void cancelNetworkWaits(PhoneAccountHandle phoneAccountHandle) {
+        List<ConnectivityWaiter> waiters;
+        synchronized (sWaiters) {
+            waiters = new ArrayList<>(sWaiters);
+        }
+        for (ConnectivityWaiter waiter : waiters) {
+            if (waiter.mPhoneAccountHandle != null
+                    && waiter.mPhoneAccountHandle.equals(phoneAccountHandle)) {
+                if (waiter.finish()) {
+                    VvmLog.i(TAG, "source removed, dropping retry waiting for network");
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a retry once any network with internet access is available. The task will request
+     * the network it needs itself. If no network shows up within {@link
+     * #NETWORK_WAIT_TIMEOUT_MILLIS} the retry is queued anyway with its regular delay, so the
+     * callback is never left registered.
+     */
+    private static class ConnectivityWaiter extends ConnectivityManager.NetworkCallback {
+
+        private final Context mContext;
+        private final Intent mIntent;
+        private final PhoneAccountHandle mPhoneAccountHandle;
+        private final ConnectivityManager mConnectivityManager;
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+        private final Runnable mTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (finish()) {
+                    VvmLog.i(TAG, "no network after waiting, queuing retry");
+                    TaskSchedulerService.requeueTask(mContext, mIntent);
+                }
+            }
+        };
+
+        // Guarded by sWaiters.
+        private boolean mFinished;
+
+        ConnectivityWaiter(Context context, Intent intent, PhoneAccountHandle phoneAccountHandle) {
+            mContext = context;
+            mIntent = intent;
+            mPhoneAccountHandle = phoneAccountHandle;
+            mConnectivityManager = (ConnectivityManager) context
+                    .getSystemService(Context.CONNECTIVITY_SERVICE);
+        }
+
+        void register() {
+            synchronized (sWaiters) {
+                sWaiters.add(this);
+            }
+            mConnectivityManager.registerNetworkCallback(new NetworkRequest.Builder()
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build(), this);
+            mHandler.postDelayed(mTimeoutRunnable, NETWORK_WAIT_TIMEOUT_MILLIS);
+        }
+
+        /**
+         * Unregisters the callback and the timeout.
+         *
+         * @return {@code false} if the waiter was already finished.
+         */
+        boolean finish() {
+            synchronized (sWaiters) {
+                if (mFinished) {
+                    return false;
+                }
+                mFinished = true;
+                sWaiters.remove(this);
+            }
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            mConnectivityManager.unregisterNetworkCallback(this);
+            return true;
+        }
+
+        @Override
+        public void onAvailable(Network network) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (finish()) {
+                        VvmLog.i(TAG, "network available, queuing retry");
+                        TaskSchedulerService.requeueTask(mContext, mIntent);
+                    }
+                }
+            });
+        }
+    }
 }
@@ -49,6 +49,15 @@ public interface Task {
     int TASK_SYNC = 2;
     int TASK_ACTIVATION = 3;
 
+    /**
+     * Priorities returned by {@link #getPriority()}. Higher values run first.
+     */
+    int PRIORITY_DEFAULT = 0;
+    int PRIORITY_UPLOAD = 1;
+    int PRIORITY_SYNC = 2;
+    int PRIORITY_FETCH = 3;
+    int PRIORITY_ACTIVATION = 4;
+
     /**
      * Used to differentiate between types of tasks. If a task with the same TaskId is already in
      * the queue the new task will be rejected.
@@ -95,12 +104,20 @@ public interface Task {
      * @return number of milliSeconds the scheduler should wait before running this task. A value
      * less than {@link TaskSchedulerService#READY_TOLERANCE_MILLISECONDS} will be considered ready.
      * If no tasks are ready, the scheduler will sleep for this amount of time before doing another
-     * check (it will still wake if a new task is added). The first task in the queue that is ready
-     * will be executed.
+     * check (it will still wake if a new task is added). Among the tasks that are ready, the one
+     * with the highest {@link #getPriority()} will be executed, and tasks with the same priority
+     * are executed in the order they are added.
      */
     @MainThread
     long getReadyInMilliSeconds();
 
+    /**
+     * @return the priority of the task, such as {@link #PRIORITY_SYNC}. Read once when the task
+     * is added to the scheduler.
+     */
+    @MainThread
+    int getPriority();
+
     /**
      * Called on the main thread when the scheduler is about to send the task into the worker
      * thread, calling {@link #onExecuteInBackgroundThread()}
@@ -39,12 +39,19 @@ import com.android.phone.NeededForTesting;
 import com.android.phone.vvm.omtp.VvmLog;
 import com.android.phone.vvm.omtp.scheduling.Task.TaskId;
 import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
- * A service to queue and run {@link Task} on a worker thread. Only one task will be ran at a time,
- * and same task cannot exist in the queue at the same time. The service will be started when a
- * intent is received, and stopped when there are no more tasks in the queue.
+ * A service to queue and run {@link Task} on worker threads. Tasks of different subscriptions may
+ * run at the same time, but only one task of a subscription will be ran at a time, and same task
+ * cannot exist in the queue at the same time. Among the tasks that are ready, the one with the
+ * highest {@link Task#getPriority()} runs first. The service will be started when a intent is
+ * received, and stopped when there are no more tasks in the queue.
  */
 public class TaskSchedulerService extends Service {
 
@@ -78,8 +85,20 @@ public class TaskSchedulerService extends Service {
 
     private static final String WAKE_LOCK_TAG = "TaskSchedulerService_wakelock";
 
-    // The thread to run tasks on
-    private volatile WorkerThreadHandler mWorkerThreadHandler;
+    /**
+     * The created service, see {@link #requeueTask(Context, Intent)}. Cleared once the service
+     * stops itself, as tasks added after that would be lost with it. Main thread only.
+     */
+    private static TaskSchedulerService sInstance;
+
+    /**
+     * Number of threads to run tasks on. Tasks mostly wait on the network, so this only needs to be
+     * enough to keep a slow task of one subscription from delaying the others.
+     */
+    private static final int WORKER_COUNT = 2;
+
+    // The threads to run tasks on, indexed by the arg1 of the messages.
+    private volatile WorkerThreadHandler[] mWorkerThreadHandlers;
 
     private Context mContext = this;
     /**
@@ -93,18 +112,66 @@ public class TaskSchedulerService extends Service {
     private WakeLock mWakeLock;
 
     /**
-     * Main thread only, access through {@link #getTasks()}
+     * Tasks waiting to be ran, ordered by priority and then by the order they are added. Main
+     * thread only, access through {@link #getTasks()}
+     */
+    private final TreeSet<QueuedTask> mTasks = new TreeSet<>();
+    /**
+     * Queued and running tasks by {@link TaskId}, except {@link Task#TASK_ALLOW_DUPLICATES}. Main
+     * thread only.
+     */
+    private final Map<TaskId, Task> mTaskIndex = new HashMap<>();
+    /**
+     * Subscriptions which have a task running. Main thread only.
+     */
+    private final Set<Integer> mBusySubIds = new HashSet<>();
+    /**
+     * Indexes of the workers which are not running a task. Main thread only.
+     */
+    private final ArrayDeque<Integer> mIdleWorkers = new ArrayDeque<>();
+    private long mNextSequence;
+
+    /**
+     * A task in the queue. Readiness changes with time and cannot be used as a key, so the queue
+     * is only ordered by priority, and {@link #runNextTask()} checks readiness as it walks it.
      */
-    private final Queue<Task> mTasks = new ArrayDeque<>();
-    private boolean mWorkerThreadIsBusy = false;
+    private static final class QueuedTask implements Comparable<QueuedTask> {
+        final Task task;
+        final int priority;
+        final long sequence;
+
+        QueuedTask(Task task, long sequence) {
+            this.task = task;
+            this.priority = task.getPriority();
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(QueuedTask other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
 
     private final Runnable mStopServiceWithDelay = new Runnable() {
         @Override
         public void run() {
             VvmLog.d(TAG, "Stopping service");
+            if (sInstance == TaskSchedulerService.this) {
+                sInstance = null;
+            }
             stopSelf();
         }
     };
+
+    private final Runnable mRunNextTaskAfterSleep = new Runnable() {
+        @Override
+        public void run() {
+            maybeRunNextTask();
+        }
+    };
     /**
      * Should attempt to run the next task when a task has finished or been added.
      */
@@ -131,6 +198,7 @@ public class TaskSchedulerService extends Service {
 
             Message schedulerMessage = mMainThreadHandler.obtainMessage();
             schedulerMessage.obj = task;
+            schedulerMessage.arg1 = msg.arg1;
             mMessageSender.send(schedulerMessage);
         }
     }
@@ -147,9 +215,12 @@ public class TaskSchedulerService extends Service {
         public void handleMessage(Message msg) {
             Assert.isMainThread();
             Task task = (Task) msg.obj;
-            getTasks().remove(task);
+            if (mTaskIndex.get(task.getId()) == task) {
+                mTaskIndex.remove(task.getId());
+            }
             task.onCompleted();
-            mWorkerThreadIsBusy = false;
+            mBusySubIds.remove(task.getId().subId);
+            mIdleWorkers.add(msg.arg1);
             maybeRunNextTask();
         }
     }
@@ -161,16 +232,26 @@ public class TaskSchedulerService extends Service {
         mWakeLock = getSystemService(PowerManager.class)
                 .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WAKE_LOCK_TAG);
         mWakeLock.setReferenceCounted(false);
-        HandlerThread thread = new HandlerThread("VvmTaskSchedulerService");
-        thread.start();
-
-        mWorkerThreadHandler = new WorkerThreadHandler(thread.getLooper());
+        WorkerThreadHandler[] workerThreadHandlers = new WorkerThreadHandler[WORKER_COUNT];
+        for (int i = 0; i < WORKER_COUNT; i++) {
+            HandlerThread thread = new HandlerThread("VvmTaskSchedulerService-" + i);
+            thread.start();
+            workerThreadHandlers[i] = new WorkerThreadHandler(thread.getLooper());
+            mIdleWorkers.add(i);
+        }
+        mWorkerThreadHandlers = workerThreadHandlers;
         mMainThreadHandler = new MainThreadHandler(Looper.getMainLooper());
+        sInstance = this;
     }
 
     @Override
     public void onDestroy() {
-        mWorkerThreadHandler.getLooper().quit();
+        if (sInstance == this) {
+            sInstance = null;
+        }
+        for (WorkerThreadHandler handler : mWorkerThreadHandlers) {
+            handler.getLooper().quit();
+        }
         mWakeLock.release();
     }
 
@@ -210,30 +291,50 @@ public class TaskSchedulerService extends Service {
                 oldTask.onDuplicatedTaskAdded(task);
                 return;
             }
+            mTaskIndex.put(task.getId(), task);
         }
         mMainThreadHandler.removeCallbacks(mStopServiceWithDelay);
-        getTasks().add(task);
+        getTasks().add(new QueuedTask(task, mNextSequence++));
         maybeRunNextTask();
     }
 
+    /**
+     * @return the queued or running task with {@code taskId}
+     */
     @MainThread
     @Nullable
     private Task getTask(TaskId taskId) {
         Assert.isMainThread();
-        for (Task task : getTasks()) {
-            if (task.getId().equals(taskId)) {
-                return task;
-            }
-        }
-        return null;
+        return mTaskIndex.get(taskId);
     }
 
     @MainThread
-    private Queue<Task> getTasks() {
+    private TreeSet<QueuedTask> getTasks() {
         Assert.isMainThread();
         return mTasks;
     }
 
+    /**
+     * Queues the task described by {@code intent}, which was created with {@link
+     * #createIntent(Context, Class)}. If the service is running and not stopping the task is added
+     * directly instead of going through {@link Context#startService(Intent)}.
+     */
+    @MainThread
+    public static void requeueTask(Context context, Intent intent) {
+        Assert.isMainThread();
+        TaskSchedulerService service = sInstance;
+        if (service == null) {
+            context.startService(intent);
+            return;
+        }
+        Task task = service.createTask(intent, 0, 0);
+        if (task == null) {
+            VvmLog.e(TAG, "cannot create task form intent");
+            return;
+        }
+        service.addTask(task);
+    }
+
     /**
      * Create an intent that will queue the <code>task</code>
      */
@@ -268,38 +369,57 @@ public class TaskSchedulerService extends Service {
     @MainThread
     private void maybeRunNextTask() {
         Assert.isMainThread();
-        if (mWorkerThreadIsBusy) {
-            return;
-        }
         if (mTaskAutoRunDisabledForTesting) {
             // If mTaskAutoRunDisabledForTesting is true, runNextTask() must be explicitly called
             // to run the next task.
             return;
         }
 
-        runNextTask();
+        while (runNextTask()) {
+            // Keep starting tasks until the workers are busy or no other task is ready.
+        }
     }
 
+    /**
+     * Starts the first ready task whose subscription has no task running, if a worker is idle.
+     *
+     * @return whether a task is started
+     */
     @VisibleForTesting
     @MainThread
-    void runNextTask() {
+    boolean runNextTask() {
         Assert.isMainThread();
+        if (mIdleWorkers.isEmpty()) {
+            // Will be called again when a task completes.
+            return false;
+        }
         // The current alarm is no longer valid, a new one will be set up if required.
         getSystemService(AlarmManager.class).cancel(getWakeupIntent());
+        mMainThreadHandler.removeCallbacks(mRunNextTaskAfterSleep);
         if (getTasks().isEmpty()) {
-            prepareStop();
-            return;
+            if (!hasRunningTask()) {
+                prepareStop();
+            }
+            return false;
         }
         Long minimalWaitTime = null;
-        for (Task task : getTasks()) {
+        Iterator<QueuedTask> iterator = getTasks().iterator();
+        while (iterator.hasNext()) {
+            Task task = iterator.next().task;
+            if (mBusySubIds.contains(task.getId().subId)) {
+                continue;
+            }
             long waitTime = task.getReadyInMilliSeconds();
             if (waitTime < READY_TOLERANCE_MILLISECONDS) {
+                iterator.remove();
+                int worker = mIdleWorkers.poll();
+                mBusySubIds.add(task.getId().subId);
                 task.onBeforeExecute();
-                Message message = mWorkerThreadHandler.obtainMessage();
+                Message message = mWorkerThreadHandlers[worker].obtainMessage();
                 message.obj = task;
-                mWorkerThreadIsBusy = true;
+                message.arg1 = worker;
                 mMessageSender.send(message);
-                return;
+                return true;
             } else {
                 if (minimalWaitTime == null || waitTime < minimalWaitTime) {
                     minimalWaitTime = waitTime;
@@ -312,16 +432,17 @@ public class TaskSchedulerService extends Service {
             // If a new task is added during the sleep the service will wake immediately.
             sleep(minimalWaitTime);
         }
+        return false;
     }
 
     private void sleep(long timeMillis) {
         if (timeMillis < SHORT_SLEEP_THRESHOLD_MILLISECONDS) {
-            mMainThreadHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    maybeRunNextTask();
-                }
-            }, timeMillis);
+            mMainThreadHandler.postDelayed(mRunNextTaskAfterSleep, timeMillis);
+            return;
+        }
+        if (hasRunningTask()) {
+            // Keep the wake lock for the running tasks. The queue will be checked again when they
+            // complete.
             return;
         }
 
@@ -336,6 +457,11 @@ public class TaskSchedulerService extends Service {
         VvmLog.d(TAG, "Long sleep for " + timeMillis + " millis");
     }
 
+    @MainThread
+    private boolean hasRunningTask() {
+        return mIdleWorkers.size() < WORKER_COUNT;
+    }
+
     private PendingIntent getWakeupIntent() {
         Intent intent = new Intent(ACTION_WAKEUP, null, this, getClass());
         return PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
@@ -373,6 +499,7 @@ public class TaskSchedulerService extends Service {
     @NeededForTesting
     void clearTasksForTest() {
         mTasks.clear();
+        mTaskIndex.clear();
     }
 
     @Override
@@ -67,7 +67,7 @@ public class OmtpMessageReceiver extends BroadcastReceiver {
             return;
         }
 
-        OmtpVvmCarrierConfigHelper helper = new OmtpVvmCarrierConfigHelper(mContext, subId);
+        OmtpVvmCarrierConfigHelper helper = OmtpVvmCarrierConfigHelper.get(mContext, subId);
         if (!VisualVoicemailSettingsUtil.isEnabled(mContext, phone)) {
             if (helper.isLegacyModeEnabled()) {
                 LegacyModeSmsHandler.handle(context, intent, phone);
@@ -63,7 +63,7 @@ public class OmtpProvisioningService extends IntentService {
     }
 
     private void startProvisioning(PhoneAccountHandle phone, StatusMessage message, Bundle data) {
-        OmtpVvmCarrierConfigHelper helper = new OmtpVvmCarrierConfigHelper(this,
+        OmtpVvmCarrierConfigHelper helper = OmtpVvmCarrierConfigHelper.get(this,
                 PhoneUtils.getSubIdForPhoneAccountHandle(phone));
 
     }
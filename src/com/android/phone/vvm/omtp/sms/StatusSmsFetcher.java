@@ -126,7 +126,7 @@ public class StatusSmsFetcher extends BroadcastReceiver implements Closeable {
 
         VvmLog.i(TAG, "VVM SMS with event " + eventType
                 + " received, attempting to translate to STATUS SMS");
-        OmtpVvmCarrierConfigHelper helper = new OmtpVvmCarrierConfigHelper(context, subId);
+        OmtpVvmCarrierConfigHelper helper = OmtpVvmCarrierConfigHelper.get(context, subId);
         VisualVoicemailProtocol protocol = helper.getProtocol();
         if (protocol == null) {
             return;
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.vvm.omtp.sync;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.provider.VoicemailContract;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.Voicemail;
+import android.util.ArrayMap;
+import com.android.phone.VoicemailStatus;
+import com.android.phone.settings.VisualVoicemailSettingsUtil;
+import com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper;
+import com.android.phone.vvm.omtp.VvmLog;
+import com.android.phone.vvm.omtp.imap.ImapHelper;
+import com.android.phone.vvm.omtp.imap.ImapHelper.InitializingException;
+import com.android.phone.vvm.omtp.imap.ImapHelper.MailboxChanges;
+import com.android.phone.vvm.omtp.sync.VvmNetworkRequest.NetworkWrapper;
+import com.android.phone.vvm.omtp.sync.VvmNetworkRequest.RequestFailedException;
+import com.android.phone.vvm.omtp.utils.PhoneAccountHandleConverter;
+import java.util.Map;
+
+/**
+ * Keeps a connection to the IMAP server of an account in IDLE (RFC 2177), so the server can push
+ * new voicemails as soon as they arrive instead of waiting for the SYNC SMS. New voicemails are
+ * inserted and then downloaded by a {@link SyncOneTask}. Removed or changed messages trigger a
+ * download only {@link SyncTask}.
+ *
+ * <p>The listener is only started if {@link OmtpVvmCarrierConfigHelper#isImapIdleEnabled()}, and
+ * stops by itself if the server does not advertise IDLE. SYNC SMS are still handled as usual.
+ */
+public class ImapIdleListener extends Thread {
+
+    private static final String TAG = "ImapIdleListener";
+
+    /**
+     * Servers may log out a client idling for 30 minutes, so IDLE is restarted before that.
+     */
+    private static final long IDLE_DURATION_MILLIS = 28 * 60 * 1000;
+
+    private static final long MIN_RETRY_DELAY_MILLIS = 30 * 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 30 * 60 * 1000;
+
+    private static final int RESULT_CANCELLED = 0;
+    private static final int RESULT_FAILED = 1;
+    private static final int RESULT_NOT_SUPPORTED = 2;
+
+    private static final Map<PhoneAccountHandle, ImapIdleListener> sListeners = new ArrayMap<>();
+
+    private final Context mContext;
+    private final PhoneAccountHandle mPhoneAccount;
+    private final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+    private long mRetryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+
+    /**
+     * Starts listening to the mailbox of {@code phoneAccount} if the carrier enables it. Does
+     * nothing if a listener is already running for the account.
+     */
+    public static void start(Context context, PhoneAccountHandle phoneAccount) {
+        OmtpVvmCarrierConfigHelper config = OmtpVvmCarrierConfigHelper.get(context,
+                PhoneAccountHandleConverter.toSubId(phoneAccount));
+        if (!config.isImapIdleEnabled()) {
+            return;
+        }
+        synchronized (sListeners) {
+            ImapIdleListener listener = sListeners.get(phoneAccount);
+            if (listener != null && listener.isAlive()) {
+                return;
+            }
+            listener = new ImapIdleListener(context.getApplicationContext(), phoneAccount);
+            sListeners.put(phoneAccount, listener);
+            listener.start();
+        }
+    }
+
+    /**
+     * Stops the listener of {@code phoneAccount}, if any. The connection is closed within a minute.
+     */
+    public static void stop(PhoneAccountHandle phoneAccount) {
+        ImapIdleListener listener;
+        synchronized (sListeners) {
+            listener = sListeners.remove(phoneAccount);
+        }
+        if (listener != null) {
+            VvmLog.i(TAG, "Stopping listener for " + phoneAccount);
+            listener.mCancellationSignal.cancel();
+            listener.interrupt();
+        }
+    }
+
+    private ImapIdleListener(Context context, PhoneAccountHandle phoneAccount) {
+        super(TAG);
+        mContext = context;
+        mPhoneAccount = phoneAccount;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!mCancellationSignal.isCanceled()) {
+                if (!VisualVoicemailSettingsUtil.isEnabled(mContext, mPhoneAccount)
+                        || !OmtpVvmSourceManager.getInstance(mContext)
+                        .isVvmSourceRegistered(mPhoneAccount)) {
+                    VvmLog.i(TAG, "Visual voicemail no longer active, stopping");
+                    return;
+                }
+                switch (listen()) {
+                    case RESULT_NOT_SUPPORTED:
+                        VvmLog.i(TAG, "IDLE not supported by server, stopping");
+                        return;
+                    case RESULT_FAILED:
+                        VvmLog.i(TAG, "Reconnecting in " + mRetryDelayMillis + "ms");
+                        Thread.sleep(mRetryDelayMillis);
+                        mRetryDelayMillis = Math.min(mRetryDelayMillis * 2,
+                                MAX_RETRY_DELAY_MILLIS);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped.
+        } finally {
+            synchronized (sListeners) {
+                if (sListeners.get(mPhoneAccount) == this) {
+                    sListeners.remove(mPhoneAccount);
+                }
+            }
+        }
+    }
+
+    /**
+     * Connects to the server and idles until the connection fails or the listener is stopped.
+     */
+    private int listen() {
+        OmtpVvmCarrierConfigHelper config = OmtpVvmCarrierConfigHelper.get(mContext,
+                PhoneAccountHandleConverter.toSubId(mPhoneAccount));
+        // Connection errors of the listener are not shown to the user, they will be reported by
+        // the next sync if they persist.
+        VoicemailStatus.Editor status = VoicemailStatus.deferredEdit(mContext, mPhoneAccount);
+        try (NetworkWrapper network = VvmNetworkRequest.getNetwork(config, mPhoneAccount,
+                status)) {
+            if (network == null) {
+                VvmLog.e(TAG, "unable to acquire network");
+                return RESULT_FAILED;
+            }
+            try (ImapHelper imapHelper = new ImapHelper(mContext, config, mPhoneAccount,
+                    network.get(), status)) {
+                while (!mCancellationSignal.isCanceled()) {
+                    MailboxChanges changes =
+                            imapHelper.waitForChanges(IDLE_DURATION_MILLIS, mCancellationSignal);
+                    if (changes == null) {
+                        return RESULT_FAILED;
+                    }
+                    if (changes == MailboxChanges.IDLE_NOT_SUPPORTED) {
+                        return RESULT_NOT_SUPPORTED;
+                    }
+                    mRetryDelayMillis = MIN_RETRY_DELAY_MILLIS;
+                    onMailboxChanged(changes);
+                }
+                return RESULT_CANCELLED;
+            }
+        } catch (RequestFailedException | InitializingException e) {
+            VvmLog.w(TAG, "Unable to connect: " + e);
+            return RESULT_FAILED;
+        }
+    }
+
+    private void onMailboxChanged(MailboxChanges changes) {
+        VoicemailsQueryHelper queryHelper = new VoicemailsQueryHelper(mContext);
+        for (Voicemail voicemail : changes.newVoicemails) {
+            if (!queryHelper.isVoicemailUnique(voicemail)) {
+                // Already inserted by a SYNC SMS.
+                continue;
+            }
+            Uri uri = VoicemailContract.Voicemails.insert(mContext, voicemail);
+            VvmLog.i(TAG, "New voicemail pushed by server");
+            SyncOneTask.start(mContext, mPhoneAccount,
+                    Voicemail.createForUpdate(ContentUris.parseId(uri), voicemail.getSourceData())
+                            .setUri(uri)
+                            .setPhoneAccount(mPhoneAccount)
+                            .build());
+        }
+        if (changes.hasUpdates) {
+            SyncTask.start(mContext, mPhoneAccount, OmtpVvmSyncService.SYNC_DOWNLOAD_ONLY);
+        }
+    }
+}
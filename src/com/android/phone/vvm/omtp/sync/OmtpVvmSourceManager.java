@@ -24,6 +24,7 @@ import com.android.internal.telephony.Phone;
 import com.android.phone.PhoneUtils;
 import com.android.phone.VoicemailStatus;
 import com.android.phone.vvm.omtp.VvmPhoneStateListener;
+import com.android.phone.vvm.omtp.scheduling.RetryPolicy;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
@@ -106,6 +107,8 @@ public class OmtpVvmSourceManager {
         // TODO: should use OmtpVvmCarrierConfigHelper to handle the event. But currently it
         // couldn't handle events on removed SIMs
         VoicemailStatus.disable(mContext, phoneAccount);
+        ImapIdleListener.stop(phoneAccount);
+        RetryPolicy.cancelNetworkWaits(phoneAccount);
         removePhoneStateListener(phoneAccount);
         mActiveVvmSources.remove(phoneAccount);
     }
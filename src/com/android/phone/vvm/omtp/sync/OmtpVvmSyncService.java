@@ -18,7 +18,6 @@ package com.android.phone.vvm.omtp.sync;
 import android.content.Context;
 import android.net.Network;
 import android.net.Uri;
-import android.provider.VoicemailContract;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.Voicemail;
 import android.text.TextUtils;
@@ -37,6 +36,7 @@ import com.android.phone.vvm.omtp.scheduling.BaseTask;
 import com.android.phone.vvm.omtp.sync.VvmNetworkRequest.NetworkWrapper;
 import com.android.phone.vvm.omtp.sync.VvmNetworkRequest.RequestFailedException;
 import com.android.phone.vvm.omtp.utils.PhoneAccountHandleConverter;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -99,7 +99,7 @@ public class OmtpVvmSyncService {
             return;
         }
 
-        OmtpVvmCarrierConfigHelper config = new OmtpVvmCarrierConfigHelper(mContext, subId);
+        OmtpVvmCarrierConfigHelper config = OmtpVvmCarrierConfigHelper.get(mContext, subId);
         // DATA_IMAP_OPERATION_STARTED posting should not be deferred. This event clears all data
         // channel errors, which should happen when the task starts, not when it ends. It is the
         // "Sync in progress..." status.
@@ -123,7 +123,9 @@ public class OmtpVvmSyncService {
         try (ImapHelper imapHelper = new ImapHelper(mContext, phoneAccount, network, status)) {
             boolean success;
             if (voicemail == null) {
-                success = syncAll(action, imapHelper, phoneAccount);
+                success = syncAll(action, imapHelper, phoneAccount,
+                        new PayloadPrefetcher(mContext, phoneAccount, network, imapHelper,
+                                status));
             } else {
                 success = syncOne(imapHelper, voicemail, phoneAccount);
             }
@@ -140,7 +142,8 @@ public class OmtpVvmSyncService {
         }
     }
 
-    private boolean syncAll(String action, ImapHelper imapHelper, PhoneAccountHandle account) {
+    private boolean syncAll(String action, ImapHelper imapHelper, PhoneAccountHandle account,
+            PayloadPrefetcher prefetcher) {
         boolean uploadSuccess = true;
         boolean downloadSuccess = true;
 
@@ -148,7 +151,7 @@ public class OmtpVvmSyncService {
             uploadSuccess = upload(imapHelper);
         }
         if (SYNC_FULL_SYNC.equals(action) || SYNC_DOWNLOAD_ONLY.equals(action)) {
-            downloadSuccess = download(imapHelper, account);
+            downloadSuccess = download(imapHelper, account, prefetcher);
         }
 
         VvmLog.v(TAG, "upload succeeded: [" + String.valueOf(uploadSuccess)
@@ -187,9 +190,8 @@ public class OmtpVvmSyncService {
         }
 
         if (readVoicemails.size() > 0) {
-            if (imapHelper.markMessagesAsRead(readVoicemails)) {
-                mQueryHelper.markCleanInDatabase(readVoicemails);
-            } else {
+            if (!imapHelper.markMessagesAsRead(readVoicemails)
+                    || mQueryHelper.markCleanInDatabase(readVoicemails) == 0) {
                 success = false;
             }
         }
@@ -197,17 +199,24 @@ public class OmtpVvmSyncService {
         return success;
     }
 
-    private boolean download(ImapHelper imapHelper, PhoneAccountHandle account) {
-        List<Voicemail> serverVoicemails = imapHelper.fetchAllVoicemails();
+    private boolean download(ImapHelper imapHelper, PhoneAccountHandle account,
+            PayloadPrefetcher prefetcher) {
         List<Voicemail> localVoicemails = mQueryHelper.getAllVoicemails();
-
-        if (localVoicemails == null || serverVoicemails == null) {
+        if (localVoicemails == null) {
             // Null value means the query failed.
             return false;
         }
 
+        List<Voicemail> serverVoicemails = imapHelper.fetchVoicemailChanges(localVoicemails);
+        if (serverVoicemails == null) {
+            return false;
+        }
+
         Map<String, Voicemail> remoteMap = buildMap(serverVoicemails);
 
+        // All the changes of this pass are written to the provider in a few transactions.
+        VoicemailsQueryHelper.Batch batch = mQueryHelper.newBatch();
+
         // Go through all the local voicemails and check if they are on the server.
         // They may be read or deleted on the server but not locally. Perform the
         // appropriate local operation if the status differs from the server. Remove
@@ -217,36 +226,44 @@ public class OmtpVvmSyncService {
             Voicemail localVoicemail = localVoicemails.get(i);
             Voicemail remoteVoicemail = remoteMap.remove(localVoicemail.getSourceData());
             if (remoteVoicemail == null) {
-                mQueryHelper.deleteFromDatabase(localVoicemail);
+                batch.delete(localVoicemail);
             } else {
                 if (remoteVoicemail.isRead() != localVoicemail.isRead()) {
-                    mQueryHelper.markReadInDatabase(localVoicemail);
+                    batch.markRead(localVoicemail);
                 }
 
                 if (!TextUtils.isEmpty(remoteVoicemail.getTranscription()) &&
                         TextUtils.isEmpty(localVoicemail.getTranscription())) {
-                    mQueryHelper.updateWithTranscription(localVoicemail,
+                    batch.updateWithTranscription(localVoicemail,
                             remoteVoicemail.getTranscription());
                 }
             }
         }
 
-        // The leftover messages are messages that exist on the server but not locally.
-        boolean prefetchEnabled = shouldPerformPrefetch(account, imapHelper);
-        for (Voicemail remoteVoicemail : remoteMap.values()) {
-            Uri uri = VoicemailContract.Voicemails.insert(mContext, remoteVoicemail);
-            if (prefetchEnabled) {
-                VoicemailFetchedCallback fetchedCallback =
-                        new VoicemailFetchedCallback(mContext, uri, account);
-                imapHelper.fetchVoicemailPayload(fetchedCallback, remoteVoicemail.getSourceData());
+        // The leftover messages are messages that exist on the server but not locally. All of
+        // them are inserted before the payloads are fetched, so they show up right away.
+        List<Voicemail> newVoicemails = new ArrayList<>(remoteMap.values());
+        for (Voicemail remoteVoicemail : newVoicemails) {
+            batch.insert(remoteVoicemail);
+        }
+        List<Uri> insertedUris = batch.apply();
+        if (insertedUris == null) {
+            return false;
+        }
+
+        if (shouldPerformPrefetch(account, imapHelper)) {
+            for (int i = 0; i < newVoicemails.size(); i++) {
+                prefetcher.add(insertedUris.get(i), newVoicemails.get(i).getSourceData());
             }
+            prefetcher.run();
         }
 
+        imapHelper.commitSyncState();
         return true;
     }
 
     private boolean shouldPerformPrefetch(PhoneAccountHandle account, ImapHelper imapHelper) {
-        OmtpVvmCarrierConfigHelper carrierConfigHelper = new OmtpVvmCarrierConfigHelper(
+        OmtpVvmCarrierConfigHelper carrierConfigHelper = OmtpVvmCarrierConfigHelper.get(
                 mContext, PhoneUtils.getSubIdForPhoneAccountHandle(account));
         return carrierConfigHelper.isPrefetchEnabled() && !imapHelper.isRoaming();
     }
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.vvm.omtp.sync;
+
+import android.content.Context;
+import android.net.Network;
+import android.net.Uri;
+import android.telecom.PhoneAccountHandle;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.phone.VoicemailStatus;
+import com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper;
+import com.android.phone.vvm.omtp.VvmLog;
+import com.android.phone.vvm.omtp.fetch.VoicemailFetchedCallback;
+import com.android.phone.vvm.omtp.imap.ImapHelper;
+import com.android.phone.vvm.omtp.imap.ImapHelper.InitializingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prefetches the payloads of the new voicemails of one account over up to
+ * {@link OmtpVvmCarrierConfigHelper#getPrefetchThreads()} IMAP connections at once. The sync
+ * thread fetches with its own {@link ImapHelper}, the other workers run on a pool shared by all
+ * accounts and each open their own connection on the same network.
+ *
+ * <p>Payloads are fetched in the order they were added, and {@link #run()} only returns once all
+ * of them are done, so the sync still commits its state after the payloads are stored. Status
+ * changes of the workers are merged into the status of the sync in a fixed order.
+ */
+class PayloadPrefetcher {
+
+    private static final String TAG = "PayloadPrefetcher";
+
+    /** The maximum number of workers, in addition to the sync threads, for all accounts. */
+    private static final int MAX_POOL_THREADS = 4;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(0,
+            MAX_POOL_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>());
+
+    private static class Request {
+
+        final Uri uri;
+        final String uid;
+
+        Request(Uri uri, String uid) {
+            this.uri = uri;
+            this.uid = uid;
+        }
+    }
+
+    private final Context mContext;
+    private final PhoneAccountHandle mPhoneAccount;
+    private final Network mNetwork;
+    private final ImapHelper mImapHelper;
+    private final VoicemailStatus.Editor mStatus;
+
+    private final Queue<Request> mRequests = new ConcurrentLinkedQueue<>();
+    private int mRequestCount;
+
+    private ImapHelperCreator mImapHelperCreator;
+
+    PayloadPrefetcher(Context context, PhoneAccountHandle phoneAccount, Network network,
+            ImapHelper imapHelper, VoicemailStatus.Editor status) {
+        mContext = context;
+        mPhoneAccount = phoneAccount;
+        mNetwork = network;
+        mImapHelper = imapHelper;
+        mStatus = status;
+    }
+
+    // For testing. We need something that can replace the connection opened by each worker.
+    @VisibleForTesting
+    interface ImapHelperCreator {
+
+        ImapHelper createImapHelper(VoicemailStatus.Editor status) throws InitializingException;
+    }
+
+    @VisibleForTesting
+    void setImapHelperCreator(ImapHelperCreator creator) {
+        mImapHelperCreator = creator;
+    }
+
+    /**
+     * Queues the payload of the voicemail with source data {@code uid}, inserted at {@code uri}.
+     */
+    void add(Uri uri, String uid) {
+        mRequests.add(new Request(uri, uid));
+        mRequestCount++;
+    }
+
+    /**
+     * Fetches all queued payloads, and returns once they are done.
+     */
+    void run() {
+        OmtpVvmCarrierConfigHelper config = mImapHelper.getConfig();
+        int workerCount = Math.min(config.getPrefetchThreads(), mRequestCount) - 1;
+        final CountDownLatch done = new CountDownLatch(Math.max(0, workerCount));
+        final List<VoicemailStatus.Editor> workerStatuses = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            final VoicemailStatus.Editor status =
+                    VoicemailStatus.deferredEdit(mContext, mPhoneAccount);
+            try {
+                sExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            runWorker(status);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                VvmLog.i(TAG, "Prefetching with " + (i + 1) + " connections, pool is busy");
+                for (; i < workerCount; i++) {
+                    done.countDown();
+                }
+                break;
+            }
+            workerStatuses.add(status);
+        }
+
+        fetchAll(mImapHelper);
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            VvmLog.w(TAG, "Interrupted waiting for prefetch workers");
+            Thread.currentThread().interrupt();
+            return;
+        }
+        boolean changed = false;
+        for (VoicemailStatus.Editor status : workerStatuses) {
+            if (status.getValues().size() > 0) {
+                mStatus.getValues().putAll(status.getValues());
+                changed = true;
+            }
+        }
+        if (changed) {
+            mStatus.apply();
+        }
+    }
+
+    private ImapHelper createImapHelper(VoicemailStatus.Editor status)
+            throws InitializingException {
+        if (mImapHelperCreator != null) {
+            return mImapHelperCreator.createImapHelper(status);
+        }
+        return new ImapHelper(mContext, mImapHelper.getConfig(), mPhoneAccount, mNetwork, status);
+    }
+
+    private void runWorker(VoicemailStatus.Editor status) {
+        try (ImapHelper imapHelper = createImapHelper(status)) {
+            fetchAll(imapHelper);
+        } catch (InitializingException e) {
+            VvmLog.w(TAG, "Can't retrieve Imap credentials.", e);
+        }
+    }
+
+    private void fetchAll(ImapHelper imapHelper) {
+        Request request;
+        while ((request = mRequests.poll()) != null) {
+            VoicemailFetchedCallback callback =
+                    new VoicemailFetchedCallback(mContext, request.uri, mPhoneAccount);
+            imapHelper.fetchVoicemailPayload(callback, request.uid);
+        }
+    }
+}
@@ -33,6 +33,7 @@ public class SyncOneTask extends BaseTask {
 
     private static final int RETRY_TIMES = 2;
     private static final int RETRY_INTERVAL_MILLIS = 5_000;
+    private static final int MAX_RETRY_INTERVAL_MILLIS = 60_000;
 
     private static final String EXTRA_PHONE_ACCOUNT_HANDLE = "extra_phone_account_handle";
     private static final String EXTRA_SYNC_TYPE = "extra_sync_type";
@@ -54,7 +55,7 @@ public class SyncOneTask extends BaseTask {
 
     public SyncOneTask() {
         super(TASK_ALLOW_DUPLICATES);
-        addPolicy(new RetryPolicy(RETRY_TIMES, RETRY_INTERVAL_MILLIS));
+        addPolicy(new RetryPolicy(RETRY_TIMES, RETRY_INTERVAL_MILLIS, MAX_RETRY_INTERVAL_MILLIS));
     }
 
     public void onCreate(Context context, Intent intent, int flags, int startId) {
@@ -64,6 +65,12 @@ public class SyncOneTask extends BaseTask {
         mVoicemail = intent.getParcelableExtra(EXTRA_VOICEMAIL);
     }
 
+    @Override
+    public int getPriority() {
+        // Fetches a voicemail the user is waiting for.
+        return PRIORITY_FETCH;
+    }
+
     @Override
     public void onExecuteInBackgroundThread() {
         OmtpVvmSyncService service = new OmtpVvmSyncService(getContext());
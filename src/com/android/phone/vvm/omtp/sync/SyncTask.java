@@ -32,6 +32,7 @@ public class SyncTask extends BaseTask {
     // Try sync for a total of 5 times, should take around 5 minutes before finally giving up.
     private static final int RETRY_TIMES = 4;
     private static final int RETRY_INTERVAL_MILLIS = 5_000;
+    private static final int MAX_RETRY_INTERVAL_MILLIS = 60_000;
     private static final int MINIMAL_INTERVAL_MILLIS = 60_000;
 
     private static final String EXTRA_PHONE_ACCOUNT_HANDLE = "extra_phone_account_handle";
@@ -52,7 +53,8 @@ public class SyncTask extends BaseTask {
 
     public SyncTask() {
         super(TASK_SYNC);
-        mRetryPolicy = new RetryPolicy(RETRY_TIMES, RETRY_INTERVAL_MILLIS);
+        mRetryPolicy = new RetryPolicy(RETRY_TIMES, RETRY_INTERVAL_MILLIS,
+                MAX_RETRY_INTERVAL_MILLIS);
         addPolicy(mRetryPolicy);
         addPolicy(new MinimalIntervalPolicy(MINIMAL_INTERVAL_MILLIS));
     }
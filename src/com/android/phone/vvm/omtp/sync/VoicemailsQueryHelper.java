@@ -15,16 +15,22 @@
  */
 package com.android.phone.vvm.omtp.sync;
 
+import android.annotation.Nullable;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.provider.VoicemailContract;
 import android.provider.VoicemailContract.Voicemails;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.Voicemail;
+import com.android.phone.vvm.omtp.VvmLog;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -32,6 +38,14 @@ import java.util.List;
  * Construct queries to interact with the voicemails table.
  */
 public class VoicemailsQueryHelper {
+
+    private static final String TAG = "VoicemailsQueryHelper";
+
+    /**
+     * The maximum number of operations sent to the provider in one transaction, so a large batch
+     * does not exceed the binder transaction size.
+     */
+    private static final int MAX_OPERATIONS_PER_TRANSACTION = 200;
     final static String[] PROJECTION = new String[] {
             Voicemails._ID,              // 0
             Voicemails.SOURCE_DATA,      // 1
@@ -150,21 +164,21 @@ public class VoicemailsQueryHelper {
     }
 
     public int markReadInDatabase(List<Voicemail> voicemails) {
-        int count = voicemails.size();
-        for (int i = 0; i < count; i++) {
-            markReadInDatabase(voicemails.get(i));
+        Batch batch = newBatch();
+        for (Voicemail voicemail : voicemails) {
+            batch.markRead(voicemail);
+        }
+        if (batch.apply() == null) {
+            return 0;
         }
-        return count;
+        return voicemails.size();
     }
 
     /**
      * Utility method to mark single message as read.
      */
     public void markReadInDatabase(Voicemail voicemail) {
-        Uri uri = ContentUris.withAppendedId(mSourceUri, voicemail.getId());
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(Voicemails.IS_READ, "1");
-        mContentResolver.update(uri, contentValues, null, null);
+        mContentResolver.update(getUri(voicemail), getReadValues(), null, null);
     }
 
     /**
@@ -177,30 +191,29 @@ public class VoicemailsQueryHelper {
      * @return The number of voicemails updated
      */
     public int markCleanInDatabase(List<Voicemail> voicemails) {
-        int count = voicemails.size();
-        for (int i = 0; i < count; i++) {
-            markCleanInDatabase(voicemails.get(i));
+        Batch batch = newBatch();
+        for (Voicemail voicemail : voicemails) {
+            batch.markClean(voicemail);
+        }
+        if (batch.apply() == null) {
+            return 0;
         }
-        return count;
+        return voicemails.size();
     }
 
     /**
      * Utility method to mark single message as clean.
      */
     public void markCleanInDatabase(Voicemail voicemail) {
-        Uri uri = ContentUris.withAppendedId(mSourceUri, voicemail.getId());
-        ContentValues contentValues = new ContentValues();
-        mContentResolver.update(uri, contentValues, null, null);
+        mContentResolver.update(getUri(voicemail), new ContentValues(), null, null);
     }
 
     /**
      * Utility method to add a transcription to the voicemail.
      */
     public void updateWithTranscription(Voicemail voicemail, String transcription) {
-        Uri uri = ContentUris.withAppendedId(mSourceUri, voicemail.getId());
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(Voicemails.TRANSCRIPTION, transcription);
-        mContentResolver.update(uri, contentValues, null, null);
+        mContentResolver.update(getUri(voicemail), getTranscriptionValues(transcription), null,
+                null);
     }
 
     /**
@@ -241,4 +254,145 @@ public class VoicemailsQueryHelper {
         }
         return true;
     }
+
+    /**
+     * @return a new {@link Batch} writing to the voicemails of this source.
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * Collects inserts, updates and deletes of voicemails, and writes them to the voicemail
+     * provider with {@link ContentResolver#applyBatch(String, ArrayList)} instead of one
+     * transaction per row. Operations are applied in the order they were added.
+     */
+    public class Batch {
+
+        private final ArrayList<ContentProviderOperation> mOperations = new ArrayList<>();
+        /** Positions of the inserts in {@link #mOperations}. */
+        private final List<Integer> mInsertPositions = new ArrayList<>();
+
+        private Batch() {
+        }
+
+        /**
+         * Adds the insertion of a new voicemail. The uris of the inserted voicemails are returned
+         * by {@link #apply()}.
+         */
+        public Batch insert(Voicemail voicemail) {
+            mInsertPositions.add(mOperations.size());
+            mOperations.add(ContentProviderOperation.newInsert(mSourceUri)
+                    .withValues(getInsertValues(voicemail))
+                    .build());
+            return this;
+        }
+
+        public Batch delete(Voicemail voicemail) {
+            mOperations.add(ContentProviderOperation.newDelete(Voicemails.CONTENT_URI)
+                    .withSelection(Voicemails._ID + "=?",
+                            new String[] {Long.toString(voicemail.getId())})
+                    .build());
+            return this;
+        }
+
+        public Batch markRead(Voicemail voicemail) {
+            return update(voicemail, getReadValues());
+        }
+
+        /**
+         * @see #markCleanInDatabase(Voicemail)
+         */
+        public Batch markClean(Voicemail voicemail) {
+            return update(voicemail, new ContentValues());
+        }
+
+        public Batch updateWithTranscription(Voicemail voicemail, String transcription) {
+            return update(voicemail, getTranscriptionValues(transcription));
+        }
+
+        private Batch update(Voicemail voicemail, ContentValues values) {
+            mOperations.add(ContentProviderOperation.newUpdate(getUri(voicemail))
+                    .withValues(values)
+                    .build());
+            return this;
+        }
+
+        /**
+         * Writes the operations to the provider, in transactions of at most
+         * {@link #MAX_OPERATIONS_PER_TRANSACTION} operations. The batch is empty afterwards.
+         *
+         * @return the uris of the inserted voicemails in the order they were added, or {@code
+         * null} if a transaction failed. Operations of the previous transactions have been
+         * applied in that case.
+         */
+        @Nullable
+        public List<Uri> apply() {
+            List<Uri> insertedUris = new ArrayList<>(mInsertPositions.size());
+            int nextInsert = 0;
+            try {
+                for (int start = 0; start < mOperations.size();
+                        start += MAX_OPERATIONS_PER_TRANSACTION) {
+                    int end = Math.min(mOperations.size(),
+                            start + MAX_OPERATIONS_PER_TRANSACTION);
+                    ContentProviderResult[] results = mContentResolver.applyBatch(
+                            VoicemailContract.AUTHORITY,
+                            new ArrayList<>(mOperations.subList(start, end)));
+                    while (nextInsert < mInsertPositions.size()
+                            && mInsertPositions.get(nextInsert) < end) {
+                        insertedUris.add(results[mInsertPositions.get(nextInsert) - start].uri);
+                        nextInsert++;
+                    }
+                }
+                return insertedUris;
+            } catch (RemoteException | OperationApplicationException e) {
+                VvmLog.e(TAG, "Failed to apply voicemail operations", e);
+                return null;
+            } finally {
+                mOperations.clear();
+                mInsertPositions.clear();
+            }
+        }
+    }
+
+    private Uri getUri(Voicemail voicemail) {
+        return ContentUris.withAppendedId(mSourceUri, voicemail.getId());
+    }
+
+    private static ContentValues getReadValues() {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Voicemails.IS_READ, "1");
+        return contentValues;
+    }
+
+    private static ContentValues getTranscriptionValues(String transcription) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Voicemails.TRANSCRIPTION, transcription);
+        return contentValues;
+    }
+
+    /**
+     * The values written by {@link VoicemailContract.Voicemails#insert(Context, Voicemail)}.
+     */
+    private static ContentValues getInsertValues(Voicemail voicemail) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Voicemails.DATE, String.valueOf(voicemail.getTimestampMillis()));
+        contentValues.put(Voicemails.NUMBER, voicemail.getNumber());
+        contentValues.put(Voicemails.DURATION, String.valueOf(voicemail.getDuration()));
+        contentValues.put(Voicemails.SOURCE_PACKAGE, voicemail.getSourcePackage());
+        contentValues.put(Voicemails.SOURCE_DATA, voicemail.getSourceData());
+        contentValues.put(Voicemails.IS_READ, voicemail.isRead() ? 1 : 0);
+
+        PhoneAccountHandle phoneAccount = voicemail.getPhoneAccount();
+        if (phoneAccount != null) {
+            contentValues.put(Voicemails.PHONE_ACCOUNT_COMPONENT_NAME,
+                    phoneAccount.getComponentName().flattenToString());
+            contentValues.put(Voicemails.PHONE_ACCOUNT_ID, phoneAccount.getId());
+        }
+
+        if (voicemail.getTranscription() != null) {
+            contentValues.put(Voicemails.TRANSCRIPTION, voicemail.getTranscription());
+        }
+        return contentValues;
+    }
 }
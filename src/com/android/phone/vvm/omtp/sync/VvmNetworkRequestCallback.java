@@ -26,6 +26,7 @@ import android.os.Looper;
 import android.telecom.PhoneAccountHandle;
 import com.android.phone.PhoneUtils;
 import com.android.phone.VoicemailStatus;
+import com.android.phone.common.mail.store.ImapStore;
 import com.android.phone.vvm.omtp.OmtpEvents;
 import com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper;
 import com.android.phone.vvm.omtp.VvmLog;
@@ -60,7 +61,7 @@ public abstract class VvmNetworkRequestCallback extends ConnectivityManager.Netw
         mPhoneAccount = phoneAccount;
         mSubId = PhoneUtils.getSubIdForPhoneAccountHandle(phoneAccount);
         mStatus = status;
-        mCarrierConfigHelper = new OmtpVvmCarrierConfigHelper(context, mSubId);
+        mCarrierConfigHelper = OmtpVvmCarrierConfigHelper.get(context, mSubId);
         mNetworkRequest = createNetworkRequest();
     }
 
@@ -105,6 +106,7 @@ public abstract class VvmNetworkRequestCallback extends ConnectivityManager.Netw
     @CallSuper
     public void onLost(Network network) {
         VvmLog.d(TAG, "onLost");
+        ImapStore.invalidateConnections(network);
         mResultReceived = true;
         onFailed(NETWORK_REQUEST_FAILED_LOST);
     }
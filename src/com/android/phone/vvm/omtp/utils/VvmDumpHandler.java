@@ -22,7 +22,7 @@ public class VvmDumpHandler {
         for (PhoneAccountHandle handle : TelecomManager.from(context)
                 .getCallCapablePhoneAccounts()) {
             int subId = PhoneAccountHandleConverter.toSubId(handle);
-            OmtpVvmCarrierConfigHelper config = new OmtpVvmCarrierConfigHelper(context, subId);
+            OmtpVvmCarrierConfigHelper config = OmtpVvmCarrierConfigHelper.get(context, subId);
             indentedWriter.println(config.toString());
         }
         indentedWriter.decreaseIndent();
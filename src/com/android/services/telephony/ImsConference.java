@@ -20,7 +20,6 @@ import android.content.Context;
 import android.graphics.drawable.Icon;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.PersistableBundle;
 import android.telecom.Conference;
 import android.telecom.ConferenceParticipant;
 import android.telecom.Connection.VideoProvider;
@@ -38,6 +37,7 @@ import com.android.internal.telephony.Call;
 import com.android.internal.telephony.CallStateException;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneConstants;
+import com.android.phone.CarrierConfigSnapshot;
 import com.android.phone.PhoneGlobals;
 import com.android.phone.PhoneUtils;
 import com.android.phone.R;
@@ -984,12 +984,12 @@ public class ImsConference extends Conference {
     }
 
     private boolean canHoldImsCalls() {
-        PersistableBundle b = getCarrierConfig();
+        CarrierConfigSnapshot b = getCarrierConfig();
         // Return true if the CarrierConfig is unavailable
         return b == null || b.getBoolean(CarrierConfigManager.KEY_ALLOW_HOLD_IN_IMS_CALL_BOOL);
     }
 
-    private PersistableBundle getCarrierConfig() {
+    private CarrierConfigSnapshot getCarrierConfig() {
         if (mConferenceHost == null) {
             return null;
         }
@@ -998,6 +998,6 @@ public class ImsConference extends Conference {
         if (phone == null) {
             return null;
         }
-        return PhoneGlobals.getInstance().getCarrierConfigForSubId(phone.getSubId());
+        return PhoneGlobals.getInstance().getCarrierConfigSnapshotForSubId(phone.getSubId());
     }
 }
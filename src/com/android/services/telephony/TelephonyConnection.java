@@ -23,7 +23,6 @@ import android.os.AsyncResult;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.os.PersistableBundle;
 import android.telecom.CallAudioState;
 import android.telecom.ConferenceParticipant;
 import android.telecom.Connection;
@@ -50,6 +49,7 @@ import com.android.internal.telephony.gsm.SuppServiceNotification;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.imsphone.ImsPhone;
 import com.android.internal.telephony.imsphone.ImsPhoneCallTracker;
+import com.android.phone.CarrierConfigSnapshot;
 import com.android.phone.ImsUtil;
 import com.android.phone.PhoneGlobals;
 import com.android.phone.PhoneUtils;
@@ -880,7 +880,7 @@ abstract class TelephonyConnection extends Connection {
         if (cnapName == null) {
             return null;
         }
-        PersistableBundle carrierConfig = getCarrierConfig();
+        CarrierConfigSnapshot carrierConfig = getCarrierConfig();
         String[] filteredCnapNames = null;
         if (carrierConfig != null) {
             filteredCnapNames = carrierConfig.getStringArray(
@@ -955,7 +955,7 @@ abstract class TelephonyConnection extends Connection {
 
         boolean isVideoCall = VideoProfile.isVideo(getVideoState());
 
-        PersistableBundle b = getCarrierConfig();
+        CarrierConfigSnapshot b = getCarrierConfig();
         boolean canWifiCallsBeHdAudio =
                 b != null && b.getBoolean(CarrierConfigManager.KEY_WIFI_CALLS_CAN_BE_HD_AUDIO);
         boolean canVideoCallsBeHdAudio =
@@ -973,18 +973,18 @@ abstract class TelephonyConnection extends Connection {
     }
 
     private boolean canHoldImsCalls() {
-        PersistableBundle b = getCarrierConfig();
+        CarrierConfigSnapshot b = getCarrierConfig();
         // Return true if the CarrierConfig is unavailable
         return !doesDeviceRespectHoldCarrierConfig() || b == null ||
                 b.getBoolean(CarrierConfigManager.KEY_ALLOW_HOLD_IN_IMS_CALL_BOOL);
     }
 
-    private PersistableBundle getCarrierConfig() {
+    private CarrierConfigSnapshot getCarrierConfig() {
         Phone phone = getPhone();
         if (phone == null) {
             return null;
         }
-        return PhoneGlobals.getInstance().getCarrierConfigForSubId(phone.getSubId());
+        return PhoneGlobals.getInstance().getCarrierConfigSnapshotForSubId(phone.getSubId());
     }
 
     /**
@@ -39,6 +39,9 @@ public class EOLConvertingInputStream extends InputStream {
     /** Converts single '\r' and '\n' to '\r\n' */
     public static final int CONVERT_BOTH = 3;
 
+    /* The most bytes read from the underlying stream at once by read(byte[], int, int). */
+    private static final int BULK_READ_SIZE = 4096;
+
     private PushbackInputStream in = null;
     private int previous = 0;
     private int flags = CONVERT_BOTH;
@@ -61,7 +64,7 @@ public class EOLConvertingInputStream extends InputStream {
      */
     public EOLConvertingInputStream(InputStream _in) {
         super();
-        in = new PushbackInputStream(_in, 2);
+        in = new PushbackInputStream(_in, BULK_READ_SIZE);
     }
 
     /**
@@ -136,4 +139,50 @@ public class EOLConvertingInputStream extends InputStream {
         return b;
     }
 
+    /**
+     * Reads the bytes following the first one in bulk, up to the next line
+     * ending which needs to be converted.
+     *
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int first = read();
+        if (first == -1) {
+            return -1;
+        }
+        b[off] = (byte) first;
+        if (callback != null || len == 1 || first == '\r' || first == '\n'
+                || in.available() <= 0) {
+            return 1;
+        }
+
+        int start = off + 1;
+        int count = in.read(b, start, Math.min(len - 1, BULK_READ_SIZE));
+        if (count <= 0) {
+            return 1;
+        }
+        int end = start + count;
+        int i = start;
+        while (i < end) {
+            if (b[i] == '\r') {
+                if (i + 1 == end || b[i + 1] != '\n') {
+                    break;
+                }
+                i += 2;
+            } else if (b[i] == '\n') {
+                // Not preceded by \r
+                break;
+            } else {
+                i++;
+            }
+        }
+        if (i < end) {
+            in.unread(b, i, end - i);
+        }
+        previous = b[i - 1];
+        return i - off;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,242 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mime4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffers an <code>InputStream</code> and lets the parser search the
+ * buffered data in place. The buffer only grows if more data than its size
+ * must be looked at before it can be consumed, so memory use does not
+ * depend on the size of the stream.
+ */
+public class InputBuffer extends InputStream {
+    private final InputStream is;
+    private byte[] buffer;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    /**
+     * Creates a new <code>InputBuffer</code>.
+     *
+     * @param is the stream to read from.
+     * @param size the initial size of the buffer.
+     */
+    public InputBuffer(InputStream is, int size) {
+        this.is = is;
+        this.buffer = new byte[size];
+    }
+
+    /**
+     * Reads more data from the underlying stream. The unread data is moved
+     * to the start of the buffer first, or the buffer grows if it is full of
+     * unread data.
+     *
+     * @return the number of bytes read or -1 if the end of the underlying
+     *         stream has been reached.
+     * @throws IOException on I/O errors.
+     */
+    public int fillBuffer() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        } else if (limit == buffer.length) {
+            byte[] grown = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, 0, limit);
+            buffer = grown;
+        }
+        if (eof) {
+            return -1;
+        }
+        int n;
+        do {
+            n = is.read(buffer, limit, buffer.length - limit);
+        } while (n == 0);
+        if (n == -1) {
+            eof = true;
+            return -1;
+        }
+        limit += n;
+        return n;
+    }
+
+    /**
+     * @return <code>true</code> if there is unread data in the buffer.
+     */
+    public boolean hasBufferedData() {
+        return pos < limit;
+    }
+
+    /**
+     * @return the number of unread bytes in the buffer.
+     */
+    public int length() {
+        return limit - pos;
+    }
+
+    /**
+     * @return the buffer. Only the bytes from {@link #pos()} to
+     *         {@link #limit()} are valid and unread.
+     */
+    public byte[] buf() {
+        return buffer;
+    }
+
+    /**
+     * @return the index of the first unread byte in the buffer.
+     */
+    public int pos() {
+        return pos;
+    }
+
+    /**
+     * @return the index following the last valid byte in the buffer.
+     */
+    public int limit() {
+        return limit;
+    }
+
+    /**
+     * Marks <code>n</code> buffered bytes as read.
+     */
+    public void skipBuffered(int n) {
+        if (n < 0 || n > limit - pos) {
+            throw new IndexOutOfBoundsException();
+        }
+        pos += n;
+    }
+
+    /**
+     * Drops the buffered data and makes this stream appear to have reached
+     * end of file.
+     */
+    public void truncate() {
+        pos = limit;
+        eof = true;
+    }
+
+    /**
+     * Finds the first occurrence of <code>pattern</code> in the unread data
+     * using the Boyer-Moore-Horspool algorithm.
+     *
+     * @param pattern the bytes to look for.
+     * @param shifts the shift table of <code>pattern</code>, see
+     *        {@link #shifts(byte[])}.
+     * @return the index of the first match in the buffer or -1 if the
+     *         buffered data does not contain <code>pattern</code>.
+     */
+    public int indexOf(byte[] pattern, int[] shifts) {
+        final byte[] buf = buffer;
+        final int last = pattern.length - 1;
+        final byte lastByte = pattern[last];
+        int i = pos;
+        int end = limit - last;
+        while (i < end) {
+            byte b = buf[i + last];
+            if (b == lastByte) {
+                int j = last - 1;
+                while (j >= 0 && buf[i + j] == pattern[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += shifts[b & 0xFF];
+        }
+        return -1;
+    }
+
+    /**
+     * Computes the bad character shift table used by
+     * {@link #indexOf(byte[], int[])}.
+     */
+    public static int[] shifts(byte[] pattern) {
+        int[] shifts = new int[256];
+        int last = pattern.length - 1;
+        for (int i = 0; i < shifts.length; i++) {
+            shifts[i] = pattern.length;
+        }
+        for (int i = 0; i < last; i++) {
+            shifts[pattern[i] & 0xFF] = last - i;
+        }
+        return shifts;
+    }
+
+    /**
+     * @see java.io.InputStream#read()
+     */
+    public int read() throws IOException {
+        if (pos == limit && fillBuffer() == -1) {
+            return -1;
+        }
+        return buffer[pos++] & 0xFF;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == limit && fillBuffer() == -1) {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buffer, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * @see java.io.InputStream#skip(long)
+     */
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        if (pos == limit && fillBuffer() == -1) {
+            return 0;
+        }
+        int skipped = (int) Math.min(n, limit - pos);
+        pos += skipped;
+        return skipped;
+    }
+
+    /**
+     * @see java.io.InputStream#available()
+     */
+    public int available() throws IOException {
+        return limit - pos;
+    }
+
+    /**
+     * Closes the underlying stream.
+     *
+     * @throws IOException on I/O errors.
+     */
+    public void close() throws IOException {
+        is.close();
+    }
+}
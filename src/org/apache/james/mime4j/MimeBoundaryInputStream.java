@@ -21,7 +21,6 @@ package org.apache.james.mime4j;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PushbackInputStream;
 
 /**
  * Stream that constrains itself to a single MIME body part.
@@ -29,44 +28,53 @@ import java.io.PushbackInputStream;
  * can be used to determine if a final boundary has been seen or not.
  * If {@link #parentEOF()} is <code>true</code> an unexpected end of stream
  * has been detected in the parent stream.
- *
+ * <p>
+ * The boundary is searched in the data buffered by the parent
+ * {@link InputBuffer}, so the content of the part is returned in blocks and
+ * can be skipped without being copied. Only the bytes which may be the start
+ * of a boundary are held back until more data has been read.
  *
  *
  * @version $Id: MimeBoundaryInputStream.java,v 1.2 2004/11/29 13:15:42 ntherning Exp $
  */
 public class MimeBoundaryInputStream extends InputStream {
 
-    private PushbackInputStream s = null;
-    private byte[] boundary = null;
+    private final InputBuffer buffer;
+    private final byte[] delimiter;
+    private final int[] shifts;
     private boolean first = true;
     private boolean eof = false;
     private boolean parenteof = false;
     private boolean moreParts = true;
+    /* The number of buffered bytes known to be content. */
+    private int remaining = 0;
 
     /**
      * Creates a new MimeBoundaryInputStream.
-     * @param s The underlying stream.
+     * @param buffer The underlying stream. It must not be read while this
+     *        stream is in use.
      * @param boundary Boundary string (not including leading hyphens).
      */
-    public MimeBoundaryInputStream(InputStream s, String boundary)
+    public MimeBoundaryInputStream(InputBuffer buffer, String boundary)
             throws IOException {
 
-        this.s = new PushbackInputStream(s, boundary.length() + 4);
+        this.buffer = buffer;
 
-        boundary = "--" + boundary;
-        this.boundary = new byte[boundary.length()];
-        for (int i = 0; i < this.boundary.length; i++) {
-            this.boundary[i] = (byte) boundary.charAt(i);
+        /*
+         * The line break preceding a boundary is part of the boundary.
+         */
+        boundary = "\r\n--" + boundary;
+        this.delimiter = new byte[boundary.length()];
+        for (int i = 0; i < this.delimiter.length; i++) {
+            this.delimiter[i] = (byte) boundary.charAt(i);
         }
+        this.shifts = InputBuffer.shifts(this.delimiter);
 
         /*
-         * By reading one byte we will update moreParts to be as expected
+         * By looking for content we will update moreParts to be as expected
          * before any bytes have been read.
          */
-        int b = read();
-        if (b != -1) {
-            this.s.unread(b);
-        }
+        contentLength();
     }
 
     /**
@@ -75,7 +83,7 @@ public class MimeBoundaryInputStream extends InputStream {
      * @throws IOException on I/O errors.
      */
     public void close() throws IOException {
-        s.close();
+        buffer.close();
     }
 
     /**
@@ -106,7 +114,9 @@ public class MimeBoundaryInputStream extends InputStream {
      * @throws IOException on I/O errors.
      */
     public void consume() throws IOException {
-        while (read() != -1) {
+        while (contentLength() != -1) {
+            buffer.skipBuffered(remaining);
+            remaining = 0;
         }
     }
 
@@ -114,63 +124,157 @@ public class MimeBoundaryInputStream extends InputStream {
      * @see java.io.InputStream#read()
      */
     public int read() throws IOException {
+        if (contentLength() == -1) {
+            return -1;
+        }
+        int b = buffer.buf()[buffer.pos()] & 0xFF;
+        buffer.skipBuffered(1);
+        remaining--;
+        return b;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (contentLength() == -1) {
+            return -1;
+        }
+        int n = Math.min(len, remaining);
+        System.arraycopy(buffer.buf(), buffer.pos(), b, off, n);
+        buffer.skipBuffered(n);
+        remaining -= n;
+        return n;
+    }
+
+    /**
+     * @see java.io.InputStream#skip(long)
+     */
+    public long skip(long n) throws IOException {
+        if (n <= 0 || contentLength() == -1) {
+            return 0;
+        }
+        int skipped = (int) Math.min(n, remaining);
+        buffer.skipBuffered(skipped);
+        remaining -= skipped;
+        return skipped;
+    }
+
+    /**
+     * @see java.io.InputStream#available()
+     */
+    public int available() throws IOException {
+        return remaining;
+    }
+
+    /**
+     * Finds how many of the buffered bytes are content, reading more data
+     * if needed.
+     *
+     * @return the number of content bytes at the start of the buffered data
+     *         or -1 if the end of this stream has been reached.
+     */
+    private int contentLength() throws IOException {
+        if (remaining > buffer.length()) {
+            /*
+             * The buffer has been truncated.
+             */
+            remaining = 0;
+        }
+        if (remaining > 0) {
+            return remaining;
+        }
         if (eof) {
             return -1;
         }
 
         if (first) {
             first = false;
-            if (matchBoundary()) {
+            /*
+             * A boundary at the start of the stream has no preceding line
+             * break.
+             */
+            if (matchBoundary(2)) {
                 return -1;
             }
         }
 
-        int b1 = s.read();
-        int b2 = s.read();
-
-        if (b1 == '\r' && b2 == '\n') {
-            if (matchBoundary()) {
+        while (true) {
+            int index = buffer.indexOf(delimiter, shifts);
+            if (index == buffer.pos()) {
+                matchBoundary(0);
                 return -1;
             }
-        }
-
-        if (b2 != -1) {
-            s.unread(b2);
-        }
+            if (index != -1) {
+                remaining = index - buffer.pos();
+                return remaining;
+            }
 
-        parenteof = b1 == -1;
-        eof = parenteof;
+            /*
+             * The end of the buffered data may be the start of a boundary,
+             * which always starts with \r.
+             */
+            int end = buffer.limit();
+            int tail = Math.max(buffer.pos(), buffer.limit() - delimiter.length + 1);
+            byte[] buf = buffer.buf();
+            for (int i = end - 1; i >= tail; i--) {
+                if (buf[i] == '\r') {
+                    end = i;
+                }
+            }
+            if (end > buffer.pos()) {
+                remaining = end - buffer.pos();
+                return remaining;
+            }
 
-        return b1;
+            if (buffer.fillBuffer() == -1) {
+                if (buffer.hasBufferedData()) {
+                    remaining = buffer.length();
+                    return remaining;
+                }
+                parenteof = true;
+                eof = true;
+                return -1;
+            }
+        }
     }
 
-    private boolean matchBoundary() throws IOException {
-
-        for (int i = 0; i < boundary.length; i++) {
-            int b = s.read();
-            if (b != boundary[i]) {
-                if (b != -1) {
-                    s.unread(b);
-                }
-                for (int j = i - 1; j >= 0; j--) {
-                    s.unread(boundary[j]);
-                }
+    /**
+     * Checks if the buffered data starts with the delimiter, ignoring its
+     * first <code>offset</code> bytes. If it does the rest of the boundary
+     * line is consumed and this stream reaches its end.
+     */
+    private boolean matchBoundary(int offset) throws IOException {
+        int length = delimiter.length - offset;
+        while (buffer.length() < length) {
+            if (buffer.fillBuffer() == -1) {
+                return false;
+            }
+        }
+        byte[] buf = buffer.buf();
+        int pos = buffer.pos();
+        for (int i = 0; i < length; i++) {
+            if (buf[pos + i] != delimiter[offset + i]) {
                 return false;
             }
         }
+        buffer.skipBuffered(length);
 
         /*
          * We have a match. Is it an end boundary?
          */
-        int prev = s.read();
-        int curr = s.read();
+        int prev = buffer.read();
+        int curr = buffer.read();
         moreParts = !(prev == '-' && curr == '-');
         do {
             if (curr == '\n' && prev == '\r') {
                 break;
             }
             prev = curr;
-        } while ((curr = s.read()) != -1);
+        } while ((curr = buffer.read()) != -1);
 
         if (curr == -1) {
             moreParts = false;
@@ -181,4 +285,4 @@ public class MimeBoundaryInputStream extends InputStream {
 
         return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,513 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mime4j;
+
+import org.apache.james.mime4j.decoder.Base64InputStream;
+import org.apache.james.mime4j.decoder.QuotedPrintableInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * <p>
+ * Pull parser for MIME (or RFC822) message streams. The caller asks for one
+ * token at a time and only reads the bodies it needs.
+ * </p>
+ * <p>
+ * Typical usage:<br/>
+ * <pre>
+ *      MimeTokenStream stream = new MimeTokenStream();
+ *      stream.parse(new EOLConvertingInputStream(in));
+ *      for (int state = stream.getState();
+ *              state != MimeTokenStream.T_END_OF_STREAM;
+ *              state = stream.next()) {
+ *          switch (state) {
+ *              case MimeTokenStream.T_FIELD:
+ *                  ... stream.getField()
+ *              case MimeTokenStream.T_BODY:
+ *                  ... stream.getBodyDescriptor(), stream.getInputStream()
+ *              ...
+ *          }
+ *      }
+ * </pre>
+ * Bodies, preambles and epilogues are returned as streams over the message
+ * stream, which are valid until the next call to {@link #next()}. Whatever
+ * the caller did not read is skipped by {@link #next()}. Skipping a body
+ * part only searches for its boundary and does not copy or decode it.
+ * </p>
+ * <strong>NOTE:</strong> All lines must end with CRLF
+ * (<code>\r\n</code>). If you are unsure of the line endings in your stream
+ * you should wrap it in a {@link org.apache.james.mime4j.EOLConvertingInputStream} instance.
+ */
+public class MimeTokenStream {
+    private static final Log log = LogFactory.getLog(MimeTokenStream.class);
+
+    /** The end of the stream has been reached. */
+    public static final int T_END_OF_STREAM = -1;
+    /** A message starts. */
+    public static final int T_START_MESSAGE = 0;
+    /** A message ends. */
+    public static final int T_END_MESSAGE = 1;
+    /** A message or body part in raw mode, see {@link #getInputStream()}. */
+    public static final int T_RAW_ENTITY = 2;
+    /** The header of a message or body part starts. */
+    public static final int T_START_HEADER = 3;
+    /** A header field, see {@link #getField()}. */
+    public static final int T_FIELD = 4;
+    /** The header of a message or body part ends. */
+    public static final int T_END_HEADER = 5;
+    /** A multipart body starts, see {@link #getBodyDescriptor()}. */
+    public static final int T_START_MULTIPART = 6;
+    /** A multipart body ends. */
+    public static final int T_END_MULTIPART = 7;
+    /** The preamble of a multipart body, see {@link #getInputStream()}. */
+    public static final int T_PREAMBLE = 8;
+    /** The epilogue of a multipart body, see {@link #getInputStream()}. */
+    public static final int T_EPILOGUE = 9;
+    /** A body part starts. */
+    public static final int T_START_BODYPART = 10;
+    /** A body part ends. */
+    public static final int T_END_BODYPART = 11;
+    /**
+     * A body which is not multipart or an embedded message, see
+     * {@link #getBodyDescriptor()} and {@link #getInputStream()}.
+     */
+    public static final int T_BODY = 12;
+
+    /*
+     * What an entity does on the next call to next().
+     */
+    private static final int S_START = 0;
+    private static final int S_HEADER = 1;
+    private static final int S_FIELDS = 2;
+    private static final int S_CONTENT = 3;
+    private static final int S_PREAMBLE = 4;
+    private static final int S_AFTER_PREAMBLE = 5;
+    private static final int S_AFTER_PART = 6;
+    private static final int S_EPILOGUE = 7;
+    private static final int S_END_MULTIPART = 8;
+    private static final int S_END_EMBEDDED_MESSAGE = 9;
+    private static final int S_DRAIN = 10;
+    private static final int S_END = 11;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private static BitSet fieldChars = null;
+
+    private RootInputStream rootStream = null;
+    private LinkedList<BodyDescriptor> bodyDescriptors = new LinkedList<BodyDescriptor>();
+    private LinkedList<Entity> entities = new LinkedList<Entity>();
+    private boolean raw = false;
+    private boolean prematureEof = false;
+    private byte[] drainBuffer = null;
+
+    private int state = T_END_OF_STREAM;
+    private String field = null;
+    private BodyDescriptor bodyDescriptor = null;
+    private InputStream currentStream = null;
+
+    static {
+        fieldChars = new BitSet();
+        for (int i = 0x21; i <= 0x39; i++) {
+            fieldChars.set(i);
+        }
+        for (int i = 0x3b; i <= 0x7e; i++) {
+            fieldChars.set(i);
+        }
+    }
+
+    /**
+     * A message or body part being parsed.
+     */
+    private static class Entity {
+        final boolean message;
+        /* The content of the entity, decoded for embedded messages. */
+        InputStream is;
+        int state = S_START;
+        BodyDescriptor bd = null;
+        List<String> fields = null;
+        int fieldIndex = 0;
+        /* The content of a multipart entity, shared by its parts. */
+        InputBuffer buffer = null;
+        MimeBoundaryInputStream part = null;
+
+        Entity(InputStream is, boolean message) {
+            this.is = is;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Creates a new <code>MimeTokenStream</code> instance.
+     */
+    public MimeTokenStream() {
+    }
+
+    /**
+     * Starts parsing a stream of bytes containing a MIME message. The
+     * stream is positioned on the first token, see {@link #getState()}.
+     *
+     * @param is the stream to parse.
+     * @throws IOException on I/O errors.
+     */
+    public void parse(InputStream is) throws IOException {
+        rootStream = new RootInputStream(is);
+        bodyDescriptors.clear();
+        entities.clear();
+        prematureEof = false;
+        entities.addFirst(new Entity(rootStream, true));
+        next();
+    }
+
+    /**
+     * Determines if this parser is currently in raw mode.
+     *
+     * @return <code>true</code> if in raw mode, <code>false</code>
+     *         otherwise.
+     * @see #setRaw(boolean)
+     */
+    public boolean isRaw() {
+        return raw;
+    }
+
+    /**
+     * Enables or disables raw mode. In raw mode all future entities
+     * (messages or body parts) in the stream will be reported as
+     * {@link #T_RAW_ENTITY} only. The stream will contain the entire
+     * unparsed entity contents including header fields and whatever is in
+     * the body.
+     *
+     * @param raw <code>true</code> enables raw mode, <code>false</code>
+     *        disables it.
+     */
+    public void setRaw(boolean raw) {
+        this.raw = raw;
+    }
+
+    /**
+     * Finishes the parsing and stops reading lines.
+     * NOTE: No more lines will be parsed but the parser
+     * will still return the tokens ending the current entities, such as
+     * {@link #T_END_MULTIPART}, {@link #T_END_BODYPART} and
+     * {@link #T_END_MESSAGE}.
+     */
+    public void stop() {
+        rootStream.truncate();
+        for (Entity entity : entities) {
+            if (entity.buffer != null) {
+                entity.buffer.truncate();
+            }
+        }
+    }
+
+    public boolean getPrematureEof() {
+        return prematureEof;
+    }
+
+    /**
+     * @return the current token, one of the <code>T_</code> constants.
+     */
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * @return the header field, including its name, for {@link #T_FIELD}.
+     */
+    public String getField() {
+        if (state != T_FIELD) {
+            throw new IllegalStateException("Expected a field, got " + state);
+        }
+        return field;
+    }
+
+    /**
+     * @return the descriptor of the body for {@link #T_START_MULTIPART} and
+     *         {@link #T_BODY}.
+     */
+    public BodyDescriptor getBodyDescriptor() {
+        if (state != T_START_MULTIPART && state != T_BODY) {
+            throw new IllegalStateException("Expected a body, got " + state);
+        }
+        return bodyDescriptor;
+    }
+
+    /**
+     * @return the content for {@link #T_BODY}, {@link #T_PREAMBLE},
+     *         {@link #T_EPILOGUE} and {@link #T_RAW_ENTITY}. The content of a
+     *         body is not decoded. The stream is only valid until the next
+     *         call to {@link #next()}.
+     */
+    public InputStream getInputStream() {
+        if (currentStream == null) {
+            throw new IllegalStateException("Expected content, got " + state);
+        }
+        return currentStream;
+    }
+
+    /**
+     * Moves to the next token, skipping the unread content of the current
+     * one.
+     *
+     * @return the new token, one of the <code>T_</code> constants.
+     * @throws IOException on I/O errors.
+     */
+    public int next() throws IOException {
+        field = null;
+        bodyDescriptor = null;
+        currentStream = null;
+        state = nextToken();
+        return state;
+    }
+
+    private int nextToken() throws IOException {
+        while (!entities.isEmpty()) {
+            Entity entity = entities.getFirst();
+            switch (entity.state) {
+                case S_START:
+                    if (raw) {
+                        entity.state = S_END;
+                        currentStream = new CloseShieldInputStream(entity.is);
+                        return T_RAW_ENTITY;
+                    }
+                    entity.state = S_HEADER;
+                    return entity.message ? T_START_MESSAGE : T_START_BODYPART;
+
+                case S_HEADER:
+                    entity.bd = new BodyDescriptor(bodyDescriptors.isEmpty()
+                            ? null : bodyDescriptors.getFirst());
+                    entity.state = S_FIELDS;
+                    return T_START_HEADER;
+
+                case S_FIELDS:
+                    if (entity.fields == null) {
+                        entity.fields = parseHeader(entity.is, entity.bd);
+                    }
+                    if (entity.fieldIndex < entity.fields.size()) {
+                        field = entity.fields.get(entity.fieldIndex++);
+                        return T_FIELD;
+                    }
+                    entity.fields = null;
+                    entity.state = S_CONTENT;
+                    return T_END_HEADER;
+
+                case S_CONTENT:
+                    BodyDescriptor bd = entity.bd;
+                    if (bd.isMultipart()) {
+                        bodyDescriptors.addFirst(bd);
+                        entity.state = S_PREAMBLE;
+                        bodyDescriptor = bd;
+                        return T_START_MULTIPART;
+                    } else if (bd.isMessage()) {
+                        if (bd.isBase64Encoded()) {
+                            log.warn("base64 encoded message/rfc822 detected");
+                            entity.is = new EOLConvertingInputStream(
+                                    new Base64InputStream(entity.is));
+                        } else if (bd.isQuotedPrintableEncoded()) {
+                            log.warn("quoted-printable encoded message/rfc822 detected");
+                            entity.is = new EOLConvertingInputStream(
+                                    new QuotedPrintableInputStream(entity.is));
+                        }
+                        bodyDescriptors.addFirst(bd);
+                        entity.state = S_END_EMBEDDED_MESSAGE;
+                        entities.addFirst(new Entity(entity.is, true));
+                        break;
+                    }
+                    entity.state = S_DRAIN;
+                    bodyDescriptor = bd;
+                    currentStream = new CloseShieldInputStream(entity.is);
+                    return T_BODY;
+
+                case S_PREAMBLE:
+                    entity.buffer = new InputBuffer(entity.is, BUFFER_SIZE);
+                    entity.part = new MimeBoundaryInputStream(entity.buffer,
+                            entity.bd.getBoundary());
+                    entity.state = S_AFTER_PREAMBLE;
+                    currentStream = new CloseShieldInputStream(entity.part);
+                    return T_PREAMBLE;
+
+                case S_AFTER_PART:
+                    entity.part.consume();
+                    if (entity.part.parentEOF()) {
+                        prematureEof = true;
+//                        if (log.isWarnEnabled()) {
+//                            log.warn("Line " + rootStream.getLineNumber()
+//                                    + ": Body part ended prematurely. "
+//                                    + "Higher level boundary detected or "
+//                                    + "EOF reached.");
+//                        }
+                        entity.state = S_EPILOGUE;
+                        break;
+                    }
+                    // Look for the next part on the next pass of the loop.
+                    entity.state = S_AFTER_PREAMBLE;
+                    break;
+
+                case S_AFTER_PREAMBLE:
+                    entity.part.consume();
+                    if (entity.part.hasMoreParts()) {
+                        entity.part = new MimeBoundaryInputStream(entity.buffer,
+                                entity.bd.getBoundary());
+                        entity.state = S_AFTER_PART;
+                        entities.addFirst(new Entity(entity.part, false));
+                    } else {
+                        entity.state = S_EPILOGUE;
+                    }
+                    break;
+
+                case S_EPILOGUE:
+                    entity.part = null;
+                    entity.state = S_END_MULTIPART;
+                    currentStream = new CloseShieldInputStream(entity.buffer);
+                    return T_EPILOGUE;
+
+                case S_END_MULTIPART:
+                    bodyDescriptors.removeFirst();
+                    entity.is = entity.buffer;
+                    entity.state = S_DRAIN;
+                    return T_END_MULTIPART;
+
+                case S_END_EMBEDDED_MESSAGE:
+                    bodyDescriptors.removeFirst();
+                    entity.state = S_DRAIN;
+                    break;
+
+                case S_DRAIN:
+                    /*
+                     * Make sure the stream has been consumed.
+                     */
+                    drain(entity.is);
+                    entity.state = S_END;
+                    return entity.message ? T_END_MESSAGE : T_END_BODYPART;
+
+                case S_END:
+                    entities.removeFirst();
+                    break;
+            }
+        }
+        return T_END_OF_STREAM;
+    }
+
+    private void drain(InputStream is) throws IOException {
+        if (is instanceof MimeBoundaryInputStream) {
+            ((MimeBoundaryInputStream) is).consume();
+            return;
+        }
+        if (drainBuffer == null) {
+            drainBuffer = new byte[BUFFER_SIZE];
+        }
+        while (is.read(drainBuffer) != -1) {
+        }
+    }
+
+    /**
+     * Parses a header.
+     *
+     * @param is the stream to parse.
+     * @param bd the descriptor to add the fields to.
+     * @return the valid fields of the header.
+     */
+    private List<String> parseHeader(InputStream is, BodyDescriptor bd) throws IOException {
+        List<String> fields = new ArrayList<String>();
+
+        int lineNumber = rootStream.getLineNumber();
+
+        StringBuffer sb = new StringBuffer();
+        int curr = 0;
+        int prev = 0;
+        while ((curr = is.read()) != -1) {
+            if (curr == '\n' && (prev == '\n' || prev == 0)) {
+                /*
+                 * [\r]\n[\r]\n or an immediate \r\n have been seen.
+                 */
+                sb.deleteCharAt(sb.length() - 1);
+                break;
+            }
+            sb.append((char) curr);
+            prev = curr == '\r' ? prev : curr;
+        }
+
+//        if (curr == -1 && log.isWarnEnabled()) {
+//            log.warn("Line " + rootStream.getLineNumber()
+//                    + ": Unexpected end of headers detected. "
+//                    + "Boundary detected in header or EOF reached.");
+//        }
+
+        int start = 0;
+        int pos = 0;
+        int startLineNumber = lineNumber;
+        while (pos < sb.length()) {
+            while (pos < sb.length() && sb.charAt(pos) != '\r') {
+                pos++;
+            }
+            if (pos < sb.length() - 1 && sb.charAt(pos + 1) != '\n') {
+                pos++;
+                continue;
+            }
+
+            if (pos >= sb.length() - 2 || fieldChars.get(sb.charAt(pos + 2))) {
+
+                /*
+                 * field should be the complete field data excluding the
+                 * trailing \r\n.
+                 */
+                String field = sb.substring(start, pos);
+                start = pos + 2;
+
+                /*
+                 * Check for a valid field.
+                 */
+                int index = field.indexOf(':');
+                boolean valid = false;
+                if (index != -1 && fieldChars.get(field.charAt(0))) {
+                    valid = true;
+                    String fieldName = field.substring(0, index).trim();
+                    for (int i = 0; i < fieldName.length(); i++) {
+                        if (!fieldChars.get(fieldName.charAt(i))) {
+                            valid = false;
+                            break;
+                        }
+                    }
+
+                    if (valid) {
+                        fields.add(field);
+                        bd.addField(fieldName, field.substring(index + 1));
+                    }
+                }
+
+                if (!valid && log.isWarnEnabled()) {
+                    log.warn("Line " + startLineNumber
+                            + ": Ignoring invalid field: '" + field.trim() + "'");
+                }
+
+                startLineNumber = lineNumber;
+            }
+
+            pos += 2;
+            lineNumber++;
+        }
+
+        return fields;
+    }
+}
@@ -23,22 +23,53 @@
 
 package org.apache.james.mime4j.decoder;
 
+//BEGIN android-changed: Report malformed input like android.util.Base64InputStream
+import android.util.Base64DataException;
+//END android-changed
+
 import java.io.IOException;
 import java.io.InputStream;
 
 /**
  * Performs Base-64 decoding on an underlying stream.
- * 
+ * <p>
+ * The encoded data is read in blocks and {@link #read(byte[], int, int)} decodes
+ * it straight into the caller's array, four characters at a time. Line breaks,
+ * whitespace and other characters outside of the Base-64 alphabet are skipped.
+ * An unpadded trailing quantum of two or three characters is decoded at the
+ * end of the stream.
+ * <p>
+ * Malformed input makes a read throw {@link Base64DataException}, after the
+ * data decoded so far has been returned: padding which does not complete a
+ * quantum, data after the padding, or a single trailing character.
  * 
  * @version $Id: Base64InputStream.java,v 1.3 2004/11/29 13:15:47 ntherning Exp $
  */
 public class Base64InputStream extends InputStream {
+    private static final int BUFFER_SIZE = 8192;
+
     private final InputStream s;
-    private int outCount = 0;
+    private final byte[] inputBuffer = new byte[BUFFER_SIZE];
+    private int inIndex = 0;
+    private int inCount = 0;
+    // The sextets of a quantum which is split across two blocks of input
+    private int quantum = 0;
+    private int quantumLength = 0;
+    // The decoded bytes which did not fit in the caller's array
+    private final byte[] outputBuffer = new byte[3];
     private int outIndex = 0;
-    private final int[] outputBuffer = new int[3];
-    private final byte[] inputBuffer = new byte[4];
+    private int outCount = 0;
+    private final byte[] singleByte = new byte[1];
+    // Whether the end of the underlying stream has been reached
     private boolean done = false;
+    private int padding = PADDING_NONE;
+    // Why the input is malformed, reported once the data before it has been read
+    private String error = null;
+
+    private static final int PADDING_NONE = 0;
+    // A quantum of two characters followed by one '=' so far
+    private static final int PADDING_EXPECT_SECOND = 1;
+    private static final int PADDING_COMPLETE = 2;
 
     public Base64InputStream(InputStream s) {
         this.s = s;
@@ -56,79 +87,177 @@ public class Base64InputStream extends InputStream {
     
     @Override
     public int read() throws IOException {
-        if (outIndex == outCount) {
-            fillBuffer();
-            if (outIndex == outCount) {
-                return -1;
-            }
+        if (outIndex < outCount) {
+            return outputBuffer[outIndex++] & 0xFF;
+        }
+        if (read(singleByte, 0, 1) == -1) {
+            return -1;
         }
+        return singleByte[0] & 0xFF;
+    }
 
-        return outputBuffer[outIndex++];
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        final int start = off;
+        final int end = off + len;
+        while (off < end) {
+            if (outIndex < outCount) {
+                b[off++] = outputBuffer[outIndex++];
+                continue;
+            }
+            if (error != null) {
+                break;
+            }
+            if (inIndex == inCount) {
+                // Only block on the underlying stream if nothing has been decoded yet
+                if (done || off > start) {
+                    break;
+                }
+                int n = s.read(inputBuffer, 0, BUFFER_SIZE);
+                if (n == -1) {
+                    done = true;
+                    if (padding == PADDING_EXPECT_SECOND || quantumLength == 1) {
+                        error = "truncated base64 data";
+                        break;
+                    }
+                    decodePartialQuantum();
+                    continue;
+                }
+                inIndex = 0;
+                inCount = n;
+            }
+            off = decode(b, off, end);
+        }
+        if (off == start) {
+            if (error != null) {
+                throw new Base64DataException(error);
+            }
+            return -1;
+        }
+        return off - start;
     }
 
     /**
-     * Retrieve data from the underlying stream, decode it,
-     * and put the results in the byteq.
-     * @throws IOException
+     * Decodes the buffered input into {@code b} until either runs out. A
+     * quantum which does not fit in {@code b} is decoded into the output
+     * buffer. Stops at malformed input, setting {@link #error}.
+     *
+     * @return the new offset in {@code b}
      */
-    private void fillBuffer() throws IOException {
-        outCount = 0;
-        outIndex = 0;
-        int inCount = 0;
-
-        int i;
-        // "done" is needed for the two successive '=' at the end
-        while (!done) {
-            switch (i = s.read()) {
-                case -1:
-                    // No more input - just return, let outputBuffer drain out, and be done
-                    return;
-                case '=':
-                    // once we meet the first '=', avoid reading the second '='
-                    done = true;
-                    decodeAndEnqueue(inCount);
-                    return;
-                default:
-                    byte sX = TRANSLATION[i];
-                    if (sX < 0) continue;
-                    inputBuffer[inCount++] = sX;
-                    if (inCount == 4) {
-                        decodeAndEnqueue(inCount);
-                        return;
+    private int decode(byte[] b, int off, int end) {
+        final byte[] in = inputBuffer;
+        int index = inIndex;
+        final int count = inCount;
+        int accum = quantum;
+        int length = quantumLength;
+
+        while (index < count) {
+            if (padding != PADDING_NONE) {
+                // Only characters outside of the alphabet may follow the padding
+                int c = in[index++] & 0xFF;
+                if (c == '=' && padding == PADDING_EXPECT_SECOND) {
+                    padding = PADDING_COMPLETE;
+                } else if (c == '=' || TRANSLATION[c] >= 0) {
+                    error = "unexpected data after base64 padding";
+                    break;
+                }
+                continue;
+            }
+            if (length == 0) {
+                // Fast path for the runs of full quanta between line breaks
+                while (index + 4 <= count && end - off >= 3) {
+                    int s0 = TRANSLATION[in[index] & 0xFF];
+                    int s1 = TRANSLATION[in[index + 1] & 0xFF];
+                    int s2 = TRANSLATION[in[index + 2] & 0xFF];
+                    int s3 = TRANSLATION[in[index + 3] & 0xFF];
+                    if ((s0 | s1 | s2 | s3) < 0) {
+                        break;
+                    }
+                    int bits = (s0 << 18) | (s1 << 12) | (s2 << 6) | s3;
+                    b[off++] = (byte) (bits >> 16);
+                    b[off++] = (byte) (bits >> 8);
+                    b[off++] = (byte) bits;
+                    index += 4;
+                }
+                if (index == count) {
+                    break;
+                }
+            }
+
+            int c = in[index++] & 0xFF;
+            int sX = TRANSLATION[c];
+            if (sX < 0) {
+                if (c == '=') {
+                    // The first '=' ends the data
+                    if (length < 2) {
+                        error = "misplaced base64 padding";
+                        break;
                     }
+                    padding = length == 2 ? PADDING_EXPECT_SECOND : PADDING_COMPLETE;
+                    quantum = accum;
+                    quantumLength = length;
+                    decodePartialQuantum();
+                    accum = 0;
+                    length = 0;
+                    break;
+                }
+                continue;
+            }
+            accum = (accum << 6) | sX;
+            if (++length == 4) {
+                if (end - off >= 3) {
+                    b[off++] = (byte) (accum >> 16);
+                    b[off++] = (byte) (accum >> 8);
+                    b[off++] = (byte) accum;
+                } else {
+                    outputBuffer[0] = (byte) (accum >> 16);
+                    outputBuffer[1] = (byte) (accum >> 8);
+                    outputBuffer[2] = (byte) accum;
+                    outIndex = 0;
+                    outCount = 3;
+                    accum = 0;
+                    length = 0;
                     break;
+                }
+                accum = 0;
+                length = 0;
             }
         }
+
+        inIndex = index;
+        quantum = accum;
+        quantumLength = length;
+        return off;
     }
 
-    private void decodeAndEnqueue(int len) {
-        int accum = 0;
-        accum |= inputBuffer[0] << 18;
-        accum |= inputBuffer[1] << 12;
-        accum |= inputBuffer[2] << 6;
-        accum |= inputBuffer[3];
-
-        // There's a bit of duplicated code here because we want to have straight-through operation
-        // for the most common case of len==4
-        if (len == 4) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
-            outputBuffer[2] = (accum) & 0xFF;
-            outCount = 3;
-            return;
-        } else if (len == 3) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
+    /**
+     * Decodes the quantum ended by padding or by the end of the stream into
+     * the output buffer.
+     */
+    private void decodePartialQuantum() {
+        outIndex = 0;
+        if (quantumLength == 3) {
+            outputBuffer[0] = (byte) (quantum >> 10);
+            outputBuffer[1] = (byte) (quantum >> 2);
             outCount = 2;
-            return;
-        } else {    // len == 2
-            outputBuffer[0] = (accum >> 16) & 0xFF;
+        } else if (quantumLength == 2) {
+            outputBuffer[0] = (byte) (quantum >> 4);
             outCount = 1;
-            return;
+        } else {
+            outCount = 0;
         }
+        quantum = 0;
+        quantumLength = 0;
     }
 
-    private static byte[] TRANSLATION = {
+    private static final byte[] TRANSLATION = {
         -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x00 */
         -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x10 */
         -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 62, -1, -1, -1, 63, /* 0x20 */
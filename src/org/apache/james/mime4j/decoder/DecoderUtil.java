@@ -60,7 +60,7 @@ public class DecoderUtil {
             }
         } catch (IOException e) {
             /*
-             * This should never happen!
+             * Malformed input, keep what was decoded before it.
              */
             log.error(e);
         }
@@ -89,7 +89,7 @@ public class DecoderUtil {
             }
         } catch (IOException e) {
             /*
-             * This should never happen!
+             * Malformed input, keep what was decoded before it.
              */
             log.error(e);
         }
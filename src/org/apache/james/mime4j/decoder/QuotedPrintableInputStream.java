@@ -29,18 +29,99 @@ import org.apache.james.mime4j.LogFactory;
 
 /**
  * Performs Quoted-Printable decoding on an underlying stream.
- * 
- * 
+ * <p>
+ * The encoded data is read in blocks into a window and decoded by a table
+ * driven state machine, straight into the caller's array for
+ * {@link #read(byte[], int, int)}. Whitespace immediately preceding a line
+ * break or the end of the stream is transport padding and is removed.
  * 
  * @version $Id: QuotedPrintableInputStream.java,v 1.3 2004/11/29 13:15:47 ntherning Exp $
  */
 public class QuotedPrintableInputStream extends InputStream {
     private static Log log = LogFactory.getLog(QuotedPrintableInputStream.class);
-    
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // Character classes. The classes below EQUALS are copied as is in the
+    // start state.
+    private static final byte OTHER = 0;
+    private static final byte HEX = 1;
+    private static final byte CR = 2;
+    private static final byte LF = 3;
+    private static final byte EQUALS = 4;
+    private static final byte WHITESPACE = 5;
+    private static final int CLASS_COUNT = 6;
+
+    // States
+    private static final byte START = 0;          // no bytes pending
+    private static final byte GOT_EQUALS = 1;     // "="
+    private static final byte GOT_EQUALS_CR = 2;  // "=\r"
+    private static final byte GOT_EQUALS_HEX = 3; // "=" and the first hex digit
+
+    // Actions
+    private static final byte EMIT = 0;                  // c
+    private static final byte SKIP = 1;                  // nothing
+    private static final byte SAVE_DIGIT = 2;            // nothing, keep c
+    private static final byte EMIT_DECODED = 3;          // the decoded octet
+    private static final byte EMIT_EQUALS = 4;           // "="
+    private static final byte EMIT_EQUALS_C = 5;         // "=" c
+    private static final byte EMIT_EQUALS_CR_C = 6;      // "=\r" c
+    private static final byte EMIT_EQUALS_DIGIT_C = 7;   // "=" digit c
+
+    private static final byte[] CLASSES = new byte[256];
+    private static final byte[] HEX_VALUES = new byte[256];
+
+    // Indexed by state * CLASS_COUNT + class, columns in class order:
+    //   OTHER, HEX, CR, LF, EQUALS, WHITESPACE
+    private static final byte[] NEXT_STATES = {
+        START, START, START, START, GOT_EQUALS, START,
+        START, GOT_EQUALS_HEX, GOT_EQUALS_CR, START, GOT_EQUALS, START,
+        START, START, START, START, START, START,
+        START, START, START, START, START, START,
+    };
+    private static final byte[] ACTIONS = {
+        EMIT, EMIT, EMIT, EMIT, SKIP, EMIT,
+        EMIT_EQUALS_C, SAVE_DIGIT, SKIP, EMIT_EQUALS_C, EMIT_EQUALS, EMIT_EQUALS_C,
+        EMIT_EQUALS_CR_C, EMIT_EQUALS_CR_C, EMIT_EQUALS_CR_C, SKIP, EMIT_EQUALS_CR_C,
+                EMIT_EQUALS_CR_C,
+        EMIT_EQUALS_DIGIT_C, EMIT_DECODED, EMIT_EQUALS_DIGIT_C, EMIT_EQUALS_DIGIT_C,
+                EMIT_EQUALS_DIGIT_C, EMIT_EQUALS_DIGIT_C,
+    };
+
+    static {
+        for (int c = '0'; c <= '9'; c++) {
+            CLASSES[c] = HEX;
+            HEX_VALUES[c] = (byte) (c - '0');
+        }
+        for (int c = 'A'; c <= 'F'; c++) {
+            CLASSES[c] = HEX;
+            HEX_VALUES[c] = (byte) (0xA + c - 'A');
+        }
+        for (int c = 'a'; c <= 'f'; c++) {
+            CLASSES[c] = HEX;
+            HEX_VALUES[c] = (byte) (0xA + c - 'a');
+        }
+        CLASSES['\r'] = CR;
+        CLASSES['\n'] = LF;
+        CLASSES['='] = EQUALS;
+        CLASSES[' '] = WHITESPACE;
+        CLASSES['\t'] = WHITESPACE;
+    }
+
     private InputStream stream;
-    ByteQueue byteq = new ByteQueue();
-    ByteQueue pushbackq = new ByteQueue();
-    private byte state = 0;
+    // The window of encoded input, only grows for whitespace runs longer
+    // than the buffer
+    private byte[] inputBuffer = new byte[BUFFER_SIZE];
+    private int inIndex = 0;
+    private int inCount = 0;
+    private boolean eof = false;
+    // The decoded bytes which did not fit in the caller's array
+    private final byte[] outputBuffer = new byte[3];
+    private int outIndex = 0;
+    private int outCount = 0;
+    private final byte[] singleByte = new byte[1];
+    private byte state = START;
+    private byte msdChar = 0;  // first digit of escaped num
 
     public QuotedPrintableInputStream(InputStream stream) {
         this.stream = stream;
@@ -56,174 +137,206 @@ public class QuotedPrintableInputStream extends InputStream {
     }
 
     public int read() throws IOException {
-        fillBuffer();
-        if (byteq.count() == 0)
+        if (outIndex < outCount) {
+            return outputBuffer[outIndex++] & 0xFF;
+        }
+        if (read(singleByte, 0, 1) == -1) {
             return -1;
-        else {
-            byte val = byteq.dequeue();
-            if (val >= 0)
-                return val;
-            else
-                return val & 0xFF;
         }
+        return singleByte[0] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        final int start = off;
+        final int end = off + len;
+        while (off < end) {
+            if (outIndex < outCount) {
+                b[off++] = outputBuffer[outIndex++];
+                continue;
+            }
+            off = decode(b, off, end);
+            if (off == end) {
+                break;
+            }
+            // The window is either empty or only holds whitespace, which is
+            // transport padding if a line break or the end of the stream
+            // follows. Only block on the underlying stream if nothing has
+            // been decoded yet.
+            if (eof || off > start) {
+                break;
+            }
+            if (!fillBuffer()) {
+                eof = true;
+                inIndex = inCount;  // discard any whitespace preceding EOF
+            }
+        }
+        return off == start ? -1 : off - start;
     }
 
     /**
-     * Pulls bytes out of the underlying stream and places them in the
-     * pushback queue.  This is necessary (vs. reading from the
-     * underlying stream directly) to detect and filter out "transport
-     * padding" whitespace, i.e., all whitespace that appears immediately
-     * before a CRLF.
+     * Reads more of the underlying stream after the input left in the
+     * window.
      *
+     * @return false at the end of the underlying stream
      * @throws IOException Underlying stream threw IOException.
      */
-    private void populatePushbackQueue() throws IOException {
-        //Debug.verify(pushbackq.count() == 0, "PopulatePushbackQueue called when pushback queue was not empty!");
-
-        if (pushbackq.count() != 0)
-            return;
-
-        while (true) {
-            int i = stream.read();
-            switch (i) {
-                case -1:
-                    // stream is done
-                    pushbackq.clear();  // discard any whitespace preceding EOF
-                    return;
-                case ' ':
-                case '\t':
-                    pushbackq.enqueue((byte)i);
-                    break;
-                case '\r':
-                case '\n':
-                    pushbackq.clear();  // discard any whitespace preceding EOL
-                    pushbackq.enqueue((byte)i);
-                    return;
-                default:
-                    pushbackq.enqueue((byte)i);
-                    return;
-            }
+    private boolean fillBuffer() throws IOException {
+        int remaining = inCount - inIndex;
+        if (remaining == inputBuffer.length) {
+            byte[] buffer = new byte[inputBuffer.length * 2];
+            System.arraycopy(inputBuffer, inIndex, buffer, 0, remaining);
+            inputBuffer = buffer;
+        } else if (inIndex > 0) {
+            System.arraycopy(inputBuffer, inIndex, inputBuffer, 0, remaining);
         }
+        inIndex = 0;
+        inCount = remaining;
+
+        int n;
+        do {
+            n = stream.read(inputBuffer, inCount, inputBuffer.length - inCount);
+        } while (n == 0);
+        if (n == -1) {
+            return false;
+        }
+        inCount += n;
+        return true;
     }
 
     /**
-     * Causes the pushback queue to get populated if it is empty, then
-     * consumes and decodes bytes out of it until one or more bytes are
-     * in the byte queue.  This decoding step performs the actual QP
-     * decoding.
+     * Decodes the window into {@code b} until the output is full, the
+     * window is empty, or only whitespace which may be transport padding is
+     * left. The bytes of the last step which do not fit in {@code b} go to
+     * the output buffer.
      *
-     * @throws IOException Underlying stream threw IOException.
+     * @return the new offset in {@code b}
      */
-    private void fillBuffer() throws IOException {
-        byte msdChar = 0;  // first digit of escaped num
-        while (byteq.count() == 0) {
-            if (pushbackq.count() == 0) {
-                populatePushbackQueue();
-                if (pushbackq.count() == 0)
-                    return;
-            }
+    private int decode(byte[] b, int off, int end) {
+        final byte[] in = inputBuffer;
+        int index = inIndex;
+        final int count = inCount;
+        outIndex = 0;
+        outCount = 0;
 
-            byte b = (byte)pushbackq.dequeue();
+        while (index < count && off < end) {
+            int c = in[index] & 0xFF;
+            int cls = CLASSES[c];
 
-            switch (state) {
-                case 0:  // start state, no bytes pending
-                    if (b != '=') {
-                        byteq.enqueue(b);
-                        break;  // state remains 0
-                    } else {
-                        state = 1;
+            if (state == START && cls < EQUALS) {
+                // Fast path for the literal runs between escapes
+                b[off++] = (byte) c;
+                index++;
+                while (index < count && off < end) {
+                    c = in[index] & 0xFF;
+                    if (CLASSES[c] >= EQUALS) {
                         break;
                     }
-                case 1:  // encountered "=" so far
-                    if (b == '\r') {
-                        state = 2;
-                        break;
-                    } else if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
-                        state = 3;
-                        msdChar = b;  // save until next digit encountered
-                        break;
-                    } else if (b == '=') {
-                        /*
-                         * Special case when == is encountered.
-                         * Emit one = and stay in this state.
-                         */
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; got ==");
-                        }
-                        byteq.enqueue((byte)'=');
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected \\r or "
-                                    + "[0-9A-Z], got " + b);
-                        }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue(b);
-                        break;
+                    b[off++] = (byte) c;
+                    index++;
+                }
+                continue;
+            }
+
+            if (cls == WHITESPACE) {
+                int runEnd = index + 1;
+                while (runEnd < count && CLASSES[in[runEnd] & 0xFF] == WHITESPACE) {
+                    runEnd++;
+                }
+                if (runEnd == count) {
+                    // Need the byte following the run.
+                    break;
+                }
+                int next = CLASSES[in[runEnd] & 0xFF];
+                if (next == CR || next == LF) {
+                    index = runEnd;  // discard any whitespace preceding EOL
+                    continue;
+                }
+                if (state == START) {
+                    int n = Math.min(runEnd - index, end - off);
+                    System.arraycopy(in, index, b, off, n);
+                    index += n;
+                    off += n;
+                    continue;
+                }
+            }
+
+            index++;
+            int transition = state * CLASS_COUNT + cls;
+            switch (ACTIONS[transition]) {
+                case EMIT:
+                    off = put(b, off, end, c);
+                    break;
+                case SKIP:
+                    break;
+                case SAVE_DIGIT:
+                    msdChar = (byte) c;  // save until next digit encountered
+                    break;
+                case EMIT_DECODED:
+                    off = put(b, off, end, (HEX_VALUES[msdChar] << 4) | HEX_VALUES[c]);
+                    break;
+                case EMIT_EQUALS:
+                    /*
+                     * Special case when == is encountered.
+                     * Emit one = and stay in this state.
+                     */
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; got ==");
                     }
-                case 2:  // encountered "=\r" so far
-                    if (b == '\n') {
-                        state = 0;
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected " 
-                                    + (int)'\n' + ", got " + b);
-                        }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue((byte)'\r');
-                        byteq.enqueue(b);
-                        break;
+                    off = put(b, off, end, '=');
+                    break;
+                case EMIT_EQUALS_C:
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected \\r or "
+                                + "[0-9A-Z], got " + (byte) c);
                     }
-                case 3:  // encountered =<digit> so far; expecting another <digit> to complete the octet
-                    if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
-                        byte msd = asciiCharToNumericValue(msdChar);
-                        byte low = asciiCharToNumericValue(b);
-                        state = 0;
-                        byteq.enqueue((byte)((msd << 4) | low));
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected "
-                                     + "[0-9A-Z], got " + b);
-                        }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue(msdChar);
-                        byteq.enqueue(b);
-                        break;
+                    off = put(b, off, end, '=');
+                    off = put(b, off, end, c);
+                    break;
+                case EMIT_EQUALS_CR_C:
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected "
+                                + (int) '\n' + ", got " + (byte) c);
+                    }
+                    off = put(b, off, end, '=');
+                    off = put(b, off, end, '\r');
+                    off = put(b, off, end, c);
+                    break;
+                case EMIT_EQUALS_DIGIT_C:
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected "
+                                 + "[0-9A-Z], got " + (byte) c);
                     }
-                default:  // should never happen
-                    log.error("Illegal state: " + state);
-                    state = 0;
-                    byteq.enqueue(b);
+                    off = put(b, off, end, '=');
+                    off = put(b, off, end, msdChar);
+                    off = put(b, off, end, c);
                     break;
             }
+            state = NEXT_STATES[transition];
         }
+
+        inIndex = index;
+        return off;
     }
 
     /**
-     * Converts '0' => 0, 'A' => 10, etc.
-     * @param c ASCII character value.
-     * @return Numeric value of hexadecimal character.
+     * Writes {@code value} to {@code b}, or to the output buffer if
+     * {@code b} is full.
+     *
+     * @return the new offset in {@code b}
      */
-    private byte asciiCharToNumericValue(byte c) {
-        if (c >= '0' && c <= '9') {
-            return (byte)(c - '0');
-        } else if (c >= 'A' && c <= 'Z') {
-            return (byte)(0xA + (c - 'A'));
-        } else if (c >= 'a' && c <= 'z') {
-            return (byte)(0xA + (c - 'a'));
+    private int put(byte[] b, int off, int end, int value) {
+        if (off < end) {
+            b[off++] = (byte) value;
         } else {
-            /*
-             * This should never happen since all calls to this method
-             * are preceded by a check that c is in [0-9A-Za-z]
-             */
-            throw new IllegalArgumentException((char) c 
-                    + " is not a hexadecimal digit");
+            outputBuffer[outCount++] = (byte) value;
         }
+        return off;
     }
-
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone;
+
+import android.os.IBinder;
+
+import com.android.phone.BinderCallStats.LatencyHistogram;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class BinderCallStatsTest extends TestCase {
+
+    private static final int CODE = IBinder.FIRST_CALL_TRANSACTION + 3;
+    private static final int UID = 10042;
+
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 0; i < 98; i++) {
+            histogram.add(100);
+        }
+        histogram.add(5000);
+        histogram.add(5000);
+        // 100us falls in [64, 128), 5000us in [4096, 8192).
+        assertEquals(128, histogram.getPercentile(50));
+        assertEquals(8192, histogram.getPercentile(99));
+    }
+
+    public void testRecordCall() {
+        BinderCallStats stats = new BinderCallStats(true);
+        long token = stats.onCallStarted();
+        stats.addMainThreadWait(250);
+        stats.onCallEnded(CODE, UID, token);
+        token = stats.onCallStarted();
+        stats.onCallEnded(CODE, UID, token);
+
+        assertEquals(2, stats.getMethodStats(CODE).mCount.get());
+        assertEquals(250, stats.getMethodStats(CODE).mMainThreadWaitMicros.get());
+        assertEquals(2, stats.getUidStats(UID).mCount.get());
+
+        StringWriter dump = new StringWriter();
+        stats.dump(new PrintWriter(dump));
+        assertTrue(dump.toString().contains("count=2"));
+
+        stats.reset();
+        assertNull(stats.getMethodStats(CODE));
+        assertNull(stats.getUidStats(UID));
+    }
+
+    public void testDisabled() {
+        BinderCallStats stats = new BinderCallStats(false);
+        assertFalse(stats.isEnabled());
+        stats.setEnabled(true);
+        assertTrue(stats.isEnabled());
+    }
+
+    public void testUidLimit() {
+        BinderCallStats stats = new BinderCallStats(true);
+        for (int uid = 0; uid < BinderCallStats.MAX_UIDS + 2; uid++) {
+            stats.onCallEnded(CODE, uid, stats.onCallStarted());
+        }
+        assertNotNull(stats.getUidStats(0));
+        assertNull(stats.getUidStats(BinderCallStats.MAX_UIDS));
+        assertEquals(2, stats.getUidStats(BinderCallStats.OTHER_UIDS).mCount.get());
+    }
+}
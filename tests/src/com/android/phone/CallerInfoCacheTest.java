@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.telephony.PhoneNumberUtils;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.phone.CallerInfoCache.CacheEntry;
+import com.android.phone.CallerInfoCache.NumberTable;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@SmallTest
+public class CallerInfoCacheTest extends TestCase {
+
+    private static final String[] NUMBERS = {
+            "",
+            "123",
+            "0123",
+            "5551234",
+            "+1 (650) 555-1234",
+            "650.555.1234",
+            "+44 20 7946 0958",
+            "1-800-FLOWERS",
+            "+123",
+            "++123",
+            "1+23",
+            "\uff11\uff12\uff13\uff14\uff15\uff16\uff17\uff18",
+            "#31#6505551234",
+    };
+
+    public void testNumberKey_matchesNormalizedNumber() {
+        for (String number : NUMBERS) {
+            String normalized = PhoneNumberUtils.normalizeNumber(number);
+            int length = normalized.length();
+            String last = length > 7 ? normalized.substring(length - 7) : normalized;
+            assertEquals(number, CallerInfoCache.numberKey(last),
+                    CallerInfoCache.numberKey(number));
+        }
+    }
+
+    public void testNumberKey_lastSevenDigits() {
+        assertEquals(CallerInfoCache.numberKey("+16505551234"),
+                CallerInfoCache.numberKey("(650) 555-1234"));
+        assertFalse(CallerInfoCache.numberKey("0123") == CallerInfoCache.numberKey("123"));
+        assertFalse(CallerInfoCache.numberKey("+123") == CallerInfoCache.numberKey("123"));
+    }
+
+    public void testNumberTable() {
+        NumberTable table = new NumberTable();
+        Map<Long, CacheEntry> contents = new HashMap<>();
+        for (int i = 0; i < 50000; i++) {
+            contents.put(CallerInfoCache.numberKey(Integer.toString(5000000 + i)),
+                    new CacheEntry("ringtone" + i, i % 2 == 0));
+        }
+        table.replaceAll(contents);
+        assertEquals(50000, table.size());
+        for (Map.Entry<Long, CacheEntry> entry : contents.entrySet()) {
+            assertSame(entry.getValue(), table.get(entry.getKey()));
+        }
+        assertNull(table.get(CallerInfoCache.numberKey("4999999")));
+
+        Map<Long, CacheEntry> changes = new HashMap<>();
+        long removed = CallerInfoCache.numberKey("5000000");
+        long added = CallerInfoCache.numberKey("4999999");
+        CacheEntry addedEntry = new CacheEntry(null, true);
+        changes.put(removed, null);
+        changes.put(added, addedEntry);
+        table.update(changes);
+
+        assertEquals(50000, table.size());
+        assertNull(table.get(removed));
+        assertSame(addedEntry, table.get(added));
+        long unchanged = CallerInfoCache.numberKey("5012345");
+        assertSame(contents.get(unchanged), table.get(unchanged));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone;
+
+import android.os.PersistableBundle;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class CarrierConfigFileTest extends TestCase {
+
+    private static final String VERSION = "23";
+
+    public void testEncodeDecode() throws Exception {
+        PersistableBundle nested = new PersistableBundle();
+        nested.putInt("nested_int", 7);
+
+        PersistableBundle config = new PersistableBundle();
+        config.putBoolean("boolean", true);
+        config.putInt("int", -5);
+        config.putLong("long", Long.MAX_VALUE);
+        config.putDouble("double", 0.25);
+        config.putString("string", "carrier \u00e9");
+        config.putString("null_string", null);
+        config.putBooleanArray("boolean_array", new boolean[] {true, false});
+        config.putIntArray("int_array", new int[] {1, 2, 3});
+        config.putLongArray("long_array", new long[] {4L, 5L});
+        config.putDoubleArray("double_array", new double[] {1.5});
+        config.putStringArray("string_array", new String[] {"a", null, ""});
+        config.putPersistableBundle("bundle", nested);
+
+        PersistableBundle decoded = decode(CarrierConfigFile.encode(VERSION, config), VERSION);
+
+        assertEquals(config.size(), decoded.size());
+        assertTrue(decoded.getBoolean("boolean"));
+        assertEquals(-5, decoded.getInt("int"));
+        assertEquals(Long.MAX_VALUE, decoded.getLong("long"));
+        assertEquals(0.25, decoded.getDouble("double"));
+        assertEquals("carrier \u00e9", decoded.getString("string"));
+        assertTrue(decoded.containsKey("null_string"));
+        assertNull(decoded.getString("null_string"));
+        assertTrue(Arrays.equals(new boolean[] {true, false}, decoded.getBooleanArray(
+                "boolean_array")));
+        assertTrue(Arrays.equals(new int[] {1, 2, 3}, decoded.getIntArray("int_array")));
+        assertTrue(Arrays.equals(new long[] {4L, 5L}, decoded.getLongArray("long_array")));
+        assertTrue(Arrays.equals(new double[] {1.5}, decoded.getDoubleArray("double_array")));
+        assertTrue(Arrays.equals(new String[] {"a", null, ""},
+                decoded.getStringArray("string_array")));
+        assertEquals(7, decoded.getPersistableBundle("bundle").getInt("nested_int"));
+    }
+
+    public void testDecode_versionMismatch() throws Exception {
+        PersistableBundle config = new PersistableBundle();
+        config.putInt("int", 1);
+        assertNull(decode(CarrierConfigFile.encode(VERSION, config), "24"));
+    }
+
+    public void testDecode_corrupt() throws Exception {
+        PersistableBundle config = new PersistableBundle();
+        config.putString("string", "value");
+        byte[] data = CarrierConfigFile.encode(VERSION, config);
+        data[data.length - 1] ^= 1;
+        try {
+            decode(data, VERSION);
+            throw new AssertionFailedError("Should throw IOException");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    public void testDecode_truncated() throws Exception {
+        PersistableBundle config = new PersistableBundle();
+        config.putString("string", "value");
+        byte[] data = CarrierConfigFile.encode(VERSION, config);
+        try {
+            decode(Arrays.copyOf(data, data.length - 3), VERSION);
+            throw new AssertionFailedError("Should throw IOException");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    private static PersistableBundle decode(byte[] data, String version) throws IOException {
+        return CarrierConfigFile.decode(data, version);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import com.android.phone.RequestPipeline.Request;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class RequestPipelineTest extends TestCase {
+
+    private static final int CMD_ECHO = 1;
+    private static final int CMD_HOLD = 2;
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private HandlerThread mThread;
+    private RequestPipeline mPipeline;
+    private ExecutorService mExecutor;
+    /** Requests of CMD_HOLD, which the test completes. */
+    private final BlockingQueue<Request> mHeld = new LinkedBlockingQueue<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("RequestPipelineTest");
+        mThread.start();
+        Handler handler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                Request request = (Request) msg.obj;
+                switch (msg.what) {
+                    case CMD_ECHO:
+                        request.result = "echo";
+                        request.complete();
+                        break;
+                    case CMD_HOLD:
+                        mHeld.add(request);
+                        break;
+                }
+            }
+        };
+        mPipeline = new RequestPipeline(handler);
+        mExecutor = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        mThread.quit();
+        super.tearDown();
+    }
+
+    public void testSendRequest() throws Exception {
+        int lane = mPipeline.addLane("lane", 1, TIMEOUT_MILLIS);
+        assertEquals("echo", mPipeline.sendRequest(CMD_ECHO, lane, new Request()));
+        assertEquals(0, mPipeline.getDepth(lane));
+    }
+
+    public void testSendRequest_laneLimit() throws Exception {
+        int lane = mPipeline.addLane("lane", 1, TIMEOUT_MILLIS);
+        Future<Object> first = submit(CMD_HOLD, lane);
+        Request held = mHeld.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertNotNull(held);
+
+        Future<Object> second = submit(CMD_ECHO, lane);
+        waitForDepth(lane, 2);
+        // The second request waits in the lane until the first one completes.
+        assertFalse(second.isDone());
+
+        held.result = "held";
+        held.complete();
+        assertEquals("held", first.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals("echo", second.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(0, mPipeline.getDepth(lane));
+    }
+
+    public void testSendRequest_lanesAreIndependent() throws Exception {
+        int slowLane = mPipeline.addLane("slow", 1, TIMEOUT_MILLIS);
+        int fastLane = mPipeline.addLane("fast", 1, TIMEOUT_MILLIS);
+        submit(CMD_HOLD, slowLane);
+        submit(CMD_HOLD, slowLane);
+        assertNotNull(mHeld.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        assertEquals("echo", mPipeline.sendRequest(CMD_ECHO, fastLane, new Request()));
+        assertEquals(2, mPipeline.getDepth(slowLane));
+    }
+
+    public void testSendRequest_timeout() throws Exception {
+        int lane = mPipeline.addLane("lane", 1, 100);
+        Request request = new Request();
+        try {
+            mPipeline.sendRequest(CMD_HOLD, lane, request);
+            throw new AssertionFailedError("Should throw TimeoutException");
+        } catch (TimeoutException e) {
+            //expected
+        }
+        assertEquals(0, mPipeline.getDepth(lane));
+
+        // A late result is dropped and does not free another slot.
+        request.result = "late";
+        assertFalse(request.complete());
+        assertEquals(0, mPipeline.getDepth(lane));
+        assertEquals("echo", mPipeline.sendRequest(CMD_ECHO, lane, new Request()));
+    }
+
+    private Future<Object> submit(final int what, final int lane) {
+        return mExecutor.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return mPipeline.sendRequest(what, lane, new Request());
+            }
+        });
+    }
+
+    private void waitForDepth(int lane, int depth) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mPipeline.getDepth(lane) != depth) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionFailedError("Depth is " + mPipeline.getDepth(lane));
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.telephony.VisualVoicemailSmsFilterSettings;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class VisualVoicemailSmsFilterConfigTest extends TestCase {
+
+    private static final String PACKAGE_NAME = "com.android.phone.tests.filter";
+    private static final int SUB_ID = 1;
+    private static final int OTHER_SUB_ID = 2;
+
+    private Context mContext;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mContext = InstrumentationRegistry.getTargetContext();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        VisualVoicemailSmsFilterConfig.disableVisualVoicemailSmsFilter(mContext, PACKAGE_NAME,
+                SUB_ID);
+        VisualVoicemailSmsFilterConfig.disableVisualVoicemailSmsFilter(mContext, PACKAGE_NAME,
+                OTHER_SUB_ID);
+        VisualVoicemailSmsFilterConfig.clearCache();
+        super.tearDown();
+    }
+
+    public void testEnable_writesThrough() {
+        VisualVoicemailSmsFilterConfig.enableVisualVoicemailSmsFilter(mContext, PACKAGE_NAME,
+                SUB_ID, createSettings());
+
+        assertSettings(getSettings(SUB_ID));
+        assertNull(getSettings(OTHER_SUB_ID));
+
+        // Read back from the preferences.
+        VisualVoicemailSmsFilterConfig.clearCache();
+        assertSettings(getSettings(SUB_ID));
+        assertNull(getSettings(OTHER_SUB_ID));
+    }
+
+    public void testDisable_writesThrough() {
+        VisualVoicemailSmsFilterConfig.enableVisualVoicemailSmsFilter(mContext, PACKAGE_NAME,
+                SUB_ID, createSettings());
+        VisualVoicemailSmsFilterConfig.disableVisualVoicemailSmsFilter(mContext, PACKAGE_NAME,
+                SUB_ID);
+
+        // The cached DISABLED marker is never handed out.
+        assertNull(getSettings(SUB_ID));
+        assertNull(getSettings(SUB_ID));
+
+        VisualVoicemailSmsFilterConfig.clearCache();
+        assertNull(getSettings(SUB_ID));
+
+        VisualVoicemailSmsFilterConfig.enableVisualVoicemailSmsFilter(mContext, PACKAGE_NAME,
+                SUB_ID, createSettings());
+        assertSettings(getSettings(SUB_ID));
+        VisualVoicemailSmsFilterConfig.clearCache();
+        assertSettings(getSettings(SUB_ID));
+    }
+
+    public void testOriginatingNumbers_unmodifiable() {
+        VisualVoicemailSmsFilterConfig.enableVisualVoicemailSmsFilter(mContext, PACKAGE_NAME,
+                SUB_ID, createSettings());
+        assertUnmodifiable(getSettings(SUB_ID).originatingNumbers);
+
+        VisualVoicemailSmsFilterConfig.clearCache();
+        assertUnmodifiable(getSettings(SUB_ID).originatingNumbers);
+        assertSettings(getSettings(SUB_ID));
+    }
+
+    private VisualVoicemailSmsFilterSettings getSettings(int subId) {
+        return VisualVoicemailSmsFilterConfig.getVisualVoicemailSmsFilterSettings(mContext,
+                PACKAGE_NAME, subId);
+    }
+
+    private static VisualVoicemailSmsFilterSettings createSettings() {
+        return new VisualVoicemailSmsFilterSettings.Builder()
+                .setClientPrefix("//PREFIX")
+                .setOriginatingNumbers(Arrays.asList("1234", "5678", "1234"))
+                .setDestinationPort(1808)
+                .build();
+    }
+
+    private static void assertSettings(VisualVoicemailSmsFilterSettings settings) {
+        assertNotNull(settings);
+        assertEquals("//PREFIX", settings.clientPrefix);
+        assertEquals(1808, settings.destinationPort);
+        // Stored as a set, so the duplicate is dropped.
+        assertEquals(2, settings.originatingNumbers.size());
+        assertTrue(settings.originatingNumbers.contains("1234"));
+        assertTrue(settings.originatingNumbers.contains("5678"));
+    }
+
+    private static void assertUnmodifiable(List<String> numbers) {
+        try {
+            numbers.add("9999");
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+}
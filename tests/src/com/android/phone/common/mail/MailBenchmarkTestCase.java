@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.common.mail;
+
+import android.os.Debug;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Base class of the micro benchmarks of the IMAP and MIME stack used by visual voicemail sync.
+ * Each test method runs one operation with {@link #measure(String, long, Operation)}, which logs
+ * its throughput and the bytes it allocates under the {@code MailBenchmark} tag, e.g.
+ *
+ * <pre>
+ * MailBenchmark: ImapResponseParser.readResponse fetchBody 1MB: 12.3 ops/s, 12.3 MB/s,
+ *     1054712 bytes allocated/op
+ * </pre>
+ *
+ * <p>The benchmarks are large tests, so they are skipped by a regular test run. Run them with
+ * <pre>
+ * adb shell am instrument -w -e size large -e package com.android.phone.common.mail \
+ *     com.android.phone.tests/android.support.test.runner.AndroidJUnitRunner
+ * adb shell am instrument -w -e size large -e package org.apache.james.mime4j \
+ *     com.android.phone.tests/android.support.test.runner.AndroidJUnitRunner
+ * </pre>
+ */
+public abstract class MailBenchmarkTestCase extends AndroidTestCase {
+
+    private static final String TAG = "MailBenchmark";
+
+    private static final long WARM_UP_MILLIS = 500;
+    private static final long MEASURE_MILLIS = 2000;
+    private static final int MIN_ITERATIONS = 5;
+    private static final int ALLOCATION_ITERATIONS = 3;
+
+    /**
+     * The benchmarked operation. It is run many times, so it must not depend on state left by a
+     * previous run.
+     */
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    /**
+     * Runs {@code operation} until the results are stable and reports them.
+     *
+     * @param name the name of the result, should include the input size
+     * @param bytesPerOperation the size of the input processed by each run, used to report
+     * MB/s. 0 to only report runs per second.
+     */
+    protected void measure(String name, long bytesPerOperation, Operation operation)
+            throws Exception {
+        long start = SystemClock.elapsedRealtime();
+        while (SystemClock.elapsedRealtime() - start < WARM_UP_MILLIS) {
+            operation.run();
+        }
+
+        int iterations = 0;
+        long startNanos = System.nanoTime();
+        long elapsedNanos;
+        do {
+            operation.run();
+            iterations++;
+            elapsedNanos = System.nanoTime() - startNanos;
+        } while (iterations < MIN_ITERATIONS || elapsedNanos < MEASURE_MILLIS * 1000 * 1000);
+
+        // Allocation counting slows down allocations, so it is measured in separate runs.
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocSize();
+        for (int i = 0; i < ALLOCATION_ITERATIONS; i++) {
+            operation.run();
+        }
+        long allocatedBytes = Debug.getThreadAllocSize() / ALLOCATION_ITERATIONS;
+        Debug.stopAllocCounting();
+
+        double opsPerSecond = iterations * 1e9 / elapsedNanos;
+        StringBuilder result = new StringBuilder();
+        result.append(String.format(Locale.US, "%s: %.1f ops/s", name, opsPerSecond));
+        if (bytesPerOperation > 0) {
+            result.append(String.format(Locale.US, ", %.1f MB/s",
+                    opsPerSecond * bytesPerOperation / (1024 * 1024)));
+        }
+        result.append(String.format(Locale.US, ", %d bytes allocated/op", allocatedBytes));
+        Log.i(TAG, result.toString());
+    }
+}
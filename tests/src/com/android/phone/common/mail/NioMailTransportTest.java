@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.common.mail;
+
+import static org.mockito.Mockito.mock;
+
+import android.test.AndroidTestCase;
+import android.util.Base64;
+
+import com.android.phone.MockitoHelper;
+import com.android.phone.common.mail.store.ImapStore;
+import com.android.phone.vvm.omtp.imap.ImapHelper;
+
+import junit.framework.AssertionFailedError;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Runs {@link NioMailTransport} against a minimal IMAP server on the loopback interface.
+ */
+public class NioMailTransportTest extends AndroidTestCase {
+
+    private static final String HOST_ADDRESS = "127.0.0.1";
+    private static final int HOST_FLAGS = 0;
+    private static final String GREETING = "* OK IMAP4rev1 ready";
+
+    /**
+     * Self-signed EC certificate for 127.0.0.1, and its PKCS#8 encoded key.
+     */
+    private static final String CERTIFICATE =
+            "MIIBjzCCATagAwIBAgIUM6It6GuXnBYGKrgv5Edo++lTfkQwCgYIKoZIzj0EAwIwFDESMBAGA1UE"
+            + "AwwJMTI3LjAuMC4xMCAXDTI2MTAxODE4NTM0NFoYDzIxMjYwOTI0MTg1MzQ0WjAUMRIwEAYDVQQD"
+            + "DAkxMjcuMC4wLjEwWTATBgcqhkjOPQIBBggqhkjOPQMBBwNCAATFebSRb+k9gQlON09kGjnTGfq5"
+            + "ac3z8KINzT4DLzUQ1SxthGTUl33vLPSnSCSX7Egb2FM41ryylucihX6aPmRxo2QwYjAdBgNVHQ4E"
+            + "FgQUj2EOMtpX7i7l/tekSuJFocVoluowHwYDVR0jBBgwFoAUj2EOMtpX7i7l/tekSuJFocVoluow"
+            + "DwYDVR0TAQH/BAUwAwEB/zAPBgNVHREECDAGhwR/AAABMAoGCCqGSM49BAMCA0cAMEQCIFMbXval"
+            + "mo6K6tOC0TSuvANqfmacmBr+F7gmk9/TrsipAiBiNJjyNfM4tCLXwetMmuCVfSYa7D91q41wXNE1"
+            + "WpRofg==";
+    private static final String PRIVATE_KEY =
+            "MIGHAgEAMBMGByqGSM49AgEGCCqGSM49AwEHBG0wawIBAQQgzvL/j5oS2WjKJPhfdjf696YZiq9S"
+            + "/GsvcAVaIVLLeX6hRANCAATFebSRb+k9gQlON09kGjnTGfq5ac3z8KINzT4DLzUQ1SxthGTUl33v"
+            + "LPSnSCSX7Egb2FM41ryylucihX6aPmRx";
+    private static final char[] KEY_PASSWORD = "password".toCharArray();
+
+    // ClassLoader need to be replaced for mockito to work.
+    private MockitoHelper mMokitoHelper = new MockitoHelper();
+
+    private LoopbackImapServer mServer;
+    private SSLContext mServerSslContext;
+    private SSLContext mClientSslContext;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMokitoHelper.setUp(getContext(), getClass());
+        KeyStore keyStore = createKeyStore();
+        KeyManagerFactory keyManagerFactory =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, KEY_PASSWORD);
+        mServerSslContext = SSLContext.getInstance("TLS");
+        mServerSslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        TrustManagerFactory trustManagerFactory =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+        mClientSslContext = SSLContext.getInstance("TLS");
+        mClientSslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        mServer = new LoopbackImapServer(mServerSslContext, false);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mServer.close();
+        mMokitoHelper.tearDown();
+        super.tearDown();
+    }
+
+    public void testOpen() throws Exception {
+        NioMailTransport transport = createTransport();
+        transport.open();
+        assertTrue(transport.isOpen());
+        assertEquals(GREETING, transport.readLine(true));
+        transport.close();
+        assertFalse(transport.isOpen());
+    }
+
+    public void testOpen_connectFailed() throws Exception {
+        int port = mServer.getPort();
+        mServer.close();
+        NioMailTransport transport = new NioMailTransport(getContext(),
+                mock(ImapHelper.class), null, HOST_ADDRESS, port, HOST_FLAGS);
+        try {
+            transport.open();
+            throw new AssertionFailedError("Should throw MessagingException");
+        } catch (MessagingException e) {
+            //expected
+        }
+        assertFalse(transport.isOpen());
+    }
+
+    public void testWriteLine() throws Exception {
+        NioMailTransport transport = openTransport();
+        transport.writeLine("1 NOOP", null);
+        assertEquals("1 OK NOOP completed", transport.readLine(true));
+        transport.writeLine("2 NOOP", null);
+        assertEquals("2 OK NOOP completed", transport.readLine(true));
+        transport.close();
+    }
+
+    public void testGetInputStream_literal() throws Exception {
+        NioMailTransport transport = openTransport();
+        transport.writeLine("1 FETCH 100000", null);
+        assertEquals("* 1 FETCH {100000}", transport.readLine(true));
+        InputStream in = transport.getInputStream();
+        byte[] buffer = new byte[4096];
+        int total = 0;
+        while (total < 100000) {
+            int count = in.read(buffer, 0, Math.min(buffer.length, 100000 - total));
+            assertTrue(count > 0);
+            for (int i = 0; i < count; i++) {
+                assertEquals(LoopbackImapServer.literalByte(total + i), buffer[i]);
+            }
+            total += count;
+        }
+        assertEquals("1 OK FETCH completed", transport.readLine(true));
+        transport.close();
+    }
+
+    public void testSetSoTimeout() throws Exception {
+        NioMailTransport transport = openTransport();
+        transport.setSoTimeout(100);
+        try {
+            transport.readLine(true);
+            throw new AssertionFailedError("Should throw SocketTimeoutException");
+        } catch (SocketTimeoutException e) {
+            //expected
+        }
+        // The connection is still usable.
+        transport.setSoTimeout(MailTransport.SOCKET_READ_TIMEOUT);
+        transport.writeLine("1 NOOP", null);
+        assertEquals("1 OK NOOP completed", transport.readLine(true));
+        transport.close();
+    }
+
+    public void testReadLine_endOfStream() throws Exception {
+        NioMailTransport transport = openTransport();
+        transport.writeLine("1 LOGOUT", null);
+        assertEquals("1 OK LOGOUT completed", transport.readLine(true));
+        assertEquals("", transport.readLine(true));
+        assertEquals(-1, transport.getInputStream().read());
+        transport.close();
+    }
+
+    public void testManyConnections() throws Exception {
+        final int connectionCount = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(connectionCount);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < connectionCount; i++) {
+                final String tag = Integer.toString(i);
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        NioMailTransport transport = openTransport();
+                        try {
+                            transport.writeLine(tag + " NOOP", null);
+                            return transport.readLine(false);
+                        } finally {
+                            transport.close();
+                        }
+                    }
+                }));
+            }
+            for (int i = 0; i < connectionCount; i++) {
+                assertEquals(i + " OK NOOP completed", results.get(i).get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testOpen_ssl() throws Exception {
+        mServer.close();
+        mServer = new LoopbackImapServer(mServerSslContext, true);
+        NioMailTransport transport = createTransport(ImapStore.FLAG_SSL);
+        transport.open();
+        assertTrue(transport.isOpen());
+        assertEquals(GREETING, transport.readLine(true));
+        transport.writeLine("1 NOOP", null);
+        assertEquals("1 OK NOOP completed", transport.readLine(true));
+        transport.close();
+        assertFalse(transport.isOpen());
+    }
+
+    public void testReopenTls() throws Exception {
+        NioMailTransport transport = openTransport();
+        InputStream in = transport.getInputStream();
+        OutputStream out = transport.getOutputStream();
+        transport.writeLine("1 STARTTLS", null);
+        assertEquals("1 OK STARTTLS completed", transport.readLine(true));
+        transport.reopenTls();
+        assertSame(in, transport.getInputStream());
+        assertSame(out, transport.getOutputStream());
+
+        transport.writeLine("2 NOOP", null);
+        assertEquals("2 OK NOOP completed", transport.readLine(true));
+        // Spans many TLS records.
+        transport.writeLine("3 FETCH 100000", null);
+        assertEquals("* 1 FETCH {100000}", transport.readLine(true));
+        byte[] buffer = new byte[4096];
+        int total = 0;
+        while (total < 100000) {
+            int count = in.read(buffer, 0, Math.min(buffer.length, 100000 - total));
+            assertTrue(count > 0);
+            for (int i = 0; i < count; i++) {
+                assertEquals(LoopbackImapServer.literalByte(total + i), buffer[i]);
+            }
+            total += count;
+        }
+        assertEquals("3 OK FETCH completed", transport.readLine(true));
+        transport.writeLine("4 LOGOUT", null);
+        assertEquals("4 OK LOGOUT completed", transport.readLine(true));
+        transport.close();
+        assertFalse(transport.isOpen());
+    }
+
+    public void testReopenTls_untrustedCertificate() throws Exception {
+        NioMailTransport transport = createTransport(HOST_FLAGS);
+        // The test certificate is not trusted by the default context.
+        transport.setSslContext(null);
+        transport.open();
+        assertEquals(GREETING, transport.readLine(false));
+        transport.writeLine("1 STARTTLS", null);
+        assertEquals("1 OK STARTTLS completed", transport.readLine(true));
+        try {
+            transport.reopenTls();
+            throw new AssertionFailedError("Should throw CertificateValidationException");
+        } catch (CertificateValidationException e) {
+            //expected
+        }
+        transport.close();
+    }
+
+    private NioMailTransport createTransport() {
+        return createTransport(HOST_FLAGS);
+    }
+
+    private NioMailTransport createTransport(int flags) {
+        NioMailTransport transport = new NioMailTransport(getContext(), mock(ImapHelper.class),
+                null, HOST_ADDRESS, mServer.getPort(), flags);
+        transport.setSslContext(mClientSslContext);
+        return transport;
+    }
+
+    private static KeyStore createKeyStore() throws IOException, GeneralSecurityException {
+        PrivateKey key = KeyFactory.getInstance("EC").generatePrivate(
+                new PKCS8EncodedKeySpec(Base64.decode(PRIVATE_KEY, Base64.DEFAULT)));
+        Certificate certificate = CertificateFactory.getInstance("X.509").generateCertificate(
+                new ByteArrayInputStream(Base64.decode(CERTIFICATE, Base64.DEFAULT)));
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("server", key, KEY_PASSWORD, new Certificate[] {certificate});
+        return keyStore;
+    }
+
+    private NioMailTransport openTransport() throws MessagingException, IOException {
+        NioMailTransport transport = createTransport();
+        transport.open();
+        assertEquals(GREETING, transport.readLine(false));
+        return transport;
+    }
+
+    /**
+     * Answers a few commands the way an IMAP server would, one thread per client:
+     * <ul>
+     * <li>{@code NOOP}: completes.
+     * <li>{@code FETCH <n>}: sends a literal of n bytes.
+     * <li>{@code STARTTLS}: completes and upgrades the connection to TLS.
+     * <li>{@code LOGOUT}: completes and closes the connection.
+     * </ul>
+     */
+    private static class LoopbackImapServer {
+
+        private final ServerSocket mServerSocket;
+        private final List<Socket> mClients = new ArrayList<>();
+        private final SSLContext mSslContext;
+        private final boolean mSsl;
+
+        /**
+         * @param ssl whether clients connect with TLS directly rather than through STARTTLS
+         */
+        LoopbackImapServer(SSLContext sslContext, boolean ssl) throws IOException {
+            mSslContext = sslContext;
+            mSsl = ssl;
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName(HOST_ADDRESS));
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    accept();
+                }
+            }, "LoopbackImapServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        static byte literalByte(int index) {
+            return (byte) ('a' + index % 26);
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+            synchronized (mClients) {
+                for (Socket client : mClients) {
+                    client.close();
+                }
+            }
+        }
+
+        private void accept() {
+            while (true) {
+                final Socket client;
+                try {
+                    client = mServerSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                synchronized (mClients) {
+                    mClients.add(client);
+                }
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(client);
+                        } catch (IOException e) {
+                            // Closed.
+                        }
+                    }
+                });
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private void serve(Socket client) throws IOException {
+            if (mSsl) {
+                client = startTls(client);
+            }
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(client.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream out = client.getOutputStream();
+            write(out, GREETING + "\r\n");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] words = line.split(" ");
+                String tag = words[0];
+                String command = words[1];
+                if (command.equals("FETCH")) {
+                    int length = Integer.parseInt(words[2]);
+                    write(out, "* 1 FETCH {" + length + "}\r\n");
+                    byte[] literal = new byte[length];
+                    for (int i = 0; i < length; i++) {
+                        literal[i] = literalByte(i);
+                    }
+                    out.write(literal);
+                }
+                write(out, tag + " OK " + command + " completed\r\n");
+                if (command.equals("STARTTLS")) {
+                    // The client waits for the answer, so nothing was read past the command.
+                    client = startTls(client);
+                    in = new BufferedReader(new InputStreamReader(client.getInputStream(),
+                            StandardCharsets.US_ASCII));
+                    out = client.getOutputStream();
+                } else if (command.equals("LOGOUT")) {
+                    client.close();
+                    return;
+                }
+            }
+        }
+
+        private Socket startTls(Socket client) throws IOException {
+            SSLSocket socket = (SSLSocket) mSslContext.getSocketFactory().createSocket(client,
+                    client.getInetAddress().getHostAddress(), client.getPort(), true);
+            socket.setUseClientMode(false);
+            socket.startHandshake();
+            return socket;
+        }
+
+        private static void write(OutputStream out, String s) throws IOException {
+            out.write(s.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+    }
+}
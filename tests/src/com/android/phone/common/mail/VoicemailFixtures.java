@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.common.mail;
+
+import android.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Deterministic IMAP transcripts and MIME messages shaped like the ones served by OMTP voicemail
+ * servers: a multipart/mixed message with a quoted-printable transcription and a base64 AMR
+ * attachment.
+ */
+public class VoicemailFixtures {
+
+    public static final int KB = 1024;
+    public static final int MB = 1024 * 1024;
+
+    /**
+     * Attachment sizes covering a few seconds of AMR to a long WAV recording.
+     */
+    public static final int[] SIZES = {KB, 64 * KB, MB, 5 * MB};
+
+    private static final String BOUNDARY = "----=_Part_7_1795128374.1476700000000";
+
+    public static final String TRANSCRIPTION = "Hi, this is J\u00fcrgen from the garage. Your car "
+            + "is ready = you can pick it up tomorrow between 8 and 5. The total is 349,99 "
+            + "\u20ac, we take cards. Call me back at 555-0123 if anything changes. Thanks, bye.";
+
+    /**
+     * A From header with folded RFC 2047 encoded words, as found in voicemail envelopes.
+     */
+    public static final String ENCODED_HEADER = "=?UTF-8?B?SsO8cmdlbiBNw7xsbGVyIChHYXJhZ2Up?=\r\n"
+            + " =?ISO-8859-1?Q?=3CVoice_Mail=3E_f=FCr_Sie?=\r\n"
+            + " <+15550123@vm.example.com>";
+
+    /**
+     * @return {@code size} bytes of pseudo random audio.
+     */
+    public static byte[] audio(int size) {
+        byte[] audio = new byte[size];
+        new Random(size).nextBytes(audio);
+        return audio;
+    }
+
+    /**
+     * @return {@code data} base64 encoded in 76 characters CRLF terminated lines.
+     */
+    public static byte[] base64(byte[] data) {
+        return Base64.encode(data, Base64.CRLF);
+    }
+
+    /**
+     * @return {@code text} encoded as UTF-8 quoted-printable with soft line breaks.
+     */
+    public static byte[] quotedPrintable(String text) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int lineLength = 0;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xff;
+            String encoded;
+            if (c == '=' || c < 32 || c > 126) {
+                encoded = String.format(Locale.US, "=%02X", c);
+            } else {
+                encoded = String.valueOf((char) c);
+            }
+            if (lineLength + encoded.length() > 75) {
+                write(out, "=\r\n");
+                lineLength = 0;
+            }
+            write(out, encoded);
+            lineLength += encoded.length();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return a complete voicemail message with an attachment of {@code audioSize} bytes.
+     */
+    public static byte[] message(int audioSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, "Return-Path: <+15550123@vm.example.com>\r\n"
+                + "Date: Mon, 17 Oct 2016 10:00:00 +0000\r\n"
+                + "From: " + ENCODED_HEADER + "\r\n"
+                + "To: <+15559876@vm.example.com>\r\n"
+                + "Subject: voice mail\r\n"
+                + "Message-Context: voice-message\r\n"
+                + "Content-Duration: 17\r\n"
+                + "MIME-Version: 1.0\r\n"
+                + "Content-Type: multipart/mixed; boundary=\"" + BOUNDARY + "\"\r\n"
+                + "\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Type: text/plain; charset=UTF-8\r\n"
+                + "Content-Transfer-Encoding: quoted-printable\r\n"
+                + "\r\n");
+        byte[] transcription = quotedPrintable(TRANSCRIPTION);
+        out.write(transcription, 0, transcription.length);
+        write(out, "\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Type: audio/amr; name=\"voicemail.amr\"\r\n"
+                + "Content-Transfer-Encoding: base64\r\n"
+                + "Content-Disposition: attachment; filename=\"voicemail.amr\"\r\n"
+                + "\r\n");
+        byte[] audio = base64(audio(audioSize));
+        out.write(audio, 0, audio.length);
+        write(out, "\r\n--" + BOUNDARY + "--\r\n");
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the BODYSTRUCTURE of {@link #message(int)}.
+     */
+    public static String bodyStructure(int audioSize) {
+        return String.format(Locale.US, "((\"TEXT\" \"PLAIN\" (\"CHARSET\" \"UTF-8\") NIL NIL "
+                + "\"QUOTED-PRINTABLE\" %d 3 NIL NIL NIL)(\"AUDIO\" \"AMR\" (\"NAME\" "
+                + "\"voicemail.amr\") NIL NIL \"BASE64\" %d NIL (\"attachment\" (\"FILENAME\" "
+                + "\"voicemail.amr\")) NIL) \"MIXED\" (\"BOUNDARY\" \"%s\") NIL NIL)",
+                quotedPrintable(TRANSCRIPTION).length, base64(audio(audioSize)).length, BOUNDARY);
+    }
+
+    /**
+     * @return the server responses to {@code UID FETCH 1:* (UID FLAGS INTERNALDATE RFC822.SIZE
+     * ENVELOPE BODYSTRUCTURE)} on a mailbox of {@code count} voicemails.
+     */
+    public static byte[] fetchStructuresTranscript(int count) {
+        StringBuilder transcript = new StringBuilder();
+        String bodyStructure = bodyStructure(30 * KB);
+        for (int i = 1; i <= count; i++) {
+            transcript.append(String.format(Locale.US, "* %d FETCH (UID %d FLAGS (%s) "
+                    + "INTERNALDATE \"17-Oct-2016 10:00:00 +0000\" RFC822.SIZE %d ENVELOPE "
+                    + "(\"Mon, 17 Oct 2016 10:00:00 +0000\" \"voice mail\" ((NIL NIL "
+                    + "\"+15550123\" \"vm.example.com\")) NIL NIL ((NIL NIL \"+15559876\" "
+                    + "\"vm.example.com\")) NIL NIL NIL \"<%d@vm.example.com>\") "
+                    + "BODYSTRUCTURE %s)\r\n",
+                    i, 1000 + i, i % 2 == 0 ? "\\Seen" : "", 41 * KB, i, bodyStructure));
+        }
+        transcript.append("1 OK UID FETCH completed\r\n");
+        return transcript.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads {@code in} to the end, the way bodies are copied to files or the voicemail provider.
+     *
+     * @return the number of bytes read
+     */
+    public static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[16 * KB];
+        long total = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return the server responses to {@code UID FETCH 1001 (UID BODY.PEEK[2])}, the attachment
+     * of a voicemail.
+     */
+    public static byte[] fetchAttachmentTranscript(int audioSize) {
+        byte[] attachment = base64(audio(audioSize));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, "* 1 FETCH (UID 1001 BODY[2] {" + attachment.length + "}\r\n");
+        out.write(attachment, 0, attachment.length);
+        write(out, ")\r\n1 OK UID FETCH completed\r\n");
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.common.mail.internet;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.phone.common.mail.MailBenchmarkTestCase;
+import com.android.phone.common.mail.VoicemailFixtures;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Benchmarks the header and body decoding helpers of {@link MimeUtility}.
+ */
+@LargeTest
+public class MimeUtilityBenchmark extends MailBenchmarkTestCase {
+
+    public void testUnfoldAndDecode() throws Exception {
+        measure("MimeUtility.unfoldAndDecode", VoicemailFixtures.ENCODED_HEADER.length(),
+                new Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        MimeUtility.unfoldAndDecode(VoicemailFixtures.ENCODED_HEADER);
+                    }
+                });
+    }
+
+    public void testGetInputStreamForContentTransferEncoding_base64() throws Exception {
+        for (int size : VoicemailFixtures.SIZES) {
+            final byte[] encoded = VoicemailFixtures.base64(VoicemailFixtures.audio(size));
+            measure("MimeUtility.getInputStreamForContentTransferEncoding base64 " + size,
+                    encoded.length, new Operation() {
+                        @Override
+                        public void run() throws Exception {
+                            VoicemailFixtures.drain(
+                                    MimeUtility.getInputStreamForContentTransferEncoding(
+                                            new ByteArrayInputStream(encoded), "base64"));
+                        }
+                    });
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.common.mail.store;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.phone.common.mail.MailBenchmarkTestCase;
+import com.android.phone.common.mail.VoicemailFixtures;
+import com.android.phone.common.mail.internet.MimeMessage;
+import com.android.phone.common.mail.store.imap.ImapConstants;
+import com.android.phone.common.mail.store.imap.ImapList;
+import com.android.phone.common.mail.store.imap.ImapResponse;
+import com.android.phone.common.mail.store.imap.ImapResponseParser;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks {@link ImapFolder#parseBodyStructure} on the structures of a mailbox.
+ */
+@LargeTest
+public class ImapFolderBenchmark extends MailBenchmarkTestCase {
+
+    private static final int MAILBOX_SIZE = 50;
+
+    public void testParseBodyStructure() throws Exception {
+        ImapResponseParser parser = new ImapResponseParser(new ByteArrayInputStream(
+                VoicemailFixtures.fetchStructuresTranscript(MAILBOX_SIZE)));
+        final List<ImapList> bodyStructures = new ArrayList<>();
+        for (int i = 0; i < MAILBOX_SIZE; i++) {
+            ImapResponse response = parser.readResponse(false);
+            bodyStructures.add(response.getListOrEmpty(2)
+                    .getKeyedListOrEmpty(ImapConstants.BODYSTRUCTURE));
+        }
+
+        measure("ImapFolder.parseBodyStructure " + MAILBOX_SIZE, 0, new Operation() {
+            @Override
+            public void run() throws Exception {
+                for (ImapList bodyStructure : bodyStructures) {
+                    ImapFolder.parseBodyStructure(bodyStructure, new MimeMessage(),
+                            ImapConstants.TEXT);
+                }
+            }
+        });
+        parser.destroyResponses();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.common.mail.store;
+
+import com.android.phone.common.mail.Message;
+import com.android.phone.common.mail.Part;
+import com.android.phone.common.mail.VoicemailFixtures;
+import com.android.phone.common.mail.internet.MimeHeader;
+import com.android.phone.common.mail.internet.MimeMultipart;
+import com.android.phone.common.mail.store.ImapStore.ImapMessage;
+import com.android.phone.common.mail.store.imap.ImapConstants;
+import com.android.phone.common.mail.store.imap.ImapList;
+import com.android.phone.common.mail.store.imap.ImapResponseParser;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+
+public class ImapStructureCacheTest extends TestCase {
+
+    private static final String MAILBOX_KEY = "account";
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(System.getProperty("java.io.tmpdir"), "imap_structures_test");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testEncodeDecode() throws Exception {
+        ImapMessage message = newMessage("1001");
+        ImapMessage decoded = new ImapMessage("1001", null);
+        ImapStructureCache.decodeMessage(ImapStructureCache.encodeMessage(message), decoded);
+
+        assertEquals(message.getMimeType(), decoded.getMimeType());
+        assertEquals(message.getSize(), decoded.getSize());
+        MimeMultipart expected = (MimeMultipart) message.getBody();
+        MimeMultipart actual = (MimeMultipart) decoded.getBody();
+        assertEquals(expected.getContentType(), actual.getContentType());
+        assertEquals(2, actual.getCount());
+        for (int i = 0; i < expected.getCount(); i++) {
+            Part expectedPart = expected.getBodyPart(i);
+            Part actualPart = actual.getBodyPart(i);
+            assertEquals(expectedPart.getMimeType(), actualPart.getMimeType());
+            assertEquals(expectedPart.getSize(), actualPart.getSize());
+            assertEquals(expectedPart.getDisposition(), actualPart.getDisposition());
+            assertTrue(Arrays.equals(
+                    expectedPart.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA),
+                    actualPart.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA)));
+        }
+    }
+
+    public void testPersistence() throws Exception {
+        ImapStructureCache cache = new ImapStructureCache(mFile, MAILBOX_KEY);
+        cache.put(1, newMessage("1001"));
+        cache.put(1, newMessage("1002"));
+        cache.save();
+
+        cache = new ImapStructureCache(mFile, MAILBOX_KEY);
+        assertEquals(2, cache.size());
+        Message message = cache.get(1, "1001", null);
+        assertEquals("1001", message.getUid());
+        assertEquals("multipart/mixed", message.getMimeType());
+
+        // Another mailbox does not use the file.
+        assertNull(new ImapStructureCache(mFile, "other").get(1, "1001", null));
+    }
+
+    public void testUidValidityChange() throws Exception {
+        ImapStructureCache cache = new ImapStructureCache(mFile, MAILBOX_KEY);
+        cache.put(1, newMessage("1001"));
+        assertNull(cache.get(2, "1001", null));
+        cache.put(2, newMessage("1002"));
+        assertEquals(1, cache.size());
+        assertNull(cache.get(2, "1001", null));
+        assertNotNull(cache.get(2, "1002", null));
+    }
+
+    public void testRetainAll() throws Exception {
+        ImapStructureCache cache = new ImapStructureCache(mFile, MAILBOX_KEY);
+        cache.put(1, newMessage("1001"));
+        cache.put(1, newMessage("1002"));
+        cache.retainAll(1, Arrays.asList("1002", "1003"));
+        assertEquals(1, cache.size());
+        assertNull(cache.get(1, "1001", null));
+        assertNotNull(cache.get(1, "1002", null));
+    }
+
+    private static ImapMessage newMessage(String uid) throws Exception {
+        ImapResponseParser parser = new ImapResponseParser(new ByteArrayInputStream(
+                ("* 1 FETCH (BODYSTRUCTURE " + VoicemailFixtures.bodyStructure(VoicemailFixtures.KB)
+                        + ")\r\n").getBytes()));
+        ImapList bodyStructure = parser.readResponse(false).getListOrEmpty(2)
+                .getKeyedListOrEmpty(ImapConstants.BODYSTRUCTURE);
+        ImapMessage message = new ImapMessage(uid, null);
+        ImapFolder.parseBodyStructure(bodyStructure, message, ImapConstants.TEXT);
+        parser.destroyResponses();
+        return message;
+    }
+}
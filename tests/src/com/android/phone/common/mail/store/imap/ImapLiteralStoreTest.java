@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.common.mail.store.imap;
+
+import com.android.phone.common.mail.FixedLengthInputStream;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class ImapLiteralStoreTest extends TestCase {
+
+    private static final int THRESHOLD = 10;
+
+    private ImapLiteralStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStore = new ImapLiteralStore(new File(System.getProperty("java.io.tmpdir")), 16);
+    }
+
+    public void testStore_inMemoryWithinBudget() throws Exception {
+        ImapLiteralStore.Region first = store("0123456789");
+        ImapLiteralStore.Region second = store("abcdef");
+        assertFalse(first.isSpilled());
+        assertFalse(second.isSpilled());
+        assertEquals(16, mStore.getMemoryUsed());
+
+        // Over budget.
+        ImapLiteralStore.Region third = store("x");
+        assertTrue(third.isSpilled());
+        assertEquals("x", read(third));
+
+        first.release();
+        assertEquals(6, mStore.getMemoryUsed());
+        assertFalse(store("y").isSpilled());
+    }
+
+    public void testStore_readErrorReturnsMemory() throws Exception {
+        InputStream failing = new InputStream() {
+            private int mRemaining = 4;
+
+            @Override
+            public int read() throws IOException {
+                if (mRemaining == 0) {
+                    throw new IOException("connection dropped");
+                }
+                mRemaining--;
+                return 'a';
+            }
+        };
+        try {
+            mStore.store(new FixedLengthInputStream(failing, 8), THRESHOLD);
+            fail("IOException expected");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(0, mStore.getMemoryUsed());
+    }
+
+    public void testStore_spillsLargeLiterals() throws Exception {
+        ImapLiteralStore.Region first = store("a large literal");
+        ImapLiteralStore.Region second = store("another large literal");
+        assertTrue(first.isSpilled());
+        assertTrue(second.isSpilled());
+        assertEquals(0, mStore.getMemoryUsed());
+        assertEquals("a large literal", read(first));
+        assertEquals("another large literal", read(second));
+        assertEquals(36, mStore.getSpillFileLength());
+
+        // The first region is not at the end of the file, so the file can't shrink yet.
+        first.release();
+        assertEquals(36, mStore.getSpillFileLength());
+        second.release();
+        assertEquals(0, mStore.getSpillFileLength());
+    }
+
+    public void testRelease_openStreamKeepsRegion() throws Exception {
+        ImapLiteralStore.Region region = store("a large literal");
+        InputStream in = region.openStream();
+        region.release();
+        assertEquals(15, mStore.getSpillFileLength());
+        assertEquals('a', in.read());
+        in.close();
+        assertEquals(0, mStore.getSpillFileLength());
+        assertEquals(-1, in.read());
+    }
+
+    public void testRelease_streamReadToEnd() throws Exception {
+        ImapLiteralStore.Region region = store("a large literal");
+        String content = read(region);
+        region.release();
+        assertEquals("a large literal", content);
+        assertEquals(0, mStore.getSpillFileLength());
+    }
+
+    public void testParser_destroyReleasesLiteral() throws Exception {
+        ImapResponseParser parser = new ImapResponseParser(new ByteArrayInputStream(
+                "* 1 FETCH (BODY[2] {15}\r\na large literal)\r\n".getBytes()), THRESHOLD,
+                mStore);
+        ImapResponse response = parser.readResponse(false);
+        ImapString literal = response.getListOrEmpty(2).getKeyedStringOrEmpty("BODY[", true);
+        assertTrue(((ImapStoredLiteral) literal).isSpilledForTest());
+        assertEquals("a large literal", literal.getString());
+        parser.destroyResponses();
+        assertEquals(0, mStore.getSpillFileLength());
+    }
+
+    private ImapLiteralStore.Region store(String content) throws IOException {
+        byte[] bytes = content.getBytes();
+        return mStore.store(new FixedLengthInputStream(new ByteArrayInputStream(bytes),
+                bytes.length), THRESHOLD);
+    }
+
+    /**
+     * Reads the region to the end without closing the stream.
+     */
+    private static String read(ImapLiteralStore.Region region) throws IOException {
+        InputStream in = region.openStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.common.mail.store.imap;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.phone.common.mail.MailBenchmarkTestCase;
+import com.android.phone.common.mail.VoicemailFixtures;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Benchmarks {@link ImapResponseParser#readResponse(boolean)} on the responses of a sync.
+ */
+@LargeTest
+public class ImapResponseParserBenchmark extends MailBenchmarkTestCase {
+
+    private static final int MAILBOX_SIZE = 50;
+
+    public void testReadResponse_fetchStructures() throws Exception {
+        final byte[] transcript = VoicemailFixtures.fetchStructuresTranscript(MAILBOX_SIZE);
+        measure("ImapResponseParser.readResponse fetchStructures " + MAILBOX_SIZE,
+                transcript.length, new Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        readAll(createParser(transcript), MAILBOX_SIZE + 1);
+                    }
+                });
+    }
+
+    public void testReadResponse_fetchAttachment() throws Exception {
+        for (int size : VoicemailFixtures.SIZES) {
+            final byte[] transcript = VoicemailFixtures.fetchAttachmentTranscript(size);
+            measure("ImapResponseParser.readResponse fetchAttachment " + size,
+                    transcript.length, new Operation() {
+                        @Override
+                        public void run() throws Exception {
+                            ImapResponseParser parser = createParser(transcript);
+                            ImapResponse response = parser.readResponse(false);
+                            VoicemailFixtures.drain(response.getListOrEmpty(2)
+                                    .getKeyedStringOrEmpty("BODY[", true).getAsStream());
+                            readAll(parser, 1);
+                        }
+                    });
+        }
+    }
+
+    public void testReadResponse_fetchAttachmentStreamed() throws Exception {
+        for (int size : VoicemailFixtures.SIZES) {
+            final byte[] transcript = VoicemailFixtures.fetchAttachmentTranscript(size);
+            measure("ImapResponseParser.readResponse fetchAttachmentStreamed " + size,
+                    transcript.length, new Operation() {
+                        @Override
+                        public void run() throws Exception {
+                            ImapResponseParser parser = createParser(transcript);
+                            parser.setLiteralSink(new ImapResponseParser.LiteralSink() {
+                                @Override
+                                public void onLiteral(InputStream in) throws IOException {
+                                    VoicemailFixtures.drain(in);
+                                }
+                            });
+                            readAll(parser, 2);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Reads the transcript through a buffered stream, like {@link
+     * com.android.phone.common.mail.MailTransport} does.
+     */
+    private static ImapResponseParser createParser(byte[] transcript) {
+        return new ImapResponseParser(
+                new BufferedInputStream(new ByteArrayInputStream(transcript), 1024));
+    }
+
+    private static void readAll(ImapResponseParser parser, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            parser.readResponse(false);
+        }
+        parser.destroyResponses();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.phone.common.mail.store.imap;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class ImapResponseParserTest extends TestCase {
+
+    private static ImapResponseParser createParser(String response) {
+        return new ImapResponseParser(new ByteArrayInputStream(response.getBytes()));
+    }
+
+    public void testReadResponse_literal() throws Exception {
+        ImapResponseParser parser = createParser("* 1 FETCH (UID 7 BODY[2] {5}\r\nhello)\r\n");
+        ImapResponse response = parser.readResponse(false);
+        assertTrue(response.isDataResponse(1, ImapConstants.FETCH));
+        ImapList fetchList = response.getListOrEmpty(2);
+        assertEquals("7", fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString());
+        assertEquals("hello", fetchList.getKeyedStringOrEmpty("BODY[", true).getString());
+        parser.destroyResponses();
+    }
+
+    public void testReadResponse_literalSink() throws Exception {
+        ImapResponseParser parser = createParser(
+                "* 1 FETCH (UID 7 BODY[2] {5}\r\nhello)\r\n1 OK done\r\n");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        parser.setLiteralSink(new ImapResponseParser.LiteralSink() {
+            @Override
+            public void onLiteral(InputStream in) throws IOException {
+                int b;
+                while ((b = in.read()) != -1) {
+                    out.write(b);
+                }
+            }
+        });
+        ImapResponse response = parser.readResponse(false);
+        assertEquals("hello", out.toString());
+        ImapList fetchList = response.getListOrEmpty(2);
+        assertEquals("7", fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString());
+        assertTrue(fetchList.getKeyedStringOrEmpty("BODY[", true).isEmpty());
+        assertTrue(parser.readResponse(false).isOk());
+        parser.destroyResponses();
+    }
+
+    public void testReadResponse_literalSinkPartiallyConsumed() throws Exception {
+        ImapResponseParser parser = createParser(
+                "* 1 FETCH (BODY[2] {5}\r\nhello UID 7)\r\n1 OK done\r\n");
+        parser.setLiteralSink(new ImapResponseParser.LiteralSink() {
+            @Override
+            public void onLiteral(InputStream in) throws IOException {
+                in.read();
+            }
+        });
+        ImapResponse response = parser.readResponse(false);
+        // The rest of the literal should be skipped.
+        assertEquals("7", response.getListOrEmpty(2).getKeyedStringOrEmpty(ImapConstants.UID)
+                .getString());
+        assertTrue(parser.readResponse(false).isOk());
+        parser.destroyResponses();
+    }
+
+    public void testReadResponse_tokensAcrossReads() throws Exception {
+        // Deliver one byte per read so every token crosses the end of the window.
+        ImapResponseParser parser = new ImapResponseParser(new ByteArrayInputStream(
+                "* 12 FETCH (UID 7 FLAGS (\\Seen) BODY[1] {3}\r\nabc NIL \"q s\")\r\n".getBytes()) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        });
+        ImapResponse response = parser.readResponse(false);
+        assertTrue(response.isDataResponse(1, ImapConstants.FETCH));
+        assertEquals(12, response.getStringOrEmpty(0).getNumberOrZero());
+        ImapList fetchList = response.getListOrEmpty(2);
+        assertEquals("7", fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString());
+        assertTrue(fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS).getStringOrEmpty(0)
+                .is("\\Seen"));
+        assertEquals("abc", fetchList.getKeyedStringOrEmpty("BODY[", true).getString());
+        assertTrue(fetchList.getStringOrEmpty(6).isEmpty());
+        assertEquals("q s", fetchList.getStringOrEmpty(7).getString());
+        parser.destroyResponses();
+    }
+
+    public void testReadResponse_longAtom() throws Exception {
+        StringBuilder atom = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            atom.append('a');
+        }
+        ImapResponseParser parser = createParser("* OK " + atom + "\r\n* 1 EXISTS\r\n");
+        assertEquals(atom.toString(), parser.readResponse(false).getStringOrEmpty(1).getString());
+        assertTrue(parser.readResponse(false).isDataResponse(1, ImapConstants.EXISTS));
+        parser.destroyResponses();
+    }
+}
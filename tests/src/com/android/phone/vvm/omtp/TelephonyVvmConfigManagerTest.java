@@ -25,7 +25,11 @@ import static com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper.KEY_VVM_PREF
 import static com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper.KEY_VVM_SSL_PORT_NUMBER_INT;
 import static com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper.KEY_VVM_TYPE_STRING;
 
+import android.content.res.Resources;
 import android.os.PersistableBundle;
+import android.support.test.InstrumentationRegistry;
+
+import com.android.phone.R;
 
 import junit.framework.TestCase;
 
@@ -62,6 +66,14 @@ public class TelephonyVvmConfigManagerTest extends TestCase {
             + "    </string-array>\n"
             + "  </pbundle_as_map>\n";
 
+    private static final String OTHER_CARRIER = "  <pbundle_as_map>\n"
+            + "    <string-array name=\"mccmnc\">\n"
+            + "      <item value=\"310260\"/>\n"
+            + "      <item value=\"67890\"/>\n"
+            + "    </string-array>\n"
+            + "    <string name=\"vvm_type_string\">vvm_type_cvvm</string>\n"
+            + "  </pbundle_as_map>\n";
+
     private static final String CARRIER_EMPTY = "<pbundle_as_map></pbundle_as_map>\n";
 
 
@@ -78,6 +90,44 @@ public class TelephonyVvmConfigManagerTest extends TestCase {
         verifyCarrier(manager.getConfig("67890"));
     }
 
+    public void testLoadConfigFromXml_LastCarrierWins() {
+        TelephonyVvmConfigManager manager =
+                createManager(XML_HEADER + CARRIER + OTHER_CARRIER + XML_FOOTER);
+        verifyCarrier(manager.getConfig("12345"));
+        assertEquals("vvm_type_cvvm", manager.getConfig("67890").getString(KEY_VVM_TYPE_STRING));
+        assertEquals("vvm_type_cvvm", manager.getConfig("310260").getString(KEY_VVM_TYPE_STRING));
+        assertNull(manager.getConfig("00000"));
+        assertNull(manager.getConfig(null));
+    }
+
+    public void testShippedConfig() throws Exception {
+        Resources resources = InstrumentationRegistry.getTargetContext().getResources();
+        TelephonyVvmConfigManager manager = new TelephonyVvmConfigManager(resources);
+        // Every MCCMNC listed in the shipped file resolves to a config listing it.
+        XmlPullParser parser = resources.getXml(R.xml.vvm_config);
+        int count = 0;
+        boolean inMccMnc = false;
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_TAG && "string-array".equals(parser.getName())) {
+                inMccMnc = TelephonyVvmConfigManager.KEY_MCCMNC.equals(
+                        parser.getAttributeValue(null, "name"));
+            } else if (event == XmlPullParser.END_TAG && "string-array".equals(parser.getName())) {
+                inMccMnc = false;
+            } else if (event == XmlPullParser.START_TAG && inMccMnc
+                    && "item".equals(parser.getName())) {
+                String mccMnc = parser.getAttributeValue(null, "value");
+                PersistableBundle config = manager.getConfig(mccMnc);
+                assertNotNull(mccMnc, config);
+                assertTrue(mccMnc, Arrays.asList(config.getStringArray(
+                        TelephonyVvmConfigManager.KEY_MCCMNC)).contains(mccMnc));
+                count++;
+            }
+        }
+        assertTrue(count > 0);
+        assertNotNull(manager.getConfig("TEST"));
+    }
+
     public void testLoadConfigFromXml_Empty() {
         createManager(XML_HEADER + CARRIER_EMPTY + XML_FOOTER);
     }
@@ -100,12 +150,16 @@ public class TelephonyVvmConfigManagerTest extends TestCase {
 
     private TelephonyVvmConfigManager createManager(String xml) {
         try {
-            XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
-            parser.setInput(new StringReader(xml));
-            return new TelephonyVvmConfigManager(parser);
+            return new TelephonyVvmConfigManager(createParser(xml));
         } catch (XmlPullParserException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static XmlPullParser createParser(String xml) throws XmlPullParserException {
+        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setInput(new StringReader(xml));
+        return parser;
+    }
+
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.vvm.omtp.imap;
+
+import junit.framework.TestCase;
+
+public class ImapSyncStateTest extends TestCase {
+
+    public void testNoPriorSync() {
+        ImapSyncState previous = new ImapSyncState(-1, -1, -1);
+        ImapSyncState current = new ImapSyncState(1, 10, 100);
+        assertFalse(previous.canSyncIncrementallyTo(current));
+        assertFalse(previous.isUnchanged(current));
+    }
+
+    public void testUidValidityChanged() {
+        ImapSyncState previous = new ImapSyncState(1, 10, 100);
+        ImapSyncState current = new ImapSyncState(2, 10, 100);
+        assertFalse(previous.canSyncIncrementallyTo(current));
+        assertFalse(previous.isUnchanged(current));
+    }
+
+    public void testNewMessages() {
+        ImapSyncState previous = new ImapSyncState(1, 10, 100);
+        ImapSyncState current = new ImapSyncState(1, 12, 102);
+        assertTrue(previous.canSyncIncrementallyTo(current));
+        assertTrue(previous.hasModSeq(current));
+        assertFalse(previous.isUnchanged(current));
+    }
+
+    public void testUnchanged() {
+        ImapSyncState previous = new ImapSyncState(1, 10, 100);
+        ImapSyncState current = new ImapSyncState(1, 10, 100);
+        assertTrue(previous.isUnchanged(current));
+    }
+
+    public void testNoCondstore() {
+        ImapSyncState previous = new ImapSyncState(1, 10, -1);
+        ImapSyncState current = new ImapSyncState(1, 10, -1);
+        assertTrue(previous.canSyncIncrementallyTo(current));
+        assertFalse(previous.hasModSeq(current));
+        // Flag changes can't be detected without CONDSTORE.
+        assertFalse(previous.isUnchanged(current));
+    }
+}
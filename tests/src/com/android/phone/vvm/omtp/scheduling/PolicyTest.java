@@ -22,6 +22,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.Random;
+
 @RunWith(AndroidJUnit4.class)
 public class PolicyTest extends BaseTaskTestBase {
 
@@ -75,6 +77,35 @@ public class PolicyTest extends BaseTaskTestBase {
         assertTrue(sExecuteCounter == 3);
     }
 
+    @Test
+    public void testRetryPolicyBackoff() {
+        Random random = new Random(0);
+        long delay = 1000;
+        for (int i = 0; i < 20; i++) {
+            long next = RetryPolicy.getNextRetryDelayMillis(1000, 60_000, delay, random);
+            assertTrue(next >= 1000);
+            assertTrue(next <= Math.min(60_000, delay * 3));
+            delay = next;
+        }
+        // Without a larger maximum the delay is fixed.
+        assertTrue(RetryPolicy.getNextRetryDelayMillis(1000, 1000, 1000, random) == 1000);
+    }
+
+    @Test
+    public void testImapCircuitBreaker() {
+        ImapCircuitBreaker breaker = new ImapCircuitBreaker();
+        for (int i = 0; i < ImapCircuitBreaker.FAILURE_THRESHOLD - 1; i++) {
+            breaker.onFailure("host", 0);
+        }
+        assertTrue(breaker.getRemainingOpenMillis("host", 0) == 0);
+        breaker.onFailure("host", 0);
+        assertTrue(breaker.getRemainingOpenMillis("host", 1000)
+                == ImapCircuitBreaker.OPEN_DURATION_MILLIS - 1000);
+        assertTrue(breaker.getRemainingOpenMillis("other", 1000) == 0);
+        breaker.onSuccess("host");
+        assertTrue(breaker.getRemainingOpenMillis("host", 1000) == 0);
+    }
+
     @Test
     public void testMinimalIntervalPolicy() {
         MinimalIntervalPolicyTask task1 = (MinimalIntervalPolicyTask) submitTask(
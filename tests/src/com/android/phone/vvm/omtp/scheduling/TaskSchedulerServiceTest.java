@@ -26,6 +26,7 @@ import com.android.phone.vvm.omtp.scheduling.Task.TaskId;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 @RunWith(AndroidJUnit4.class)
@@ -115,6 +116,97 @@ public class TaskSchedulerServiceTest extends TaskSchedulerServiceTestBase {
         verifyRanOnce(task2);
     }
 
+    @Test
+    public void testPriority() {
+        TestTask task1 = (TestTask) mService.createTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(1, 0)), 0, 0);
+        task1.priority = Task.PRIORITY_UPLOAD;
+        mService.addTask(task1);
+        TestTask task2 = (TestTask) mService.createTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(2, 1)), 0, 0);
+        task2.priority = Task.PRIORITY_ACTIVATION;
+        mService.addTask(task2);
+        mService.runNextTask();
+        verifyNotRan(task1);
+        verifyRanOnce(task2);
+        mService.runNextTask();
+        verifyRanOnce(task1);
+        verifyRanOnce(task2);
+    }
+
+    @Test
+    public void testSameSubIdRunsOneAtATime() {
+        holdTasks();
+        TestTask task1 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(1, 1)));
+        TestTask task2 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(2, 1)));
+        assertTrue(mService.runNextTask());
+        verifyStarted(task1);
+        // A worker is idle, but the subscription is busy.
+        assertTrue(!mService.runNextTask());
+        verifyNotRan(task2);
+
+        finishHeldTasks();
+        verifyRanOnce(task1);
+        verifyNotRan(task2);
+        mService.runNextTask();
+        verifyRanOnce(task2);
+    }
+
+    @Test
+    public void testDifferentSubIdsRunInParallel() {
+        holdTasks();
+        TestTask task1 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(1, 1)));
+        TestTask task2 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(1, 2)));
+        TestTask task3 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(1, 3)));
+        assertTrue(mService.runNextTask());
+        assertTrue(mService.runNextTask());
+        verifyStarted(task1);
+        verifyStarted(task2);
+        List<Integer> workers = getHeldTaskWorkers();
+        assertTrue(workers.size() == 2);
+        assertTrue(!workers.get(0).equals(workers.get(1)));
+        // Both workers are busy.
+        assertTrue(!mService.runNextTask());
+        verifyNotRan(task3);
+
+        finishHeldTasks();
+        verifyRanOnce(task1);
+        verifyRanOnce(task2);
+        mService.runNextTask();
+        verifyRanOnce(task3);
+    }
+
+    @Test
+    public void testAddDuplicatedTaskWhileRunning() {
+        holdTasks();
+        TestTask task1 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(1, 1)));
+        assertTrue(mService.runNextTask());
+        verifyStarted(task1);
+        TestTask task2 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(1, 1)));
+        assertTrue(task1.onDuplicatedTaskAddedCounter.invokedOnce());
+
+        finishHeldTasks();
+        verifyRanOnce(task1);
+        assertTrue(!mService.runNextTask());
+        verifyNotRan(task2);
+    }
+
     @Test
     public void testInvalidTaskId() {
         Task task = mock(Task.class);
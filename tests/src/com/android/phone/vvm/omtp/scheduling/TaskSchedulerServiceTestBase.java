@@ -40,6 +40,8 @@ import org.junit.Rule;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 @RunWith(AndroidJUnit4.class)
@@ -105,6 +107,43 @@ public class TaskSchedulerServiceTestBase {
         return task;
     }
 
+    /**
+     * Keeps tasks sent to a worker from running until {@link #finishHeldTasks()}, so the tests
+     * can check what the service does while they are running.
+     */
+    public void holdTasks() {
+        mMessageSender.mHoldWorkerMessages = true;
+    }
+
+    /**
+     * @return the worker each held task was sent to, in the order they were started
+     */
+    public List<Integer> getHeldTaskWorkers() {
+        List<Integer> workers = new ArrayList<>();
+        for (Message message : mMessageSender.mHeldMessages) {
+            workers.add(message.arg1);
+        }
+        return workers;
+    }
+
+    /**
+     * Runs and completes the held tasks, and stops holding new ones.
+     */
+    public void finishHeldTasks() {
+        mMessageSender.mHoldWorkerMessages = false;
+        List<Message> messages = new ArrayList<>(mMessageSender.mHeldMessages);
+        mMessageSender.mHeldMessages.clear();
+        for (Message message : messages) {
+            mMessageSender.send(message);
+        }
+    }
+
+    public static void verifyStarted(TestTask task) {
+        assertTrue(task.onBeforeExecuteCounter.invokedOnce());
+        assertTrue(task.executeCounter.neverInvoked());
+        assertTrue(task.onCompletedCounter.neverInvoked());
+    }
+
     public static void verifyRanOnce(TestTask task) {
         assertTrue(task.onBeforeExecuteCounter.invokedOnce());
         assertTrue(task.executeCounter.invokedOnce());
@@ -121,6 +160,8 @@ public class TaskSchedulerServiceTestBase {
 
         public int readyInMilliseconds;
 
+        public int priority = PRIORITY_DEFAULT;
+
         private TaskId mId;
 
         public final InvocationCounter onCreateCounter = new InvocationCounter();
@@ -146,6 +187,11 @@ public class TaskSchedulerServiceTestBase {
             return readyInMilliseconds;
         }
 
+        @Override
+        public int getPriority() {
+            return priority;
+        }
+
         @Override
         public void onBeforeExecute() {
             Assert.isMainThread();
@@ -190,11 +236,18 @@ public class TaskSchedulerServiceTestBase {
 
     private class TestMessageSender extends TaskSchedulerService.MessageSender {
 
+        private boolean mHoldWorkerMessages;
+        private final List<Message> mHeldMessages = new ArrayList<>();
+
         @Override
         public void send(Message message) {
             if (message.getTarget() instanceof MainThreadHandler) {
                 Assert.setIsMainThreadForTesting(true);
             } else if (message.getTarget() instanceof WorkerThreadHandler) {
+                if (mHoldWorkerMessages) {
+                    mHeldMessages.add(message);
+                    return;
+                }
                 Assert.setIsMainThreadForTesting(false);
             } else {
                 throw new AssertionError("unexpected Handler " + message.getTarget());
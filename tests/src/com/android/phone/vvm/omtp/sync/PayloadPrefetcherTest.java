@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.vvm.omtp.sync;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.net.Uri;
+import android.provider.VoicemailContract.Status;
+import android.telecom.PhoneAccountHandle;
+import android.test.AndroidTestCase;
+
+import com.android.phone.MockitoHelper;
+import com.android.phone.VoicemailStatus;
+import com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper;
+import com.android.phone.vvm.omtp.fetch.VoicemailFetchedCallback;
+import com.android.phone.vvm.omtp.imap.ImapHelper;
+import com.android.phone.vvm.omtp.imap.ImapHelper.InitializingException;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PayloadPrefetcherTest extends AndroidTestCase {
+
+    private static final PhoneAccountHandle PHONE_ACCOUNT = new PhoneAccountHandle(
+            new ComponentName("com.android.phone", "PayloadPrefetcherTest"), "1");
+
+    // ClassLoader need to be replaced for mockito to work.
+    private MockitoHelper mMokitoHelper = new MockitoHelper();
+
+    private Context mContext;
+    private OmtpVvmCarrierConfigHelper mConfig;
+    private ImapHelper mImapHelper;
+    private VoicemailStatus.Editor mStatus;
+
+    /** The uids fetched, by any connection. */
+    private final List<String> mFetchedUids = new ArrayList<>();
+    /** The connections opened by the workers. */
+    private final List<ImapHelper> mWorkerHelpers = new ArrayList<>();
+    /** Held by each fetch until it is released, or a timeout. */
+    private CountDownLatch mFetchLatch;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMokitoHelper.setUp(getContext(), getClass());
+        mContext = mock(Context.class);
+        mConfig = mock(OmtpVvmCarrierConfigHelper.class);
+        mImapHelper = createImapHelper();
+        when(mImapHelper.getConfig()).thenReturn(mConfig);
+        mStatus = VoicemailStatus.deferredEdit(mContext, PHONE_ACCOUNT);
+        mFetchLatch = new CountDownLatch(0);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mMokitoHelper.tearDown();
+        super.tearDown();
+    }
+
+    public void testRun_singleConnection() {
+        when(mConfig.getPrefetchThreads()).thenReturn(1);
+        PayloadPrefetcher prefetcher = createPrefetcher(3);
+        prefetcher.run();
+
+        assertEquals(0, mWorkerHelpers.size());
+        assertEquals(createUids(3), mFetchedUids);
+    }
+
+    public void testRun_noRequests() {
+        when(mConfig.getPrefetchThreads()).thenReturn(4);
+        createPrefetcher(0).run();
+
+        assertEquals(0, mWorkerHelpers.size());
+        assertEquals(0, mFetchedUids.size());
+    }
+
+    public void testRun_fansOut() {
+        when(mConfig.getPrefetchThreads()).thenReturn(3);
+        // The first three fetches only complete once all three are running at the same time.
+        mFetchLatch = new CountDownLatch(3);
+        PayloadPrefetcher prefetcher = createPrefetcher(10);
+        prefetcher.run();
+
+        assertEquals(0, mFetchLatch.getCount());
+        assertEquals(2, mWorkerHelpers.size());
+        for (ImapHelper helper : mWorkerHelpers) {
+            verify(helper).close();
+        }
+        // Each payload is fetched once, and all are done when run() returns.
+        assertEquals(10, mFetchedUids.size());
+        assertEquals(new HashSet<>(createUids(10)), new HashSet<>(mFetchedUids));
+    }
+
+    public void testRun_fewerRequestsThanConnections() {
+        when(mConfig.getPrefetchThreads()).thenReturn(4);
+        PayloadPrefetcher prefetcher = createPrefetcher(2);
+        prefetcher.run();
+
+        assertEquals(1, mWorkerHelpers.size());
+        assertEquals(new HashSet<>(createUids(2)), new HashSet<>(mFetchedUids));
+    }
+
+    public void testRun_workerCannotConnect() {
+        when(mConfig.getPrefetchThreads()).thenReturn(3);
+        PayloadPrefetcher prefetcher = createPrefetcher(5);
+        prefetcher.setImapHelperCreator(new PayloadPrefetcher.ImapHelperCreator() {
+            @Override
+            public ImapHelper createImapHelper(VoicemailStatus.Editor status)
+                    throws InitializingException {
+                throw mImapHelper.new InitializingException("No credentials");
+            }
+        });
+        prefetcher.run();
+
+        // The sync connection fetches everything.
+        assertEquals(createUids(5), mFetchedUids);
+    }
+
+    public void testRun_mergesWorkerStatus() {
+        when(mConfig.getPrefetchThreads()).thenReturn(2);
+        PayloadPrefetcher prefetcher = createPrefetcher(2);
+        prefetcher.setImapHelperCreator(new PayloadPrefetcher.ImapHelperCreator() {
+            @Override
+            public ImapHelper createImapHelper(VoicemailStatus.Editor status) {
+                status.setDataChannelState(Status.DATA_CHANNEL_STATE_SERVER_CONNECTION_ERROR);
+                return PayloadPrefetcherTest.this.createImapHelper();
+            }
+        });
+        prefetcher.run();
+
+        assertEquals(Status.DATA_CHANNEL_STATE_SERVER_CONNECTION_ERROR,
+                (int) mStatus.getValues().getAsInteger(Status.DATA_CHANNEL_STATE));
+    }
+
+    private PayloadPrefetcher createPrefetcher(int requestCount) {
+        PayloadPrefetcher prefetcher = new PayloadPrefetcher(mContext, PHONE_ACCOUNT, null,
+                mImapHelper, mStatus);
+        prefetcher.setImapHelperCreator(new PayloadPrefetcher.ImapHelperCreator() {
+            @Override
+            public ImapHelper createImapHelper(VoicemailStatus.Editor status) {
+                ImapHelper helper = PayloadPrefetcherTest.this.createImapHelper();
+                synchronized (mWorkerHelpers) {
+                    mWorkerHelpers.add(helper);
+                }
+                return helper;
+            }
+        });
+        for (String uid : createUids(requestCount)) {
+            prefetcher.add(Uri.parse("content://voicemail/" + uid), uid);
+        }
+        return prefetcher;
+    }
+
+    /**
+     * @return an {@link ImapHelper} which records the payloads it fetches
+     */
+    private ImapHelper createImapHelper() {
+        ImapHelper helper = mock(ImapHelper.class);
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                synchronized (mFetchedUids) {
+                    mFetchedUids.add((String) invocation.getArguments()[1]);
+                }
+                mFetchLatch.countDown();
+                mFetchLatch.await(5, TimeUnit.SECONDS);
+                return true;
+            }
+        }).when(helper).fetchVoicemailPayload(any(VoicemailFetchedCallback.class), anyString());
+        return helper;
+    }
+
+    private static List<String> createUids(int count) {
+        List<String> uids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            uids.add("uid" + i);
+        }
+        return uids;
+    }
+}
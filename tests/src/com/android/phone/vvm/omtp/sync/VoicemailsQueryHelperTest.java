@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.vvm.omtp.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.provider.VoicemailContract;
+import android.provider.VoicemailContract.Voicemails;
+import android.telecom.Voicemail;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.mock.MockContext;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class VoicemailsQueryHelperTest extends TestCase {
+
+    private static final String PACKAGE_NAME = "com.android.phone.tests";
+    private static final Uri SOURCE_URI = Voicemails.buildSourceUri(PACKAGE_NAME);
+
+    private VoicemailProvider mProvider;
+    private VoicemailsQueryHelper mQueryHelper;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mProvider = new VoicemailProvider();
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(VoicemailContract.AUTHORITY, mProvider);
+        mQueryHelper = new VoicemailsQueryHelper(new MockContext() {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+
+            @Override
+            public String getPackageName() {
+                return PACKAGE_NAME;
+            }
+        });
+    }
+
+    public void testBatch_appliesInOrder() {
+        VoicemailsQueryHelper.Batch batch = mQueryHelper.newBatch()
+                .insert(createNewVoicemail("1"))
+                .markRead(createVoicemail(2))
+                .delete(createVoicemail(3))
+                .markClean(createVoicemail(4))
+                .updateWithTranscription(createVoicemail(5), "transcription")
+                .insert(createNewVoicemail("6"));
+
+        List<Uri> insertedUris = batch.apply();
+
+        assertEquals(1, mProvider.mTransactions.size());
+        List<ContentProviderOperation> operations = mProvider.mTransactions.get(0);
+        assertEquals(6, operations.size());
+        assertTrue(operations.get(0).isInsert());
+        assertEquals(SOURCE_URI, operations.get(0).getUri());
+        assertTrue(operations.get(1).isUpdate());
+        assertEquals(getUri(2), operations.get(1).getUri());
+        assertTrue(operations.get(2).isDelete());
+        assertTrue(operations.get(3).isUpdate());
+        assertEquals(getUri(4), operations.get(3).getUri());
+        assertTrue(operations.get(4).isUpdate());
+        assertEquals(getUri(5), operations.get(4).getUri());
+        assertTrue(operations.get(5).isInsert());
+        assertEquals(Arrays.asList(getInsertedUri(0, 0), getInsertedUri(0, 5)), insertedUris);
+    }
+
+    public void testBatch_splitsTransactions() {
+        VoicemailsQueryHelper.Batch batch = mQueryHelper.newBatch();
+        for (int i = 0; i < 450; i++) {
+            if (i == 0 || i == 199 || i == 200 || i == 449) {
+                batch.insert(createNewVoicemail(Integer.toString(i)));
+            } else {
+                batch.markClean(createVoicemail(i));
+            }
+        }
+
+        List<Uri> insertedUris = batch.apply();
+
+        assertEquals(3, mProvider.mTransactions.size());
+        assertEquals(200, mProvider.mTransactions.get(0).size());
+        assertEquals(200, mProvider.mTransactions.get(1).size());
+        assertEquals(50, mProvider.mTransactions.get(2).size());
+        assertEquals(Arrays.asList(getInsertedUri(0, 0), getInsertedUri(0, 199),
+                getInsertedUri(1, 0), getInsertedUri(2, 49)), insertedUris);
+    }
+
+    public void testBatch_emptyAfterApply() {
+        VoicemailsQueryHelper.Batch batch = mQueryHelper.newBatch()
+                .markRead(createVoicemail(1));
+        batch.apply();
+        assertEquals(1, mProvider.mTransactions.size());
+
+        assertEquals(0, batch.apply().size());
+        assertEquals(1, mProvider.mTransactions.size());
+    }
+
+    public void testBatch_failure() {
+        mProvider.mFailedTransaction = 1;
+        VoicemailsQueryHelper.Batch batch = mQueryHelper.newBatch();
+        for (int i = 0; i < 300; i++) {
+            batch.insert(createNewVoicemail(Integer.toString(i)));
+        }
+
+        assertNull(batch.apply());
+        // The first transaction was applied, the batch is cleared anyway.
+        assertEquals(1, mProvider.mTransactions.size());
+        assertEquals(0, batch.apply().size());
+    }
+
+    public void testMarkReadInDatabase() {
+        List<Voicemail> voicemails = Arrays.asList(createVoicemail(1), createVoicemail(2));
+        assertEquals(2, mQueryHelper.markReadInDatabase(voicemails));
+        assertEquals(1, mProvider.mTransactions.size());
+        assertEquals(2, mProvider.mTransactions.get(0).size());
+
+        mProvider.mFailedTransaction = 1;
+        assertEquals(0, mQueryHelper.markReadInDatabase(voicemails));
+    }
+
+    public void testMarkCleanInDatabase() {
+        List<Voicemail> voicemails = Arrays.asList(createVoicemail(1), createVoicemail(2));
+        assertEquals(2, mQueryHelper.markCleanInDatabase(voicemails));
+        assertEquals(1, mProvider.mTransactions.size());
+        assertEquals(2, mProvider.mTransactions.get(0).size());
+
+        mProvider.mFailedTransaction = 1;
+        assertEquals(0, mQueryHelper.markCleanInDatabase(voicemails));
+    }
+
+    private static Voicemail createVoicemail(long id) {
+        return Voicemail.createForUpdate(id, Long.toString(id)).build();
+    }
+
+    private static Voicemail createNewVoicemail(String sourceData) {
+        return Voicemail.createForInsertion(1000, "5551234")
+                .setSourceData(sourceData)
+                .setSourcePackage(PACKAGE_NAME)
+                .build();
+    }
+
+    private static Uri getUri(long id) {
+        return Uri.withAppendedPath(SOURCE_URI, Long.toString(id));
+    }
+
+    /**
+     * @return the uri {@link VoicemailProvider} returns for an insert
+     */
+    private static Uri getInsertedUri(int transaction, int index) {
+        return Uri.withAppendedPath(SOURCE_URI, transaction + "_" + index);
+    }
+
+    /**
+     * Records the transactions applied to it, and fails the one at {@link #mFailedTransaction}.
+     */
+    private static class VoicemailProvider extends MockContentProvider {
+
+        final List<List<ContentProviderOperation>> mTransactions = new ArrayList<>();
+        int mFailedTransaction = -1;
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            if (mTransactions.size() == mFailedTransaction) {
+                throw new OperationApplicationException("Failed transaction");
+            }
+            int transaction = mTransactions.size();
+            mTransactions.add(operations);
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = operations.get(i).isInsert()
+                        ? new ContentProviderResult(getInsertedUri(transaction, i))
+                        : new ContentProviderResult(1);
+            }
+            return results;
+        }
+    }
+}
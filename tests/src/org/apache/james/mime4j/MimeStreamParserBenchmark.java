@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.apache.james.mime4j;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.phone.common.mail.MailBenchmarkTestCase;
+import com.android.phone.common.mail.VoicemailFixtures;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Benchmarks {@link MimeStreamParser#parse(InputStream)} on complete voicemail messages, reading
+ * every body like {@link com.android.phone.common.mail.internet.MimeMessage} does.
+ */
+@LargeTest
+public class MimeStreamParserBenchmark extends MailBenchmarkTestCase {
+
+    public void testParse() throws Exception {
+        for (int size : VoicemailFixtures.SIZES) {
+            final byte[] message = VoicemailFixtures.message(size);
+            measure("MimeStreamParser.parse " + size, message.length, new Operation() {
+                @Override
+                public void run() throws Exception {
+                    MimeStreamParser parser = new MimeStreamParser();
+                    parser.setContentHandler(new DrainingContentHandler());
+                    parser.parse(new EOLConvertingInputStream(
+                            new ByteArrayInputStream(message)));
+                }
+            });
+        }
+    }
+
+    public void testTokenStream_skipBodies() throws Exception {
+        for (int size : VoicemailFixtures.SIZES) {
+            final byte[] message = VoicemailFixtures.message(size);
+            measure("MimeTokenStream skipping bodies " + size, message.length, new Operation() {
+                @Override
+                public void run() throws Exception {
+                    MimeTokenStream stream = new MimeTokenStream();
+                    stream.parse(new EOLConvertingInputStream(new ByteArrayInputStream(message)));
+                    while (stream.next() != MimeTokenStream.T_END_OF_STREAM) {
+                    }
+                }
+            });
+        }
+    }
+
+    private static class DrainingContentHandler implements ContentHandler {
+
+        @Override
+        public void startMessage() {
+        }
+
+        @Override
+        public void endMessage() {
+        }
+
+        @Override
+        public void startBodyPart() {
+        }
+
+        @Override
+        public void endBodyPart() {
+        }
+
+        @Override
+        public void startHeader() {
+        }
+
+        @Override
+        public void field(String fieldData) {
+        }
+
+        @Override
+        public void endHeader() {
+        }
+
+        @Override
+        public void preamble(InputStream is) throws IOException {
+            VoicemailFixtures.drain(is);
+        }
+
+        @Override
+        public void epilogue(InputStream is) throws IOException {
+            VoicemailFixtures.drain(is);
+        }
+
+        @Override
+        public void startMultipart(BodyDescriptor bd) {
+        }
+
+        @Override
+        public void endMultipart() {
+        }
+
+        @Override
+        public void body(BodyDescriptor bd, InputStream is) throws IOException {
+            VoicemailFixtures.drain(is);
+        }
+
+        @Override
+        public void raw(InputStream is) throws IOException {
+            VoicemailFixtures.drain(is);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.apache.james.mime4j;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class MimeTokenStreamTest extends TestCase {
+
+    private static final String MESSAGE = "Subject: voice mail\r\n"
+            + "Content-Type: multipart/mixed; boundary=\"b\"\r\n"
+            + "\r\n"
+            + "preamble\r\n"
+            + "--b\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "\r\n"
+            + "transcription\r\n"
+            + "--b\r\n"
+            + "Content-Type: audio/amr\r\n"
+            + "Content-Transfer-Encoding: base64\r\n"
+            + "\r\n"
+            + "QU1S\r\nQU1S\r\n"
+            + "--b--\r\n"
+            + "epilogue";
+
+    public void testNext() throws Exception {
+        MimeTokenStream stream = new MimeTokenStream();
+        stream.parse(new ByteArrayInputStream(MESSAGE.getBytes()));
+        StringBuilder tokens = new StringBuilder();
+        for (int state = stream.getState(); state != MimeTokenStream.T_END_OF_STREAM;
+                state = stream.next()) {
+            tokens.append(state).append(' ');
+            switch (state) {
+                case MimeTokenStream.T_FIELD:
+                    tokens.append(stream.getField()).append(' ');
+                    break;
+                case MimeTokenStream.T_BODY:
+                    tokens.append(stream.getBodyDescriptor().getMimeType()).append(' ')
+                            .append(read(stream.getInputStream())).append(' ');
+                    break;
+                case MimeTokenStream.T_PREAMBLE:
+                case MimeTokenStream.T_EPILOGUE:
+                    tokens.append(read(stream.getInputStream())).append(' ');
+                    break;
+            }
+        }
+        assertEquals("0 3 4 Subject: voice mail "
+                + "4 Content-Type: multipart/mixed; boundary=\"b\" 5 6 8 preamble "
+                + "10 3 4 Content-Type: text/plain 5 "
+                + "12 text/plain transcription 11 "
+                + "10 3 4 Content-Type: audio/amr 4 Content-Transfer-Encoding: base64 5 "
+                + "12 audio/amr QU1S\r\nQU1S 11 "
+                + "9 epilogue 7 1 ", tokens.toString());
+        assertFalse(stream.getPrematureEof());
+    }
+
+    public void testNext_skipsUnreadBodies() throws Exception {
+        MimeTokenStream stream = new MimeTokenStream();
+        stream.parse(new ByteArrayInputStream(MESSAGE.getBytes()));
+        int bodies = 0;
+        int state;
+        while ((state = stream.next()) != MimeTokenStream.T_EPILOGUE) {
+            if (state == MimeTokenStream.T_BODY) {
+                bodies++;
+            }
+        }
+        assertEquals(2, bodies);
+        assertEquals("epilogue", read(stream.getInputStream()));
+    }
+
+    public void testNext_boundarySplitAcrossReads() throws Exception {
+        StringBuilder audio = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            audio.append("QU1S\r\n-");
+        }
+        String message = "Content-Type: multipart/mixed; boundary=\"----=_Part_7\"\r\n"
+                + "\r\n"
+                + "------=_Part_7\r\n"
+                + "\r\n"
+                + audio
+                + "\r\n------=_Part_7--\r\n";
+        // One to seven bytes per read, so the boundary is split at every offset.
+        InputStream in = new ByteArrayInputStream(message.getBytes()) {
+            private int mReads;
+
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1 + mReads++ % 7));
+            }
+        };
+        MimeTokenStream stream = new MimeTokenStream();
+        stream.parse(in);
+        while (stream.next() != MimeTokenStream.T_BODY) {
+        }
+        assertEquals(audio.toString(), read(stream.getInputStream()));
+        assertEquals(MimeTokenStream.T_END_BODYPART, stream.next());
+        assertEquals(MimeTokenStream.T_EPILOGUE, stream.next());
+        assertEquals("", read(stream.getInputStream()));
+        assertFalse(stream.getPrematureEof());
+    }
+
+    public void testNext_prematureEof() throws Exception {
+        MimeTokenStream stream = new MimeTokenStream();
+        stream.parse(new ByteArrayInputStream(
+                MESSAGE.substring(0, MESSAGE.indexOf("QU1S")).getBytes()));
+        while (stream.next() != MimeTokenStream.T_END_OF_STREAM) {
+        }
+        assertTrue(stream.getPrematureEof());
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toString();
+    }
+}
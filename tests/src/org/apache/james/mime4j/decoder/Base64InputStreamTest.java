@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.apache.james.mime4j.decoder;
+
+import android.util.Base64;
+import android.util.Base64DataException;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+public class Base64InputStreamTest extends TestCase {
+
+    public void testRead_bulk() throws Exception {
+        Random random = new Random(0);
+        for (int size = 0; size < 300; size++) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            byte[] encoded = Base64.encode(data, Base64.CRLF);
+            assertTrue(Arrays.equals(data, readBulk(new ByteArrayInputStream(encoded), 4096)));
+            assertTrue(Arrays.equals(data, readBulk(new ByteArrayInputStream(encoded), 2)));
+        }
+    }
+
+    public void testRead_singleBytes() throws Exception {
+        byte[] data = "hello world!!".getBytes();
+        InputStream in = new Base64InputStream(
+                new ByteArrayInputStream(Base64.encode(data, Base64.DEFAULT)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            out.write(b);
+        }
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    public void testRead_quantaSplitAcrossReads() throws Exception {
+        byte[] data = new byte[1000];
+        new Random(1).nextBytes(data);
+        // One byte per read of the underlying stream, so every quantum is split.
+        InputStream source = new ByteArrayInputStream(Base64.encode(data, Base64.CRLF)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        assertTrue(Arrays.equals(data, readBulk(source, 100)));
+    }
+
+    public void testRead_whitespaceAndPadding() throws Exception {
+        assertEquals("hello", decode(" aGVs\r\n\tbG8=\r\n"));
+        assertEquals("hell", decode("aGVs bA==\r\n"));
+    }
+
+    public void testRead_unpadded() throws Exception {
+        assertEquals("hello", decode("aGVsbG8"));
+        assertEquals("hell", decode("aGVsbA"));
+    }
+
+    public void testRead_malformed() throws Exception {
+        // The data before the error is returned first.
+        assertMalformed("hi", "aGk=aGk=");
+        assertMalformed("hel", "aGVsb");
+        assertMalformed("hel", "aGVsb=");
+        assertMalformed("", "a===");
+        assertMalformed("hell", "aGVsbA=");
+        assertMalformed("hi", "aGk==");
+    }
+
+    private static void assertMalformed(String expected, String encoded) throws IOException {
+        InputStream in = new Base64InputStream(new ByteArrayInputStream(encoded.getBytes()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64];
+        try {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            fail("Base64DataException expected for " + encoded);
+        } catch (Base64DataException e) {
+            assertEquals(expected, out.toString());
+        }
+    }
+
+    private static String decode(String encoded) throws IOException {
+        return new String(readBulk(new ByteArrayInputStream(encoded.getBytes()), 64));
+    }
+
+    private static byte[] readBulk(InputStream source, int bufferSize) throws IOException {
+        InputStream in = new Base64InputStream(source);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[bufferSize];
+        int count;
+        while ((count = in.read(buffer, 1, bufferSize - 1)) != -1) {
+            assertTrue(count > 0);
+            out.write(buffer, 1, count);
+        }
+        return out.toByteArray();
+    }
+}
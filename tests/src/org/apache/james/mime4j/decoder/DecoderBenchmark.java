@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.apache.james.mime4j.decoder;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.phone.common.mail.MailBenchmarkTestCase;
+import com.android.phone.common.mail.VoicemailFixtures;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Benchmarks the transfer decoders of mime4j on voicemail attachments and transcriptions.
+ */
+@LargeTest
+public class DecoderBenchmark extends MailBenchmarkTestCase {
+
+    public void testBase64InputStream() throws Exception {
+        for (int size : VoicemailFixtures.SIZES) {
+            final byte[] encoded = VoicemailFixtures.base64(VoicemailFixtures.audio(size));
+            measure("Base64InputStream " + size, encoded.length, new Operation() {
+                @Override
+                public void run() throws Exception {
+                    VoicemailFixtures.drain(
+                            new Base64InputStream(new ByteArrayInputStream(encoded)));
+                }
+            });
+        }
+    }
+
+    public void testQuotedPrintableInputStream() throws Exception {
+        for (int size : VoicemailFixtures.SIZES) {
+            final byte[] encoded = quotedPrintableText(size);
+            measure("QuotedPrintableInputStream " + size, encoded.length, new Operation() {
+                @Override
+                public void run() throws Exception {
+                    VoicemailFixtures.drain(
+                            new QuotedPrintableInputStream(new ByteArrayInputStream(encoded)));
+                }
+            });
+        }
+    }
+
+    /**
+     * @return about {@code size} bytes of quoted-printable transcriptions.
+     */
+    private static byte[] quotedPrintableText(int size) {
+        byte[] transcription = VoicemailFixtures.quotedPrintable(VoicemailFixtures.TRANSCRIPTION);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + transcription.length);
+        while (out.size() < size) {
+            out.write(transcription, 0, transcription.length);
+            out.write('\r');
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.apache.james.mime4j.decoder;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+public class QuotedPrintableInputStreamTest extends TestCase {
+
+    /**
+     * Characters which drive the decoder through all of its states, including malformed escapes,
+     * soft line breaks with transport padding and bare line feeds.
+     */
+    private static final byte[] ALPHABET = "==== \t\t\r\r\n\n09AFaf3DGgz.\u00ff".getBytes(
+            StandardCharsets.ISO_8859_1);
+
+    public void testRead() throws Exception {
+        assertEquals("hello world", decode("hello=20world"));
+        assertEquals("caf\u00e9", new String(decodeBytes("caf=C3=A9"), "UTF-8"));
+        assertEquals("softbreak", decode("soft=\r\nbreak"));
+        assertEquals("padding\r\nremoved", decode("padding \t \r\nremoved  "));
+        assertEquals("kept \tinside", decode("kept \tinside"));
+    }
+
+    public void testRead_malformed() throws Exception {
+        assertEquals("=", decode("=="));
+        assertEquals("=Gx", decode("=Gx"));
+        assertEquals("=Ax", decode("=Ax"));
+        assertEquals("=\rx", decode("=\rx"));
+        assertEquals("=\nx", decode("=\nx"));
+        // Incomplete escapes at the end of the stream are dropped.
+        assertEquals("a", decode("a=A"));
+    }
+
+    public void testRead_longWhitespace() throws Exception {
+        StringBuilder whitespace = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            whitespace.append(i % 2 == 0 ? ' ' : '\t');
+        }
+        assertEquals("a\r\nb", decode("a" + whitespace + "\r\nb" + whitespace));
+        assertEquals("a" + whitespace + "b", decode("a" + whitespace + "b"));
+    }
+
+    /**
+     * Decodes random inputs with random read sizes and compares the output to the previous byte at
+     * a time implementation.
+     */
+    public void testRead_sameAsLegacy() throws Exception {
+        Random random = new Random(0);
+        for (int i = 0; i < 5000; i++) {
+            byte[] encoded = new byte[random.nextInt(i % 100 == 0 ? 20000 : 100)];
+            for (int j = 0; j < encoded.length; j++) {
+                encoded[j] = ALPHABET[random.nextInt(ALPHABET.length)];
+            }
+            byte[] expected = readAll(new LegacyQuotedPrintableInputStream(
+                    new ByteArrayInputStream(encoded)), random, 1);
+            InputStream source = new ChunkedInputStream(encoded, 1 + random.nextInt(50));
+            byte[] actual = readAll(new QuotedPrintableInputStream(source), random,
+                    1 + random.nextInt(100));
+            assertTrue("Input " + Arrays.toString(encoded), Arrays.equals(expected, actual));
+        }
+    }
+
+    private static String decode(String encoded) throws IOException {
+        return new String(decodeBytes(encoded), "ISO-8859-1");
+    }
+
+    private static byte[] decodeBytes(String encoded) throws IOException {
+        return readAll(new QuotedPrintableInputStream(
+                new ByteArrayInputStream(encoded.getBytes("ISO-8859-1"))), new Random(0), 64);
+    }
+
+    /**
+     * Reads {@code in} with a mix of single byte reads and bulk reads of up to
+     * {@code maxReadSize} bytes.
+     */
+    private static byte[] readAll(InputStream in, Random random, int maxReadSize)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[maxReadSize + 1];
+        while (true) {
+            if (maxReadSize == 1 || random.nextInt(4) == 0) {
+                int b = in.read();
+                if (b == -1) {
+                    break;
+                }
+                out.write(b);
+            } else {
+                int count = in.read(buffer, 1, 1 + random.nextInt(maxReadSize));
+                if (count == -1) {
+                    break;
+                }
+                assertTrue(count > 0);
+                out.write(buffer, 1, count);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns at most {@code chunkSize} bytes per read, like a network stream.
+     */
+    private static class ChunkedInputStream extends ByteArrayInputStream {
+
+        private final int mChunkSize;
+
+        ChunkedInputStream(byte[] data, int chunkSize) {
+            super(data);
+            mChunkSize = chunkSize;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, mChunkSize));
+        }
+    }
+}